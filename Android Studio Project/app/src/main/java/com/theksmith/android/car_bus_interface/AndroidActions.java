@@ -7,7 +7,6 @@ import android.content.pm.ResolveInfo;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
 import android.widget.Toast;
@@ -31,24 +30,33 @@ public class AndroidActions {
 
     private final Context mAppContext;
     private final boolean mSilentErrors;
+    private final Clock mClock;
 
     private final String mAppName;
 
 
-    private AndroidActions(final Context appContext, boolean silentErrors) {
+    private AndroidActions(final Context appContext, boolean silentErrors, final Clock clock) {
         if (D) Log.d(TAG, "AndroidActions()");
 
         mAppContext = appContext.getApplicationContext();
         mSilentErrors = silentErrors;
+        mClock = clock;
 
         mAppName = appContext.getApplicationInfo().name;
     }
 
     public static AndroidActions getInstance(final Context appContext, final boolean silentErrors) {
+        return getInstance(appContext, silentErrors, AndroidClock.INSTANCE);
+    }
+
+    /**
+     * @param clock  used for the times of simulated key events, which android compares against its own uptime (so normally AndroidClock)
+     */
+    public static AndroidActions getInstance(final Context appContext, final boolean silentErrors, final Clock clock) {
         if (D) Log.d(TAG, "getInstance()");
 
         if (mInstance == null) {
-            mInstance = new AndroidActions(appContext, silentErrors);
+            mInstance = new AndroidActions(appContext, silentErrors, clock);
         }
         return mInstance;
     }
@@ -148,7 +156,7 @@ public class AndroidActions {
                 @Override
                 public void run() {
                     try{
-                        final long now = SystemClock.uptimeMillis();
+                        final long now = mClock.uptimeMillis();
 
                         Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON, null);
                         KeyEvent event = new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0);
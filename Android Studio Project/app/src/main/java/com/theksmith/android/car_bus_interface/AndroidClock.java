@@ -0,0 +1,26 @@
+package com.theksmith.android.car_bus_interface;
+
+import android.os.SystemClock;
+
+
+/**
+ * the real Clock, backed by SystemClock
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class AndroidClock implements Clock {
+    public static final AndroidClock INSTANCE = new AndroidClock();
+
+
+    private AndroidClock() {}
+
+    @Override
+    public long uptimeMillis() {
+        return SystemClock.uptimeMillis();
+    }
+
+    @Override
+    public void sleep(final long millis) {
+        SystemClock.sleep(millis);
+    }
+}
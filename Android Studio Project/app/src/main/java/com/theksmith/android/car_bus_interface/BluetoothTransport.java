@@ -0,0 +1,142 @@
+package com.theksmith.android.car_bus_interface;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+
+
+/**
+ * a BusTransport over a bluetooth RFCOMM socket to a paired device
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BluetoothTransport implements BusTransport {
+    private static final String TAG = "BluetoothTransport";
+    private static final boolean D = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 0;
+
+    private final BluetoothDevice mDevice;
+
+    private volatile BluetoothSocket mSocket;
+    private volatile InputStream mInStream;
+    private volatile OutputStream mOutStream;
+
+
+    public BluetoothTransport(final BluetoothDevice device) {
+        if (device == null) {
+            throw new IllegalArgumentException("BluetoothTransport() : device is required");
+        }
+
+        mDevice = device;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void create() throws IOException {
+        if (D) Log.d(TAG, "create()");
+
+        if (mSocket != null) {
+            return;
+        }
+
+        final BluetoothSocket socket;
+
+        try {
+            /*
+            //for some OBD2 dongles you need to specify a "channel"
+            //the Android public API for a BluetoothDevice doesn't currently expose a socket creation method with that capability
+
+            //so using createRfcommSocketToServiceRecord() with the standard SPP UUID does not work:
+            UUID uuidSPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+            tmpSocket = mmDevice.createRfcommSocketToServiceRecord(uuidSPP);
+
+            //nor even trying each of the devices advertised UUIDs
+            for (ParcelUuid uuid : device.getUuids()) {
+                tmpSocket = mmDevice.createRfcommSocketToServiceRecord(uuid.getUuid());
+                sleep(3000);
+                if (tmpSocket.isConnected()) break;
+            }
+
+            //instead we use reflection to access the hidden public method createRfcommSocket()
+            //channel 1 seems pretty universal with these type of devices
+
+            //todo: should we try the documented methods for a BT socket first and then only resort to reflection as a backup?
+            */
+            final Method m = mDevice.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
+            socket = (BluetoothSocket) m.invoke(mDevice, 1);
+        } catch (Exception e) {
+            throw new IOException("failed to establish socket : " + e.getMessage(), e);
+        }
+
+        mSocket = socket;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (D) Log.d(TAG, "connect()");
+
+        create();
+
+        final BluetoothSocket socket = mSocket;
+        if (socket == null) {
+            throw new IOException("closed");
+        }
+
+        socket.connect();
+
+        mInStream = socket.getInputStream();
+        mOutStream = socket.getOutputStream();
+    }
+
+    @Override
+    public int read(final byte[] buffer) throws IOException {
+        final InputStream in = mInStream;
+        if (in == null) {
+            throw new IOException("not connected");
+        }
+
+        //note: only performing the read if available() > 0 did NOT work reliably - long running RX operations would start returning 0 constantly after about a minute
+        return in.read(buffer);
+    }
+
+    @Override
+    public void write(final byte[] data) throws IOException {
+        final OutputStream out = mOutStream;
+        if (out == null) {
+            throw new IOException("not connected");
+        }
+
+        out.write(data);
+        out.flush();
+    }
+
+    @Override
+    public void close() {
+        if (D) Log.d(TAG, "close()");
+
+        final BluetoothSocket socket = mSocket;
+        mSocket = null;
+        mInStream = null;
+        mOutStream = null;
+
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (Exception e) {
+                Log.w(TAG, "close() : failed to close socket : exception= " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+}
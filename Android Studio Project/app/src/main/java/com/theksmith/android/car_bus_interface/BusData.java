@@ -1,31 +1,103 @@
 package com.theksmith.android.car_bus_interface;
 
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
 
 
 /**
  * helper class to represent bus data within messages passed between CBIServiceMain and bound clients
+ * Parcelable using the compact BusDataCodec encoding so it can also be sent to clients in other processes
  *
  * @author Kristoffer Smith <kristoffer@theksmith.com>
  */
-public class BusData {
+public class BusData implements Parcelable {
     private static final String TAG = "BusData";
     private static final boolean DD = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 1;
 
-    public static enum BusDataType {
-        ERROR, TX, RX, RX_MONITORED
-    }
+    public static final int NO_ID = BusFrame.NO_ID;
+
+    private static final int ID_NOT_PARSED = -2;
 
 
     public String data = null;
     public BusDataType type = BusDataType.ERROR;
     public boolean rxComplete = false;
+    public long time = 0; //SystemClock.uptimeMillis() when the data was sent or received
+    public int bus = 1; //the bus number it was sent on or received from, 1 for the first (also for the service's own messages)
+
+    private int mId = ID_NOT_PARSED;
 
     public BusData(String data, BusDataType type, boolean rxComplete) {
+        this(data, type, rxComplete, SystemClock.uptimeMillis());
+    }
+
+    public BusData(String data, BusDataType type, boolean rxComplete, long time) {
+        this(1, data, type, rxComplete, time);
+    }
+
+    public BusData(int bus, String data, BusDataType type, boolean rxComplete, long time) {
         if (DD) Log.d(TAG, "BusData()");
 
+        this.bus = bus;
         this.data = data;
         this.type = type;
         this.rxComplete = rxComplete;
+        this.time = time;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+        encodeTo(encoder);
+        dest.writeByteArray(encoder.toByteArray());
+    }
+
+    public static final Parcelable.Creator<BusData> CREATOR = new Parcelable.Creator<BusData>() {
+        @Override
+        public BusData createFromParcel(final Parcel source) {
+            return decodeNext(new BusDataCodec.Decoder(source.createByteArray()));
+        }
+
+        @Override
+        public BusData[] newArray(final int size) {
+            return new BusData[size];
+        }
+    };
+
+    /**
+     * @param encoder  the batch to append this to
+     * @return  false if the batch is full, see BusDataCodec.Encoder.add()
+     */
+    public boolean encodeTo(final BusDataCodec.Encoder encoder) {
+        return encoder.add(bus, data, type, rxComplete, time);
+    }
+
+    /**
+     * @param decoder  a batch with a record left (hasNext() is true)
+     * @return  the next record as a new BusData
+     */
+    public static BusData decodeNext(final BusDataCodec.Decoder decoder) {
+        decoder.next();
+        return new BusData(decoder.getBus(), decoder.getData(), decoder.getType(), decoder.isRxComplete(), decoder.getTime());
+    }
+
+    /**
+     * gets the header/arbitration ID of an RX message (parsed once on first access)
+     *
+     * @return  the ID or NO_ID if this is not an RX message or the data is not a hex bus message (such as "OK" or "NO DATA")
+     */
+    public int getId() {
+        if (mId == ID_NOT_PARSED) {
+            mId = (type == BusDataType.RX || type == BusDataType.RX_MONITORED) ? BusFrame.parseId(data) : NO_ID;
+        }
+
+        return mId;
     }
-}
\ No newline at end of file
+}
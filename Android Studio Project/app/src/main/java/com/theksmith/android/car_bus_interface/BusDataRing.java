@@ -0,0 +1,80 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * a fixed capacity ring of BusData addressed by an ever increasing sequence number
+ * appending is O(1) and once full the oldest entries are overwritten, so memory use is bounded no matter how long it runs
+ * it is not persisted itself, CBIServiceMain keeps a copy in a BusLogFile to fill it again after a restart
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusDataRing {
+    private final BusData[] mItems;
+    private long mNext;
+    private long mCleared; //sequence number of the first entry after the last clear()
+
+
+    public BusDataRing(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("BusDataRing() : capacity must be > 0");
+        }
+
+        mItems = new BusData[capacity];
+    }
+
+    /**
+     * @param data  the data to add
+     * @return  the sequence number it was stored under
+     */
+    public synchronized long append(final BusData data) {
+        final long sequence = mNext;
+        mItems[(int) (sequence % mItems.length)] = data;
+        mNext++;
+        return sequence;
+    }
+
+    /**
+     * @param sequence  a sequence number returned by append()
+     * @return  the data, or null if it was overwritten or not written yet
+     */
+    public synchronized BusData get(final long sequence) {
+        if (sequence < getFirst() || sequence >= mNext) {
+            return null;
+        }
+
+        return mItems[(int) (sequence % mItems.length)];
+    }
+
+    /**
+     * @return  sequence number of the oldest entry still held
+     */
+    public synchronized long getFirst() {
+        return Math.max(mCleared, mNext - mItems.length);
+    }
+
+    /**
+     * @return  sequence number the next append() will use
+     */
+    public synchronized long getNext() {
+        return mNext;
+    }
+
+    public synchronized int size() {
+        return (int) (mNext - getFirst());
+    }
+
+    public int capacity() {
+        return mItems.length;
+    }
+
+    /**
+     * drops every entry, sequence numbers keep counting up from where they were
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mItems.length; i++) {
+            mItems[i] = null;
+        }
+
+        mCleared = mNext;
+    }
+}
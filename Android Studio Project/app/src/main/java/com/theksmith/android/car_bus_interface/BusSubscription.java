@@ -0,0 +1,311 @@
+package com.theksmith.android.car_bus_interface;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import static com.theksmith.android.car_bus_interface.BusData.*;
+
+
+/**
+ * a precompiled filter describing which bus data a bound client of CBIServiceMain wants to receive
+ * the spec is sent as the data Bundle of the BOUND_MSG_REGISTER_CLIENT message (see createBundle() and the KEY_* constants)
+ * a client that registers without a spec receives everything, same as before subscriptions existed
+ *
+ * matches() is called by the service for every piece of bus data and every client, so the spec is compiled into primitive arrays up front
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusSubscription {
+    private static final String TAG = "BusSubscription";
+    private static final boolean D = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 0;
+
+    //int[] of inclusive {first, last} ID pairs
+    public static final String KEY_ID_RANGES = "id_ranges";
+
+    //int[] of {id, mask} pairs, a message matches when (messageId & mask) == (id & mask)
+    public static final String KEY_ID_MASKS = "id_masks";
+
+    //boolean, only deliver RX_MONITORED data
+    public static final String KEY_MONITORED_ONLY = "monitored_only";
+
+    //boolean, only deliver ERROR data
+    public static final String KEY_ERRORS_ONLY = "errors_only";
+
+    //int, only deliver every Nth RX message per ID (1 or less delivers all)
+    public static final String KEY_SAMPLE_RATE = "sample_rate";
+
+    //boolean, deliver data in BusDataCodec batches with BOUND_MSG_NOTIFY_BUS_DATA_BATCH instead of one BOUND_MSG_NOTIFY_BUS_DATA per message
+    //required for clients in another process since those can not receive a BusData in Message.obj
+    public static final String KEY_BATCHED = "batched";
+
+    //int, only deliver data sent on or received from this bus number (BusData.bus), 0 for every bus, ERROR data is delivered whatever its bus
+    public static final String KEY_BUS = "bus";
+
+    //int, on registering first replay up to this many of the most recent messages from the service log (always as BOUND_MSG_NOTIFY_BUS_DATA_BATCH), then continue with live data
+    public static final String KEY_HISTORY = "history";
+
+    private static final int INITIAL_SAMPLE_TABLE_SIZE = 64; //must be a power of 2
+
+    private final int mTypeMask;
+    private final int mBus;
+    private final boolean mFilterIds;
+
+    private final int[] mRangeFirsts;
+    private final int[] mRangeLasts;
+
+    private final int[] mMaskIds;
+    private final int[] mMasks;
+
+    private final boolean mBatched;
+    private final int mHistory;
+
+    private final int mSampleRate;
+    private int[] mSampleIds;
+    private int[] mSampleCounts;
+    private int mSampleUsed;
+
+
+    /**
+     * compiles a subscription spec
+     *
+     * @param spec  a Bundle built with createBundle() (or by hand using the KEY_* constants), null to match everything
+     */
+    public BusSubscription(final Bundle spec) {
+        if (D) Log.d(TAG, "BusSubscription()");
+
+        int[] ranges = null;
+        int[] masks = null;
+        boolean monitoredOnly = false;
+        boolean errorsOnly = false;
+        int sampleRate = 1;
+        boolean batched = false;
+        int history = 0;
+        int bus = 0;
+
+        if (spec != null) {
+            ranges = spec.getIntArray(KEY_ID_RANGES);
+            masks = spec.getIntArray(KEY_ID_MASKS);
+            monitoredOnly = spec.getBoolean(KEY_MONITORED_ONLY, false);
+            errorsOnly = spec.getBoolean(KEY_ERRORS_ONLY, false);
+            sampleRate = spec.getInt(KEY_SAMPLE_RATE, 1);
+            batched = spec.getBoolean(KEY_BATCHED, false);
+            history = spec.getInt(KEY_HISTORY, 0);
+            bus = spec.getInt(KEY_BUS, 0);
+        }
+
+        mBatched = batched;
+        mHistory = Math.max(0, history);
+
+        //types
+        int typeMask = 0;
+        if (monitoredOnly || errorsOnly) {
+            if (monitoredOnly) typeMask |= typeBit(BusDataType.RX_MONITORED);
+            if (errorsOnly) typeMask |= typeBit(BusDataType.ERROR);
+        } else {
+            for (BusDataType type : BusDataType.values()) {
+                typeMask |= typeBit(type);
+            }
+        }
+        mTypeMask = typeMask;
+
+        mBus = Math.max(0, bus);
+
+        //ID ranges, sorted and merged so matching is a binary search
+        if (ranges != null && ranges.length >= 2) {
+            final int count = ranges.length / 2;
+            final long[] packed = new long[count];
+            for (int r = 0; r < count; r++) {
+                final int first = Math.min(ranges[r * 2], ranges[r * 2 + 1]);
+                final int last = Math.max(ranges[r * 2], ranges[r * 2 + 1]);
+                packed[r] = ((long) first << 32) | (last & 0xFFFFFFFFL);
+            }
+            Arrays.sort(packed);
+
+            final int[] firsts = new int[count];
+            final int[] lasts = new int[count];
+            int merged = 0;
+            for (int r = 0; r < count; r++) {
+                final int first = (int) (packed[r] >> 32);
+                final int last = (int) packed[r];
+                if (merged > 0 && first <= lasts[merged - 1] + 1) {
+                    lasts[merged - 1] = Math.max(lasts[merged - 1], last);
+                } else {
+                    firsts[merged] = first;
+                    lasts[merged] = last;
+                    merged++;
+                }
+            }
+
+            mRangeFirsts = Arrays.copyOf(firsts, merged);
+            mRangeLasts = Arrays.copyOf(lasts, merged);
+        } else {
+            mRangeFirsts = new int[0];
+            mRangeLasts = new int[0];
+        }
+
+        //ID masks, pre-masked so matching is a single AND and compare per entry
+        if (masks != null && masks.length >= 2) {
+            final int count = masks.length / 2;
+            mMaskIds = new int[count];
+            mMasks = new int[count];
+            for (int m = 0; m < count; m++) {
+                mMasks[m] = masks[m * 2 + 1];
+                mMaskIds[m] = masks[m * 2] & mMasks[m];
+            }
+        } else {
+            mMaskIds = new int[0];
+            mMasks = new int[0];
+        }
+
+        mFilterIds = mRangeFirsts.length > 0 || mMaskIds.length > 0;
+
+        mSampleRate = Math.max(1, sampleRate);
+        if (mSampleRate > 1) {
+            mSampleIds = new int[INITIAL_SAMPLE_TABLE_SIZE];
+            mSampleCounts = new int[INITIAL_SAMPLE_TABLE_SIZE];
+            Arrays.fill(mSampleIds, NO_ID);
+        }
+    }
+
+    /**
+     * builds a spec Bundle to send with BOUND_MSG_REGISTER_CLIENT
+     *
+     * @param idRanges  inclusive {first, last} ID pairs, or null
+     * @param idMasks  {id, mask} pairs, or null
+     * @param monitoredOnly  only deliver RX_MONITORED data
+     * @param errorsOnly  only deliver ERROR data (combined with monitoredOnly delivers both)
+     * @param sampleRate  only deliver every Nth RX message per ID, 1 for all
+     * @param batched  deliver BusDataCodec batches instead of individual BusData objects
+     * @return  the spec
+     */
+    public static Bundle createBundle(final int[] idRanges, final int[] idMasks, final boolean monitoredOnly, final boolean errorsOnly, final int sampleRate, final boolean batched) {
+        final Bundle spec = new Bundle();
+
+        if (idRanges != null) spec.putIntArray(KEY_ID_RANGES, idRanges);
+        if (idMasks != null) spec.putIntArray(KEY_ID_MASKS, idMasks);
+        spec.putBoolean(KEY_MONITORED_ONLY, monitoredOnly);
+        spec.putBoolean(KEY_ERRORS_ONLY, errorsOnly);
+        spec.putInt(KEY_SAMPLE_RATE, sampleRate);
+        spec.putBoolean(KEY_BATCHED, batched);
+
+        return spec;
+    }
+
+    public boolean isBatched() {
+        return mBatched;
+    }
+
+    public int getHistory() {
+        return mHistory;
+    }
+
+    /**
+     * checks if the client wants a piece of bus data
+     * not thread safe when a sample rate is used, CBIServiceMain only calls this while synchronized
+     *
+     * @param data  the bus data about to be sent
+     * @return  true if it should be delivered
+     */
+    public boolean matches(final BusData data) {
+        if ((mTypeMask & typeBit(data.type)) == 0) {
+            return false;
+        }
+
+        if (mBus != 0 && data.bus != mBus && data.type != BusDataType.ERROR) {
+            return false;
+        }
+
+        if (data.type != BusDataType.RX && data.type != BusDataType.RX_MONITORED) {
+            //ID filters and sampling only apply to received bus messages
+            return true;
+        }
+
+        final int id = data.getId();
+
+        if (mFilterIds && (id == NO_ID || !matchesId(id))) {
+            return false;
+        }
+
+        if (mSampleRate > 1 && id != NO_ID) {
+            return sample(id);
+        }
+
+        return true;
+    }
+
+    private boolean matchesId(final int id) {
+        for (int m = 0; m < mMasks.length; m++) {
+            if ((id & mMasks[m]) == mMaskIds[m]) {
+                return true;
+            }
+        }
+
+        int low = 0;
+        int high = mRangeFirsts.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (id < mRangeFirsts[mid]) {
+                high = mid - 1;
+            } else if (id > mRangeLasts[mid]) {
+                low = mid + 1;
+            } else {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean sample(final int id) {
+        int slot = findSampleSlot(mSampleIds, id);
+
+        if (mSampleIds[slot] == NO_ID) {
+            if ((mSampleUsed + 1) * 2 > mSampleIds.length) {
+                growSampleTable();
+                slot = findSampleSlot(mSampleIds, id);
+            }
+
+            mSampleIds[slot] = id;
+            mSampleCounts[slot] = 0;
+            mSampleUsed++;
+        }
+
+        //always deliver the first occurrence of an ID, then every Nth after that
+        final boolean deliver = mSampleCounts[slot] == 0;
+        mSampleCounts[slot] = (mSampleCounts[slot] + 1) % mSampleRate;
+
+        return deliver;
+    }
+
+    private static int findSampleSlot(final int[] ids, final int id) {
+        final int mask = ids.length - 1;
+        int slot = ((id * 0x9E3779B9) >>> 16) & mask;
+        while (ids[slot] != NO_ID && ids[slot] != id) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void growSampleTable() {
+        final int[] oldIds = mSampleIds;
+        final int[] oldCounts = mSampleCounts;
+
+        mSampleIds = new int[oldIds.length * 2];
+        mSampleCounts = new int[oldIds.length * 2];
+        Arrays.fill(mSampleIds, NO_ID);
+
+        for (int i = 0; i < oldIds.length; i++) {
+            if (oldIds[i] != NO_ID) {
+                final int slot = findSampleSlot(mSampleIds, oldIds[i]);
+                mSampleIds[slot] = oldIds[i];
+                mSampleCounts[slot] = oldCounts[i];
+            }
+        }
+    }
+
+    private static int typeBit(final BusDataType type) {
+        return 1 << type.ordinal();
+    }
+}
@@ -60,12 +60,6 @@ public class CBIActivityMain extends Activity {
 
                 //always show the settings screen on resume (user came from the App Switcher or Recent Apps Dialog)
                 activitySettingsShow();
-            } else {
-                //this is a fresh "launch"...
-
-                //clear the debug terminal on each new launch
-                //we use AppState instead of AppGlobals even though we aren't using the info between launches because this data could be too large to always keep in RAM
-                AppState.setString(getApplicationContext(), R.string.app_state_s_termninal_contents, "");
             }
 
             //start the service (or if this is a "resume" then ensure it's still running)
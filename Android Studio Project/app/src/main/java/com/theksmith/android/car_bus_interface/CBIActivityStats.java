@@ -0,0 +1,229 @@
+package com.theksmith.android.car_bus_interface;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+import android.util.Log;
+import android.view.View;
+import android.widget.TextView;
+
+import java.util.Locale;
+
+
+/**
+ * a bus statistics screen Activity
+ * binds to CBIServiceMain and polls BOUND_MSG_GET_STATS once a second, for one bus at a time (tapping moves to the next)
+ * this is launched from within the Settings screen
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class CBIActivityStats extends Activity {
+    private static final String TAG = "CBIActivityStats";
+    private static final boolean D = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 0;
+    private static final boolean DD = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 1;
+
+    private static final long STATS_REFRESH_TIME = 1000; //milliseconds
+
+    private TextView mTxtStats;
+
+    private int mBus = 1; //the bus number shown, the service answers for the first bus once it runs past the last
+
+    private boolean mIsBound;
+
+    private Messenger mServiceMainMessenger = null;
+    private final Messenger mServiceMainIncomingMessenger = new Messenger(new ServiceMainHandler());
+
+    private final Handler mRefreshHandler = new Handler();
+
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        if (D) Log.d(TAG, "onCreate()");
+
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_stats);
+
+        mTxtStats = (TextView) findViewById(R.id.txtStats);
+        mTxtStats.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(final View view) {
+                mBus++;
+                serviceMainGetStats();
+            }
+        });
+    }
+
+    @Override
+    protected void onStart() {
+        if (D) Log.d(TAG, "onStart()");
+
+        super.onStart();
+
+        serviceMainBind();
+    }
+
+    @Override
+    protected void onStop() {
+        if (D) Log.d(TAG, "onStop()");
+
+        super.onStop();
+
+        mRefreshHandler.removeCallbacks(mRefresher);
+
+        serviceMainUnBind();
+    }
+
+    private final Runnable mRefresher = new Runnable() {
+        @Override
+        public void run() {
+            serviceMainGetStats();
+
+            mRefreshHandler.postDelayed(this, STATS_REFRESH_TIME);
+        }
+    };
+
+    private void showStats(final Bundle stats) {
+        if (DD) Log.d(TAG, "showStats()");
+
+        final StringBuilder text = new StringBuilder();
+
+        mBus = stats.getInt(CBIServiceMain.BOUND_KEY_STATS_BUS, 1);
+        text.append(getString(R.string.stats_bus, mBus)).append('\n');
+        text.append('\n');
+
+        text.append(getString(R.string.stats_total_frames)).append(' ').append(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_TOTAL_FRAMES)).append('\n');
+        text.append(getString(R.string.stats_frames_per_second)).append(' ').append(String.format(Locale.US, "%.1f", stats.getDouble(CBIServiceMain.BOUND_KEY_STATS_FRAMES_PER_SECOND))).append('\n');
+        text.append(getString(R.string.stats_bus_load)).append(' ').append(String.format(Locale.US, "%.1f%%", stats.getDouble(CBIServiceMain.BOUND_KEY_STATS_BUS_LOAD))).append('\n');
+        text.append(getString(R.string.stats_bitrate)).append(' ').append(stats.getInt(CBIServiceMain.BOUND_KEY_STATS_BITRATE)).append('\n');
+        text.append(getString(R.string.stats_buffer_full)).append(' ').append(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_BUFFER_FULL)).append('\n');
+        text.append(getString(R.string.stats_can_error)).append(' ').append(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_CAN_ERROR)).append('\n');
+        text.append(getString(R.string.stats_dropped_ids)).append(' ').append(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_DROPPED_IDS)).append('\n');
+        text.append('\n');
+
+        text.append(getString(R.string.stats_connect_attempts)).append(' ').append(stats.getInt(CBIServiceMain.BOUND_KEY_STATS_CONNECT_ATTEMPTS)).append('\n');
+        text.append(getString(R.string.stats_recoveries)).append(' ').append(stats.getInt(CBIServiceMain.BOUND_KEY_STATS_RECOVERIES)).append('\n');
+        text.append(getString(R.string.stats_recovery_times)).append(' ').append(formatMillis(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_RECOVERY_LAST))).append(" / ").append(formatMillis(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_RECOVERY_MEDIAN))).append('\n');
+
+        final long[] phases = stats.getLongArray(CBIServiceMain.BOUND_KEY_STATS_CONNECT_PHASES);
+        if (phases != null) {
+            text.append(getString(R.string.stats_connect_phases)).append(' ');
+            for (int p = 0; p < phases.length; p++) {
+                text.append(p > 0 ? " / " : "").append(formatMillis(phases[p]));
+            }
+            text.append('\n');
+        }
+
+        final int[] watchdogActions = stats.getIntArray(CBIServiceMain.BOUND_KEY_STATS_WATCHDOG_ACTIONS);
+        final int[] watchdogRecoveries = stats.getIntArray(CBIServiceMain.BOUND_KEY_STATS_WATCHDOG_RECOVERIES);
+        if (watchdogActions != null && watchdogRecoveries != null) {
+            text.append(getString(R.string.stats_watchdog)).append(' ');
+            text.append(getString(R.string.stats_watchdog_counts,
+                    watchdogActions[RxWatchdog.Stage.REISSUE_MONITOR.ordinal()], watchdogActions[RxWatchdog.Stage.WARM_RESET.ordinal()], watchdogActions[RxWatchdog.Stage.RECONNECT.ordinal()],
+                    watchdogRecoveries[RxWatchdog.Stage.REISSUE_MONITOR.ordinal()], watchdogRecoveries[RxWatchdog.Stage.WARM_RESET.ordinal()])).append('\n');
+        }
+
+        final int[] udsCounts = stats.getIntArray(CBIServiceMain.BOUND_KEY_STATS_UDS_COUNTS);
+        if (udsCounts != null && udsCounts[UdsSessionManager.COUNT_REQUESTS] > 0) {
+            text.append(getString(R.string.stats_uds)).append(' ');
+            text.append(getString(R.string.stats_uds_counts,
+                    udsCounts[UdsSessionManager.COUNT_REQUESTS], udsCounts[UdsSessionManager.COUNT_POSITIVE], udsCounts[UdsSessionManager.COUNT_NEGATIVE], udsCounts[UdsSessionManager.COUNT_TIMEOUTS])).append('\n');
+            text.append(getString(R.string.stats_uds_latency)).append(' ').append(formatMillis(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_UDS_LATENCY_LAST, -1))).append(" / ").append(formatMillis(stats.getLong(CBIServiceMain.BOUND_KEY_STATS_UDS_LATENCY_AVERAGE, -1))).append('\n');
+        }
+        text.append('\n');
+
+        final int[] ids = stats.getIntArray(CBIServiceMain.BOUND_KEY_STATS_IDS);
+        final long[] counts = stats.getLongArray(CBIServiceMain.BOUND_KEY_STATS_COUNTS);
+        final double[] rates = stats.getDoubleArray(CBIServiceMain.BOUND_KEY_STATS_ID_FRAMES_PER_SECOND);
+        final double[] periods = stats.getDoubleArray(CBIServiceMain.BOUND_KEY_STATS_PERIODS);
+        final double[] jitters = stats.getDoubleArray(CBIServiceMain.BOUND_KEY_STATS_JITTERS);
+
+        if (ids != null && ids.length > 0) {
+            text.append(getString(R.string.stats_header_ids)).append('\n');
+
+            for (int i = 0; i < ids.length; i++) {
+                text.append(String.format(Locale.US, "%-9X %-9d %-7.1f %-7.1f %.1f", ids[i], counts[i], rates[i], periods[i], jitters[i])).append('\n');
+            }
+        }
+
+        mTxtStats.setText(text);
+    }
+
+    private static String formatMillis(final long millis) {
+        return millis < 0 ? "-" : millis + "ms";
+    }
+
+    void serviceMainBind() {
+        if (D) Log.d(TAG, "serviceMainBind()");
+
+        bindService(new Intent(CBIActivityStats.this, CBIServiceMain.class), mServiceMainConnection, Context.BIND_AUTO_CREATE);
+        mIsBound = true;
+    }
+
+    void serviceMainUnBind() {
+        if (D) Log.d(TAG, "serviceMainUnBind()");
+
+        if (mIsBound) {
+            unbindService(mServiceMainConnection);
+            mIsBound = false;
+        }
+    }
+
+    private void serviceMainGetStats() {
+        if (DD) Log.d(TAG, "serviceMainGetStats()");
+
+        if (mServiceMainMessenger == null) {
+            return;
+        }
+
+        try {
+            Message message = Message.obtain(null, CBIServiceMain.BOUND_MSG_GET_STATS);
+            message.arg1 = mBus;
+            message.replyTo = mServiceMainIncomingMessenger;
+            mServiceMainMessenger.send(message);
+        } catch (RemoteException e) {
+            mTxtStats.setText(getString(R.string.msg_error_stats_lost_binding));
+        }
+    }
+
+    private final ServiceConnection mServiceMainConnection = new ServiceConnection() {
+        public void onServiceConnected(final ComponentName className, final IBinder service) {
+            if (D) Log.d(TAG, "mServiceMainConnection : onServiceConnected()");
+
+            mServiceMainMessenger = new Messenger(service);
+
+            mRefreshHandler.removeCallbacks(mRefresher);
+            mRefreshHandler.post(mRefresher);
+        }
+
+        public void onServiceDisconnected(final ComponentName className) {
+            if (D) Log.d(TAG, "mServiceMainConnection : onServiceDisconnected()");
+
+            mServiceMainMessenger = null;
+        }
+    };
+
+    class ServiceMainHandler extends Handler {
+        @Override
+        public void handleMessage(final Message message) {
+            if (DD) Log.d(TAG, "ServiceMainHandler : handleMessage()");
+
+            switch (message.what) {
+                case CBIServiceMain.BOUND_MSG_STATS:
+                    showStats(message.getData());
+                    break;
+
+                default:
+                    super.handleMessage(message);
+            }
+        }
+    }
+}
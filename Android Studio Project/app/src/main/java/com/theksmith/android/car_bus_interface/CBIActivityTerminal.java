@@ -12,57 +12,32 @@ import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
 import android.os.RemoteException;
-import android.text.Html;
-import android.text.SpannableString;
-import android.text.Spanned;
-import android.text.TextUtils;
-import android.text.style.ForegroundColorSpan;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.KeyEvent;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
-import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
 import android.widget.Button;
 import android.widget.EditText;
-import android.widget.ScrollView;
+import android.widget.ListView;
 import android.widget.TextView;
 
-import com.theksmith.android.helpers.AppState;
-
 import java.text.SimpleDateFormat;
-import java.util.Calendar;
+import java.util.Date;
 
 import static com.theksmith.android.car_bus_interface.BusData.*;
 
 
-/*
-todo: refactor to not use the service binding for monitoring bus data...
-
-there are 2 main problems with the current approach:
-
- -  the terminal only logs when the activity has focus
-
- -  large/fast data hangs the UI, such as after issuing the ATMA command on a busy bus (the binding is flooded with RX bus data messages)
-
-possible solutions, instead of sending bus data across the binding:
-
- -  have the service log all bus data to a Shared Preferences item
-    this likely requires a serialized array or collection of some type and all the resultant serialize/de-serialize calls would probably be slow and memory intensive
-    could also run into concurrent access issues with the state item
-
- -  use Internal Storage or External Storage providers to log all bus data to a file
-    should be fast and easy to write to (append), unsure how easy to reading only the tail is?
-    need to consider whether to use External which will require permissions and more writable/readable checks but allow user to grab the file
-    or for simplicity use Internal since this is supposed to be a SIMPLE debugging feature and not a full app in itself (could always add ability to export the file)
-    if we don't do External, then maybe just use app cache storage for the file (see getCacheDir()), then it gets cleaned up automatically on app uninstall
-
-*/
-
 /**
  * a debugging terminal screen Activity
  * binds to CBIServiceMain to allow monitoring bus data and sending bus commands
+ * the service logs all bus data whether or not this is open, on binding the terminal is filled from that log and then follows the live tail
  * this is launched from within the Settings screen
  *
  * @author Kristoffer Smith <kristoffer@theksmith.com>
@@ -76,7 +51,8 @@ public class CBIActivityTerminal extends Activity {
     private MenuItem mMenuItemShowTime;
     private MenuItem mMenuItemShowElapsed;
 
-    private TextView mTxtTerminal;
+    private ListView mListTerminal;
+    private TerminalAdapter mTerminalAdapter;
     private EditText mTxtCommand;
     private TextView mTxtAlertOverlay;
 
@@ -89,10 +65,13 @@ public class CBIActivityTerminal extends Activity {
     private Messenger mServiceMainMessenger = null;
     private final Messenger mServiceMainIncomingMessenger = new Messenger(new ServiceMainHandler());
 
-    private long mLastTerminalTime;
+    private final BusDataRing mTerminalRing = new BusDataRing(MAX_TERMINAL_LINES);
+    private final Handler mTerminalRefreshHandler = new Handler();
+    private boolean mTerminalRefreshPending;
 
-    private static final int MAX_TERMINAL_LINES = 550;
-    private static final int MAX_TERMINAL_LINES_TRIM = 50; //how much space to make each time we reach MAX_TERMINAL_LINES (trimming a single line at a time would result in constant UI updates)
+    private static final int MAX_TERMINAL_LINES = 100000;
+    private static final int TERMINAL_HISTORY_LINES = 20000; //how much of the service log to load when the terminal attaches
+    private static final long TERMINAL_REFRESH_WAIT = 100; //milliseconds, incoming data is coalesced into one list update per this period
 
 
     @Override
@@ -103,8 +82,11 @@ public class CBIActivityTerminal extends Activity {
 
         setContentView(R.layout.activity_terminal);
 
-        mTxtTerminal = (TextView) findViewById(R.id.txtTerminal);
-        mTxtTerminal.setOnTouchListener(mTxtTerminal_OnTouchListener);
+        mTerminalAdapter = new TerminalAdapter();
+
+        mListTerminal = (ListView) findViewById(R.id.listTerminal);
+        mListTerminal.setAdapter(mTerminalAdapter);
+        mListTerminal.setOnScrollListener(mListTerminal_OnScrollListener);
 
         mTxtCommand = (EditText) findViewById(R.id.txtCommand);
         mTxtCommand.setOnEditorActionListener(mTxtCommand_OnEditorActionListener);
@@ -121,49 +103,22 @@ public class CBIActivityTerminal extends Activity {
 
         super.onStart();
 
-        mTxtTerminal.setText("");
+        //the service log is replayed on binding, so nothing needs to be kept while stopped
+        mTerminalRing.clear();
+        terminalRefresh();
 
         serviceMainBind();
     }
 
-
-    @Override
-    protected void onDestroy() {
-        if (D) Log.d(TAG, "onDestroy()");
-
-        super.onDestroy();
-
-        serviceMainUnBind();
-    }
-
-    @Override
-    protected void onResume() {
-        if (D) Log.d(TAG, "onResume()");
-
-        super.onResume();
-
-        //persist terminal contents
-        String html = AppState.getString(getApplicationContext(), R.string.app_state_s_termninal_contents, "");
-        mTxtTerminal.setText(Html.fromHtml(html));
-
-        //alert users that terminal is once again active
-        BusData data = new BusData(getString(R.string.msg_error_terminal_focus_resumed), BusDataType.ERROR, false);
-        terminalAppend(data);
-    }
-
     @Override
-    protected void onPause() {
-        if (D) Log.d(TAG, "onPause()");
+    protected void onStop() {
+        if (D) Log.d(TAG, "onStop()");
 
-        super.onPause();
+        super.onStop();
 
-        //alert users that terminal was not logging while out of focus
-        BusData data = new BusData(getString(R.string.msg_error_terminal_focus_lost), BusDataType.ERROR, false);
-        terminalAppend(data);
+        mTerminalRefreshHandler.removeCallbacks(mTerminalRefresh);
 
-        //persist terminal contents
-        SpannableString span = SpannableString.valueOf(mTxtTerminal.getText());
-        AppState.setString(getApplicationContext(), R.string.app_state_s_termninal_contents, Html.toHtml(span));
+        serviceMainUnBind();
     }
 
     @Override
@@ -233,14 +188,19 @@ public class CBIActivityTerminal extends Activity {
         }
     };
 
-    final TextView.OnTouchListener mTxtTerminal_OnTouchListener = new View.OnTouchListener() {
+    final AbsListView.OnScrollListener mListTerminal_OnScrollListener = new AbsListView.OnScrollListener() {
         @Override
-        public boolean onTouch(View view, MotionEvent motionEvent) {
-            if (DD) Log.d(TAG, "mTxtTerminal_OnTouchListener.onTouch()");
+        public void onScrollStateChanged(final AbsListView view, final int scrollState) {
+            if (DD) Log.d(TAG, "mListTerminal_OnScrollListener.onScrollStateChanged()");
 
-            toggleAutoScroll(false);
-            return true;
+            //the user is dragging the list, stop following new data so it doesn't yank the view away
+            if (scrollState == SCROLL_STATE_TOUCH_SCROLL && mAutoScroll) {
+                toggleAutoScroll(false);
+            }
         }
+
+        @Override
+        public void onScroll(final AbsListView view, final int firstVisibleItem, final int visibleItemCount, final int totalItemCount) {}
     };
 
     private void toggleAutoScroll(final boolean scroll) {
@@ -275,90 +235,150 @@ public class CBIActivityTerminal extends Activity {
     private void terminalScroll() {
         if (DD) Log.d(TAG, "terminalScroll()");
 
-        final ScrollView scrollView = (ScrollView) findViewById(R.id.scrollView);
-
-        scrollView.post(new Runnable()
-        {
-            public void run()
-            {
-                scrollView.smoothScrollTo(0, mTxtTerminal.getBottom());
-            }
-        });
+        mListTerminal.setSelection(mTerminalAdapter.getCount() - 1);
     }
 
     private void terminalAppend(final BusData data) {
         if (DD) Log.d(TAG, "terminalAppend()");
 
-        //keep a rolling terminal of MAX_TERMINAL_LINES number of lines
-        final int lines = mTxtTerminal.getLineCount();
-        if (lines > MAX_TERMINAL_LINES) {
-            final StringBuilder trimmed = new StringBuilder();
-            final String html = Html.toHtml(SpannableString.valueOf(mTxtTerminal.getText()));
-
-            final TextUtils.SimpleStringSplitter splitter = new TextUtils.SimpleStringSplitter('\n');
-            splitter.setString(html);
-
-            int l = 0;
-            for (final String line : splitter) {
-                l++;
-                if (l > (lines - MAX_TERMINAL_LINES + MAX_TERMINAL_LINES_TRIM)) {
-                    trimmed.append(line);
-                }
+        //constant cost per line: store it and let the list pull visible rows when it next lays out
+        mTerminalRing.append(data);
+
+        if (!mTerminalRefreshPending) {
+            mTerminalRefreshPending = true;
+            mTerminalRefreshHandler.postDelayed(mTerminalRefresh, TERMINAL_REFRESH_WAIT);
+        }
+    }
+
+    private final Runnable mTerminalRefresh = new Runnable() {
+        @Override
+        public void run() {
+            terminalRefresh();
+        }
+    };
+
+    private void terminalRefresh() {
+        if (DD) Log.d(TAG, "terminalRefresh()");
+
+        mTerminalRefreshHandler.removeCallbacks(mTerminalRefresh);
+        mTerminalRefreshPending = false;
+
+        if (mAutoScroll) {
+            mTerminalAdapter.sync();
+            terminalScroll();
+        } else {
+            //once the ring is full the oldest lines drop off, keep the lines being read at the same spot on screen
+            final long sequence = mTerminalAdapter.getFirst() + mListTerminal.getFirstVisiblePosition();
+            final View top = mListTerminal.getChildAt(0);
+
+            mTerminalAdapter.sync();
+
+            if (top != null) {
+                mListTerminal.setSelectionFromTop((int) Math.max(0, sequence - mTerminalAdapter.getFirst()), top.getTop());
             }
+        }
+    }
 
-            mTxtTerminal.setText(Html.fromHtml(trimmed.toString()));
+    /**
+     * feeds the ListView from mTerminalRing, only the rows on screen are ever turned into text
+     * the range it shows is frozen at each sync() so the ring can keep growing between layouts
+     */
+    private class TerminalAdapter extends BaseAdapter {
+        private long mmFirst;
+        private int mmCount;
+
+        private final SimpleDateFormat mmTimeFormatter = new SimpleDateFormat("hh:mm:ss.SSS");
+        private final Date mmDate = new Date();
+        private final StringBuilder mmLine = new StringBuilder();
+        private final String mmBusLabel = getString(R.string.msg_bus);
+
+        public void sync() {
+            mmFirst = mTerminalRing.getFirst();
+            mmCount = mTerminalRing.size();
+            notifyDataSetChanged();
         }
 
-        //color code the data
-        ForegroundColorSpan color = new ForegroundColorSpan(Color.GRAY);
+        public long getFirst() {
+            return mmFirst;
+        }
 
-        if (data.type == BusDataType.RX_MONITORED) {
-            color = new ForegroundColorSpan(Color.GREEN);
-        } else if (data.type == BusDataType.TX) {
-            color = new ForegroundColorSpan(Color.WHITE);
-        } else if (data.type == BusDataType.ERROR) {
-            color = new ForegroundColorSpan(Color.RED);
+        @Override
+        public int getCount() {
+            return mmCount;
         }
 
-        //do timestamp and elapsed span stuff
-        final Calendar now = Calendar.getInstance();
+        @Override
+        public BusData getItem(final int position) {
+            return mTerminalRing.get(mmFirst + position);
+        }
 
-        String nowStamp = "";
-        if (mShowTime) {
-            final SimpleDateFormat formatter = new SimpleDateFormat("hh:mm:ss.SSS");
-            nowStamp = formatter.format(now.getTime()) + " ";
+        @Override
+        public long getItemId(final int position) {
+            return mmFirst + position;
         }
 
-        String diffStamp = "";
-        if (mShowElapsed) {
-            final Calendar diff = Calendar.getInstance();
-            if (mLastTerminalTime <= 0) {
-                mLastTerminalTime = now.getTimeInMillis();
+        @Override
+        public View getView(final int position, final View convertView, final ViewGroup parent) {
+            final TextView row = (TextView) (convertView != null ? convertView : LayoutInflater.from(CBIActivityTerminal.this).inflate(R.layout.terminal_row, parent, false));
+
+            final BusData data = getItem(position);
+            if (data == null) {
+                //dropped off the ring since the last sync()
+                row.setText("");
+                return row;
             }
-            final long diffMillis = now.getTimeInMillis() - mLastTerminalTime;
-            diff.setTimeInMillis(diffMillis);
-            final SimpleDateFormat formatter = new SimpleDateFormat("mm:ss.SSS");
-            diffStamp = "(" + formatter.format(diff.getTime()) + ") ";
-        }
 
-        mLastTerminalTime = now.getTimeInMillis();
+            final BusData previous = mTerminalRing.get(mmFirst + position - 1);
+
+            //color code the data
+            int color = Color.GRAY;
 
-        //assemble the final line and add to the terminal
-        String message = nowStamp + diffStamp + data.data + "\n";
-        SpannableString span = new SpannableString(message);
-        span.setSpan(color, 0, message.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-        mTxtTerminal.append(span);
+            if (data.type == BusDataType.RX_MONITORED) {
+                color = Color.GREEN;
+            } else if (data.type == BusDataType.TX) {
+                color = Color.WHITE;
+            } else if (data.type == BusDataType.ERROR) {
+                color = Color.RED;
+            }
+
+            mmLine.setLength(0);
+
+            //if the previous RX was complete, show a prompt marker
+            if (previous != null && previous.rxComplete) {
+                mmLine.append('>');
+            }
+
+            //do timestamp and elapsed stuff
+            if (mShowTime) {
+                mmDate.setTime(System.currentTimeMillis() - SystemClock.uptimeMillis() + data.time);
+                mmLine.append(mmTimeFormatter.format(mmDate)).append(' ');
+            }
+
+            if (mShowElapsed) {
+                final long elapsed = previous != null ? Math.max(0, data.time - previous.time) : 0;
+                mmLine.append('(');
+                appendPadded(mmLine, (elapsed / 60000) % 60, 2).append(':');
+                appendPadded(mmLine, (elapsed / 1000) % 60, 2).append('.');
+                appendPadded(mmLine, elapsed % 1000, 3).append(") ");
+            }
+
+            //anything but the first bus says which bus it was on, the same way the notification does
+            if (data.bus != 1) {
+                mmLine.append(mmBusLabel).append(' ').append(data.bus).append(": ");
+            }
 
-        //if RX is complete, show a prompt marker
-        if (data.rxComplete) {
-            message = ">";
-            span = new SpannableString(message);
-            span.setSpan(Color.WHITE, 0, message.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            mTxtTerminal.append(span);
+            mmLine.append(data.data);
+
+            row.setTextColor(color);
+            row.setText(mmLine);
+
+            return row;
         }
 
-        if (mAutoScroll) {
-            terminalScroll();
+        private StringBuilder appendPadded(final StringBuilder builder, final long value, final int digits) {
+            if (digits > 2 && value < 100) builder.append('0');
+            if (digits > 1 && value < 10) builder.append('0');
+            return builder.append(value);
         }
     }
 
@@ -412,7 +432,12 @@ public class CBIActivityTerminal extends Activity {
             mServiceMainMessenger = new Messenger(service);
 
             try {
+                //batched, under ATMA individual messages would flood the UI thread
+                final Bundle spec = BusSubscription.createBundle(null, null, false, false, 1, true);
+                spec.putInt(BusSubscription.KEY_HISTORY, TERMINAL_HISTORY_LINES);
+
                 Message message = Message.obtain(null, CBIServiceMain.BOUND_MSG_REGISTER_CLIENT);
+                message.setData(spec);
                 message.replyTo = mServiceMainIncomingMessenger;
                 mServiceMainMessenger.send(message);
             } catch (RemoteException e) {
@@ -440,6 +465,17 @@ public class CBIActivityTerminal extends Activity {
                     }
                     break;
 
+                case CBIServiceMain.BOUND_MSG_NOTIFY_BUS_DATA_BATCH:
+                    try {
+                        final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(message.getData().getByteArray(BusDataCodec.KEY_BATCH));
+                        while (decoder.hasNext()) {
+                            terminalAppend(BusData.decodeNext(decoder));
+                        }
+                    } catch (IllegalArgumentException e) {
+                        Log.e(TAG, "ServiceMainHandler : handleMessage() : bad batch", e);
+                    }
+                    break;
+
                 default:
                     super.handleMessage(message);
             }
@@ -450,7 +486,11 @@ public class CBIActivityTerminal extends Activity {
         if (D) Log.d(TAG, "serviceMainSendBusCommand()");
 
         try {
-            Message message = Message.obtain(null, CBIServiceMain.BOUND_MSG_SEND_BUS_COMMAND, command);
+            final Bundle data = new Bundle();
+            data.putString(CBIServiceMain.BOUND_KEY_COMMAND, command);
+
+            Message message = Message.obtain(null, CBIServiceMain.BOUND_MSG_SEND_BUS_COMMAND);
+            message.setData(data);
             message.replyTo = mServiceMainIncomingMessenger;
             mServiceMainMessenger.send(message);
         } catch (RemoteException e) {
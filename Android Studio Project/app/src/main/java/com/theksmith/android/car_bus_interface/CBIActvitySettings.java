@@ -63,7 +63,19 @@ public class CBIActvitySettings extends PreferenceActivity {
         //bind values to summaries for list and string type prefs
 
         bindPreferenceSummaryToValue(findPreference("bluetooth_mac"));
+        bindPreferenceSummaryToValue(findPreference("tcp_address"));
         bindPreferenceSummaryToValue(findPreference("elm_commands"));
+        bindPreferenceSummaryToValue(findPreference("bus_bitrate"));
+        bindPreferenceSummaryToValue(findPreference("rx_watchdog"));
+        bindPreferenceSummaryToValue(findPreference("obd_poll"));
+        bindPreferenceSummaryToValue(findPreference("simulator_load"));
+
+        bindPreferenceSummaryToValue(findPreference("elm_commands2"));
+        bindPreferenceSummaryToValue(findPreference("bus_bitrate2"));
+        bindPreferenceSummaryToValue(findPreference("bluetooth_mac2"));
+        bindPreferenceSummaryToValue(findPreference("tcp_address2"));
+        bindPreferenceSummaryToValue(findPreference("rx_watchdog2"));
+        bindPreferenceSummaryToValue(findPreference("obd_poll2"));
 
         //todo: the way we are storing these preferences is a quick hack, we need a custom preference screen to configure any number of these
         for (int m = 1; m <= 10; m++) {
@@ -0,0 +1,158 @@
+package com.theksmith.android.car_bus_interface;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.UriMatcher;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+
+/**
+ * read-only ContentProvider exposing the latest message seen for each bus ID (see BusSnapshotTable)
+ * lets Tasker and other apps poll the current state of the bus cheaply instead of consuming the whole stream
+ *
+ * content://com.theksmith.android.car_bus_interface.snapshot/frames  - every ID seen so far on every bus
+ * content://com.theksmith.android.car_bus_interface.snapshot/frames/7E8  - a single ID (hex), one row per bus it was seen on
+ * either one with ?bus=2 (QUERY_BUS) for a single bus
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class CBIProviderSnapshot extends ContentProvider {
+    private static final String TAG = "CBIProviderSnapshot";
+    private static final boolean D = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 0;
+
+    public static final String AUTHORITY = "com.theksmith.android.car_bus_interface.snapshot";
+    public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/frames");
+
+    public static final String COLUMN_ID = "_id";
+    public static final String COLUMN_BUS_ID = "bus_id";
+    public static final String COLUMN_DATA = "data";
+    public static final String COLUMN_TIME = "time";
+    public static final String COLUMN_COUNT = "count";
+    public static final String COLUMN_PERIOD = "period";
+    public static final String COLUMN_BUS = "bus";
+
+    public static final String QUERY_BUS = "bus";
+
+    private static final String[] COLUMNS = {COLUMN_ID, COLUMN_BUS_ID, COLUMN_DATA, COLUMN_TIME, COLUMN_COUNT, COLUMN_PERIOD, COLUMN_BUS};
+
+    private static final int MATCH_ALL = 1;
+    private static final int MATCH_ID = 2;
+
+    private static final UriMatcher sMatcher = new UriMatcher(UriMatcher.NO_MATCH);
+    static {
+        sMatcher.addURI(AUTHORITY, "frames", MATCH_ALL);
+        sMatcher.addURI(AUTHORITY, "frames/*", MATCH_ID);
+    }
+
+    //set by CBIServiceMain on the main thread and read by query() on binder threads, volatile so they see it set (and the tables built) without locking
+    private static volatile BusSnapshotTable[] sTables;
+
+
+    /**
+     * @param tables  the tables to serve, one per bus (by bus number - 1), null while CBIServiceMain is not running
+     */
+    static void setTables(final BusSnapshotTable[] tables) {
+        sTables = tables;
+    }
+
+    @Override
+    public boolean onCreate() {
+        if (D) Log.d(TAG, "onCreate()");
+
+        return true;
+    }
+
+    @Override
+    public Cursor query(final Uri uri, final String[] projection, final String selection, final String[] selectionArgs, final String sortOrder) {
+        if (D) Log.d(TAG, "query() : uri= " + uri);
+
+        final MatrixCursor cursor = new MatrixCursor(COLUMNS);
+
+        //the tables only exist while CBIServiceMain is running
+        final BusSnapshotTable[] tables = sTables;
+        if (tables == null) {
+            return cursor;
+        }
+
+        final int match = sMatcher.match(uri);
+        if (match != MATCH_ALL && match != MATCH_ID) {
+            throw new IllegalArgumentException("query() : unknown uri " + uri);
+        }
+
+        int first = 1;
+        int last = tables.length;
+
+        final String bus = uri.getQueryParameter(QUERY_BUS);
+        if (bus != null) {
+            try {
+                first = last = Integer.parseInt(bus);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("query() : invalid bus in uri " + uri);
+            }
+
+            if (first < 1 || first > tables.length) {
+                return cursor;
+            }
+        }
+
+        int id = 0;
+        if (match == MATCH_ID) {
+            try {
+                id = (int) Long.parseLong(uri.getLastPathSegment(), 16);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("query() : invalid bus ID in uri " + uri);
+            }
+        }
+
+        final BusSnapshotTable.Entry entry = new BusSnapshotTable.Entry();
+
+        for (int b = first; b <= last; b++) {
+            if (match == MATCH_ALL) {
+                for (int tableId : tables[b - 1].getIds()) {
+                    addRow(cursor, tables[b - 1], b, tableId, entry);
+                }
+            } else {
+                addRow(cursor, tables[b - 1], b, id, entry);
+            }
+        }
+
+        return cursor;
+    }
+
+    private static void addRow(final MatrixCursor cursor, final BusSnapshotTable table, final int bus, final int id, final BusSnapshotTable.Entry entry) {
+        if (table.read(id, entry)) {
+            //_id has to be unique within the cursor, the same ID can be on more than one bus (the first bus keeps plain IDs)
+            cursor.addRow(new Object[] {((long) (bus - 1) << 32) | (id & 0xFFFFFFFFL), Integer.toHexString(id).toUpperCase(), entry.frame.format(), entry.time, entry.count, entry.period, bus});
+        }
+    }
+
+    @Override
+    public String getType(final Uri uri) {
+        switch (sMatcher.match(uri)) {
+            case MATCH_ALL:
+                return "vnd.android.cursor.dir/vnd." + AUTHORITY + ".frame";
+            case MATCH_ID:
+                return "vnd.android.cursor.item/vnd." + AUTHORITY + ".frame";
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public Uri insert(final Uri uri, final ContentValues values) {
+        throw new UnsupportedOperationException("insert() : read-only provider");
+    }
+
+    @Override
+    public int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        throw new UnsupportedOperationException("delete() : read-only provider");
+    }
+
+    @Override
+    public int update(final Uri uri, final ContentValues values, final String selection, final String[] selectionArgs) {
+        throw new UnsupportedOperationException("update() : read-only provider");
+    }
+}
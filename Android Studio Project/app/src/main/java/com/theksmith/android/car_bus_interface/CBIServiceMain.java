@@ -7,29 +7,37 @@ import android.app.Service;
 import android.app.TaskStackBuilder;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
+import com.theksmith.android.helpers.AppState;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import static com.theksmith.android.car_bus_interface.BusData.*;
 
@@ -37,10 +45,6 @@ import static com.theksmith.android.car_bus_interface.BusData.*;
 /*
 todo: improve handling of potential error conditions...
 
- -  if connected ok, but not receiving for a certain time period, maybe should try a reset (ATWS or ATZ) at some point?
-    we would need a setting for if/when as some cars might not send anything for long periods
-    otherwise is there a better way to check the real current health of the device/socket?
-
  -  after certain number of connection attempts should we give up? (i.e. don't keep trying to re-connect forever)
 
 */
@@ -49,6 +53,11 @@ todo: improve handling of potential error conditions...
  * primary foreground Service which runs even after main activity is destroyed
  * attempts to connect with the bluetooth interface device, send commands, then listens and processes any responses
  *
+ * each interface device (one per vehicle bus, like HS-CAN and MS-CAN) is an AdapterSession with its own transport, threads, command queue and monitors,
+ * they only meet where their data is handed on to the bound clients, snapshot table, frame ring, etc.
+ *
+ * other apps may bind too if they hold the BIND_BUS_SERVICE permission (see AndroidManifest.xml), they must subscribe with BusSubscription.KEY_BATCHED
+ *
  * @author Kristoffer Smith <kristoffer@theksmith.com>
  */
 public class CBIServiceMain extends Service {
@@ -57,13 +66,68 @@ public class CBIServiceMain extends Service {
     private static final boolean DD = BuildConfig.SHOW_DEBUG_LOG_LEVEL > 1;
 
     private final Messenger mBoundIncomingMessenger = new Messenger(new BoundIncomingHandler());
-    private ArrayList<Messenger> mBoundClients = new ArrayList<Messenger>();
+    private ArrayList<BoundClient> mBoundClients = new ArrayList<BoundClient>();
 
     public static final int BOUND_MSG_REGISTER_CLIENT = 1;
     public static final int BOUND_MSG_UNREGISTER_CLIENT = 2;
     public static final int BOUND_MSG_NOTIFY_BUS_DATA = 3;
-    public static final int BOUND_MSG_SEND_BUS_COMMAND = 4;
-    public static final int BOUND_MSG_SEND_STARTUP_COMMANDS = 5;
+    public static final int BOUND_MSG_SEND_BUS_COMMAND = 4; //data Bundle holds the command under BOUND_KEY_COMMAND, optional arg1 is the bus number (see BusMonitor.bus), the first bus if 0, queued ahead of any polling, a request whose answer is cached (see ElmResponseCache) is answered without sending it
+    public static final int BOUND_MSG_SEND_STARTUP_COMMANDS = 5; //optional arg1 is the bus number, the first bus if 0
+    public static final int BOUND_MSG_NOTIFY_BUS_DATA_BATCH = 6; //data Bundle holds a BusDataCodec batch under BusDataCodec.KEY_BATCH
+    public static final int BOUND_MSG_GET_FRAME_RING = 7;
+    public static final int BOUND_MSG_FRAME_RING = 8; //data Bundle holds a read-only ParcelFileDescriptor for a BusFrameRing under BOUND_KEY_FRAME_RING (missing if the ring is unavailable)
+
+    public static final int BOUND_MSG_QUERY_SNAPSHOT = 9; //optional data Bundle holds an int[] of bus IDs under BOUND_KEY_SNAPSHOT_IDS, all IDs if missing, optional arg1 is the bus number, the first bus if 0
+    public static final int BOUND_MSG_SNAPSHOT = 10; //data Bundle holds parallel arrays under the BOUND_KEY_SNAPSHOT_* keys, IDs not seen yet are left out
+
+    public static final int BOUND_MSG_GET_STATS = 11; //optional arg1 is the bus number, the first bus if 0
+    public static final int BOUND_MSG_STATS = 12; //data Bundle holds the values and per ID arrays under the BOUND_KEY_STATS_* keys
+
+    public static final int BOUND_MSG_START_REPLAY = 13; //data Bundle holds BOUND_KEY_REPLAY_FILE and optionally BOUND_KEY_REPLAY_SPEED, disconnects the interface device and feeds the recording through the RX path
+
+    public static final int BOUND_MSG_SEND_UDS_REQUEST = 14; //data Bundle holds the ECU's ID then the request bytes (example: "7E0 22 F1 90") under BOUND_KEY_COMMAND, optional arg1 is the bus number, the first bus if 0
+
+    public static final String BOUND_KEY_COMMAND = "command"; //String, a Message's obj only crosses processes if it is Parcelable so commands travel in the data Bundle
+    public static final String BOUND_KEY_FRAME_RING = "frame_ring";
+    public static final String BOUND_KEY_SNAPSHOT_BUS = "snapshot_bus"; //int, the bus number the snapshot is of
+    public static final String BOUND_KEY_SNAPSHOT_IDS = "snapshot_ids"; //int[]
+    public static final String BOUND_KEY_SNAPSHOT_DATA = "snapshot_data"; //String[]
+    public static final String BOUND_KEY_SNAPSHOT_TIMES = "snapshot_times"; //long[]
+    public static final String BOUND_KEY_SNAPSHOT_COUNTS = "snapshot_counts"; //long[]
+    public static final String BOUND_KEY_SNAPSHOT_PERIODS = "snapshot_periods"; //long[]
+    public static final String BOUND_KEY_STATS_BUS = "stats_bus"; //int, the bus number of the values and per ID arrays, those marked all buses are totals
+    public static final String BOUND_KEY_STATS_TOTAL_FRAMES = "stats_total_frames"; //long
+    public static final String BOUND_KEY_STATS_FRAMES_PER_SECOND = "stats_frames_per_second"; //double
+    public static final String BOUND_KEY_STATS_BUS_LOAD = "stats_bus_load"; //double, percent
+    public static final String BOUND_KEY_STATS_BITRATE = "stats_bitrate"; //int
+    public static final String BOUND_KEY_STATS_BUFFER_FULL = "stats_buffer_full"; //long
+    public static final String BOUND_KEY_STATS_CAN_ERROR = "stats_can_error"; //long
+    public static final String BOUND_KEY_STATS_DROPPED_IDS = "stats_dropped_ids"; //long
+    public static final String BOUND_KEY_STATS_IDS = "stats_ids"; //int[]
+    public static final String BOUND_KEY_STATS_COUNTS = "stats_counts"; //long[]
+    public static final String BOUND_KEY_STATS_ID_FRAMES_PER_SECOND = "stats_id_frames_per_second"; //double[]
+    public static final String BOUND_KEY_STATS_PERIODS = "stats_periods"; //double[], milliseconds
+    public static final String BOUND_KEY_STATS_JITTERS = "stats_jitters"; //double[], milliseconds
+    public static final String BOUND_KEY_STATS_CONNECT_PHASES = "stats_connect_phases"; //long[] by ConnectionTimings.Phase ordinal, milliseconds, missing until the first connection is up (the bus in BOUND_KEY_STATS_BUS)
+    public static final String BOUND_KEY_STATS_CONNECT_ATTEMPTS = "stats_connect_attempts"; //int, since the link was last up (the bus in BOUND_KEY_STATS_BUS)
+    public static final String BOUND_KEY_STATS_RECOVERIES = "stats_recoveries"; //int, all buses
+    public static final String BOUND_KEY_STATS_RECOVERY_LAST = "stats_recovery_last"; //long, milliseconds, -1 if none (the bus in BOUND_KEY_STATS_BUS)
+    public static final String BOUND_KEY_STATS_RECOVERY_MEDIAN = "stats_recovery_median"; //long, milliseconds, -1 if none (the bus in BOUND_KEY_STATS_BUS)
+    public static final String BOUND_KEY_STATS_WATCHDOG_ACTIONS = "stats_watchdog_actions"; //int[] by RxWatchdog.Stage ordinal, all buses, missing if there is no watchdog
+    public static final String BOUND_KEY_STATS_WATCHDOG_RECOVERIES = "stats_watchdog_recoveries"; //int[] by RxWatchdog.Stage ordinal, all buses, missing if there is no watchdog
+    public static final String BOUND_KEY_STATS_UDS_COUNTS = "stats_uds_counts"; //int[] by UdsSessionManager.COUNT_* index, all buses
+    public static final String BOUND_KEY_STATS_UDS_LATENCY_LAST = "stats_uds_latency_last"; //long, milliseconds, -1 if none (the bus in BOUND_KEY_STATS_BUS)
+    public static final String BOUND_KEY_STATS_UDS_LATENCY_AVERAGE = "stats_uds_latency_average"; //long, milliseconds, -1 if none (the bus in BOUND_KEY_STATS_BUS)
+    public static final String BOUND_KEY_REPLAY_FILE = "replay_file"; //String, name of a BusRxRecorder file in the captures directory
+    public static final String BOUND_KEY_REPLAY_SPEED = "replay_speed"; //double, 1 for real time, 0 for as fast as possible
+
+    private static final long BOUND_BATCH_FLUSH_WAIT = 50; //milliseconds
+
+    private final Handler mBoundBatchHandler = new Handler();
+
+    //guards what every session hands its data on to: the bound clients, bus log, snapshot table, frame ring, capture writer and the notification text
+    //a session takes it while holding its own lock, so it is never held while calling into a session (the order is always service, session, output)
+    private final Object mOutputLock = new Object();
 
     private SharedPreferences mSettings;
 
@@ -76,37 +140,84 @@ public class CBIServiceMain extends Service {
     private String mNoticeError;
 
     private static enum BTState {
-        DESTROYING, NONE, CONNECTING, IDLE, RX, TX
+        NONE, CONNECTING, IDLE, RX, TX
     }
 
-    private volatile BTState mBTState = BTState.NONE;
+    private volatile boolean mDestroying;
 
     private volatile BluetoothAdapter mBTAdapter;
-    private BTConnectThread mBTConnectThread;
-    private BTIOThread mBTIOThread;
 
-    private static final long BT_CONNECTION_RETRY_WAIT = 2000; //milliseconds
+    //todo: like the monitors, more buses than this need a custom preference screen
+    private static final int ADAPTER_SESSIONS_MAX = 2;
 
-    //this matches the termination of a MESSAGE (could be multiple within a response) or the entire RESPONSE
-    //explained: match "\r" or ">" at a minimum and also variations of " \r\n >" while also trying to trim out extra spaces, CRs, and LFs
-    private static final String ELM_RESPONSE_SEPARATOR_REGEX = " *\\r+\\n* *\\r*\\n* *| *\\r*\\n* *> *\\r*\\n* *|>";
+    //replaced as a whole by start(), never changed in place, so any thread can walk the current list without a lock
+    private volatile List<AdapterSession> mAdapterSessions = Collections.emptyList();
 
-    //consider an entire RESPONSE complete when this string occurs
-    private static final String ELM_RESPONSE_TERMINATOR = ">";
+    //runs the monitors' actions for every bus, one at a time in the order they were decided
+    private final ExecutorService mActionExecutor = Executors.newSingleThreadExecutor();
+
+    private static final long RX_WATCHDOG_TICK_TIME = 500; //milliseconds
+    private static final long UDS_TICK_TIME = 250; //milliseconds, TesterPresent and response timeouts
+
+    private static final int SIMULATOR_LOAD_DEFAULT = 30; //percent of the bus bitrate
+    private static final long SIMULATOR_PRESS_INTERVAL = 5000; //milliseconds
 
     private final static String ELM_COMMAND_TERMINATOR = "\r\n";
-    private final static long ELM_COMMAND_QUEUE_BUSY_WAIT_TIME = 100; //milliseconds
+    private final static long ELM_COMMAND_QUEUE_PROMPT_WAIT_TIME = 100; //milliseconds, the queue is woken by the prompt, this only re-checks in case a change to IDLE came some other way
+    private final static long ELM_COMMAND_QUEUE_INTERACTIVE_WAIT_TIME = 250; //milliseconds an interactive command waits for a request in progress before breaking in
+
+    private static final String FRAME_RING_FILE_NAME = "bus_frames.ring";
+
+    private File mBusFrameRingFile;
+    private BusFrameRing mBusFrameRing;
+
+    //latest value per ID, one table per bus (by bus number - 1) so the same ID on two buses is kept apart
+    //the snapshot tables and frame ring allow one writer at a time, every session writes them under mOutputLock
+    private final BusSnapshotTable[] mBusSnapshotTables = new BusSnapshotTable[ADAPTER_SESSIONS_MAX];
+
+    private static final int BUS_BITRATE_DEFAULT = 10400; //J1850 VPW, matches the default ATSP2 startup command
+
+    private static final String ELM_RESPONSE_BUFFER_FULL = "BUFFER FULL";
+    private static final String ELM_RESPONSE_CAN_ERROR = "CAN ERROR";
+    private static final String ELM_RESPONSE_NO_DATA = "NO DATA";
+    private static final String ELM_RESPONSE_SEARCHING = "SEARCHING";
+
+    //one per bus (by bus number - 1), each session sets its own bus's bitrate, kept across restarts like the snapshot tables
+    private final BusStatistics[] mBusStatistics = new BusStatistics[ADAPTER_SESSIONS_MAX];
+
+    private static final int BUS_LOG_CAPACITY = 100000;
+
+    //everything sent to or received from the bus, kept whether or not any client is bound so they can catch up when they attach (see BusSubscription.KEY_HISTORY)
+    //the oldest entries are overwritten once full, it is also written to mBusLogFile and loaded back from it by onCreate() so a killed service loses at most the last batch
+    private final BusDataRing mBusLog = new BusDataRing(BUS_LOG_CAPACITY);
+
+    private static final long BUS_LOG_FLUSH_WAIT = 1000; //milliseconds data waits in mBusLogBatch before it is handed to mBusLogFile
+
+    private BusLogFile mBusLogFile;
+    private final BusDataCodec.Encoder mBusLogBatch = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
 
-    private String mELMResponseBuffer;
-    private ELMCommandQueueThread mELMCommandQueueThread;
+    private static final String CAPTURE_DIRECTORY_NAME = "captures";
 
-    private HashMap<String, BusMessageProcessor> mBusMsgProcessors;
+    //one per bus (by bus number - 1), null for a bus that is not being captured
+    private final BusCaptureWriter[] mBusCaptureWriters = new BusCaptureWriter[ADAPTER_SESSIONS_MAX];
+
+    private ReplayThread mReplayThread;
+
+    private static final long REPLAY_SETTLE_TIME = 5000; //milliseconds of recorded time to keep ticking the processors after a replay ends, so a press in progress is still classified
+
+    //source of all time in the service, only anything other than AndroidClock while a recording is replayed as fast as possible
+    private volatile Clock mClock = AndroidClock.INSTANCE;
 
 
     public CBIServiceMain() {
         if (D) Log.d(TAG, "CBIServiceMain()");
 
         mBTAdapter = BluetoothAdapter.getDefaultAdapter();
+
+        for (int b = 0; b < ADAPTER_SESSIONS_MAX; b++) {
+            mBusSnapshotTables[b] = new BusSnapshotTable(BusSnapshotTable.DEFAULT_CAPACITY);
+            mBusStatistics[b] = new BusStatistics(BusStatistics.DEFAULT_CAPACITY, BUS_BITRATE_DEFAULT);
+        }
     }
 
     @Override
@@ -144,6 +255,21 @@ public class CBIServiceMain extends Service {
 
         mNoticeManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
         mNoticeManager.notify(PERSISTENT_NOTIFICATION_ID, mNoticeBuilder.build());
+
+        //latest value per bus ID, also made available to CBIProviderSnapshot
+        CBIProviderSnapshot.setTables(mBusSnapshotTables);
+
+        //shared memory ring that bound clients can map to follow raw bus traffic without any IPC per frame
+        try {
+            mBusFrameRingFile = new File(getCacheDir(), FRAME_RING_FILE_NAME);
+            mBusFrameRing = BusFrameRing.createWriter(mBusFrameRingFile, BusFrameRing.DEFAULT_SLOTS);
+        } catch (Exception e) {
+            Log.w(TAG, "onCreate() : failed to create frame ring : exception= " + e.getMessage(), e);
+
+            mBusFrameRing = null;
+        }
+
+        busLogLoad();
     }
 
     @Override
@@ -152,12 +278,20 @@ public class CBIServiceMain extends Service {
 
         if (D) Log.d(TAG, "onDestroy()");
 
-        mBTState = BTState.DESTROYING;
+        mDestroying = true;
 
         this.unregisterReceiver(mBTStateReceiver);
 
         stop();
 
+        captureStop();
+
+        busLogStop();
+
+        mActionExecutor.shutdown();
+
+        CBIProviderSnapshot.setTables(null);
+
         mNoticeManager.cancelAll();
     }
 
@@ -187,27 +321,314 @@ public class CBIServiceMain extends Service {
         return mBoundIncomingMessenger.getBinder();
     }
 
+    private static class BoundClient {
+        public final Messenger messenger;
+        public final BusSubscription subscription;
+        public final BusDataCodec.Encoder batch;
+
+        public BoundClient(final Messenger messenger, final BusSubscription subscription) {
+            this.messenger = messenger;
+            this.subscription = subscription;
+            this.batch = subscription.isBatched() ? new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES) : null;
+        }
+    }
+
     private boolean isBound() {
         return mBoundClients != null && mBoundClients.size() > 0;
     }
 
-    private void BoundNotifyBusData(final BusData data) {
-        if (DD) Log.d(TAG, "BoundNotifyBusData() : data.data= " + data.data);
+    private void BoundRegisterClient(final Messenger messenger, final Bundle spec) {
+        if (D) Log.d(TAG, "BoundRegisterClient()");
 
-        if (isBound()) {
-            for (int i = mBoundClients.size() - 1; i >= 0; i--) {
+        synchronized (mOutputLock) {
+            //registering again replaces the existing subscription for that client
+            BoundUnregisterClient(messenger);
+
+            final BoundClient client = new BoundClient(messenger, new BusSubscription(spec));
+
+            //replay the log before adding the client, we are holding the output lock so no live data can slip in between
+            if (client.subscription.getHistory() > 0) {
                 try {
-                    mBoundClients.get(i).send(Message.obtain(null, BOUND_MSG_NOTIFY_BUS_DATA, data));
+                    BoundSendHistory(client);
                 } catch (RemoteException e) {
-                    //this client is no longer connected, remove it from the list
+                    return;
+                }
+            }
+
+            mBoundClients.add(client);
+        }
+    }
+
+    private void BoundSendHistory(final BoundClient client) throws RemoteException {
+        if (D) Log.d(TAG, "BoundSendHistory() : history= " + client.subscription.getHistory());
+
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+
+        final long next = mBusLog.getNext();
+        for (long sequence = Math.max(mBusLog.getFirst(), next - client.subscription.getHistory()); sequence < next; sequence++) {
+            final BusData data = mBusLog.get(sequence);
+
+            if (data == null || !client.subscription.matches(data)) {
+                continue;
+            }
+
+            if (!data.encodeTo(encoder)) {
+                BoundSendEncoded(client.messenger, encoder);
+                data.encodeTo(encoder);
+            }
+        }
+
+        BoundSendEncoded(client.messenger, encoder);
+    }
+
+    private void BoundUnregisterClient(final Messenger messenger) {
+        if (D) Log.d(TAG, "BoundUnregisterClient()");
+
+        synchronized (mOutputLock) {
+            for (int i = mBoundClients.size() - 1; i >= 0; i--) {
+                if (mBoundClients.get(i).messenger.equals(messenger)) {
                     mBoundClients.remove(i);
                 }
             }
         }
     }
 
+    private void BoundNotifyBusData(final BusData data) {
+        if (DD) Log.d(TAG, "BoundNotifyBusData() : data.data= " + data.data);
+
+        synchronized (mOutputLock) {
+            mBusLog.append(data);
+
+            if (mBusLogFile != null) {
+                if (!data.encodeTo(mBusLogBatch)) {
+                    busLogFlush();
+                    data.encodeTo(mBusLogBatch);
+                }
+
+                if (mBusLogBatch.count() == 1) {
+                    mBoundBatchHandler.postDelayed(mBusLogFlusher, BUS_LOG_FLUSH_WAIT);
+                }
+            }
+
+            if (isBound()) {
+                for (int i = mBoundClients.size() - 1; i >= 0; i--) {
+                    final BoundClient client = mBoundClients.get(i);
+
+                    //filter before building any message so unwanted data costs the client nothing
+                    if (!client.subscription.matches(data)) {
+                        continue;
+                    }
+
+                    try {
+                        if (client.batch != null) {
+                            if (!data.encodeTo(client.batch)) {
+                                //batch is full, send it now and start a new one
+                                BoundSendBatch(client);
+                                data.encodeTo(client.batch);
+                            }
+
+                            if (client.batch.count() == 1) {
+                                //first data in a new batch, make sure it gets sent even if the bus goes quiet
+                                mBoundBatchHandler.postDelayed(mBoundBatchFlusher, BOUND_BATCH_FLUSH_WAIT);
+                            }
+                        } else {
+                            client.messenger.send(Message.obtain(null, BOUND_MSG_NOTIFY_BUS_DATA, data));
+                        }
+                    } catch (RemoteException e) {
+                        //this client is no longer connected, remove it from the list
+                        mBoundClients.remove(i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void BoundSendBatch(final BoundClient client) throws RemoteException {
+        if (DD) Log.d(TAG, "BoundSendBatch() : count= " + client.batch.count());
+
+        BoundSendEncoded(client.messenger, client.batch);
+    }
+
+    private void BoundSendEncoded(final Messenger messenger, final BusDataCodec.Encoder encoder) throws RemoteException {
+        if (encoder.isEmpty()) {
+            return;
+        }
+
+        final Bundle bundle = new Bundle();
+        bundle.putByteArray(BusDataCodec.KEY_BATCH, encoder.toByteArray());
+        encoder.reset();
+
+        final Message message = Message.obtain(null, BOUND_MSG_NOTIFY_BUS_DATA_BATCH);
+        message.setData(bundle);
+        messenger.send(message);
+    }
+
+    private void BoundSendFrameRing(final Messenger messenger) {
+        if (D) Log.d(TAG, "BoundSendFrameRing()");
+
+        final Bundle bundle = new Bundle();
+
+        if (mBusFrameRing != null) {
+            try {
+                bundle.putParcelable(BOUND_KEY_FRAME_RING, ParcelFileDescriptor.open(mBusFrameRingFile, ParcelFileDescriptor.MODE_READ_ONLY));
+            } catch (Exception e) {
+                Log.w(TAG, "BoundSendFrameRing() : failed to open frame ring : exception= " + e.getMessage(), e);
+            }
+        }
+
+        try {
+            final Message message = Message.obtain(null, BOUND_MSG_FRAME_RING);
+            message.setData(bundle);
+            messenger.send(message);
+        } catch (RemoteException ignored) {}
+    }
+
+    private void BoundSendSnapshot(final Messenger messenger, final int bus, int[] ids) {
+        if (D) Log.d(TAG, "BoundSendSnapshot() : bus= " + bus);
+
+        final BusSnapshotTable table = mBusSnapshotTables[bus - 1];
+
+        if (ids == null) {
+            ids = table.getIds();
+        }
+
+        final BusSnapshotTable.Entry entry = new BusSnapshotTable.Entry();
+
+        final int[] foundIds = new int[ids.length];
+        final String[] data = new String[ids.length];
+        final long[] times = new long[ids.length];
+        final long[] counts = new long[ids.length];
+        final long[] periods = new long[ids.length];
+
+        int found = 0;
+        for (int id : ids) {
+            if (table.read(id, entry)) {
+                foundIds[found] = id;
+                data[found] = entry.frame.format();
+                times[found] = entry.time;
+                counts[found] = entry.count;
+                periods[found] = entry.period;
+                found++;
+            }
+        }
+
+        final Bundle bundle = new Bundle();
+        bundle.putInt(BOUND_KEY_SNAPSHOT_BUS, bus);
+        bundle.putIntArray(BOUND_KEY_SNAPSHOT_IDS, Arrays.copyOf(foundIds, found));
+        bundle.putStringArray(BOUND_KEY_SNAPSHOT_DATA, Arrays.copyOf(data, found));
+        bundle.putLongArray(BOUND_KEY_SNAPSHOT_TIMES, Arrays.copyOf(times, found));
+        bundle.putLongArray(BOUND_KEY_SNAPSHOT_COUNTS, Arrays.copyOf(counts, found));
+        bundle.putLongArray(BOUND_KEY_SNAPSHOT_PERIODS, Arrays.copyOf(periods, found));
+
+        try {
+            final Message message = Message.obtain(null, BOUND_MSG_SNAPSHOT);
+            message.setData(bundle);
+            messenger.send(message);
+        } catch (RemoteException ignored) {}
+    }
+
+    private void BoundSendStats(final Messenger messenger, final int bus) {
+        if (D) Log.d(TAG, "BoundSendStats() : bus= " + bus);
+
+        final BusStatistics.Snapshot stats = new BusStatistics.Snapshot();
+        mBusStatistics[bus - 1].snapshot(mClock.uptimeMillis(), stats);
+
+        final Bundle bundle = new Bundle();
+        bundle.putInt(BOUND_KEY_STATS_BUS, bus);
+        bundle.putLong(BOUND_KEY_STATS_TOTAL_FRAMES, stats.totalFrames);
+        bundle.putDouble(BOUND_KEY_STATS_FRAMES_PER_SECOND, stats.framesPerSecond);
+        bundle.putDouble(BOUND_KEY_STATS_BUS_LOAD, stats.busLoadPercent);
+        bundle.putInt(BOUND_KEY_STATS_BITRATE, stats.bitrate);
+        bundle.putLong(BOUND_KEY_STATS_BUFFER_FULL, stats.bufferFullCount);
+        bundle.putLong(BOUND_KEY_STATS_CAN_ERROR, stats.canErrorCount);
+        bundle.putLong(BOUND_KEY_STATS_DROPPED_IDS, stats.droppedIds);
+        bundle.putIntArray(BOUND_KEY_STATS_IDS, Arrays.copyOf(stats.ids, stats.idCount));
+        bundle.putLongArray(BOUND_KEY_STATS_COUNTS, Arrays.copyOf(stats.counts, stats.idCount));
+        bundle.putDoubleArray(BOUND_KEY_STATS_ID_FRAMES_PER_SECOND, Arrays.copyOf(stats.framesPerSecondById, stats.idCount));
+        bundle.putDoubleArray(BOUND_KEY_STATS_PERIODS, Arrays.copyOf(stats.periods, stats.idCount));
+        bundle.putDoubleArray(BOUND_KEY_STATS_JITTERS, Arrays.copyOf(stats.jitters, stats.idCount));
+
+        int recoveries = 0;
+        int[] watchdogActions = null;
+        int[] watchdogRecoveries = null;
+        int[] udsCounts = null;
+
+        for (AdapterSession session : mAdapterSessions) {
+            if (session.mNumber == bus) {
+                final long[] phases = new long[ConnectionTimings.PHASES];
+                if (session.mConnectionTimings.getLastPhaseTimes(phases)) {
+                    bundle.putLongArray(BOUND_KEY_STATS_CONNECT_PHASES, phases);
+                }
+                bundle.putInt(BOUND_KEY_STATS_CONNECT_ATTEMPTS, session.mReconnectPolicy.getAttempts());
+                bundle.putLong(BOUND_KEY_STATS_RECOVERY_LAST, session.mConnectionTimings.getLastRecoveryTime());
+                bundle.putLong(BOUND_KEY_STATS_RECOVERY_MEDIAN, session.mConnectionTimings.getMedianRecoveryTime());
+                bundle.putLong(BOUND_KEY_STATS_UDS_LATENCY_LAST, session.mUds.getLastLatency());
+                bundle.putLong(BOUND_KEY_STATS_UDS_LATENCY_AVERAGE, session.mUds.getAverageLatency());
+            }
+
+            recoveries += session.mConnectionTimings.getRecoveryCount();
+
+            final RxWatchdog watchdog = session.mRxWatchdog;
+            if (watchdog != null) {
+                watchdogActions = addCounts(watchdogActions, watchdog.getActionCounts());
+                watchdogRecoveries = addCounts(watchdogRecoveries, watchdog.getRecoveryCounts());
+            }
+
+            udsCounts = addCounts(udsCounts, session.mUds.getCounts());
+        }
+
+        bundle.putInt(BOUND_KEY_STATS_RECOVERIES, recoveries);
+
+        if (watchdogActions != null) {
+            bundle.putIntArray(BOUND_KEY_STATS_WATCHDOG_ACTIONS, watchdogActions);
+            bundle.putIntArray(BOUND_KEY_STATS_WATCHDOG_RECOVERIES, watchdogRecoveries);
+        }
+
+        if (udsCounts != null) {
+            bundle.putIntArray(BOUND_KEY_STATS_UDS_COUNTS, udsCounts);
+        }
+
+        try {
+            final Message message = Message.obtain(null, BOUND_MSG_STATS);
+            message.setData(bundle);
+            messenger.send(message);
+        } catch (RemoteException ignored) {}
+    }
+
+    private static int[] addCounts(final int[] total, final int[] counts) {
+        if (total == null) {
+            return counts;
+        }
+
+        for (int i = 0; i < total.length; i++) {
+            total[i] += counts[i];
+        }
+
+        return total;
+    }
+
+    private final Runnable mBoundBatchFlusher = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mOutputLock) {
+                for (int i = mBoundClients.size() - 1; i >= 0; i--) {
+                    final BoundClient client = mBoundClients.get(i);
+
+                    if (client.batch != null) {
+                        try {
+                            BoundSendBatch(client);
+                        } catch (RemoteException e) {
+                            //this client is no longer connected, remove it from the list
+                            mBoundClients.remove(i);
+                        }
+                    }
+                }
+            }
+        }
+    };
+
     private void BoundNotifyNotReady() {
-        BusData data = new BusData(getString(R.string.msg_error_bound_error_prefix) + " | " + getNotificationText(), BusDataType.ERROR, false);
+        BusData data = new BusData(getString(R.string.msg_error_bound_error_prefix) + " | " + getNotificationText(), BusDataType.ERROR, false, mClock.uptimeMillis());
         BoundNotifyBusData(data);
     }
 
@@ -216,30 +637,81 @@ public class CBIServiceMain extends Service {
         public void handleMessage(Message message) {
             if (D) Log.d(TAG, "BoundIncomingHandler : handleMessage() : msg.what= " + message.what);
 
+            //any app holding the permission can send anything, what needs a reply and has nowhere to send it is ignored
+            if (message.replyTo == null && (message.what == BOUND_MSG_REGISTER_CLIENT || message.what == BOUND_MSG_GET_FRAME_RING || message.what == BOUND_MSG_GET_STATS || message.what == BOUND_MSG_QUERY_SNAPSHOT)) {
+                return;
+            }
+
             synchronized (CBIServiceMain.this) {
+                final AdapterSession session;
+                final String command;
+
                 switch (message.what) {
                     case BOUND_MSG_REGISTER_CLIENT:
-                        mBoundClients.add(message.replyTo);
+                        //the optional data Bundle is a BusSubscription spec
+                        BoundRegisterClient(message.replyTo, message.peekData());
                         break;
 
                     case BOUND_MSG_UNREGISTER_CLIENT:
-                        mBoundClients.remove(message.replyTo);
+                        BoundUnregisterClient(message.replyTo);
+                        break;
+
+                    case BOUND_MSG_GET_FRAME_RING:
+                        BoundSendFrameRing(message.replyTo);
+                        break;
+
+                    case BOUND_MSG_GET_STATS:
+                        BoundSendStats(message.replyTo, getBusNumber(message.arg1));
+                        break;
+
+                    case BOUND_MSG_QUERY_SNAPSHOT:
+                        final Bundle query = message.peekData();
+                        BoundSendSnapshot(message.replyTo, getBusNumber(message.arg1), query == null ? null : query.getIntArray(BOUND_KEY_SNAPSHOT_IDS));
+                        break;
+
+                    case BOUND_MSG_START_REPLAY:
+                        final Bundle replay = message.peekData();
+                        if (replay != null && replay.getString(BOUND_KEY_REPLAY_FILE) != null) {
+                            replayStart(replay.getString(BOUND_KEY_REPLAY_FILE), replay.getDouble(BOUND_KEY_REPLAY_SPEED, 1));
+                        }
                         break;
 
                     case BOUND_MSG_SEND_BUS_COMMAND:
-                        if (!isBTConnected()) {
+                        command = getCommand(message);
+                        if (command == null) {
+                            break;
+                        }
+
+                        session = getAdapterSession(message.arg1);
+                        if (session == null || !session.isBTConnected()) {
                             BoundNotifyNotReady();
                         } else {
-                            elmSendCommand(message.obj.toString());
+                            session.busCommand(command);
                         }
 
                         break;
 
                     case BOUND_MSG_SEND_STARTUP_COMMANDS:
-                        if (!isBTConnected()) {
+                        session = getAdapterSession(message.arg1);
+                        if (session == null || !session.isBTConnected()) {
                             BoundNotifyNotReady();
                         } else {
-                            elmInitStartupCommands();
+                            session.elmInitStartupCommands();
+                        }
+
+                        break;
+
+                    case BOUND_MSG_SEND_UDS_REQUEST:
+                        command = getCommand(message);
+                        if (command == null) {
+                            break;
+                        }
+
+                        session = getAdapterSession(message.arg1);
+                        if (session == null || !session.isBTConnected()) {
+                            BoundNotifyNotReady();
+                        } else if (!session.udsRequest(command)) {
+                            BoundNotifyBusData(new BusData(session.mNumber, getString(R.string.msg_error_bound_error_prefix) + " | " + getString(R.string.msg_uds_request_not_valid) + " " + command, BusDataType.ERROR, false, mClock.uptimeMillis()));
                         }
 
                         break;
@@ -249,6 +721,38 @@ public class CBIServiceMain extends Service {
                 }
             }
         }
+
+        /**
+         * @return  the command in a message's data Bundle (see BOUND_KEY_COMMAND), or null if it has none
+         */
+        private String getCommand(final Message message) {
+            final Bundle data = message.peekData();
+            return data == null ? null : data.getString(BOUND_KEY_COMMAND);
+        }
+    }
+
+    /**
+     * @param bus  a bus number from a client, 0 for the first bus
+     * @return  the bus number, the first bus if it was not a valid one
+     */
+    private static int getBusNumber(final int bus) {
+        return bus <= 0 || bus > ADAPTER_SESSIONS_MAX ? 1 : bus;
+    }
+
+    /**
+     * @param bus  the bus number, 0 for the first bus
+     * @return  the session, or null if that bus is not in use
+     */
+    private AdapterSession getAdapterSession(final int bus) {
+        final int number = bus <= 0 ? 1 : bus;
+
+        for (AdapterSession session : mAdapterSessions) {
+            if (session.mNumber == number) {
+                return session;
+            }
+        }
+
+        return null;
     }
 
     private synchronized void start() {
@@ -256,26 +760,36 @@ public class CBIServiceMain extends Service {
 
         cancelAllThreads();
 
-        if (mBTState == BTState.DESTROYING) {
+        if (mDestroying) {
             stopSelf();
             return;
         }
 
-        if (mBTAdapter == null || !mBTAdapter.isEnabled()) {
-            btNotEnabled();
-            return;
+        if (mSettings.getBoolean("capture_enabled", false)) {
+            captureStart();
+        } else {
+            captureStop();
         }
 
-        final String address = mSettings.getString("bluetooth_mac", "");
-        if (address.equals("")) {
-            btNotConfigured();
-            return;
+        final ArrayList<AdapterSession> sessions = new ArrayList<AdapterSession>();
+        for (int n = 1; n <= ADAPTER_SESSIONS_MAX; n++) {
+            if (isBusConfigured(n)) {
+                sessions.add(new AdapterSession(n));
+            }
         }
+        mAdapterSessions = Collections.unmodifiableList(sessions);
 
-        mBTState = BTState.NONE;
+        for (AdapterSession session : sessions) {
+            session.start();
+        }
+    }
 
-        BluetoothDevice device = mBTAdapter.getRemoteDevice(address);
-        btConnect(device);
+    /**
+     * @param number  the bus number
+     * @return  true if the bus is used, the first bus always, any other only once it has startup commands of its own
+     */
+    private boolean isBusConfigured(final int number) {
+        return number == 1 || !mSettings.getString("elm_commands" + number, "").trim().equals("");
     }
 
     private synchronized void stop() {
@@ -283,584 +797,2105 @@ public class CBIServiceMain extends Service {
 
         cancelAllThreads();
 
-        if (mBTState == BTState.DESTROYING) {
+        if (mDestroying) {
             stopSelf();
-            return;
         }
-
-        mBTState = BTState.NONE;
     }
 
-    private void cancelAllThreads() {
-        if (D) Log.d(TAG, "cancelAllThreads()");
-
-        if (mBTConnectThread != null) {
-            mBTConnectThread.cancel();
-            mBTConnectThread = null;
+    /**
+     * fills the bus log from what the last run of the service wrote, then keeps writing to it
+     */
+    private void busLogLoad() {
+        if (D) Log.d(TAG, "busLogLoad()");
+
+        try {
+            BusLogFile.read(getFilesDir(), busLogClockOffset(), new BusLogFile.BatchHandler() {
+                @Override
+                public void onBatch(final byte[] batch, final long timeShift) {
+                    final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(batch);
+                    while (decoder.hasNext()) {
+                        final BusData data = BusData.decodeNext(decoder);
+                        mBusLog.append(new BusData(data.bus, data.data, data.type, data.rxComplete, data.time + timeShift));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            //whatever was read before the failure is kept
+            Log.w(TAG, "busLogLoad() : failed to read bus log : exception= " + e.getMessage(), e);
         }
 
-        if (mBTIOThread != null) {
-            mBTIOThread.cancel();
-            mBTIOThread = null;
+        final BusLogFile file = new BusLogFile(getFilesDir(), BusLogFile.DEFAULT_MAX_FILE_BYTES, new BusLogFile.ErrorHandler() {
+            @Override
+            public void onError(final String message, final IOException e) {
+                Log.w(TAG, "busLogLoad() : " + message + " : exception= " + e.getMessage(), e);
+            }
+        });
+        file.start();
+
+        synchronized (mOutputLock) {
+            mBusLogFile = file;
         }
+    }
 
-        elmDestroyCommandQueue();
+    private void busLogStop() {
+        if (D) Log.d(TAG, "busLogStop()");
 
-        if (mBusMsgProcessors != null) {
-            for (String msg : mBusMsgProcessors.keySet()) {
-                BusMessageProcessor processor = mBusMsgProcessors.get(msg);
-                if (processor != null) {
-                    processor.cancel();
-                }
-            }
-            mBusMsgProcessors = null;
+        final BusLogFile file;
+        synchronized (mOutputLock) {
+            busLogFlush();
+
+            file = mBusLogFile;
+            mBusLogFile = null;
+        }
+
+        if (file != null) {
+            file.stop();
         }
     }
 
     /**
-     * update the text for the persistent notification associated with this service
-     *
-     * @param status  status text, empty to clear or null to keep existing value
-     * @param error  error text, empty to clear, or null to keep existing value
+     * hands the waiting batch to the writer thread, call holding mOutputLock
      */
-    private synchronized void setNotificationText(final String status, final String error) {
-        if (status != null) {
-            mNoticeStatus = status;
-        }
-
-        if (error != null) {
-            mNoticeError = error;
+    private void busLogFlush() {
+        if (mBusLogFile != null && !mBusLogBatch.isEmpty()) {
+            mBusLogFile.append(mBusLogBatch.toByteArray(), busLogClockOffset());
         }
 
-        mNoticeBuilder.setContentText(getNotificationText());
+        mBusLogBatch.reset();
+    }
 
-        mNoticeManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
-        mNoticeManager.notify(PERSISTENT_NOTIFICATION_ID, mNoticeBuilder.build());
+    private static long busLogClockOffset() {
+        return System.currentTimeMillis() - SystemClock.uptimeMillis();
     }
 
-    private String getNotificationText() {
-        String text = mNoticeStatus == null ? "" : mNoticeStatus;
-        if (mNoticeStatus != null && !mNoticeStatus.equals("") && mNoticeError != null && !mNoticeError.equals("")) {
-            text += " | ";
+    private final Runnable mBusLogFlusher = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mOutputLock) {
+                busLogFlush();
+            }
         }
-        text += mNoticeError == null ? "" : mNoticeError;
-
-        return text;
-    }
+    };
 
-    private synchronized boolean isBTConnected() {
-        return mBTState == BTState.IDLE || mBTState == BTState.RX || mBTState == BTState.TX;
+    private File getCaptureDirectory() {
+        final File external = getExternalFilesDir(null);
+        return new File(external != null ? external : getFilesDir(), CAPTURE_DIRECTORY_NAME);
     }
 
-    private synchronized void btConnect(final BluetoothDevice device) {
-        if (D) Log.d(TAG, "btConnect()");
+    /**
+     * starts a capture writer for each bus in use that does not have one yet, and stops those of buses no longer in use
+     */
+    private synchronized void captureStart() {
+        if (D) Log.d(TAG, "captureStart()");
 
-        if (mBTState == BTState.DESTROYING) {
-            stopSelf();
-            return;
-        }
+        for (int n = 1; n <= ADAPTER_SESSIONS_MAX; n++) {
+            if (!isBusConfigured(n)) {
+                captureStop(n);
+                continue;
+            }
 
-        mBTConnectThread = new BTConnectThread(device);
-        mBTConnectThread.start();
+            if (mBusCaptureWriters[n - 1] != null) {
+                continue;
+            }
 
-        mBTState = BTState.CONNECTING;
+            final int bus = n;
+            final BusCaptureWriter writer = new BusCaptureWriter(getCaptureDirectory(), bus, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES, BusCaptureWriter.DEFAULT_MAX_FILE_AGE, new BusCaptureWriter.ErrorHandler() {
+                @Override
+                public void onError(final String message, final boolean fatal, final IOException e) {
+                    if (fatal) {
+                        Log.e(TAG, "captureStart() : bus= " + bus + " : " + message + " : exception= " + e.getMessage(), e);
+                    } else {
+                        Log.w(TAG, "captureStart() : bus= " + bus + " : " + message + " : exception= " + e.getMessage(), e);
+                    }
+                }
+            });
+            writer.start();
 
-        setNotificationText(getString(R.string.msg_connecting) + " " + device.getName() + "...", "");
+            synchronized (mOutputLock) {
+                mBusCaptureWriters[n - 1] = writer;
+            }
+        }
     }
 
-    private synchronized void btConnected(final BluetoothSocket socket, final BluetoothDevice device) {
-        if (D) Log.d(TAG, "btConnected()");
+    private synchronized void captureStop() {
+        if (D) Log.d(TAG, "captureStop()");
 
-        if (mBTState == BTState.DESTROYING) {
-            stopSelf();
-            return;
+        for (int n = 1; n <= ADAPTER_SESSIONS_MAX; n++) {
+            captureStop(n);
         }
+    }
 
-        mBTConnectThread = null;
-
-        mBTIOThread = new BTIOThread(socket);
-        mBTIOThread.start();
-
-        mBTState = BTState.IDLE;
-
-        setNotificationText(getString(R.string.msg_connected) + " " + device.getName(), "");
+    private synchronized void captureStop(final int number) {
+        final BusCaptureWriter writer;
+        synchronized (mOutputLock) {
+            writer = mBusCaptureWriters[number - 1];
+            mBusCaptureWriters[number - 1] = null;
+        }
 
-        elmInit();
+        if (writer != null) {
+            writer.stop();
+        }
     }
 
-    private synchronized void btReceivedData(final byte[] buffer, final int length) {
-        if (DD) Log.d(TAG, "btReceivedData()");
+    private synchronized void replayStart(final String name, final double speed) {
+        if (D) Log.d(TAG, "replayStart() : name= " + name + " speed= " + speed);
 
-        //flag state as RX
-        //this will only change back to IDLE once the RX is found to be _complete_
-        mBTState = BTState.RX;
+        //only recordings in our own directory, by name
+        final File file = new File(getCaptureDirectory(), new File(name).getName());
 
-        elmBufferData(new String(buffer, 0, length));
-    }
+        final BusRxPlayer player;
+        try {
+            player = new BusRxPlayer(file);
+        } catch (IOException e) {
+            Log.w(TAG, "replayStart() : exception= " + e.getMessage(), e);
 
-    private synchronized void btWriteData(final byte[] data) {
-        if (D) Log.d(TAG, "btWriteData()");
+            BoundNotifyBusData(new BusData(getString(R.string.msg_error_bound_error_prefix) + " | " + getString(R.string.msg_replay_failed) + " " + file.getName(), BusDataType.ERROR, false, mClock.uptimeMillis()));
+            return;
+        }
 
-        //flag state as TX
-        //since we always expect some response from a command, this state will only change once an RX is received
-        mBTState = BTState.TX;
+        //the recording replaces every interface device until the service is restarted, it is fed through the first bus's monitors
+        cancelAllThreads();
 
-        mBTIOThread.write(data);
-    }
+        if (speed <= 0) {
+            //as fast as possible runs on the recorded times instead, so press classification comes out exactly as it did live (and the same every time)
+            mClock = new ManualClock(player.getStartTime());
+        }
 
-    private synchronized void btWriteBreak() {
-        if (D) Log.d(TAG, "btWriteBreak()");
+        final AdapterSession session = new AdapterSession(1);
+        mAdapterSessions = Collections.singletonList(session);
+        session.replayBegin(speed > 0);
 
-        //we don't use btWriteData() here as we don't want to set mBTState to TX since this special case may never have a corresponding complete RX event to return mBTState to IDLE
-        //no longer sending just a null character here, see issue #10 on github for details
-        final String data = "\t" + ELM_COMMAND_TERMINATOR;
-        mBTIOThread.write(data.getBytes());
+        mReplayThread = new ReplayThread(session, player, speed);
+        mReplayThread.start();
 
-        //give the device time to realize the break before whatever called this method tries to continue
-        SystemClock.sleep(250);
+        setNotificationText(getString(R.string.msg_replaying) + " " + file.getName(), "");
     }
 
-    private void btNotEnabled() {
-        if (D) Log.d(TAG, "btNotEnabled()");
+    private synchronized void replayFinished(final ReplayThread thread, final BusRxPlayer player, final long elapsed) {
+        if (D) Log.d(TAG, "replayFinished()");
 
-        setNotificationText(getString(R.string.msg_stopped), getString(R.string.msg_bt_not_enabled));
-        stop();
-    }
+        if (mReplayThread != thread) {
+            //cancelled in the meantime
+            return;
+        }
 
-    private void btNotPaired() {
-        if (D) Log.d(TAG, "btNotEnabled()");
+        mReplayThread = null;
 
-        setNotificationText(getString(R.string.msg_stopped), getString(R.string.msg_bt_not_paired));
-        stop();
-    }
+        //doubles as a throughput figure when replayed as fast as possible
+        final String summary = getString(R.string.msg_replay_finished) + " " + player.getChunks() + " chunks, " + player.getBytes() + " bytes, " + elapsed + " ms";
+        BoundNotifyBusData(new BusData(summary, BusDataType.ERROR, true, mClock.uptimeMillis()));
 
-    private void btNotConfigured() {
-        if (D) Log.d(TAG, "btNotConfigured()");
+        mClock = AndroidClock.INSTANCE;
 
-        setNotificationText(getString(R.string.msg_stopped), getString(R.string.msg_bt_not_configured));
-        stop();
+        setNotificationText(getString(R.string.msg_stopped), summary);
     }
 
-    private void btConnectionFailed() {
-        if (D) Log.d(TAG, "btConnectionFailed()");
+    private synchronized void cancelAllThreads() {
+        if (D) Log.d(TAG, "cancelAllThreads()");
 
-        start();
-    }
+        if (mReplayThread != null) {
+            mReplayThread.cancel();
+            mReplayThread = null;
+        }
 
-    private void btConnectionLost() {
-        if (D) Log.d(TAG, "btConnectionLost()");
+        mClock = AndroidClock.INSTANCE;
 
-        start();
+        for (AdapterSession session : mAdapterSessions) {
+            session.cancel();
+        }
     }
 
-    private final BroadcastReceiver mBTStateReceiver = new BroadcastReceiver() {
-        @Override
+    /**
+     * update the text for the persistent notification associated with this service
+     *
+     * @param status  status text, empty to clear or null to keep existing value
+     * @param error  error text, empty to clear, or null to keep existing value
+     */
+    private void setNotificationText(final String status, final String error) {
+        synchronized (mOutputLock) {
+            if (status != null) {
+                mNoticeStatus = status;
+            }
+
+            if (error != null) {
+                mNoticeError = error;
+            }
+
+            mNoticeBuilder.setContentText(getNotificationText());
+
+            mNoticeManager = (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
+            mNoticeManager.notify(PERSISTENT_NOTIFICATION_ID, mNoticeBuilder.build());
+        }
+    }
+
+    private String getNotificationText() {
+        synchronized (mOutputLock) {
+            String text = mNoticeStatus == null ? "" : mNoticeStatus;
+            if (mNoticeStatus != null && !mNoticeStatus.equals("") && mNoticeError != null && !mNoticeError.equals("")) {
+                text += " | ";
+            }
+            text += mNoticeError == null ? "" : mNoticeError;
+
+            return text;
+        }
+    }
+
+    /**
+     * @return  true if any bus is connected
+     */
+    private boolean isBTConnected() {
+        for (AdapterSession session : mAdapterSessions) {
+            if (session.isBTConnected()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private boolean isBTUsed() {
+        for (AdapterSession session : mAdapterSessions) {
+            if (session.isBTUsed()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void btNotEnabled() {
+        if (D) Log.d(TAG, "btNotEnabled()");
+
+        setNotificationText(getString(R.string.msg_stopped), getString(R.string.msg_bt_not_enabled));
+        stop();
+    }
+
+    /**
+     * hands one response or command from a session on to everything shared
+     *
+     * @param frame  the parsed bus frame (its bus number set) for that bus's snapshot table and capture and the frame ring, null if it was not one
+     */
+    private void busPublish(final BusData data, final BusFrame frame) {
+        synchronized (mOutputLock) {
+            if (frame != null) {
+                mBusSnapshotTables[frame.bus - 1].update(data.type, data.time, frame);
+
+                if (mBusFrameRing != null) {
+                    mBusFrameRing.publish(data.type, data.time, frame);
+                }
+
+                final BusCaptureWriter writer = mBusCaptureWriters[frame.bus - 1];
+                if (writer != null) {
+                    writer.offer(data.type, data.time, frame);
+                }
+            }
+
+            BoundNotifyBusData(data);
+        }
+    }
+
+    private final BroadcastReceiver mBTStateReceiver = new BroadcastReceiver() {
+        @Override
         public void onReceive(final Context context, final Intent intent) {
             if (intent.getAction().equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                 if (D) Log.d(TAG, "mBTStateReceiver : onReceive()");
 
-                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
+
+                if (!isBTUsed()) {
+                    //every bus is on the simulator or TCP
+                    return;
+                }
+
+                if (state == BluetoothAdapter.STATE_OFF || state == BluetoothAdapter.STATE_TURNING_OFF) {
+                    btNotEnabled();
+                } else if (state == BluetoothAdapter.STATE_ON) {
+                    CBIServiceMain.this.start();
+                }
+            }
+        }
+    };
+
+    /**
+     * one interface device and everything that talks to it: the transport and its threads, response framer, command queue, startup state, watchdog and monitors
+     * its settings are the general ones with the bus number on the end (elm_commands2, etc.), nothing on the end for the first bus
+     *
+     * runs on its own threads under its own lock, so a slow device or a long wait for one bus never holds up another
+     */
+    private class AdapterSession {
+        private final int mNumber;
+        private final String mKeySuffix;
+        private final String mNoticePrefix;
+
+        private volatile boolean mCancelled;
+        private volatile boolean mReplaying;
+
+        private volatile BTState mBTState = BTState.NONE;
+
+        private BTConnectThread mBTConnectThread;
+        private BTIOThread mBTIOThread;
+
+        //first retry after a drop is immediate, then backs off (see ReconnectPolicy)
+        private final ReconnectPolicy mReconnectPolicy = new ReconnectPolicy();
+        private final ConnectionTimings mConnectionTimings = new ConnectionTimings();
+        private boolean mAwaitingFirstPrompt;
+        private int mInitCommandsLeft;
+
+        //identifies the interface device for its cached ElmAdapterState (the bluetooth MAC, or the TCP address, etc.)
+        private String mAdapterKey;
+        private ElmStartupCommands mElmStartupCommands;
+        private ElmAdapterProbe mElmAdapterProbe;
+        private boolean mElmAdapterProbeVerifying; //true if probing to decide whether the full startup can be skipped, false if probing to record the state after it
+        private boolean mElmMonitoring; //true if the last command sent was a monitor command, so data is expected without asking
+        private boolean mElmRawCan; //true after ATCAF0, the device passes CAN frames through as they are and leaves ISO-TP flow control to us
+        private int mElmHeader = BusFrame.NO_ID; //as last set by ATSH, NO_ID if unknown
+
+        //shortens the response timeout to what each kind of request needs, null if not enabled
+        private final ElmTimeoutTuner mElmTimeoutTuner;
+        private int mElmTimeout = -1; //as last set by ATST, -1 if unknown
+        private int mElmAdaptiveTiming = -1; //as last set by ATAT (0 off, 1 or 2 on), -1 if unknown
+        private int mElmStartupTimeout = ElmTimeoutTuner.TIMEOUT_DEFAULT; //as the startup commands left them, for requests not tuned yet
+        private int mElmStartupAdaptiveTiming = 1;
+        private long mElmTimingKey = BusFrame.NO_ID; //the request waiting for the first line of its answer, NO_ID if none
+        private String mElmTimingCommand;
+        private long mElmTimingSent;
+
+        //answers to requests that don't change within a drive, null if not enabled
+        private final ElmResponseCache mElmResponseCache;
+
+        //staged recovery of a device that goes quiet (see RxWatchdog), null if not configured
+        private volatile RxWatchdog mRxWatchdog;
+        private String mRxWatchdogSetting;
+
+        private final ElmResponseFramer mELMResponseFramer = new ElmResponseFramer();
+        private ELMCommandQueueThread mELMCommandQueueThread;
+
+        private HashMap<String, BusMessageProcessor> mBusMsgProcessors;
+
+        private final BusFrame mRxFrame = new BusFrame();
+
+        //this bus's statistics, the service keeps them across restarts
+        private final BusStatistics mBusStatistics;
+
+        //multi-frame responses to our own requests are always put back together for mUds, while monitoring only if this is set
+        //it also decides whether the reassembled messages are published and flow controlled
+        private final boolean mIsoTpEnabled;
+        private final IsoTpReassembler mIsoTp = new IsoTpReassembler();
+
+        //diagnostic sessions of the ECUs on this bus, and the timing of their responses
+        private final UdsSessionManager mUds = new UdsSessionManager();
+        private final int[] mUdsDue = new int[UdsSessionManager.DEFAULT_SLOTS];
+        private final BusFrame mUdsFrame = new BusFrame();
+
+        //OBD-II polling (see ObdPollPlan), null until the supported PIDs are known or if not configured
+        private ObdPollPlan mObdPollPlan;
+        private ObdVinReader mObdVinReader; //reading the VIN, null if not
+        private ObdPidSupport mObdPidSupport; //discovering the supported PIDs, null if not
+        private String mObdVin; //null if the vehicle did not give one, then its supported PIDs are not remembered
+        private String mObdDiscoveryCommand; //the discovery request queued and not yet answered, null if none
+        private int mObdHeader = BusFrame.NO_ID; //see obdHeader(), BusFrame.NO_ID until known
+        private boolean mObdDiscoveryAnswering; //the response coming in is to mObdDiscoveryCommand
+
+        private BusRxRecorder mBusRxRecorder;
+
+        //runs the watchdog, UDS keepalive and OBD poller, off the main thread since any of them may send a command and so wait out a break (see btWriteBreak())
+        private final HandlerThread mHandlerThread;
+        private final Handler mHandler;
+
+
+        /**
+         * @param number  the bus number, 1 for the first
+         */
+        public AdapterSession(final int number) {
+            mNumber = number;
+
+            mHandlerThread = new HandlerThread("AdapterSession" + number);
+            mHandlerThread.start();
+            mHandler = new Handler(mHandlerThread.getLooper());
+
+            mKeySuffix = number == 1 ? "" : String.valueOf(number);
+            mNoticePrefix = number == 1 ? "" : getString(R.string.msg_bus) + " " + number + ": ";
+
+            mIsoTpEnabled = mSettings.getBoolean("isotp_enabled", false);
+
+            //kept across reconnects, the ECUs answer no faster or slower for it
+            mElmTimeoutTuner = mSettings.getBoolean("elm_timeout_tuning", false) ? new ElmTimeoutTuner() : null;
+
+            mElmResponseCache = mSettings.getBoolean("elm_response_cache", false) ? new ElmResponseCache() : null;
+
+            mRxFrame.bus = number;
+
+            mBusStatistics = CBIServiceMain.this.mBusStatistics[number - 1];
+            try {
+                mBusStatistics.setBitrate(Integer.parseInt(getSetting("bus_bitrate", "").trim()));
+            } catch (NumberFormatException e) {
+                mBusStatistics.setBitrate(BUS_BITRATE_DEFAULT);
+            }
+        }
+
+        private String getSetting(final String key, final String defaultValue) {
+            return mSettings.getString(key + mKeySuffix, defaultValue);
+        }
+
+        private boolean isSimulatorEnabled() {
+            return mSettings.getBoolean("simulator_enabled", false);
+        }
+
+        private boolean isTcpEnabled() {
+            return !getSetting("tcp_address", "").trim().equals("");
+        }
+
+        public boolean isBTUsed() {
+            return !mReplaying && !isSimulatorEnabled() && !isTcpEnabled();
+        }
+
+        private void setNoticeText(final String status, final String error) {
+            setNotificationText(status == null ? null : mNoticePrefix + status, error == null || error.equals("") ? error : mNoticePrefix + error);
+        }
+
+        public synchronized void start() {
+            if (D) Log.d(TAG, "AdapterSession.start() : bus= " + mNumber);
+
+            cancelAllThreads();
+
+            if (mCancelled) {
+                return;
+            }
+
+            if (mDestroying) {
+                stopSelf();
+                return;
+            }
+
+            final BusTransport transport;
+
+            if (isSimulatorEnabled()) {
+                transport = new SimulatorTransport(new Elm327Simulator(AndroidClock.INSTANCE, getSimulatorConfig()));
+                mAdapterKey = "simulator" + mKeySuffix;
+            } else if (isTcpEnabled()) {
+                try {
+                    transport = new TcpTransport(getSetting("tcp_address", ""));
+                    mAdapterKey = "tcp_" + transport.getName();
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "AdapterSession.start() : " + e.getMessage());
+
+                    failed(R.string.msg_tcp_not_configured);
+                    return;
+                }
+            } else {
+                if (mBTAdapter == null || !mBTAdapter.isEnabled()) {
+                    failed(R.string.msg_bt_not_enabled);
+                    return;
+                }
+
+                final String address = getSetting("bluetooth_mac", "");
+                if (address.equals("")) {
+                    failed(R.string.msg_bt_not_configured);
+                    return;
+                }
+
+                final BluetoothDevice device = mBTAdapter.getRemoteDevice(address);
+                if (device == null || device.getBondState() != BluetoothDevice.BOND_BONDED) {
+                    failed(R.string.msg_bt_not_paired);
+                    return;
+                }
+
+                transport = new BluetoothTransport(device);
+                mAdapterKey = address;
+            }
+
+            mBTState = BTState.NONE;
+
+            mConnectionTimings.begin(mClock.uptimeMillis(), false);
+
+            //kept across reconnects so its counters last, unless the setting changed
+            final String watchdogSetting = getSetting("rx_watchdog", "").trim();
+            if (!watchdogSetting.equals(mRxWatchdogSetting)) {
+                mRxWatchdogSetting = watchdogSetting;
+                try {
+                    mRxWatchdog = RxWatchdog.parse(watchdogSetting);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "AdapterSession.start() : invalid rx watchdog setting : " + e.getMessage());
+
+                    mRxWatchdog = null;
+                    setNoticeText(null, getString(R.string.msg_rx_watchdog_not_valid));
+                }
+            }
+
+            btConnect(transport);
+        }
+
+        /**
+         * @return  settings for the built-in interface simulator, it presses each of this bus's monitor messages in turn
+         */
+        private Elm327Simulator.Config getSimulatorConfig() {
+            final Elm327Simulator.Config config = new Elm327Simulator.Config();
+
+            try {
+                config.load = Integer.parseInt(mSettings.getString("simulator_load", "").trim()) / 100.0;
+            } catch (NumberFormatException e) {
+                config.load = SIMULATOR_LOAD_DEFAULT / 100.0;
+            }
+
+            final ArrayList<String> pressLines = new ArrayList<String>();
+            for (int m = 1; m <= 10; m++) {
+                try {
+                    final String monitorSetting = mSettings.getString("elm_monitor" + m, "");
+                    if (!monitorSetting.equals("")) {
+                        final BusMonitor monitor = BusMonitor.parse(monitorSetting);
+                        if (monitor.bus == mNumber) {
+                            pressLines.add(monitor.message);
+                        }
+                    }
+                } catch (Exception e) {
+                    //reported when the processors are set up
+                }
+            }
+
+            config.pressLines = pressLines.toArray(new String[pressLines.size()]);
+            config.pressInterval = SIMULATOR_PRESS_INTERVAL;
+            config.seed = mClock.uptimeMillis() + mNumber;
+
+            return config;
+        }
+
+        /**
+         * stops for good, the service is starting over or shutting down
+         */
+        public synchronized void cancel() {
+            if (D) Log.d(TAG, "AdapterSession.cancel() : bus= " + mNumber);
+
+            mCancelled = true;
+
+            stop();
+
+            mHandler.removeCallbacksAndMessages(null);
+            mHandlerThread.quit();
+        }
+
+        /**
+         * stops until the service is started again (bad settings, bluetooth off, etc.)
+         */
+        public synchronized void stop() {
+            if (D) Log.d(TAG, "AdapterSession.stop() : bus= " + mNumber);
+
+            cancelAllThreads();
+
+            mReconnectPolicy.reset();
+            mConnectionTimings.cancel();
+
+            if (mDestroying) {
+                stopSelf();
+                return;
+            }
+
+            mBTState = BTState.NONE;
+        }
+
+        private void failed(final int errorId) {
+            if (D) Log.d(TAG, "AdapterSession.failed() : bus= " + mNumber);
+
+            setNoticeText(getString(R.string.msg_stopped), getString(errorId));
+            stop();
+        }
+
+        /**
+         * sets up to be fed a recording by a ReplayThread instead of an interface device
+         *
+         * @param startProcessors  true to start each processor's own thread, false when the ReplayThread will tick them
+         */
+        public synchronized void replayBegin(final boolean startProcessors) {
+            if (D) Log.d(TAG, "AdapterSession.replayBegin()");
+
+            mReplaying = true;
+            mBTState = BTState.IDLE;
+            mELMResponseFramer.reset();
+            notifyAll();
+
+            elmInitBusMsgProcessors(startProcessors);
+        }
+
+        private synchronized void rxRecordStart() {
+            if (D) Log.d(TAG, "AdapterSession.rxRecordStart()");
+
+            rxRecordStop();
+
+            final File directory = getCaptureDirectory();
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.w(TAG, "AdapterSession.rxRecordStart() : unable to create " + directory);
+                return;
+            }
+
+            final String name = BusRxRecorder.FILE_PREFIX + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + (mNumber == 1 ? "" : "_bus" + mNumber) + BusRxRecorder.FILE_EXTENSION;
+
+            try {
+                mBusRxRecorder = new BusRxRecorder(new File(directory, name), mClock.uptimeMillis());
+            } catch (IOException e) {
+                Log.w(TAG, "AdapterSession.rxRecordStart() : exception= " + e.getMessage(), e);
+            }
+        }
+
+        private synchronized void rxRecordStop() {
+            if (mBusRxRecorder != null) {
+                if (D) Log.d(TAG, "AdapterSession.rxRecordStop()");
+
+                mBusRxRecorder.close();
+                mBusRxRecorder = null;
+            }
+        }
+
+        private synchronized void cancelAllThreads() {
+            if (D) Log.d(TAG, "AdapterSession.cancelAllThreads() : bus= " + mNumber);
+
+            rxRecordStop();
+
+            if (mBTConnectThread != null) {
+                mBTConnectThread.cancel();
+                mBTConnectThread = null;
+            }
+
+            if (mBTIOThread != null) {
+                mBTIOThread.cancel();
+                mBTIOThread = null;
+            }
+
+            elmDestroyCommandQueue();
+
+            rxWatchdogStop();
+            udsKeepaliveStop();
+            obdPollStop();
+
+            if (mBusMsgProcessors != null) {
+                for (String msg : mBusMsgProcessors.keySet()) {
+                    BusMessageProcessor processor = mBusMsgProcessors.get(msg);
+                    if (processor != null) {
+                        processor.cancel();
+                    }
+                }
+                mBusMsgProcessors = null;
+            }
+        }
+
+        public synchronized boolean isBTConnected() {
+            //a replay drives the same states but there is nothing to send commands to
+            return !mReplaying && (mBTState == BTState.IDLE || mBTState == BTState.RX || mBTState == BTState.TX);
+        }
+
+        private synchronized void btConnect(final BusTransport transport) {
+            if (D) Log.d(TAG, "AdapterSession.btConnect()");
+
+            if (mDestroying) {
+                stopSelf();
+                return;
+            }
+
+            mBTConnectThread = new BTConnectThread(this, transport, mReconnectPolicy.nextDelay());
+            mBTConnectThread.start();
+
+            mBTState = BTState.CONNECTING;
+
+            setNoticeText(getString(R.string.msg_connecting) + " " + transport.getName() + "...", "");
+        }
+
+        private synchronized void btConnected(final BusTransport transport) {
+            if (D) Log.d(TAG, "AdapterSession.btConnected()");
+
+            if (mDestroying) {
+                stopSelf();
+                return;
+            }
+
+            if (mCancelled) {
+                transport.close();
+                return;
+            }
+
+            mBTConnectThread = null;
+
+            mBTIOThread = new BTIOThread(this, transport);
+            mBTIOThread.start();
+
+            mBTState = BTState.IDLE;
+            mAwaitingFirstPrompt = true;
+            mElmRawCan = false;
+            mElmHeader = BusFrame.NO_ID;
+            mElmTimeout = -1;
+            mElmAdaptiveTiming = -1;
+            mElmTimingKey = BusFrame.NO_ID;
+
+            notifyAll();
+
+            //the device may now be on another vehicle
+            if (mElmResponseCache != null) {
+                mElmResponseCache.clear();
+            }
+
+            mIsoTp.reset();
+            mUds.reset();
+
+            setNoticeText(getString(R.string.msg_connected) + " " + transport.getName(), "");
+
+            if (mSettings.getBoolean("rx_record_enabled", false)) {
+                rxRecordStart();
+            }
+
+            elmInit();
+        }
+
+        private synchronized void btReceivedData(final byte[] buffer, final int length) {
+            if (DD) Log.d(TAG, "AdapterSession.btReceivedData()");
+
+            if (mBusRxRecorder != null) {
+                try {
+                    mBusRxRecorder.record(mClock.uptimeMillis(), buffer, length);
+                } catch (IOException e) {
+                    Log.w(TAG, "AdapterSession.btReceivedData() : rx recording stopped : exception= " + e.getMessage(), e);
+
+                    rxRecordStop();
+                }
+            }
+
+            if (mElmMonitoring && mRxWatchdog != null) {
+                mRxWatchdog.onData(mClock.uptimeMillis());
+            }
+
+            //flag state as RX
+            //this will only change back to IDLE once the RX is found to be _complete_
+            mBTState = BTState.RX;
+
+            elmBufferData(new String(buffer, 0, length));
+        }
+
+        private synchronized void btWriteData(final byte[] data) {
+            if (D) Log.d(TAG, "AdapterSession.btWriteData()");
+
+            //flag state as TX
+            //since we always expect some response from a command, this state will only change once an RX is received
+            mBTState = BTState.TX;
+
+            mBTIOThread.write(data);
+        }
+
+        private synchronized void btWriteBreak() {
+            if (D) Log.d(TAG, "AdapterSession.btWriteBreak()");
+
+            //we don't use btWriteData() here as we don't want to set mBTState to TX since this special case may never have a corresponding complete RX event to return mBTState to IDLE
+            //no longer sending just a null character here, see issue #10 on github for details
+            final String data = "\t" + ELM_COMMAND_TERMINATOR;
+            mBTIOThread.write(data.getBytes());
+            mElmMonitoring = false;
+
+            //give the device time to realize the break before whatever called this method tries to continue
+            //only this bus waits, the others carry on
+            mClock.sleep(250);
+        }
+
+        private void btConnectionFailed() {
+            if (D) Log.d(TAG, "AdapterSession.btConnectionFailed()");
+
+            start();
+        }
+
+        private void btConnectionLost() {
+            if (D) Log.d(TAG, "AdapterSession.btConnectionLost()");
+
+            mConnectionTimings.begin(mClock.uptimeMillis(), true);
+
+            start();
+        }
+
+        private void elmBadConfig(final String noticeErrorText) {
+            if (D) Log.d(TAG, "AdapterSession.elmBadConfig()");
+
+            setNoticeText(getString(R.string.msg_stopped), noticeErrorText);
+            stop();
+        }
+
+        private synchronized void elmInit() {
+            if (D) Log.d(TAG, "AdapterSession.elmInit()");
+
+            /*
+            FYI: you don't have to make this call to setup the processors if you don't need handle repeating messages (to skip bounces, identify short/long/double-press type scenarios, etc.)
+            instead you could just setup a case statement in the elmParseResponse() method to respond to messages as they come in
+            */
+            elmInitBusMsgProcessors(true);
+
+            elmInitStartupCommands();
+        }
+
+        /**
+         * @param start  true to start each processor's own thread, false when the caller will tick them via elmTickBusMsgProcessors() instead
+         */
+        private synchronized void elmInitBusMsgProcessors(final boolean start) {
+            if (D) Log.d(TAG, "AdapterSession.elmInitBusMsgProcessors() : start= " + start);
+
+            //todo: the way we are storing these preferences is a quick hack, we need a custom preference screen to configure any number of these
+
+            mBusMsgProcessors = new HashMap<String, BusMessageProcessor>();
+
+            final Context appContext = getApplicationContext();
+
+            BusMessageProcessor processor;
+            String monitorSetting;
+            BusMonitor monitor;
+
+            for (int m = 1; m <= 10; m++) {
+                try {
+                    monitorSetting = mSettings.getString("elm_monitor" + m, "");
+                    if (!monitorSetting.equals("")) {
+                        monitor = BusMonitor.parse(monitorSetting);
+                        if (monitor.bus != mNumber) {
+                            continue;
+                        }
+
+                        processor = new BusMessageProcessor(appContext, mClock, mActionExecutor, mUdsRequestHandler, monitor.message, monitor.silenceErrors, monitor.bounceTime, monitor.shortTime, monitor.longTime, monitor.longWatchTime, monitor.shortAction, monitor.longAction);
+                        if (start) {
+                            processor.start();
+                        }
+                        mBusMsgProcessors.put(monitor.message, processor);
+                    }
+                } catch (Exception e) {
+                    Log.w(TAG, "AdapterSession.elmInit() : exception while setting up data processors : monitor #" + m + " : exception= " + e.getMessage(), e);
+
+                    elmBadConfig(getString(R.string.msg_bus_monitors_not_configured));
+                    return;
+                }
+            }
+
+            if (mBusMsgProcessors == null || mBusMsgProcessors.size() <= 0) {
+                Log.w(TAG, "AdapterSession.elmInit() : no data processors");
+
+                elmBadConfig(getString(R.string.msg_bus_monitors_not_configured));
+            }
+        }
+
+        private synchronized void elmTickBusMsgProcessors() {
+            if (mBusMsgProcessors == null) {
+                return;
+            }
+
+            for (BusMessageProcessor processor : mBusMsgProcessors.values()) {
+                processor.tick();
+            }
+        }
+
+        private synchronized void elmInitStartupCommands() {
+            if (D) Log.d(TAG, "AdapterSession.elmInitStartupCommands()");
+
+            final String prefElmCommands = getSetting("elm_commands", "");
+            if (prefElmCommands.equals("")) {
+                Log.w(TAG, "AdapterSession.elmInit() : no startup commands");
+
+                elmBadConfig(getString(R.string.msg_bus_commands_not_configured));
+                return;
+            }
+
+            final ElmStartupCommands commands = ElmStartupCommands.parse(prefElmCommands);
+            if (commands.isEmpty()) {
+                Log.w(TAG, "AdapterSession.elmInit() : invalid startup commands");
+
+                elmBadConfig(getString(R.string.msg_bus_commands_not_configured));
+                return;
+            }
+
+            mElmStartupCommands = commands;
+
+            elmDestroyCommandQueue();
+            btWriteBreak();
+
+            mInitCommandsLeft = 0;
+            mElmAdapterProbe = new ElmAdapterProbe();
+
+            final ElmAdapterState cached = ElmAdapterState.parse(AppState.getString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, null));
+            if (cached != null && cached.canVerify(commands)) {
+                //the device may have kept everything from last time (it only lost the link, not power), check before redoing it all
+                if (D) Log.d(TAG, "AdapterSession.elmInitStartupCommands() : verifying cached adapter state");
+
+                mElmAdapterProbeVerifying = true;
+                for (String command : ElmAdapterProbe.COMMANDS) {
+                    elmQueueCommand(command);
+                }
+            } else {
+                mElmAdapterProbeVerifying = false;
+                elmQueueStartupCommands(commands.getFullCommands(ElmAdapterProbe.COMMANDS));
+            }
+        }
+
+        private synchronized void elmQueueStartupCommands(final List<String> commands) {
+            if (D) Log.d(TAG, "AdapterSession.elmQueueStartupCommands() : count= " + commands.size());
+
+            if (commands.isEmpty()) {
+                elmInitComplete();
+                return;
+            }
+
+            mInitCommandsLeft += commands.size();
+            for (String command : commands) {
+                elmQueueCommand(command);
+            }
+        }
+
+        private synchronized void elmAdapterProbeDone() {
+            if (D) Log.d(TAG, "AdapterSession.elmAdapterProbeDone() : verifying= " + mElmAdapterProbeVerifying + " version= " + mElmAdapterProbe.getVersion() + " protocol= " + mElmAdapterProbe.getProtocol() + " echo= " + mElmAdapterProbe.sawEcho());
+
+            final ElmAdapterProbe probe = mElmAdapterProbe;
+            mElmAdapterProbe = null;
+
+            if (!mElmAdapterProbeVerifying) {
+                //the full startup has (nearly) run, remember how it left the device
+                final ElmAdapterState state = probe.toState(mElmStartupCommands.getKey());
+                AppState.setString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, state == null ? "" : state.serialize());
+                return;
+            }
+
+            final ElmAdapterState cached = ElmAdapterState.parse(AppState.getString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, null));
+            if (cached != null && cached.isStillValid(probe, mElmStartupCommands)) {
+                if (D) Log.d(TAG, "AdapterSession.elmAdapterProbeDone() : adapter kept its state, resuming");
+
+                elmReplayStartupCommands();
+                elmQueueStartupCommands(mElmStartupCommands.getResumeCommands());
+            } else {
+                if (D) Log.d(TAG, "AdapterSession.elmAdapterProbeDone() : adapter state lost, running full startup");
+
+                mElmAdapterProbe = new ElmAdapterProbe();
+                mElmAdapterProbeVerifying = false;
+                elmQueueStartupCommands(mElmStartupCommands.getFullCommands(ElmAdapterProbe.COMMANDS));
+            }
+        }
+
+        private void elmForgetAdapterState() {
+            if (!AppState.getString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, "").equals("")) {
+                if (D) Log.d(TAG, "AdapterSession.elmForgetAdapterState() : bus= " + mNumber);
+
+                AppState.setString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, "");
+            }
+        }
+
+        /**
+         * follows the startup commands without sending them, for a device that kept the state they left it in
+         * only the resume commands go out again, but the CAN format (which btConnected() forgot) and the startup timeout (unknown after a restart of the service) still have to be known
+         * the header and timeout the device is on now may have been changed since the startup, so those stay unknown and are sent again when needed
+         */
+        private void elmReplayStartupCommands() {
+            for (String command : mElmStartupCommands.getCommands()) {
+                final String normalized = ElmStartupCommands.normalize(command);
+                final ElmStartupCommands.Kind kind = ElmStartupCommands.classify(command);
+
+                elmTrackCanFormat(kind, normalized);
+                elmTrackTiming(kind, normalized, true);
+            }
+
+            mElmHeader = BusFrame.NO_ID;
+            mElmTimeout = -1;
+            mElmAdaptiveTiming = -1;
+        }
+
+        private synchronized void elmQueueCommand(final String command) {
+            elmQueueCommand(command, BusFrame.NO_ID, ElmCommandQueue.Priority.CRITICAL);
+        }
+
+        /**
+         * @param id  the bus ID the command goes to, an ATSH is sent first if the device is set to another, BusFrame.NO_ID to send it as the device is
+         * @param priority  see ElmCommandQueue
+         */
+        private synchronized void elmQueueCommand(final String command, final int id, final ElmCommandQueue.Priority priority) {
+            if (D) Log.d(TAG, "AdapterSession.elmQueueCommand() : command= " + command + " priority= " + priority);
+
+            if (command == null || command.equals("")) {
+                return;
+            }
+
+            if (mELMCommandQueueThread == null) {
+                mELMCommandQueueThread = new ELMCommandQueueThread(this);
+                mELMCommandQueueThread.start();
+            }
+
+            //ATSH only sets the low 24 bits of a 29bit ID, the priority byte is left at the device's default of 18 (ATCP)
+            final int header = id > 0x7FF ? id & 0xFFFFFF : id;
+
+            if (!mELMCommandQueueThread.add(command, header, priority)) {
+                Log.w(TAG, "AdapterSession.elmQueueCommand() : command queue full, refused= " + command + " bus= " + mNumber);
+            }
+        }
+
+        private synchronized void elmSendCommand(String command) {
+            if (D) Log.d(TAG, "AdapterSession.elmSendCommand() : command= " + command);
+
+            if (command == null || command.equals("")) {
+                return;
+            }
+
+            if (!isBTConnected()) {
+                Log.w(TAG, "AdapterSession.elmSendCommand() : failed to send command (bluetooth not connected)");
+
+                btConnectionLost();
+                return;
+            }
+
+            //alert any bound clients of this TX
+            BusData data = new BusData(mNumber, command, BusDataType.TX, false, mClock.uptimeMillis());
+            busPublish(data, null);
+
+            if (mBTState != BTState.IDLE) {
+                //we are in the middle of something (like a long RX)
+                btWriteBreak();
+            }
+
+            if (mElmAdapterProbe != null) {
+                mElmAdapterProbe.onSent(command);
+            }
+
+            final ElmStartupCommands.Kind kind = ElmStartupCommands.classify(command);
+            mElmMonitoring = kind == ElmStartupCommands.Kind.MONITOR;
+            final String normalized = ElmStartupCommands.normalize(command);
+
+            if (mInitCommandsLeft == 0 && ElmAdapterState.isChangedBy(normalized)) {
+                //a client's ATH0, ATCRA, ATSP, ATZ... the next connect must not resume on a state the device is no longer in
+                elmForgetAdapterState();
+            }
+
+            if (mRxWatchdog != null && mInitCommandsLeft == 0) {
+                //the startup commands (counted) and a reissued monitor are the watchdog's own, anything else ends monitoring on purpose until the client monitors again
+                if (mElmMonitoring) {
+                    mRxWatchdog.resume(mClock.uptimeMillis());
+                } else {
+                    mRxWatchdog.pause();
+                }
+            }
+            elmTrackCanFormat(kind, normalized);
+            elmTrackTiming(kind, normalized, mInitCommandsLeft > 0);
+
+            mObdDiscoveryAnswering = normalized.equals(mObdDiscoveryCommand);
+
+            if (mElmResponseCache != null) {
+                if (ElmResponseCache.invalidates(normalized)) {
+                    mElmResponseCache.clear();
+                }
+                mElmResponseCache.onSent(mElmHeader, normalized, mClock.uptimeMillis());
+            }
+
+            if (kind == ElmStartupCommands.Kind.REQUEST) {
+                elmTrackUdsRequest(command);
+            }
+
+            mElmTimingKey = BusFrame.NO_ID;
+            if (kind == ElmStartupCommands.Kind.REQUEST && mElmTimeoutTuner != null) {
+                mElmTimingKey = ElmTimeoutTuner.getKey(mElmHeader, command);
+                mElmTimingCommand = command.trim();
+                mElmTimingSent = mClock.uptimeMillis();
+            }
+
+            command += ELM_COMMAND_TERMINATOR;
+            btWriteData(command.getBytes());
+
+            if (mInitCommandsLeft > 0 && --mInitCommandsLeft == 0) {
+                elmInitComplete();
+            }
+        }
+
+        /**
+         * queues a command from a bound client ahead of any polling, or if its answer is cached passes that on as though it had been sent
+         */
+        public synchronized void busCommand(final String command) {
+            final String[] cached = mElmResponseCache == null ? null : mElmResponseCache.get(mElmHeader, ElmStartupCommands.normalize(command), mClock.uptimeMillis());
+            if (cached == null) {
+                elmQueueCommand(command, BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+                return;
+            }
+
+            if (D) Log.d(TAG, "AdapterSession.busCommand() : bus= " + mNumber + " cached= " + command + " hits= " + mElmResponseCache.getHits());
+
+            //the device is left alone, so a monitor keeps running
+            final long now = mClock.uptimeMillis();
+            busPublish(new BusData(mNumber, command, BusDataType.TX, false, now), null);
+
+            for (int i = 0; i < cached.length; i++) {
+                busPublish(new BusData(mNumber, cached[i], BusDataType.RX, i == cached.length - 1, now), null);
+            }
+        }
+
+        /**
+         * follows the commands that decide whether ISO-TP flow control is ours to send, and where to
+         */
+        private void elmTrackCanFormat(final ElmStartupCommands.Kind kind, final String command) {
+            if (kind == ElmStartupCommands.Kind.RESET || command.equals("ATCAF1")) {
+                mElmRawCan = false;
+                if (kind == ElmStartupCommands.Kind.RESET) {
+                    mElmHeader = BusFrame.NO_ID;
+                }
+            } else if (command.equals("ATCAF0")) {
+                mElmRawCan = true;
+            } else if (command.startsWith("ATSH")) {
+                mElmHeader = elmParseHeader(command);
+            }
+        }
+
+        /**
+         * follows the commands that set the response timeout, see elmTimeoutCommand()
+         *
+         * @param startup  true if the command is one of the startup commands, which decide the timeout for requests not tuned yet
+         */
+        private void elmTrackTiming(final ElmStartupCommands.Kind kind, final String command, final boolean startup) {
+            if (kind == ElmStartupCommands.Kind.RESET) {
+                mElmTimeout = ElmTimeoutTuner.TIMEOUT_DEFAULT;
+                mElmAdaptiveTiming = 1;
+                mElmStartupTimeout = mElmTimeout;
+                mElmStartupAdaptiveTiming = mElmAdaptiveTiming;
+            } else if (command.startsWith("ATST")) {
+                try {
+                    mElmTimeout = Integer.parseInt(command.substring(4), 16);
+                } catch (NumberFormatException e) {
+                    mElmTimeout = -1;
+                }
+                if (startup && mElmTimeout >= 0) {
+                    mElmStartupTimeout = mElmTimeout;
+                }
+            } else if (command.startsWith("ATAT")) {
+                mElmAdaptiveTiming = command.equals("ATAT0") ? 0 : command.equals("ATAT2") ? 2 : 1;
+                if (startup) {
+                    mElmStartupAdaptiveTiming = mElmAdaptiveTiming;
+                }
+            }
+        }
+
+        /**
+         * @param command  the next command from the queue
+         * @return  an ATAT or ATST to send first so the device waits as long as this command needs, or null if it already will
+         */
+        private synchronized String elmTimeoutCommand(final String command) {
+            //the startup commands are counted as they go out (see mInitCommandsLeft), nothing extra can go in among them
+            if (mElmTimeoutTuner == null || mInitCommandsLeft > 0 || ElmStartupCommands.classify(command) != ElmStartupCommands.Kind.REQUEST) {
+                return null;
+            }
+
+            final long key = ElmTimeoutTuner.getKey(mElmHeader, command);
+            if (key == BusFrame.NO_ID) {
+                return null;
+            }
+
+            //a tuned kind needs the device's own adaptive timing off or it would second guess the timeout, an untuned kind goes as the startup commands had it
+            final int timeout = mElmTimeoutTuner.getTimeout(key, -1);
+            final int adaptive = timeout < 0 ? mElmStartupAdaptiveTiming : 0;
+            final int wanted = timeout < 0 ? mElmStartupTimeout : timeout;
+
+            if (mElmAdaptiveTiming != adaptive) {
+                return "ATAT" + adaptive;
+            }
+
+            //always raised straight away, but only lowered for a worthwhile gain so alternating kinds don't cost an ATST each
+            if (mElmTimeout < 0 || wanted > mElmTimeout || wanted < mElmTimeout - mElmTimeout / 4) {
+                return ElmTimeoutTuner.getCommand(wanted);
+            }
+
+            return null;
+        }
+
+        /**
+         * times the first line of the answer to the request just sent, see ElmTimeoutTuner
+         */
+        private void elmTimeResponse(final String response, final boolean isFrame, final boolean completed, final long time) {
+            if (response.contains(ELM_RESPONSE_NO_DATA)) {
+                mElmTimeoutTuner.onNoData(mElmTimingKey);
+            } else if (response.contains(ELM_RESPONSE_SEARCHING)) {
+                //a protocol search takes seconds, nothing to learn from it
+            } else if (isFrame && !response.equals(mElmTimingCommand)) {
+                mElmTimeoutTuner.onResponse(mElmTimingKey, time - mElmTimingSent);
+            } else if (!completed) {
+                //the echo or a blank line, the answer is still to come
+                return;
+            }
+
+            mElmTimingKey = BusFrame.NO_ID;
+        }
+
+        /**
+         * sends a command from the queue as soon as the device is ready for it (its prompt), after any header or timing command it needs
+         */
+        private synchronized void elmSendQueued(final ELMCommandQueueThread thread, final ElmCommandQueue.Entry entry) throws InterruptedException {
+            //an interactive command breaks in (see elmSendCommand()) like one sent straight away, after a short wait for a request in progress, at once on a monitor
+            long breakIn = Long.MAX_VALUE;
+            if (entry.priority == ElmCommandQueue.Priority.INTERACTIVE) {
+                breakIn = mClock.uptimeMillis() + (mElmMonitoring ? 0 : ELM_COMMAND_QUEUE_INTERACTIVE_WAIT_TIME);
+            }
+
+            //at most an ATSH, an ATAT and an ATST go first
+            for (int c = 0; c < 4; c++) {
+                while (mBTState != BTState.IDLE && !thread.mmCancelling && mClock.uptimeMillis() < breakIn) {
+                    wait(ELM_COMMAND_QUEUE_PROMPT_WAIT_TIME);
+                }
+
+                if (thread.mmCancelling) {
+                    return;
+                }
+
+                final String first = c < 3 ? elmQueuedPrefix(entry) : null;
+                if (first == null) {
+                    elmSendCommand(entry.command);
+                    return;
+                }
+
+                if (D) Log.d(TAG, "AdapterSession.elmSendQueued() : bus= " + mNumber + " first= " + first);
+
+                elmSendCommand(first);
+
+                //broken in already, the rest wait for their prompts
+                breakIn = Long.MAX_VALUE;
+            }
+        }
+
+        /**
+         * @return  a command that must go before the entry (an ATSH, then see elmTimeoutCommand()), or null if none
+         */
+        private String elmQueuedPrefix(final ElmCommandQueue.Entry entry) {
+            if (entry.header != BusFrame.NO_ID && entry.header != mElmHeader) {
+                return "ATSH " + String.format(Locale.US, entry.header > 0x7FF ? "%06X" : "%03X", entry.header);
+            }
+
+            return elmTimeoutCommand(entry.command);
+        }
+
+        /**
+         * @param command  a normalized ATSH command
+         * @return  the header it sets, NO_ID if not valid
+         */
+        private int elmParseHeader(final String command) {
+            try {
+                return Integer.parseInt(command.substring(4), 16);
+            } catch (NumberFormatException e) {
+                return BusFrame.NO_ID;
+            }
+        }
+
+        /**
+         * @param command  a request just written to the device, it goes to the ID last set by ATSH
+         */
+        private void elmTrackUdsRequest(final String command) {
+            if (mElmRawCan || mElmHeader == BusFrame.NO_ID) {
+                //after ATCAF0 the bytes start with the PCI (or are a flow control), and without ATSH the device picks the ID by protocol
+                return;
+            }
+
+            //ATSH leaves the priority byte of a 29bit ID at its default of 18
+            final int id = mElmHeader > 0x7FF ? 0x18000000 | mElmHeader : mElmHeader;
+
+            if (mUdsFrame.parse(Integer.toHexString(id) + " " + command)) {
+                mUds.onRequest(mClock.uptimeMillis(), mUdsFrame);
+            }
+        }
+
+        /**
+         * @param id  where the flow control goes, see IsoTpReassembler.getFlowControlId()
+         */
+        private synchronized void elmQueueFlowControl(final int id) {
+            if (id == BusFrame.NO_ID) {
+                if (D) Log.d(TAG, "AdapterSession.elmQueueFlowControl() : no flow control ID for " + Integer.toHexString(mRxFrame.id));
+                return;
+            }
+
+            if (D) Log.d(TAG, "AdapterSession.elmQueueFlowControl() : id= " + Integer.toHexString(id));
+
+            //sent as plain data, the remaining consecutive frames come back as its response
+            elmQueueCommand(IsoTpReassembler.FLOW_CONTROL_CONTINUE, id, ElmCommandQueue.Priority.CRITICAL);
+        }
+
+        /**
+         * queues a UDS request, behind an ATSH if the header needs to change
+         *
+         * @param request  the ECU's ID then the request bytes (example: "7E0 22 F1 90"), the device adds the PCI byte so 7 bytes at most
+         * @return  false if the request is not valid
+         */
+        public synchronized boolean udsRequest(final String request) {
+            if (D) Log.d(TAG, "AdapterSession.udsRequest() : bus= " + mNumber + " request= " + request);
+
+            final String trimmed = request == null ? "" : request.trim();
+
+            if (!mUdsFrame.parse(trimmed) || mUdsFrame.idDigits < 3 || mUdsFrame.length < 1 || mUdsFrame.length > 7) {
+                return false;
+            }
+
+            if (!isBTConnected()) {
+                Log.w(TAG, "AdapterSession.udsRequest() : request not sent (interface device not connected)");
+                return true;
+            }
+
+            final int space = trimmed.indexOf(' ');
+
+            elmQueueCommand(space < 0 ? trimmed.substring(3) : trimmed.substring(space + 1).trim(), mUdsFrame.id, ElmCommandQueue.Priority.INTERACTIVE);
+
+            return true;
+        }
+
+        private final BusMessageProcessor.UdsRequestHandler mUdsRequestHandler = new BusMessageProcessor.UdsRequestHandler() {
+            @Override
+            public boolean onUdsRequest(final String request) {
+                return AdapterSession.this.udsRequest(request);
+            }
+        };
+
+        private synchronized void udsKeepaliveStart() {
+            if (mReplaying) {
+                return;
+            }
+
+            mHandler.removeCallbacks(mUdsKeepalive);
+            mHandler.postDelayed(mUdsKeepalive, UDS_TICK_TIME);
+        }
+
+        private synchronized void udsKeepaliveStop() {
+            mHandler.removeCallbacks(mUdsKeepalive);
+        }
+
+        /**
+         * sends TesterPresent to the ECUs kept out of their default session, and gives up on requests left unanswered
+         */
+        private final Runnable mUdsKeepalive = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AdapterSession.this) {
+                    if (mCancelled || !isBTConnected()) {
+                        return;
+                    }
+
+                    final long now = mClock.uptimeMillis();
+
+                    final int timedOut = mUds.checkTimeouts(now);
+                    if (timedOut > 0) {
+                        Log.w(TAG, "AdapterSession.mUdsKeepalive : no response to " + timedOut + " UDS request(s), bus= " + mNumber);
+                    }
+
+                    //any command would end monitoring, so while monitoring the sessions are left to lapse
+                    if (!mElmMonitoring) {
+                        final boolean busy = mELMCommandQueueThread != null && !mELMCommandQueueThread.isEmpty();
+
+                        final int due = mUds.getTesterPresentDue(now, busy, mUdsDue);
+                        for (int i = 0; i < due; i++) {
+                            elmQueueCommand(UdsSessionManager.TESTER_PRESENT, mUdsDue[i], ElmCommandQueue.Priority.CRITICAL);
+                        }
+                    }
+
+                    mHandler.postDelayed(this, UDS_TICK_TIME);
+                }
+            }
+        };
+
+        /**
+         * reads the VIN, then the supported PIDs unless remembered for this vehicle and interface device, then starts polling
+         */
+        private synchronized void obdDiscoveryStart() {
+            obdPollStop();
+
+            final String setting = getSetting("obd_poll", "").trim();
+            if (mReplaying || setting.equals("")) {
+                return;
+            }
+
+            try {
+                ObdPollPlan.build(setting, null, 1, 0);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "AdapterSession.obdDiscoveryStart() : invalid obd poll setting : " + e.getMessage());
+
+                setNoticeText(null, getString(R.string.msg_obd_poll_not_valid));
+                return;
+            }
+
+            if (mElmStartupCommands == null || !mElmStartupCommands.getResumeCommands().isEmpty()) {
+                //each request would end the monitoring
+                Log.w(TAG, "AdapterSession.obdDiscoveryStart() : not polling, the startup commands monitor, bus= " + mNumber);
+                return;
+            }
+
+            if (D) Log.d(TAG, "AdapterSession.obdDiscoveryStart() : bus= " + mNumber);
+
+            mObdVinReader = new ObdVinReader();
+            obdQueueDiscovery(ObdVinReader.COMMAND);
+        }
+
+        private synchronized void obdQueueDiscovery(final String command) {
+            mObdDiscoveryCommand = command;
+            elmQueueCommand(command, obdHeader(), ElmCommandQueue.Priority.BACKGROUND);
+        }
+
+        /**
+         * OBD requests must not go wherever the last ATSH (say a client's UDS request to 7E0) left the device, they carry this header so the queue puts it back
+         *
+         * @return  the header of the startup commands' own ATSH if they set one, otherwise the protocol's functional address (see ObdPollPlan.getFunctionalHeader()),
+         *          BusFrame.NO_ID if neither is known yet (the request then goes as the device is)
+         */
+        private int obdHeader() {
+            if (mObdHeader != BusFrame.NO_ID || mElmStartupCommands == null) {
+                return mObdHeader;
+            }
+
+            for (String command : mElmStartupCommands.getCommands()) {
+                final String normalized = ElmStartupCommands.normalize(command);
+                if (normalized.startsWith("ATSH")) {
+                    mObdHeader = elmParseHeader(normalized);
+                }
+            }
+
+            if (mObdHeader == BusFrame.NO_ID) {
+                //recorded by the startup commands, on the very first connect that may not have happened before the VIN request
+                final ElmAdapterState state = ElmAdapterState.parse(AppState.getString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, null));
+                mObdHeader = ObdPollPlan.getFunctionalHeader(state == null ? null : state.protocol);
+            }
+
+            return mObdHeader;
+        }
+
+        /**
+         * @param response  a line of the answer to mObdDiscoveryCommand
+         */
+        private synchronized void obdDiscoveryResponse(final String response, final boolean completed) {
+            if (mObdVinReader != null) {
+                mObdVinReader.onLine(response);
+            } else if (mObdPidSupport != null) {
+                mObdPidSupport.onLine(response);
+            }
 
-                if (state == BluetoothAdapter.STATE_OFF || state == BluetoothAdapter.STATE_TURNING_OFF) {
-                    btNotEnabled();
-                } else if (state == BluetoothAdapter.STATE_ON) {
-                    CBIServiceMain.this.start();
+            if (!completed) {
+                return;
+            }
+
+            mObdDiscoveryAnswering = false;
+            mObdDiscoveryCommand = null;
+
+            if (mObdVinReader != null) {
+                final String vin = mObdVinReader.getVin();
+                mObdVinReader = null;
+                obdVinDone(vin);
+            } else if (mObdPidSupport != null) {
+                mObdPidSupport.onComplete();
+                if (mObdPidSupport.isDone()) {
+                    obdPidSupportDone();
+                } else {
+                    obdQueueDiscovery(mObdPidSupport.getNextCommand());
                 }
             }
         }
-    };
-
-    private class BTConnectThread extends Thread {
-        private volatile boolean mmCancelling;
-        private volatile BluetoothSocket mmSocket;
-        private volatile BluetoothDevice mmDevice;
 
-        public BTConnectThread(final BluetoothDevice device) {
-            if (D) Log.d(TAG, "BTConnectThread.BTConnectThread()");
+        private synchronized void obdVinDone(final String vin) {
+            if (D) Log.d(TAG, "AdapterSession.obdVinDone() : bus= " + mNumber + " vin= " + vin);
 
-            mmDevice = device;
-            BluetoothSocket tmpSocket = null;
+            mObdVin = vin;
 
-            try {
-                if (mmDevice == null || mmDevice.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    btNotPaired();
+            if (vin != null) {
+                final ObdPidSupport cached = ObdPidSupport.parse(AppState.getString(getApplicationContext(), R.string.app_state_s_pid_support, mAdapterKey + "_" + vin, null));
+                if (cached != null) {
+                    obdPollStart(cached);
                     return;
                 }
+            }
+
+            mObdPidSupport = new ObdPidSupport();
+            obdQueueDiscovery(mObdPidSupport.getNextCommand());
+        }
 
-                /*
-                //for some OBD2 dongles you need to specify a "channel"
-                //the Android public API for a BluetoothDevice doesn't currently expose a socket creation method with that capability
+        private synchronized void obdPidSupportDone() {
+            final ObdPidSupport support = mObdPidSupport;
+            mObdPidSupport = null;
 
-                //so using createRfcommSocketToServiceRecord() with the standard SPP UUID does not work:
-                UUID uuidSPP = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-                tmpSocket = mmDevice.createRfcommSocketToServiceRecord(uuidSPP);
+            if (D) Log.d(TAG, "AdapterSession.obdPidSupportDone() : bus= " + mNumber + " support= " + support.serialize());
 
-                //nor even trying each of the devices advertised UUIDs
-                for (ParcelUuid uuid : device.getUuids()) {
-                    tmpSocket = mmDevice.createRfcommSocketToServiceRecord(uuid.getUuid());
-                    sleep(3000);
-                    if (tmpSocket.isConnected()) break;
-                }
+            if (!support.hasAnswers()) {
+                //no answer at all (the ignition is off, etc.), poll everything rather than nothing and try again next connect
+                Log.w(TAG, "AdapterSession.obdPidSupportDone() : no answer to the supported PIDs request, bus= " + mNumber);
 
-                //instead we use reflection to access the hidden public method createRfcommSocket()
-                //channel 1 seems pretty universal with these type of devices
+                obdPollStart(null);
+                return;
+            }
 
-                //todo: should we try the documented methods for a BT socket first and then only resort to reflection as a backup?
-                */
-                final Method m = mmDevice.getClass().getMethod("createRfcommSocket", new Class[] {int.class});
-                tmpSocket = (BluetoothSocket) m.invoke(mmDevice, 1);
-            } catch (Exception e) {
-                Log.w(TAG, "BTConnectThread.BTConnectThread() : failed to establish socket : exception= " + e.getMessage(), e);
+            if (mObdVin != null) {
+                AppState.setString(getApplicationContext(), R.string.app_state_s_pid_support, mAdapterKey + "_" + mObdVin, support.serialize());
             }
 
-            mmSocket = tmpSocket;
+            obdPollStart(support);
         }
 
-        @Override
-        public void run() {
-            if (D) Log.d(TAG, "BTConnectThread.run()");
+        /**
+         * @param support  the vehicle's supported PIDs, null if not known
+         */
+        private synchronized void obdPollStart(final ObdPidSupport support) {
+            //the protocol decides how many PIDs fit a request, the startup commands have recorded it by now
+            final ElmAdapterState state = ElmAdapterState.parse(AppState.getString(getApplicationContext(), R.string.app_state_s_adapter_state, mAdapterKey, null));
+            final int maxPids = ObdPollPlan.getMaxPidsPerRequest(state == null ? null : state.protocol);
 
-            if (mmCancelling) {
+            mObdPollPlan = ObdPollPlan.build(getSetting("obd_poll", ""), support, maxPids, mClock.uptimeMillis());
+            if (mObdPollPlan == null) {
                 return;
             }
 
-            try {
-                //doing this BEFORE the connect attempt should ensure that regardless of how we got here we don't try to re-connect too fast which can give the exception "RFCOMM_CreateConnection - already opened state:2, RFC state:4, MCB state:5"
-                //we were only doing this in the catch below before the call to btConnectionFailed()
-                SystemClock.sleep(CBIServiceMain.BT_CONNECTION_RETRY_WAIT);
+            if (D) Log.d(TAG, "AdapterSession.obdPollStart() : bus= " + mNumber + " plan= " + mObdPollPlan + " dropped= " + mObdPollPlan.getDropped());
 
-                mmSocket.connect();
+            mHandler.removeCallbacks(mObdPoller);
+            mHandler.post(mObdPoller);
+        }
 
-                CBIServiceMain.this.btConnected(mmSocket, mmDevice);
-            } catch (Exception e) {
-                Log.w(TAG, "BTConnectThread.run() : failed to connect : exception= " + e.getMessage(), e);
+        private synchronized void obdPollStop() {
+            mHandler.removeCallbacks(mObdPoller);
 
-                if (mmSocket != null && mmSocket.isConnected()) {
-                    try {
-                        mmSocket.close();
-                    } catch (Exception e2) {
-                        Log.w(TAG, "BTConnectThread.run() : failed to close socket after connection failure : exception= " + e2.getMessage(), e2);
+            mObdPollPlan = null;
+            mObdVinReader = null;
+            mObdPidSupport = null;
+            mObdVin = null;
+            mObdDiscoveryCommand = null;
+            mObdDiscoveryAnswering = false;
+            mObdHeader = BusFrame.NO_ID;
+        }
+
+        /**
+         * queues the poll request most overdue whenever the device is idle with nothing else queued, so polling never holds up anything else
+         * also posted on every prompt
+         */
+        private final Runnable mObdPoller = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AdapterSession.this) {
+                    if (mCancelled || !isBTConnected() || mObdPollPlan == null) {
+                        return;
                     }
+
+                    final long now = mClock.uptimeMillis();
+
+                    final boolean busy = mELMCommandQueueThread != null && !mELMCommandQueueThread.isEmpty();
+                    if (!mElmMonitoring && !busy && mBTState == BTState.IDLE) {
+                        elmQueueCommand(mObdPollPlan.next(now), obdHeader(), ElmCommandQueue.Priority.BACKGROUND);
+                    }
+
+                    mHandler.removeCallbacks(this);
+                    mHandler.postDelayed(this, Math.max(ObdPollPlan.MIN_INTERVAL, mObdPollPlan.getNextDue() - now));
                 }
+            }
+        };
+
+        private synchronized void elmInitComplete() {
+            if (D) Log.d(TAG, "AdapterSession.elmInitComplete()");
 
-                CBIServiceMain.this.btConnectionFailed();
+            //the last startup command is out, the monitors are live
+            if (mAwaitingFirstPrompt) {
+                mAwaitingFirstPrompt = false;
+                mConnectionTimings.mark(ConnectionTimings.Phase.FIRST_PROMPT, mClock.uptimeMillis());
             }
-        }
+            mConnectionTimings.mark(ConnectionTimings.Phase.INIT_COMPLETE, mClock.uptimeMillis());
 
-        public void cancel() {
-            if (D) Log.d(TAG, "BTConnectThread.cancel()");
+            mReconnectPolicy.reset();
 
-            mmCancelling = true;
+            rxWatchdogStart();
+            udsKeepaliveStart();
+            obdDiscoveryStart();
+        }
 
-            if (mmSocket != null && mmSocket.isConnected()) {
-                try {
-                    mmSocket.close();
-                } catch (Exception e) {
-                    Log.w(TAG, "BTConnectThread.cancel() : failed to close socket : exception= " + e.getMessage(), e);
-                }
+        private synchronized void rxWatchdogStart() {
+            if (mRxWatchdog == null || mReplaying) {
+                return;
             }
-        }
-    }
 
-    private class BTIOThread extends Thread {
-        private volatile boolean mmCancelling;
-        private volatile BluetoothSocket mmSocket;
-        private volatile InputStream mmInStream;
-        private volatile OutputStream mmOutStream;
+            if (mElmStartupCommands == null || mElmStartupCommands.getResumeCommands().isEmpty()) {
+                //polling only, nothing is received between requests and there is no monitor to reissue
+                if (D) Log.d(TAG, "AdapterSession.rxWatchdogStart() : not watching, the startup commands do not monitor, bus= " + mNumber);
+                return;
+            }
 
-        public BTIOThread(final BluetoothSocket socket) {
-            if (D) Log.d(TAG, "BTIOThread.BTIOThread()");
+            if (D) Log.d(TAG, "AdapterSession.rxWatchdogStart()");
 
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+            //a no-op if a recovery is already underway (the startup commands were re-run by the watchdog itself)
+            mRxWatchdog.arm(mClock.uptimeMillis());
 
-            try {
-                tmpIn = mmSocket.getInputStream();
-                tmpOut = mmSocket.getOutputStream();
-            } catch (Exception e) {
-                Log.w(TAG, "BTIOThread.BTIOThread() : failed to obtain io streams : exception= " + e.getMessage(), e);
+            mHandler.removeCallbacks(mRxWatchdogChecker);
+            mHandler.postDelayed(mRxWatchdogChecker, RX_WATCHDOG_TICK_TIME);
+        }
+
+        private synchronized void rxWatchdogStop() {
+            if (mRxWatchdog != null) {
+                mRxWatchdog.disarm();
             }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
+            mHandler.removeCallbacks(mRxWatchdogChecker);
         }
 
+        private final Runnable mRxWatchdogChecker = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (AdapterSession.this) {
+                    final RxWatchdog watchdog = mRxWatchdog;
+                    if (watchdog == null || !watchdog.isArmed()) {
+                        return;
+                    }
 
-        @Override
-        public void run() {
-            if (D) Log.d(TAG, "BTIOThread.run()");
-
-            byte[] buffer = new byte[1024];
-            int length;
+                    final RxWatchdog.Stage stage = watchdog.check(mClock.uptimeMillis());
+                    if (stage != RxWatchdog.Stage.NONE) {
+                        Log.w(TAG, "AdapterSession.mRxWatchdogChecker : no data from the interface device, bus= " + mNumber + " recovery stage= " + stage);
+                    }
 
-            while (!mmCancelling && mmInStream != null) {
-                try {
-                    //note: only performing the read if mmInStream.available() > 0 did NOT work reliably - long running RX operations would start returning 0 constantly after about a minute
-                    length = mmInStream.read(buffer);
-                    CBIServiceMain.this.btReceivedData(buffer.clone(), length);
-                } catch (Exception e) {
-                    Log.w(TAG, "BTIOThread.run() : exception while reading : exception= " + e.getMessage(), e);
+                    switch (stage) {
+                        case REISSUE_MONITOR:
+                            elmReissueMonitor();
+                            break;
+                        case WARM_RESET:
+                            elmWarmReset();
+                            break;
+                        case RECONNECT:
+                            btConnectionLost();
+                            return;
+                    }
 
-                    CBIServiceMain.this.btConnectionLost();
-                    return;
+                    mHandler.postDelayed(this, RX_WATCHDOG_TICK_TIME);
                 }
             }
+        };
 
-            if (!mmCancelling) {
-                Log.w(TAG, "BTIOThread.run() : lost input stream");
+        private synchronized void elmReissueMonitor() {
+            if (D) Log.d(TAG, "AdapterSession.elmReissueMonitor()");
+
+            if (mElmStartupCommands == null) {
+                return;
+            }
 
-                CBIServiceMain.this.btConnectionLost();
+            elmDestroyCommandQueue();
+            btWriteBreak();
+
+            mInitCommandsLeft = 0;
+            for (String command : mElmStartupCommands.getResumeCommands()) {
+                elmQueueCommand(command);
             }
         }
 
-        public void write(final byte[] buffer) {
-            if (D) Log.d(TAG, "BTIOThread.write()");
+        private synchronized void elmWarmReset() {
+            if (D) Log.d(TAG, "AdapterSession.elmWarmReset()");
 
-            if (mmCancelling) {
+            if (mElmStartupCommands == null) {
                 return;
             }
 
-            try {
-                mmOutStream.write(buffer);
-                mmOutStream.flush();
-            } catch (Exception e) {
-                Log.w(TAG, "BTIOThread.write() : exception while writing : exception= " + e.getMessage(), e);
+            elmDestroyCommandQueue();
+            btWriteBreak();
+
+            //the full startup, re-recording the adapter state as it goes
+            mInitCommandsLeft = 0;
+            mElmAdapterProbe = new ElmAdapterProbe();
+            mElmAdapterProbeVerifying = false;
+
+            final List<String> commands = mElmStartupCommands.getFullCommands(ElmAdapterProbe.COMMANDS);
+            if (ElmStartupCommands.classify(commands.get(0)) != ElmStartupCommands.Kind.RESET) {
+                commands.add(0, "ATWS");
             }
+
+            elmQueueStartupCommands(commands);
         }
 
-        public void cancel() {
-            if (D) Log.d(TAG, "BTIOThread.cancel()");
+        private synchronized void elmDestroyCommandQueue() {
+            if (D) Log.d(TAG, "AdapterSession.elmDestroyCommandQueue()");
 
-            mmCancelling = true;
+            if (mELMCommandQueueThread != null) {
+                mELMCommandQueueThread.cancel();
+                mELMCommandQueueThread = null;
+            }
+        }
 
-            if (mmSocket != null && mmSocket.isConnected()) {
-                try {
-                    mmSocket.close();
-                } catch (Exception e) {
-                    Log.w(TAG, "BTIOThread.cancel() : failed to close socket : exception= " + e.getMessage(), e);
+        private synchronized void elmBufferData(final String data) {
+            if (DD) Log.d(TAG, "AdapterSession.elmBufferData() : data= " + data);
+
+            if (mELMResponseFramer.append(data, mELMResponseHandler)) {
+                //the data was a clean end to a response (terminator with no trailing data)
+                mBTState = BTState.IDLE;
+
+                //wakes the command queue
+                notifyAll();
+
+                if (mObdPollPlan != null) {
+                    mHandler.post(mObdPoller);
+                }
+
+                if (mAwaitingFirstPrompt) {
+                    mAwaitingFirstPrompt = false;
+                    mConnectionTimings.mark(ConnectionTimings.Phase.FIRST_PROMPT, mClock.uptimeMillis());
                 }
             }
         }
-    }
 
-    private void elmBadConfig(final String noticeErrorText) {
-        if (D) Log.d(TAG, "elmBadConfig()");
+        private final ElmResponseFramer.ResponseHandler mELMResponseHandler = new ElmResponseFramer.ResponseHandler() {
+            @Override
+            public void onResponse(final String response, final boolean completed) {
+                AdapterSession.this.elmParseResponse(response, completed);
+            }
+        };
+
+        private synchronized void elmParseResponse(final String response, final boolean completed) {
+            if (D) Log.d(TAG, "AdapterSession.elmParseResponse() : bus= " + mNumber + " response= " + response + " completed= " + completed);
 
-        setNotificationText(getString(R.string.msg_stopped), noticeErrorText);
-        stop();
-    }
+            BusDataType messageType = BusDataType.RX;
 
-    private synchronized void elmInit() {
-        if (D) Log.d(TAG, "elmInit()");
+            /*
+            FYI: here is where you would handle specific bus messages directly if you didn't need the BusMessageProcessor system
+            */
 
-        /*
-        FYI: you don't have to make this call to setup the processors if you don't need handle repeating messages (to skip bounces, identify short/long/double-press type scenarios, etc.)
-        instead you could just setup a case statement in the elmParseResponse() method to respond to messages as they come in
-        */
-        elmInitBusMsgProcessors();
+            if (mElmAdapterProbe != null && mElmAdapterProbe.onResponse(response, completed) && mElmAdapterProbe.isDone()) {
+                elmAdapterProbeDone();
+            }
 
-        elmInitStartupCommands();
-    }
+            if (response.contains(ELM_RESPONSE_BUFFER_FULL)) {
+                mBusStatistics.countBufferFull();
+            } else if (response.contains(ELM_RESPONSE_CAN_ERROR)) {
+                mBusStatistics.countCanError();
+            }
 
-    private synchronized void elmInitBusMsgProcessors() {
-        if (D) Log.d(TAG, "elmInitBusMsgProcessors()");
+            BusMessageProcessor processor = mBusMsgProcessors == null ? null : mBusMsgProcessors.get(response);
+            if (processor != null) {
+                messageType = BusDataType.RX_MONITORED;
+                processor.logEvent();
+            }
 
-        //todo: the way we are storing these preferences is a quick hack, we need a custom preference screen to configure any number of these
+            //alert any bound clients of this RX
+            BusData data = new BusData(mNumber, response, messageType, completed, mClock.uptimeMillis());
 
-        mBusMsgProcessors = new HashMap<String, BusMessageProcessor>();
+            final boolean isFrame = mRxFrame.parse(response);
 
-        final Context appContext = getApplicationContext();
+            if (mElmTimingKey != BusFrame.NO_ID) {
+                elmTimeResponse(response, isFrame, completed, data.time);
+            }
 
-        BusMessageProcessor processor;
-        String monitorSetting;
-        String[] monitorArgs;
+            if (mObdDiscoveryAnswering) {
+                obdDiscoveryResponse(response, completed);
+            }
 
-        String msg;
-        boolean silenceErrors;
-        long bounceTime;
-        long shortTime;
-        long longTime;
-        long longWatchTime;
-        String shortAction;
-        String longAction;
+            if (mElmResponseCache != null) {
+                mElmResponseCache.onResponse(response, completed);
+            }
 
-        for (int m = 1; m <= 10; m++) {
-            try {
-                monitorSetting = mSettings.getString("elm_monitor" + m, "");
-                if (!monitorSetting.equals("")) {
-                    monitorArgs = monitorSetting.split("\\|");
-
-                    msg = monitorArgs[0].trim();
-                    silenceErrors = Boolean.parseBoolean(monitorArgs[1].trim());
-                    bounceTime = Long.parseLong(monitorArgs[2].trim(), 10);
-                    shortTime = Long.parseLong(monitorArgs[3].trim(), 10);
-                    longTime = Long.parseLong(monitorArgs[4].trim(), 10);
-                    longWatchTime = Long.parseLong(monitorArgs[5].trim(), 10);
-                    shortAction = monitorArgs[6].trim();
-                    longAction = monitorArgs[7].trim();
-
-                    processor = new BusMessageProcessor(appContext, msg, silenceErrors, bounceTime, shortTime, longTime, longWatchTime, shortAction, longAction);
-                    processor.start();
-                    mBusMsgProcessors.put(msg, processor);
+            if (isFrame) {
+                if (mElmMonitoring && mRxWatchdog != null) {
+                    mRxWatchdog.onFrame(data.time);
                 }
-            } catch (Exception e) {
-                Log.w(TAG, "elmInit() : exception while setting up data processors : monitor #" + m + " : exception= " + e.getMessage(), e);
 
-                elmBadConfig(getString(R.string.msg_bus_monitors_not_configured));
-                return;
+                mBusStatistics.update(data.time, mRxFrame);
+
+                busPublish(data, mRxFrame);
+
+                if (mIsoTpEnabled || !mElmMonitoring) {
+                    elmReassemble(data.time);
+                }
+            } else {
+                busPublish(data, null);
             }
         }
 
-        if (mBusMsgProcessors == null || mBusMsgProcessors.size() <= 0) {
-            Log.w(TAG, "elmInit() : no data processors");
+        /**
+         * feeds the frame just parsed into mRxFrame to the ISO-TP reassembler, a finished message goes to mUds and (if enabled) to the monitors and clients as a line of its own
+         */
+        private synchronized void elmReassemble(final long time) {
+            switch (mIsoTp.process(time, mRxFrame)) {
+                case SINGLE:
+                    elmUdsResponse(time);
+                    break;
+
+                case FIRST:
+                    //monitoring, the tester that asked is the one to answer
+                    if (mIsoTpEnabled && mElmRawCan && !mElmMonitoring) {
+                        elmQueueFlowControl(IsoTpReassembler.getFlowControlId(mRxFrame.id));
+                    }
+                    break;
 
-            elmBadConfig(getString(R.string.msg_bus_monitors_not_configured));
-        }
-    }
+                case COMPLETE:
+                    elmUdsResponse(time);
 
-    private synchronized void elmInitStartupCommands() {
-        if (D) Log.d(TAG, "elmInitStartupCommands()");
+                    if (!mIsoTpEnabled) {
+                        break;
+                    }
 
-        final String prefElmCommands = mSettings.getString("elm_commands", "");
-        if (prefElmCommands.equals("")) {
-            Log.w(TAG, "elmInit() : no startup commands");
+                    final String message = mIsoTp.format();
+                    if (D) Log.d(TAG, "AdapterSession.elmReassemble() : bus= " + mNumber + " message= " + message);
 
-            elmBadConfig(getString(R.string.msg_bus_commands_not_configured));
-            return;
-        }
+                    BusDataType messageType = BusDataType.RX;
 
-        final String[] commands = prefElmCommands.split("; *");
-        if (commands.length <= 0) {
-            Log.w(TAG, "elmInit() : invalid startup commands");
+                    final BusMessageProcessor processor = mBusMsgProcessors == null ? null : mBusMsgProcessors.get(message);
+                    if (processor != null) {
+                        messageType = BusDataType.RX_MONITORED;
+                        processor.logEvent();
+                    }
 
-            elmBadConfig(getString(R.string.msg_bus_commands_not_configured));
-            return;
-        }
+                    busPublish(new BusData(mNumber, message, messageType, true, time), null);
+                    break;
 
-        elmDestroyCommandQueue();
-        btWriteBreak();
+                case ABORTED:
+                    Log.w(TAG, "AdapterSession.elmReassemble() : multi-frame message from " + Integer.toHexString(mRxFrame.id) + " out of sequence, aborted= " + mIsoTp.getAborted());
+                    break;
+            }
+        }
 
-        for (String command : commands) {
-            elmQueueCommand(command.trim());
+        /**
+         * matches the message just made ready by mIsoTp to the UDS request it answers
+         */
+        private void elmUdsResponse(final long time) {
+            switch (mUds.onResponse(time, mIsoTp.getId(), mIsoTp.getData(), mIsoTp.getLength())) {
+                case POSITIVE:
+                    if (D) Log.d(TAG, "AdapterSession.elmUdsResponse() : bus= " + mNumber + " ecu= " + Integer.toHexString(mUds.getLastEcu()) + " service= " + Integer.toHexString(mUds.getLastService()) + " latency= " + mUds.getLastLatency());
+                    break;
+
+                case NEGATIVE:
+                    Log.w(TAG, "AdapterSession.elmUdsResponse() : negative response, bus= " + mNumber + " ecu= " + Integer.toHexString(mUds.getLastEcu()) + " service= " + Integer.toHexString(mUds.getLastService()) + " nrc= " + Integer.toHexString(mUds.getLastNrc()));
+                    break;
+            }
         }
     }
 
-    private synchronized void elmQueueCommand(String command) {
-        if (D) Log.d(TAG, "elmQueueCommand() : command= " + command);
+    private class BTConnectThread extends Thread {
+        private volatile boolean mmCancelling;
+        private final AdapterSession mmSession;
+        private final BusTransport mmTransport;
+        private final long mmDelay;
+        private final Object mmWaitLock = new Object();
+
+        /**
+         * @param delay  milliseconds to wait before connecting, cut short by cancel()
+         */
+        public BTConnectThread(final AdapterSession session, final BusTransport transport, final long delay) {
+            if (D) Log.d(TAG, "BTConnectThread.BTConnectThread() : delay= " + delay);
+
+            mmSession = session;
+            mmTransport = transport;
+            mmDelay = delay;
+        }
+
+        @Override
+        public void run() {
+            if (D) Log.d(TAG, "BTConnectThread.run()");
 
-        if (command == null || command.equals("")) {
-            return;
+            if (mmCancelling) {
+                return;
+            }
+
+            final ConnectionTimings timings = mmSession.mConnectionTimings;
+
+            try {
+                //this used to be a fixed 2 second wait before every attempt, to avoid re-connecting too fast which can give the exception "RFCOMM_CreateConnection - already opened state:2, RFC state:4, MCB state:5"
+                //now the first attempt after a drop goes straight away and only a failed one backs off, which covers that case without slowing down every recovery
+                if (mmDelay > 0) {
+                    backoff();
+                }
+                timings.mark(ConnectionTimings.Phase.WAIT, mClock.uptimeMillis());
+
+                if (mmCancelling) {
+                    return;
+                }
+
+                mmTransport.create();
+                timings.mark(ConnectionTimings.Phase.SOCKET_CREATE, mClock.uptimeMillis());
+
+                mmTransport.connect();
+                timings.mark(ConnectionTimings.Phase.CONNECT, mClock.uptimeMillis());
+
+                mmSession.btConnected(mmTransport);
+            } catch (InterruptedException e) {
+                //nothing was opened yet
+            } catch (Exception e) {
+                Log.w(TAG, "BTConnectThread.run() : failed to connect : exception= " + e.getMessage(), e);
+
+                mmTransport.close();
+
+                if (!mmCancelling) {
+                    mmSession.btConnectionFailed();
+                }
+            }
         }
 
-        if (mELMCommandQueueThread == null) {
-            mELMCommandQueueThread = new ELMCommandQueueThread();
-            mELMCommandQueueThread.start();
+        /**
+         * waits out mmDelay unless cancelled first
+         * not mClock.sleep(), that can not be cut short and a backoff can be up to ReconnectPolicy.DEFAULT_MAX_DELAY long
+         */
+        private void backoff() throws InterruptedException {
+            final long end = SystemClock.uptimeMillis() + mmDelay;
+
+            synchronized (mmWaitLock) {
+                long left;
+                while (!mmCancelling && (left = end - SystemClock.uptimeMillis()) > 0) {
+                    mmWaitLock.wait(left);
+                }
+            }
         }
 
-        mELMCommandQueueThread.add(command);
-    }
+        public void cancel() {
+            if (D) Log.d(TAG, "BTConnectThread.cancel()");
 
-    private synchronized void elmSendCommand(String command) {
-        if (D) Log.d(TAG, "elmSendCommand() : command= " + command);
+            mmCancelling = true;
 
-        if (command == null || command.equals("")) {
-            return;
+            synchronized (mmWaitLock) {
+                mmWaitLock.notifyAll();
+            }
+
+            mmTransport.close();
         }
+    }
 
-        if (!isBTConnected()) {
-            Log.w(TAG, "elmSendCommand() : failed to send command (bluetooth not connected)");
+    private class BTIOThread extends Thread {
+        private volatile boolean mmCancelling;
+        private final AdapterSession mmSession;
+        private final BusTransport mmTransport;
 
-            btConnectionLost();
-            return;
+        public BTIOThread(final AdapterSession session, final BusTransport transport) {
+            if (D) Log.d(TAG, "BTIOThread.BTIOThread()");
+
+            mmSession = session;
+            mmTransport = transport;
         }
 
-        //alert any bound clients of this TX
-        BusData data = new BusData(command, BusDataType.TX, false);
-        BoundNotifyBusData(data);
 
-        if (mBTState != BTState.IDLE) {
-            //we are in the middle of something (like a long RX)
-            btWriteBreak();
-        }
+        @Override
+        public void run() {
+            if (D) Log.d(TAG, "BTIOThread.run()");
 
-        command += ELM_COMMAND_TERMINATOR;
-        btWriteData(command.getBytes());
-    }
+            byte[] buffer = new byte[1024];
+            int length;
+
+            while (!mmCancelling) {
+                try {
+                    length = mmTransport.read(buffer);
+                    if (length < 0) {
+                        break;
+                    }
+
+                    mmSession.btReceivedData(buffer.clone(), length);
+                } catch (Exception e) {
+                    if (mmCancelling) {
+                        return;
+                    }
+
+                    Log.w(TAG, "BTIOThread.run() : exception while reading : exception= " + e.getMessage(), e);
+
+                    mmSession.btConnectionLost();
+                    return;
+                }
+            }
 
-    private void elmDestroyCommandQueue() {
-        if (D) Log.d(TAG, "elmDestroyCommandQueue()");
+            if (!mmCancelling) {
+                Log.w(TAG, "BTIOThread.run() : lost input stream");
 
-        if (mELMCommandQueueThread != null) {
-            mELMCommandQueueThread.cancel();
-            mELMCommandQueueThread = null;
+                mmSession.btConnectionLost();
+            }
         }
-    }
 
-    private synchronized void elmBufferData(final String data) {
-        if (DD) Log.d(TAG, "elmBufferData() : data= " + data);
+        public void write(final byte[] buffer) {
+            if (D) Log.d(TAG, "BTIOThread.write()");
+
+            if (mmCancelling) {
+                return;
+            }
 
-        if (mELMResponseBuffer == null) {
-            mELMResponseBuffer = "";
+            try {
+                mmTransport.write(buffer);
+            } catch (Exception e) {
+                Log.w(TAG, "BTIOThread.write() : exception while writing : exception= " + e.getMessage(), e);
+            }
         }
 
-        final Pattern p = Pattern.compile(ELM_RESPONSE_SEPARATOR_REGEX);
-        final Matcher m = p.matcher(data);
+        public void cancel() {
+            if (D) Log.d(TAG, "BTIOThread.cancel()");
 
-        if (m.find()) {
-            //the data contained a separator or terminator
-            final String part1 = data.substring(0, m.start());
-            mELMResponseBuffer += part1;
-            boolean completed = m.group().contains(ELM_RESPONSE_TERMINATOR);
-            elmParseResponse(mELMResponseBuffer, completed);
-            mELMResponseBuffer = "";
+            mmCancelling = true;
 
-            final String part2 = data.substring(m.end());
+            mmTransport.close();
+        }
+    }
 
-            if (completed && part2.equals("")) {
-                //the data was a clean end to a response (terminator with no trailing data)
-                mBTState = BTState.IDLE;
-            } else if (!part2.equals("")) {
-                //the data continued after the separator or terminator
-                elmBufferData(part2);
+    private class ReplayThread extends Thread {
+        private volatile boolean mmCancelling;
+        private final AdapterSession mmSession;
+        private final BusRxPlayer mmPlayer;
+        private final double mmSpeed;
+        private final Clock mmRealClock = AndroidClock.INSTANCE;
+        private final ManualClock mmReplayClock;
+        private long mmNextTick;
+
+        public ReplayThread(final AdapterSession session, final BusRxPlayer player, final double speed) {
+            if (D) Log.d(TAG, "ReplayThread.ReplayThread()");
+
+            mmSession = session;
+            mmPlayer = player;
+            mmSpeed = speed;
+
+            //set by replayStart() when replaying as fast as possible
+            mmReplayClock = (mClock instanceof ManualClock) ? (ManualClock) mClock : null;
+            if (mmReplayClock != null) {
+                mmNextTick = mmReplayClock.uptimeMillis() + BusMessageProcessor.PROCESSOR_TICK_TIME;
             }
-        } else {
-            //the response is not yet complete so keep appending data to the buffer
-            mELMResponseBuffer += data;
         }
-    }
 
-    private synchronized void elmParseResponse(String response, final boolean completed) {
-        response = response.replaceAll("[\\r\\n]", "");
-        response = response.trim();
+        @Override
+        public void run() {
+            if (D) Log.d(TAG, "ReplayThread.run()");
+
+            //the elapsed time reported is always real time
+            final long started = mmRealClock.uptimeMillis();
+            long firstTime = -1;
+
+            try {
+                while (!mmCancelling && mmPlayer.next()) {
+                    if (firstTime < 0) {
+                        firstTime = mmPlayer.getTime();
+                    }
+
+                    if (mmReplayClock != null) {
+                        advanceTo(mmPlayer.getTime());
+                    } else if (mmSpeed > 0) {
+                        //keep the recorded spacing between reads, scaled by the speed
+                        final long due = started + (long) ((mmPlayer.getTime() - firstTime) / mmSpeed);
+                        final long wait = due - mmRealClock.uptimeMillis();
+                        if (wait > 0) {
+                            mmRealClock.sleep(wait);
+                        }
+                    }
 
-        if (D) Log.d(TAG, "elmParseResponse() : response= " + response + " completed= " + completed);
+                    if (mmCancelling) {
+                        break;
+                    }
 
-        BusDataType messageType = BusDataType.RX;
+                    //exactly the path a read from the interface device takes
+                    mmSession.btReceivedData(mmPlayer.getChunk(), mmPlayer.getLength());
+                }
 
-        /*
-        FYI: here is where you would handle specific bus messages directly if you didn't need the BusMessageProcessor system
-        */
+                if (mmReplayClock != null && !mmCancelling) {
+                    advanceTo(mmReplayClock.uptimeMillis() + REPLAY_SETTLE_TIME);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "ReplayThread.run() : exception while reading : exception= " + e.getMessage(), e);
+            } finally {
+                mmPlayer.close();
+            }
 
-        BusMessageProcessor processor = mBusMsgProcessors.get(response);
-        if (processor != null) {
-            messageType = BusDataType.RX_MONITORED;
-            processor.logEvent();
+            if (!mmCancelling) {
+                CBIServiceMain.this.replayFinished(this, mmPlayer, mmRealClock.uptimeMillis() - started);
+            }
         }
 
-        //alert any bound clients of this RX
-        BusData data = new BusData(response, messageType, completed);
-        BoundNotifyBusData(data);
+        /**
+         * moves the replay clock forward, ticking the processors at every PROCESSOR_TICK_TIME on the way just as their own threads would have
+         */
+        private void advanceTo(final long time) {
+            while (mmNextTick <= time && !mmCancelling) {
+                mmReplayClock.set(mmNextTick);
+                mmSession.elmTickBusMsgProcessors();
+                mmNextTick += BusMessageProcessor.PROCESSOR_TICK_TIME;
+            }
+
+            mmReplayClock.set(time);
+        }
+
+        public void cancel() {
+            if (D) Log.d(TAG, "ReplayThread.cancel()");
+
+            mmCancelling = true;
+            interrupt();
+        }
     }
 
     private class ELMCommandQueueThread extends Thread {
         private volatile boolean mmCancelling;
-        private volatile LinkedBlockingQueue<String> mmQueue;
+        private final AdapterSession mmSession;
+        private final ElmCommandQueue mmQueue;
 
-        public ELMCommandQueueThread() {
+        public ELMCommandQueueThread(final AdapterSession session) {
             if (D) Log.d(TAG, "ELMCommandQueueThread.ELMCommandQueueThread()");
 
-            mmQueue = new LinkedBlockingQueue<String>();
+            mmSession = session;
+            mmQueue = new ElmCommandQueue();
         }
 
         @Override
@@ -868,39 +2903,40 @@ public class CBIServiceMain extends Service {
             if (D) Log.d(TAG, "ELMCommandQueueThread.run()");
 
             try {
-                String command;
                 while (!mmCancelling) {
-                    if (mBTState != CBIServiceMain.BTState.IDLE) {
-                        //socket is busy with a TX or RX
-                        SystemClock.sleep(CBIServiceMain.ELM_COMMAND_QUEUE_BUSY_WAIT_TIME);
-                    } else {
-                        command = mmQueue.take();
-                        CBIServiceMain.this.elmSendCommand(command);
-                    }
+                    //waits for the prompt before sending, instead of polling for it
+                    mmSession.elmSendQueued(this, mmQueue.take());
                 }
+            } catch (InterruptedException e) {
+                //cancelled
             } catch (Exception e) {
                 Log.w(TAG, "ELMCommandQueueThread.run() : exception while processing queue : exception= " + e.getMessage(), e);
             }
         }
 
-        public void add(final String command) {
+        public boolean isEmpty() {
+            return mmQueue.isEmpty();
+        }
+
+        /**
+         * @param header  see ElmCommandQueue.add()
+         * @return  false if refused, the backlog is full
+         */
+        public boolean add(final String command, final int header, final ElmCommandQueue.Priority priority) {
             if (D) Log.d(TAG, "ELMCommandQueueThread.add() : command= " + command);
 
             if (mmCancelling) {
-                return;
+                return true;
             }
 
-            try {
-                mmQueue.put(command);
-            } catch (Exception e) {
-                Log.w(TAG, "ELMCommandQueueThread.add() : failed to add to queue : exception= " + e.getMessage(), e);
-            }
+            return mmQueue.add(command, header, priority);
         }
 
         public void cancel() {
-            if (D) Log.d(TAG, "ELMCommandQueueThread.cancel()");
+            if (D) Log.d(TAG, "ELMCommandQueueThread.cancel() : merged= " + mmQueue.getMerged() + " dropped= " + mmQueue.getDropped() + " refused= " + mmQueue.getRefused());
 
             mmCancelling = true;
+            interrupt();
         }
     }
 }
@@ -54,6 +54,28 @@ public class AppState {
         getPreferences(appContext).edit().putString(appContext.getString(keyResId), value).apply();
     }
 
+    /**
+     * like AppState.getString() for one of a family of items, such as one per device
+     *
+     * @param keySuffix  identifies the item within the family, appended to the key
+     */
+    public static String getString(final Context appContext, final int keyResId, final String keySuffix, final String defaultValue) {
+        if (DD) Log.d(TAG, "getPreferences()");
+
+        return getPreferences(appContext).getString(appContext.getString(keyResId) + "_" + keySuffix, defaultValue);
+    }
+
+    /**
+     * like AppState.setString() for one of a family of items, such as one per device
+     *
+     * @param keySuffix  identifies the item within the family, appended to the key
+     */
+    public static void setString(final Context appContext, final int keyResId, final String keySuffix, final String value) {
+        if (DD) Log.d(TAG, "getPreferences()");
+
+        getPreferences(appContext).edit().putString(appContext.getString(keyResId) + "_" + keySuffix, value).apply();
+    }
+
     /**
      * like AppState.getString() for Booleans
      */
@@ -0,0 +1,104 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * turning monitor action strings into BusActions, and picking the handler for one the way BusMessageProcessor.doAction() does
+ * compileAndDispatch is what every press cost before actions were compiled once up front, scores are actions/sec
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ActionBenchmark {
+    private static final String[] ACTIONS = {
+            "*VOLUME=UP",
+            "*VOLUME_HIDDEN=DOWN",
+            "*MEDIA_BUTTON=KEYCODE_MEDIA_NEXT",
+            "*MEDIA_BUTTON=KEYCODE_MEDIA_PLAY_PAUSE",
+            "*BUTTON_ROOT=KEYCODE_HOME",
+            "*INTENT=android.intent.action.VIEW**google.navigation:q=home",
+            "*LAST_APP",
+            "*TASKER=Next Track**from_bus**1",
+            "*ALERT=Door open",
+            "input keyevent 85"
+    };
+
+    private BusAction[] mCompiled;
+
+
+    @Setup
+    public void setup() {
+        mCompiled = new BusAction[ACTIONS.length];
+        for (int a = 0; a < ACTIONS.length; a++) {
+            mCompiled[a] = BusAction.compile(ACTIONS[a]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void compile(final Blackhole blackhole) {
+        for (String action : ACTIONS) {
+            blackhole.consume(BusAction.compile(action));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void dispatch(final Blackhole blackhole) {
+        for (BusAction action : mCompiled) {
+            dispatch(action, blackhole);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(10)
+    public void compileAndDispatch(final Blackhole blackhole) {
+        for (String action : ACTIONS) {
+            dispatch(BusAction.compile(action), blackhole);
+        }
+    }
+
+    private static void dispatch(final BusAction action, final Blackhole blackhole) {
+        //the same decisions doAction() makes before it calls into AndroidActions
+        switch (action.kind) {
+            case VOLUME:
+            case VOLUME_HIDDEN:
+                blackhole.consume(action.args[0].equals("UP"));
+                break;
+            case INTENT:
+                blackhole.consume(action.args.length == 2 ? action.args[1] : null);
+                break;
+            case TASKER:
+                blackhole.consume(action.args.length - 1);
+                break;
+            case LAST_APP:
+                blackhole.consume(action.kind);
+                break;
+            case COMMAND:
+                blackhole.consume(action.action);
+                break;
+            default:
+                blackhole.consume(action.args[0]);
+                break;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+
+/**
+ * synthetic but realistic ATMA monitor output for the benchmarks, always the same for the same parameters
+ * a set of IDs repeating at typical periods (10ms to 1s) with plausible payloads, split into reads the way bluetooth delivers them
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class AtmaStreams {
+    /**
+     * how the ELM327 prints the bus, see BusFrame.parseId()
+     */
+    public static enum HeaderMode {
+        J1850,              //ATH1 on a J1850 VPW bus: "3D 11 00 80 C8"
+        CAN11,              //ATH1 ATS1 on 500k CAN: "7E8 03 41 0C 1A 00 00 00"
+        CAN11_NO_SPACES,    //ATH1 ATS0: "7E803410C1A000000"
+        CAN29               //ATH1 ATS1 with 29bit IDs: "18DAF110 03 41 0C 1A 00 00 00"
+    }
+
+    /**
+     * how busy the bus is, which decides how many lines arrive per read
+     */
+    public static enum BusLoad {
+        LOW,    //a read per line, as on a quiet J1850 bus
+        HIGH    //reads of up to 1KB cutting lines anywhere, as when ATMA can barely keep up
+    }
+
+    public static final int DEFAULT_LINES = 20000;
+
+    private static final long SEED = 0x43424953L;
+
+    private static final int[] PERIODS = {10, 10, 20, 20, 20, 50, 50, 100, 100, 100, 100, 200, 500, 1000};
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+
+    private AtmaStreams() {}
+
+    /**
+     * @param mode  how the lines are printed
+     * @param count  number of lines
+     * @return  the lines, without line endings
+     */
+    public static String[] lines(final HeaderMode mode, final int count) {
+        final Random random = new Random(SEED + mode.ordinal());
+
+        final int idCount = (mode == HeaderMode.J1850) ? 24 : 60;
+        final int[] ids = new int[idCount];
+        final int[] periods = new int[idCount];
+        final long[] due = new long[idCount];
+        final byte[][] payloads = new byte[idCount][];
+
+        for (int i = 0; i < idCount; i++) {
+            ids[i] = randomId(mode, random);
+            periods[i] = PERIODS[random.nextInt(PERIODS.length)];
+            due[i] = random.nextInt(periods[i]);
+            payloads[i] = new byte[(mode == HeaderMode.J1850) ? 1 + random.nextInt(4) : 8];
+            random.nextBytes(payloads[i]);
+        }
+
+        final String[] lines = new String[count];
+        final StringBuilder line = new StringBuilder(64);
+
+        for (int l = 0; l < count; l++) {
+            //the next ID due, like a real bus each one repeats at its own period
+            int next = 0;
+            for (int i = 1; i < idCount; i++) {
+                if (due[i] < due[next]) {
+                    next = i;
+                }
+            }
+            due[next] += periods[next];
+
+            //signals change slowly, mostly only the last byte or two moves
+            final byte[] payload = payloads[next];
+            payload[payload.length - 1] += random.nextInt(3) - 1;
+
+            line.setLength(0);
+            appendLine(line, mode, ids[next], payload);
+            lines[l] = line.toString();
+        }
+
+        return lines;
+    }
+
+    /**
+     * @param lines  the lines from lines()
+     * @param load  how busy the bus is
+     * @return  the text as read from the socket, each line ends in CR as the ELM327 sends it (ATL0) and the last read ends with the > prompt
+     */
+    public static String[] reads(final String[] lines, final BusLoad load) {
+        final Random random = new Random(SEED + load.ordinal());
+
+        final StringBuilder all = new StringBuilder(lines.length * 32);
+        for (String line : lines) {
+            all.append(line).append('\r');
+
+            //the occasional overflow report when the device falls behind
+            if (load == BusLoad.HIGH && random.nextInt(5000) == 0) {
+                all.append("BUFFER FULL\r");
+            }
+        }
+        all.append("\r>");
+
+        final ArrayList<String> reads = new ArrayList<String>();
+
+        if (load == BusLoad.LOW) {
+            int start = 0;
+            for (int i = 0; i < all.length(); i++) {
+                if (all.charAt(i) == '\r') {
+                    reads.add(all.substring(start, i + 1));
+                    start = i + 1;
+                }
+            }
+            if (start < all.length()) {
+                reads.add(all.substring(start));
+            }
+        } else {
+            int start = 0;
+            while (start < all.length()) {
+                final int end = Math.min(all.length(), start + 64 + random.nextInt(960));
+                reads.add(all.substring(start, end));
+                start = end;
+            }
+        }
+
+        return reads.toArray(new String[reads.size()]);
+    }
+
+    private static int randomId(final HeaderMode mode, final Random random) {
+        switch (mode) {
+            case J1850:
+                //the priority/header byte
+                return 0x20 + random.nextInt(0xC0);
+            case CAN29:
+                return 0x18DA0000 | random.nextInt(0x10000);
+            default:
+                return random.nextInt(0x800);
+        }
+    }
+
+    private static void appendLine(final StringBuilder line, final HeaderMode mode, final int id, final byte[] payload) {
+        switch (mode) {
+            case J1850:
+                appendHex(line, id, 2);
+                break;
+            case CAN29:
+                appendHex(line, id, 8);
+                break;
+            default:
+                appendHex(line, id, 3);
+                break;
+        }
+
+        final boolean spaces = mode != HeaderMode.CAN11_NO_SPACES;
+        for (byte b : payload) {
+            if (spaces) {
+                line.append(' ');
+            }
+            appendHex(line, b & 0xFF, 2);
+        }
+    }
+
+    private static void appendHex(final StringBuilder line, final int value, final int digits) {
+        for (int d = digits - 1; d >= 0; d--) {
+            line.append(HEX_DIGITS[(value >>> (d * 4)) & 0xF]);
+        }
+    }
+}
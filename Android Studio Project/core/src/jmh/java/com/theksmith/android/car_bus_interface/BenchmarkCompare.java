@@ -0,0 +1,171 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+
+
+/**
+ * compares a JMH csv result file against the baseline and lists what got worse
+ * usage: BenchmarkCompare baseline.csv results.csv [threshold, default 0.10]
+ * exits with status 1 if any score (or allocation per op, or tail latency percentile) regressed by more than the threshold
+ * and by more than the two runs' 99.9% error intervals allow, a change the intervals cover is reported as noise and does not fail
+ * the tail latency percentiles come without an error interval, they only fail beyond twice the threshold
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BenchmarkCompare {
+    private static final double DEFAULT_THRESHOLD = 0.10;
+
+    //allocation scores below this many bytes per op are noise
+    private static final double MIN_ALLOCATION = 16;
+
+    private static final String PACKAGE_PREFIX = BenchmarkCompare.class.getPackage().getName() + ".";
+
+
+    private BenchmarkCompare() {}
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("usage: BenchmarkCompare baseline.csv results.csv [threshold]");
+            System.exit(2);
+        }
+
+        final double threshold = (args.length > 2) ? Double.parseDouble(args[2]) : DEFAULT_THRESHOLD;
+
+        final LinkedHashMap<String, String[]> baseline = read(args[0]);
+        final LinkedHashMap<String, String[]> results = read(args[1]);
+
+        int regressions = 0;
+
+        for (String key : results.keySet()) {
+            final String[] result = results.get(key);
+            final String[] base = baseline.get(key);
+
+            final double score = parse(result[0]);
+            final double error = parseError(result[1]);
+            final boolean hasError = !Double.isNaN(parse(result[1]));
+            final String unit = result[2];
+
+            if (base == null) {
+                System.out.println(String.format(Locale.US, "  new   %-100s %14.3f +- %-12.3f %s", key, score, error, unit));
+                continue;
+            }
+
+            final double baseScore = parse(base[0]);
+            final double baseError = parseError(base[1]);
+
+            //rates are better higher, times and bytes per op are better lower
+            final boolean lowerIsBetter = unit.endsWith("/op");
+            final double change = (baseScore != 0) ? (score - baseScore) / baseScore : 0;
+            final double worse = lowerIsBetter ? change : -change;
+
+            //only worse for sure if the error intervals of the two runs do not overlap
+            final boolean separated = lowerIsBetter ? (score - error > baseScore + baseError) : (score + error < baseScore - baseError);
+
+            boolean beyond = worse > threshold;
+            if (unit.equals("B/op") && Math.max(score, baseScore) < MIN_ALLOCATION) {
+                beyond = false;
+            }
+
+            final boolean regressed = beyond && separated && (hasError || worse > threshold * 2);
+            if (regressed) {
+                regressions++;
+            }
+
+            final String verdict = regressed ? "WORSE" : (beyond ? "noise" : "  ok ");
+            System.out.println(String.format(Locale.US, "%s %-100s %14.3f +- %-12.3f -> %14.3f +- %-12.3f %-8s %+7.1f%%", verdict, key, baseScore, baseError, score, error, unit, change * 100));
+        }
+
+        System.out.println(regressions + " regression(s) beyond " + (int) (threshold * 100) + "% and the error intervals");
+
+        if (regressions > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return  score, score error and unit of every row worth comparing, keyed by benchmark name, secondary metric and params
+     */
+    private static LinkedHashMap<String, String[]> read(final String file) throws IOException {
+        final LinkedHashMap<String, String[]> rows = new LinkedHashMap<String, String[]>();
+
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String[] header = null;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#") || line.trim().equals("")) {
+                    continue;
+                }
+
+                final String[] fields = split(line);
+                if (header == null) {
+                    header = fields;
+                    continue;
+                }
+
+                final String name = fields[0];
+                //the primary score, bytes allocated per op and the tail latency percentiles, the rest of the gc profiler output is too noisy
+                if (name.indexOf(':') >= 0 && !name.endsWith("gc.alloc.rate.norm") && !name.endsWith("p0.99") && !name.endsWith("p0.999")) {
+                    continue;
+                }
+
+                //params only some of the benchmarks have are left empty, which columns exist depends on what was run
+                final StringBuilder key = new StringBuilder(name.replace(PACKAGE_PREFIX, "").replace('\u00B7', ' '));
+                for (int f = 7; f < fields.length && f < header.length; f++) {
+                    if (!fields[f].equals("")) {
+                        key.append(' ').append(header[f].replace("Param: ", "")).append('=').append(fields[f]);
+                    }
+                }
+
+                rows.put(key.toString(), new String[] {fields[4], fields[5], fields[6]});
+            }
+        } finally {
+            in.close();
+        }
+
+        return rows;
+    }
+
+    private static String[] split(final String line) {
+        final ArrayList<String> fields = new ArrayList<String>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+
+        for (int i = 0; i < line.length(); i++) {
+            final char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+
+        return fields.toArray(new String[fields.size()]);
+    }
+
+    private static double parse(final String score) {
+        try {
+            return Double.parseDouble(score);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @return  the score error, 0 where JMH gives none (NaN, as for a percentile)
+     */
+    private static double parseError(final String error) {
+        final double value = parse(error);
+        return Double.isNaN(value) ? 0 : value;
+    }
+}
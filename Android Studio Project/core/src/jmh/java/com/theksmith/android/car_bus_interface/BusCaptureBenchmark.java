@@ -0,0 +1,115 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * sustained capture writing, the RX path offering frames to BusCaptureWriter as fast as its writer thread drains them into rotating files
+ * scores are frames/sec written to disk (offer() waits while the queue is full, so nothing is dropped and the writer thread sets the pace)
+ * the bytes per frame on disk and the write rate are printed after each iteration
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusCaptureBenchmark {
+    private static final int FRAMES = 4096;
+
+    @Param({"J1850", "CAN11", "CAN29"})
+    public AtmaStreams.HeaderMode header;
+
+    private BusFrame[] mFrames;
+    private long mTime;
+
+    private File mDirectory;
+    private BusCaptureWriter mWriter;
+    private long mIterationStart;
+
+
+    @Setup
+    public void setup() throws IOException {
+        final String[] lines = AtmaStreams.lines(header, FRAMES);
+
+        mFrames = new BusFrame[FRAMES];
+        for (int f = 0; f < FRAMES; f++) {
+            mFrames[f] = new BusFrame();
+            mFrames[f].parse(lines[f]);
+        }
+
+        mTime = 1000000L;
+
+        mDirectory = File.createTempFile("capture", "");
+        if (!mDirectory.delete() || !mDirectory.mkdir()) {
+            throw new IOException("BusCaptureBenchmark.setup() : unable to create " + mDirectory);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void startWriter() {
+        mWriter = new BusCaptureWriter(mDirectory, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES, 0, null);
+        mWriter.start();
+        mIterationStart = System.nanoTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void stopWriter() {
+        mWriter.stop();
+        final long nanos = System.nanoTime() - mIterationStart;
+
+        long bytes = 0;
+        int files = 0;
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(BusCaptureWriter.FILE_EXTENSION)) {
+                bytes += file.length();
+                files++;
+            }
+            file.delete();
+        }
+
+        final long written = mWriter.getWritten();
+        System.out.printf("%n%s: %d frames in %d files, %.2f bytes/frame on disk, %.1f MB/s%n", header, written, files, (double) bytes / Math.max(1, written), bytes * 1000.0 / nanos);
+    }
+
+    @TearDown
+    public void teardown() {
+        mDirectory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void offer() {
+        final BusCaptureWriter writer = mWriter;
+
+        for (int f = 0; f < FRAMES; f++) {
+            //a few frames per millisecond, about what a loaded CAN bus gives
+            final long time = mTime + (f >>> 2);
+
+            while (!writer.offer(BusDataType.RX_MONITORED, time, mFrames[f])) {
+                Thread.yield();
+            }
+        }
+
+        mTime += FRAMES >>> 2;
+    }
+}
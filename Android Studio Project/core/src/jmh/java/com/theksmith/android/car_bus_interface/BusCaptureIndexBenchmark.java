@@ -0,0 +1,165 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * opening and querying a capture file the size of a long logging session (see CaptureGenerator)
+ * the capture is written once to java.io.tmpdir/cbi-capture-<megabytes>MB and reused by later runs, delete the directory to write it again
+ * scores are milliseconds per open() or per query, the blocks read per query are printed once per fork
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusCaptureIndexBenchmark {
+    private static final long WINDOW = 10 * 1000; //millis, the range a user pulls up around an event
+
+    @Param({"1024"})
+    public int megabytes;
+
+    private File mCapture;
+
+    private BusCaptureIndex mIndex;
+    private int[] mIds;
+    private final Random mRandom = new Random(34);
+
+    private Blackhole mBlackhole;
+
+    private final BusCaptureIndex.FrameHandler mHandler = new BusCaptureIndex.FrameHandler() {
+        @Override
+        public boolean onFrame(final int type, final long time, final BusFrame frame) {
+            mBlackhole.consume(frame.id);
+            return true;
+        }
+    };
+
+
+    /**
+     * moves the sidecar index out of the way around each openWithoutSidecar()
+     */
+    @State(Scope.Thread)
+    public static class NoSidecar {
+        private File mmSidecar;
+        private File mmHidden;
+
+        @Setup(Level.Invocation)
+        public void hide(final BusCaptureIndexBenchmark benchmark) throws IOException {
+            mmSidecar = BusCaptureIndex.indexFileFor(benchmark.mCapture);
+            mmHidden = new File(mmSidecar.getPath() + ".hidden");
+
+            if (!mmSidecar.renameTo(mmHidden)) {
+                throw new IOException("NoSidecar.hide() : unable to move " + mmSidecar);
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void restore() {
+            mmHidden.renameTo(mmSidecar);
+        }
+    }
+
+
+    @Setup
+    public void setup(final Blackhole blackhole) throws IOException {
+        mBlackhole = blackhole;
+
+        final File directory = new File(System.getProperty("java.io.tmpdir"), "cbi-capture-" + megabytes + "MB");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("BusCaptureIndexBenchmark.setup() : unable to create " + directory);
+        }
+
+        mCapture = CaptureGenerator.generate(directory, megabytes * 1024L * 1024);
+
+        mIndex = BusCaptureIndex.open(mCapture);
+
+        //one ID that is on the bus all the time, and one that is not on it at all and shares no bitmap bit with those that are
+        final BusFrame frame = new BusFrame();
+        final long[] bitmap = new long[BusCaptureIndex.BITMAP_WORDS];
+        for (String line : AtmaStreams.lines(AtmaStreams.HeaderMode.CAN11, AtmaStreams.DEFAULT_LINES)) {
+            frame.parse(line);
+            final int bit = BusCaptureIndex.bitFor(frame.id);
+            bitmap[bit >>> 6] |= 1L << (bit & 63);
+        }
+
+        int absent = 0x7FF;
+        while ((bitmap[BusCaptureIndex.bitFor(absent) >>> 6] & (1L << (BusCaptureIndex.bitFor(absent) & 63))) != 0) {
+            absent--;
+        }
+
+        mIds = new int[] { frame.id, absent };
+
+        final long first = mIndex.getFirstTime();
+        final long middle = first + (mIndex.getLastTime() - first) / 2;
+        final long frames = mIndex.query(middle, middle + WINDOW, null, mHandler);
+        final long blocks = mIndex.getBlocksRead();
+        mIndex.query(first, mIndex.getLastTime(), new int[] { absent }, mHandler);
+
+        System.out.printf("%n%s: %d bytes, %d frames in %d blocks, a %d ms window reads %d blocks for %d frames, an absent ID over everything reads %d blocks%n",
+                mCapture.getName(), mCapture.length(), mIndex.getFrameCount(), mIndex.getBlockCount(), WINDOW, blocks, frames, mIndex.getBlocksRead());
+    }
+
+    /**
+     * @return  a random window start, somewhere in the capture
+     */
+    private long randomFrom() {
+        final long first = mIndex.getFirstTime();
+        final long span = mIndex.getLastTime() - first - WINDOW;
+        return first + (long) (mRandom.nextDouble() * span);
+    }
+
+    @Benchmark
+    public BusCaptureIndex open() throws IOException {
+        return BusCaptureIndex.open(mCapture);
+    }
+
+    /**
+     * open() after a crash, with no sidecar the whole capture is scanned to rebuild the index
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 5)
+    public BusCaptureIndex openWithoutSidecar(final NoSidecar noSidecar) throws IOException {
+        return BusCaptureIndex.open(mCapture);
+    }
+
+    @Benchmark
+    public long queryWindow() {
+        final long from = randomFrom();
+        return mIndex.query(from, from + WINDOW, null, mHandler);
+    }
+
+    @Benchmark
+    public long queryWindowOneId() {
+        final long from = randomFrom();
+        return mIndex.query(from, from + WINDOW, new int[] { mIds[0] }, mHandler);
+    }
+
+    @Benchmark
+    public long queryAbsentId() {
+        return mIndex.query(mIndex.getFirstTime(), mIndex.getLastTime(), new int[] { mIds[1] }, mHandler);
+    }
+}
@@ -0,0 +1,105 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * encoding received lines into BusDataCodec batches as CBIServiceMain does for batched clients, and decoding them as a client does
+ * scores are lines/sec, the encoded size per line is printed once per fork
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusDataCodecBenchmark {
+    private static final int LINES = 4096;
+
+    @Param({"J1850", "CAN11", "CAN11_NO_SPACES", "CAN29"})
+    public AtmaStreams.HeaderMode header;
+
+    private String[] mLines;
+    private long[] mTimes;
+    private BusDataCodec.Encoder mEncoder;
+    private byte[][] mBatches;
+
+
+    @Setup
+    public void setup() {
+        mLines = AtmaStreams.lines(header, LINES);
+
+        mTimes = new long[LINES];
+        for (int l = 0; l < LINES; l++) {
+            mTimes[l] = 1000000L + l * 2;
+        }
+
+        mEncoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+
+        final ArrayList<byte[]> batches = new ArrayList<byte[]>();
+        long bytes = 0;
+        int text = 0;
+        for (int l = 0; l < LINES; l++) {
+            text += mLines[l].length();
+            if (!mEncoder.add(mLines[l], BusDataType.RX_MONITORED, false, mTimes[l])) {
+                batches.add(mEncoder.toByteArray());
+                mEncoder.reset();
+                mEncoder.add(mLines[l], BusDataType.RX_MONITORED, false, mTimes[l]);
+            }
+        }
+        batches.add(mEncoder.toByteArray());
+        mEncoder.reset();
+
+        mBatches = batches.toArray(new byte[batches.size()][]);
+        for (byte[] batch : mBatches) {
+            bytes += batch.length;
+        }
+
+        System.out.printf("%n%s: %.2f bytes/line encoded, %.2f chars/line as text%n", header, (double) bytes / LINES, (double) text / LINES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void encode(final Blackhole blackhole) {
+        for (int l = 0; l < LINES; l++) {
+            if (!mEncoder.add(mLines[l], BusDataType.RX_MONITORED, false, mTimes[l])) {
+                blackhole.consume(mEncoder.toByteArray());
+                mEncoder.reset();
+                mEncoder.add(mLines[l], BusDataType.RX_MONITORED, false, mTimes[l]);
+            }
+        }
+
+        blackhole.consume(mEncoder.toByteArray());
+        mEncoder.reset();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void decode(final Blackhole blackhole) {
+        for (byte[] batch : mBatches) {
+            final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(batch);
+            while (decoder.hasNext()) {
+                decoder.next();
+                blackhole.consume(decoder.getData());
+                blackhole.consume(decoder.getTime());
+            }
+        }
+    }
+}
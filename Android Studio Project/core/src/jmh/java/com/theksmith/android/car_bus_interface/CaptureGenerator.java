@@ -0,0 +1,126 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+/**
+ * writes a synthetic capture file of a given size with BusCaptureWriter, for the BusCaptureIndex benchmarks (or to try the index by hand)
+ * the frames are AtmaStreams CAN11 lines repeated over and over, about 3 frames per millisecond as on a busy 500k bus
+ *
+ * run from the jmh classpath with: CaptureGenerator <directory> [megabytes, default 1024]
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class CaptureGenerator {
+    public static final long DEFAULT_MEGABYTES = 1024;
+
+    private static final int LINES = AtmaStreams.DEFAULT_LINES;
+    private static final long START_TIME = 1000000L;
+    private static final int FRAMES_PER_MILLI = 3;
+
+
+    private CaptureGenerator() {}
+
+    /**
+     * returns the capture already in a directory, or writes a new one there
+     *
+     * @param directory  where the capture (and its sidecar index) goes, a capture already there is reused as is
+     * @param bytes  size of the capture to write
+     * @return  the capture file
+     * @throws IOException  if the capture could not be written
+     */
+    public static File generate(final File directory, final long bytes) throws IOException {
+        final File existing = findCapture(directory);
+        if (existing != null) {
+            return existing;
+        }
+
+        final String[] lines = AtmaStreams.lines(AtmaStreams.HeaderMode.CAN11, LINES);
+        final BusFrame[] frames = new BusFrame[LINES];
+        for (int l = 0; l < LINES; l++) {
+            frames[l] = new BusFrame();
+            frames[l].parse(lines[l]);
+        }
+
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final BusCaptureWriter writer = new BusCaptureWriter(directory, bytes, 0, new BusCaptureWriter.ErrorHandler() {
+            @Override
+            public void onError(final String message, final boolean fatal, final IOException e) {
+                if (fatal) {
+                    failure.set(new IOException("CaptureGenerator.generate() : " + message, e));
+                }
+            }
+        });
+
+        writer.start();
+
+        //the writer rotates once the first file reaches the size, whatever went into the next file is thrown away
+        File first = null;
+        for (long f = 0; failure.get() == null; f++) {
+            //a failed writer drops everything, so only wait while it is still running
+            while (!writer.offer(BusDataType.RX_MONITORED, START_TIME + f / FRAMES_PER_MILLI, frames[(int) (f % LINES)]) && failure.get() == null) {
+                Thread.yield();
+            }
+
+            if ((f & 0xFFF) == 0) {
+                final File current = writer.getCurrentFile();
+                if (first == null) {
+                    first = current;
+                } else if (current != null && !current.equals(first)) {
+                    break;
+                }
+            }
+        }
+
+        writer.stop();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+
+        for (File file : directory.listFiles()) {
+            if (!file.equals(first) && !file.equals(BusCaptureIndex.indexFileFor(first))) {
+                file.delete();
+            }
+        }
+
+        return first;
+    }
+
+    /**
+     * @param directory  a directory
+     * @return  the first capture file in it, or null
+     */
+    public static File findCapture(final File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.getName().endsWith(BusCaptureWriter.FILE_EXTENSION)) {
+                    return file;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: CaptureGenerator <directory> [megabytes, default " + DEFAULT_MEGABYTES + "]");
+            System.exit(1);
+        }
+
+        final File directory = new File(args[0]);
+        final long megabytes = (args.length > 1) ? Long.parseLong(args[1]) : DEFAULT_MEGABYTES;
+
+        final long start = System.nanoTime();
+        final File capture = generate(directory, megabytes * 1024 * 1024);
+        final long millis = (System.nanoTime() - start) / 1000000;
+
+        final BusCaptureIndex index = BusCaptureIndex.open(capture);
+        System.out.println(String.format(Locale.US, "%s: %d bytes, %d frames in %d blocks, %d ms", capture, capture.length(), index.getFrameCount(), index.getBlockCount(), millis));
+    }
+}
@@ -0,0 +1,61 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * splitting the socket reads into lines (ElmResponseFramer, the elmBufferData() step of CBIServiceMain), scores are lines/sec
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ElmFramingBenchmark {
+    @Param({"J1850", "CAN11", "CAN11_NO_SPACES", "CAN29"})
+    public AtmaStreams.HeaderMode header;
+
+    @Param({"LOW", "HIGH"})
+    public AtmaStreams.BusLoad load;
+
+    private String[] mReads;
+    private final ElmResponseFramer mFramer = new ElmResponseFramer();
+
+
+    @Setup
+    public void setup() {
+        mReads = AtmaStreams.reads(AtmaStreams.lines(header, AtmaStreams.DEFAULT_LINES), load);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(AtmaStreams.DEFAULT_LINES)
+    public void frame(final Blackhole blackhole) {
+        final ElmResponseFramer.ResponseHandler handler = new ElmResponseFramer.ResponseHandler() {
+            @Override
+            public void onResponse(final String response, final boolean completed) {
+                blackhole.consume(response);
+            }
+        };
+
+        for (String read : mReads) {
+            blackhole.consume(mFramer.append(read, handler));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * turning a framed line into its ID and payload bytes (BusFrame), scores are lines/sec
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexParseBenchmark {
+    private static final int LINES = 4096;
+
+    @Param({"J1850", "CAN11", "CAN11_NO_SPACES", "CAN29"})
+    public AtmaStreams.HeaderMode header;
+
+    private String[] mLines;
+    private final BusFrame mFrame = new BusFrame();
+
+
+    @Setup
+    public void setup() {
+        mLines = AtmaStreams.lines(header, LINES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseFrame(final Blackhole blackhole) {
+        for (String line : mLines) {
+            blackhole.consume(mFrame.parse(line));
+            blackhole.consume(mFrame.id);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseId(final Blackhole blackhole) {
+        for (String line : mLines) {
+            blackhole.consume(BusFrame.parseId(line));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseAndFormat(final Blackhole blackhole) {
+        for (String line : mLines) {
+            mFrame.parse(line);
+            blackhole.consume(mFrame.format());
+        }
+    }
+}
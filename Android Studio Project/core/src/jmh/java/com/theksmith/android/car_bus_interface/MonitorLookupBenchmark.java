@@ -0,0 +1,64 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * finding the monitor for a received line, the same exact match lookup CBIServiceMain does in elmParseResponse(), scores are lines/sec
+ * the monitors are taken from lines that really occur in the stream so a realistic share of lookups hit
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MonitorLookupBenchmark {
+    private static final int LINES = 4096;
+
+    @Param({"1", "10", "100", "1000"})
+    public int monitors;
+
+    @Param({"J1850", "CAN11"})
+    public AtmaStreams.HeaderMode header;
+
+    private String[] mLines;
+    private final HashMap<String, BusMonitor> mMonitors = new HashMap<String, BusMonitor>();
+
+
+    @Setup
+    public void setup() {
+        //String caches its hash, so after the first pass this leaves out hashing the line (RxPathBenchmark covers that with fresh lines)
+        mLines = AtmaStreams.lines(header, LINES);
+
+        final String[] candidates = AtmaStreams.lines(header, monitors * 16);
+        for (int c = 0; c < candidates.length && mMonitors.size() < monitors; c++) {
+            mMonitors.put(candidates[c], new BusMonitor(candidates[c], true, 0, 0, 0, 0, "*VOLUME=UP", ""));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void lookup(final Blackhole blackhole) {
+        for (String line : mLines) {
+            blackhole.consume(mMonitors.get(line));
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * classifying button presses (BusPressClassifier, the analyzeLatestEvent() logic of BusMessageProcessor) on a ManualClock
+ * one operation is a whole simulated press: its repeats arriving, every PROCESSOR_TICK_TIME tick until it is classified, and the quiet time after it
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PressClassificationBenchmark {
+    //a typical steering wheel button monitor: 300ms bounce, 50ms short, 500ms long, 800ms long watch
+    private static final long BOUNCE_TIME = 300;
+    private static final long SHORT_TIME = 50;
+    private static final long LONG_TIME = 500;
+    private static final long LONG_WATCH_TIME = 800;
+
+    //a held button repeats its bus msg about this often
+    private static final long REPEAT_INTERVAL = 100;
+
+    private static final long QUIET_TIME = 1000;
+
+    private static final long TICK_TIME = 15; //BusMessageProcessor.PROCESSOR_TICK_TIME, which is in the app module
+
+    @Param({"SHORT", "LONG", "EVERY"})
+    public String press;
+
+    private final ManualClock mClock = new ManualClock(1000000);
+    private BusPressClassifier mClassifier;
+    private int mRepeats;
+
+
+    @Setup
+    public void setup() {
+        if (press.equals("EVERY")) {
+            //all times zero, every event is its own SHORT
+            mClassifier = new BusPressClassifier(0, 0, 0, 0);
+            mRepeats = 1;
+        } else {
+            mClassifier = new BusPressClassifier(BOUNCE_TIME, SHORT_TIME, LONG_TIME, LONG_WATCH_TIME);
+            mRepeats = press.equals("LONG") ? 9 : 2;
+        }
+    }
+
+    @Benchmark
+    public void press(final Blackhole blackhole) {
+        final ManualClock clock = mClock;
+        final BusPressClassifier classifier = mClassifier;
+
+        final long end = clock.uptimeMillis() + (mRepeats - 1) * REPEAT_INTERVAL + QUIET_TIME;
+        long nextRepeat = clock.uptimeMillis();
+        int repeats = 0;
+
+        while (clock.uptimeMillis() < end) {
+            if (repeats < mRepeats && clock.uptimeMillis() >= nextRepeat) {
+                classifier.logEvent(clock.uptimeMillis());
+                nextRepeat += REPEAT_INTERVAL;
+                repeats++;
+            }
+
+            clock.advance(TICK_TIME);
+            blackhole.consume(classifier.process(clock.uptimeMillis()));
+        }
+    }
+
+    @Benchmark
+    public void tickIdle(final Blackhole blackhole) {
+        mClock.advance(TICK_TIME);
+        blackhole.consume(mClassifier.process(mClock.uptimeMillis()));
+    }
+}
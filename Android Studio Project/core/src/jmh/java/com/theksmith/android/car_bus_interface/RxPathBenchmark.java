@@ -0,0 +1,106 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * the whole RX path of CBIServiceMain short of the Android parts, for one socket read at a time
+ * framing, hex parsing, statistics, snapshot table, monitor lookup and logging the press event
+ * sampled so the score includes tail latency (p0.99, p0.999 ...) per read, which is what decides whether a burst makes a press late
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RxPathBenchmark {
+    private static final int MONITORS = 10;
+
+    private static final long TICK_TIME = 15; //BusMessageProcessor.PROCESSOR_TICK_TIME, which is in the app module
+
+    @Param({"J1850", "CAN11"})
+    public AtmaStreams.HeaderMode header;
+
+    @Param({"LOW", "HIGH"})
+    public AtmaStreams.BusLoad load;
+
+    private String[] mReads;
+    private int mNextRead;
+
+    private final ManualClock mClock = new ManualClock(1000000);
+    private final ElmResponseFramer mFramer = new ElmResponseFramer();
+    private final BusFrame mFrame = new BusFrame();
+    private final BusStatistics mStatistics = new BusStatistics(BusStatistics.DEFAULT_CAPACITY, 500000);
+    private final BusSnapshotTable mSnapshotTable = new BusSnapshotTable(BusSnapshotTable.DEFAULT_CAPACITY);
+    private final HashMap<String, BusPressClassifier> mMonitors = new HashMap<String, BusPressClassifier>();
+
+    private Blackhole mBlackhole;
+
+    private final ElmResponseFramer.ResponseHandler mHandler = new ElmResponseFramer.ResponseHandler() {
+        @Override
+        public void onResponse(final String response, final boolean completed) {
+            final long time = mClock.uptimeMillis();
+
+            BusDataType type = BusDataType.RX;
+
+            final BusPressClassifier monitor = mMonitors.get(response);
+            if (monitor != null) {
+                type = BusDataType.RX_MONITORED;
+                monitor.logEvent(time);
+            }
+
+            if (mFrame.parse(response)) {
+                mSnapshotTable.update(type, time, mFrame);
+                mStatistics.update(time, mFrame);
+            }
+
+            mBlackhole.consume(type);
+        }
+    };
+
+
+    @Setup
+    public void setup(final Blackhole blackhole) {
+        mBlackhole = blackhole;
+
+        final String[] lines = AtmaStreams.lines(header, AtmaStreams.DEFAULT_LINES);
+        mReads = AtmaStreams.reads(lines, load);
+
+        for (int l = 0; l < lines.length && mMonitors.size() < MONITORS; l += 97) {
+            mMonitors.put(lines[l], new BusPressClassifier(300, 50, 500, 800));
+        }
+    }
+
+    @Benchmark
+    public boolean read() {
+        final String read = mReads[mNextRead];
+        mNextRead = (mNextRead + 1) % mReads.length;
+
+        //a read per millisecond, the monitors tick as their processor threads would
+        mClock.advance(1);
+        if (mClock.uptimeMillis() % TICK_TIME == 0) {
+            for (BusPressClassifier monitor : mMonitors.values()) {
+                mBlackhole.consume(monitor.process(mClock.uptimeMillis()));
+            }
+        }
+
+        return mFramer.append(read, mHandler);
+    }
+}
@@ -0,0 +1,86 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * an action string from a bus msg monitor setting (see BusMonitor), split into its kind and arguments once up front instead of on every press
+ * examples: "*VOLUME=UP", "*MEDIA_BUTTON=KEYCODE_MEDIA_NEXT", "*TASKER=task**param1**param2", "*UDS=7E0 22 F1 90", or anything else as a shell command
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusAction {
+    public static enum Kind {
+        VOLUME, VOLUME_HIDDEN, ALERT, MEDIA_BUTTON, BUTTON_ROOT, INTENT, LAST_APP, TASKER, UDS, COMMAND
+    }
+
+    private static final String PARAM_SEPARATOR_REGEX = "\\*\\*";
+
+    private static final String ALERT = "*ALERT=";
+    private static final String VOLUME = "*VOLUME=";
+    private static final String VOLUME_HIDDEN = "*VOLUME_HIDDEN=";
+    private static final String MEDIA_BUTTON = "*MEDIA_BUTTON=";
+    private static final String BUTTON_ROOT = "*BUTTON_ROOT=";
+    private static final String INTENT_BASIC = "*INTENT=";
+    private static final String LAST_APP = "*LAST_APP";
+    private static final String TASKER = "*TASKER=";
+    private static final String UDS = "*UDS="; //the ECU's ID then the request bytes, sent on the monitor's own bus
+
+    public final String action;
+    public final Kind kind;
+    public final String[] args;
+
+
+    private BusAction(final String action, final Kind kind, final String[] args) {
+        this.action = action;
+        this.kind = kind;
+        this.args = args;
+    }
+
+    /**
+     * @param action  the action string
+     * @return  the action, or null if the string is null or empty (no action)
+     */
+    public static BusAction compile(final String action) {
+        if (action == null || action.equals("")) {
+            return null;
+        }
+
+        String[] args = action.split("=", 2);
+        if (args.length == 2) {
+            args = args[1].split(PARAM_SEPARATOR_REGEX);
+        }
+
+        for (int a = 0; a < args.length; a++) {
+            args[a] = args[a].trim();
+        }
+
+        final Kind kind;
+        if (action.contains(VOLUME)) {
+            kind = Kind.VOLUME;
+        } else if (action.contains(VOLUME_HIDDEN)) {
+            kind = Kind.VOLUME_HIDDEN;
+        } else if (action.contains(ALERT)) {
+            kind = Kind.ALERT;
+        } else if (action.contains(MEDIA_BUTTON)) {
+            kind = Kind.MEDIA_BUTTON;
+        } else if (action.contains(BUTTON_ROOT)) {
+            kind = Kind.BUTTON_ROOT;
+        } else if (action.contains(INTENT_BASIC)) {
+            kind = Kind.INTENT;
+        } else if (action.contains(LAST_APP)) {
+            kind = Kind.LAST_APP;
+        } else if (action.contains(TASKER)) {
+            kind = Kind.TASKER;
+        } else if (action.contains(UDS)) {
+            kind = Kind.UDS;
+        } else {
+            kind = Kind.COMMAND;
+        }
+
+        return new BusAction(action, kind, args);
+    }
+
+    @Override
+    public String toString() {
+        return action;
+    }
+}
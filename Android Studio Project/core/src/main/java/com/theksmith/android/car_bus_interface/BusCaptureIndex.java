@@ -0,0 +1,367 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ * a sparse index over a capture file, so time range and ID queries only read the blocks that can match
+ *
+ * a block is the SYNC_INTERVAL frames following one sync record of the capture file (see BusCaptureWriter)
+ * BusCaptureWriter appends one entry per block to a sidecar file as it goes, open() rebuilds any missing tail from the capture itself (for example after a crash)
+ *
+ * sidecar layout (big endian):
+ *      header (HEADER_SIZE bytes):
+ *          int     MAGIC
+ *          int     VERSION
+ *          int     frames per block (SYNC_INTERVAL when written)
+ *          int     reserved
+ *      entries (ENTRY_SIZE bytes each):
+ *          long    offset of the block's sync record in the capture file
+ *          long    time of the first frame (uptime millis)
+ *          long    time of the last frame (uptime millis)
+ *          int     number of frames
+ *          int     reserved
+ *          long[]  BITMAP_WORDS words of a bitmap with bitFor(id) set for every ID in the block
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusCaptureIndex {
+    public static final int MAGIC = 0xCBCA1D01;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int BITMAP_WORDS = 4;
+    public static final int ENTRY_SIZE = 8 + 8 + 8 + 4 + 4 + BITMAP_WORDS * 8;
+
+    public static final String FILE_EXTENSION = ".cbidx";
+
+    private static final int INITIAL_BLOCKS = 64;
+
+    private final BusCaptureReader mReader;
+
+    private int mBlocks;
+    private long[] mOffsets = new long[INITIAL_BLOCKS];
+    private long[] mFirstTimes = new long[INITIAL_BLOCKS];
+    private long[] mLastTimes = new long[INITIAL_BLOCKS];
+    private int[] mFrames = new int[INITIAL_BLOCKS];
+    private long[] mBitmaps = new long[INITIAL_BLOCKS * BITMAP_WORDS];
+
+    private final BusFrame mFrame = new BusFrame();
+    private long mBlocksRead;
+
+
+    /**
+     * receives the frames found by query()
+     */
+    public interface FrameHandler {
+        /**
+         * @param type  the BusDataType ordinal
+         * @param time  when it was received (uptime millis)
+         * @param frame  the frame, only valid until this returns
+         * @return  false to stop the query
+         */
+        boolean onFrame(final int type, final long time, final BusFrame frame);
+    }
+
+
+    private BusCaptureIndex(final BusCaptureReader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * @param capture  a capture file
+     * @return  its sidecar index file (which may not exist)
+     */
+    public static File indexFileFor(final File capture) {
+        String name = capture.getName();
+        if (name.endsWith(BusCaptureWriter.FILE_EXTENSION)) {
+            name = name.substring(0, name.length() - BusCaptureWriter.FILE_EXTENSION.length());
+        }
+
+        return new File(capture.getParentFile(), name + FILE_EXTENSION);
+    }
+
+    /**
+     * @param id  a bus ID
+     * @return  its bit in a block bitmap, 0 to BITMAP_WORDS * 64 - 1
+     */
+    public static int bitFor(final int id) {
+        return ((id * 0x9E3779B9) >>> 24) & (BITMAP_WORDS * 64 - 1);
+    }
+
+    /**
+     * loads the index of a capture file, reading the sidecar where there is one and scanning whatever it does not cover
+     *
+     * @param capture  a capture file
+     * @return  the index, ready for queries
+     * @throws IOException  if the capture can not be read
+     */
+    public static BusCaptureIndex open(final File capture) throws IOException {
+        final BusCaptureIndex index = new BusCaptureIndex(new BusCaptureReader(capture));
+
+        final File sidecar = indexFileFor(capture);
+        if (sidecar.isFile()) {
+            index.load(sidecar);
+        }
+
+        index.scanTail();
+
+        return index;
+    }
+
+    private void load(final File sidecar) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != BusCaptureWriter.SYNC_INTERVAL) {
+                //not usable, everything gets rebuilt by scanning
+                return;
+            }
+            in.readInt();
+
+            final long[] bitmap = new long[BITMAP_WORDS];
+
+            while (true) {
+                final long offset = in.readLong();
+                final long firstTime = in.readLong();
+                final long lastTime = in.readLong();
+                final int frames = in.readInt();
+                in.readInt();
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    bitmap[w] = in.readLong();
+                }
+
+                addBlock(offset, firstTime, lastTime, frames, bitmap);
+            }
+        } catch (EOFException ignored) {
+            //end of the entries, a partial last entry is simply left out
+        } finally {
+            in.close();
+        }
+    }
+
+    private void scanTail() {
+        final BusCaptureReader reader = mReader;
+
+        //the last indexed block may have been written before the block was full, so scan from its start
+        final long start;
+        if (mBlocks > 0) {
+            mBlocks--;
+            start = mOffsets[mBlocks];
+        } else {
+            start = BusCaptureWriter.HEADER_SIZE;
+        }
+
+        if (!reader.seek(start)) {
+            return;
+        }
+
+        final long[] bitmap = new long[BITMAP_WORDS];
+        long offset = -1;
+        long firstTime = 0;
+        long lastTime = 0;
+        int frames = 0;
+
+        int type;
+        while ((type = reader.next(mFrame)) != BusCaptureReader.EMPTY) {
+            if (reader.getSyncPosition() != offset) {
+                if (frames > 0) {
+                    addBlock(offset, firstTime, lastTime, frames, bitmap);
+                }
+
+                Arrays.fill(bitmap, 0);
+                offset = reader.getSyncPosition();
+                firstTime = reader.getTime();
+                frames = 0;
+            }
+
+            final int bit = bitFor(mFrame.id);
+            bitmap[bit >>> 6] |= 1L << (bit & 63);
+            lastTime = reader.getTime();
+            frames++;
+        }
+
+        if (frames > 0) {
+            addBlock(offset, firstTime, lastTime, frames, bitmap);
+        }
+    }
+
+    private void addBlock(final long offset, final long firstTime, final long lastTime, final int frames, final long[] bitmap) {
+        if (mBlocks == mOffsets.length) {
+            final int capacity = mBlocks * 2;
+            mOffsets = Arrays.copyOf(mOffsets, capacity);
+            mFirstTimes = Arrays.copyOf(mFirstTimes, capacity);
+            mLastTimes = Arrays.copyOf(mLastTimes, capacity);
+            mFrames = Arrays.copyOf(mFrames, capacity);
+            mBitmaps = Arrays.copyOf(mBitmaps, capacity * BITMAP_WORDS);
+        }
+
+        mOffsets[mBlocks] = offset;
+        mFirstTimes[mBlocks] = firstTime;
+        mLastTimes[mBlocks] = lastTime;
+        mFrames[mBlocks] = frames;
+        System.arraycopy(bitmap, 0, mBitmaps, mBlocks * BITMAP_WORDS, BITMAP_WORDS);
+        mBlocks++;
+    }
+
+    public int getBlockCount() {
+        return mBlocks;
+    }
+
+    public long getFrameCount() {
+        long frames = 0;
+        for (int b = 0; b < mBlocks; b++) {
+            frames += mFrames[b];
+        }
+        return frames;
+    }
+
+    /**
+     * @return  time of the first frame (uptime millis), or -1 if there are none
+     */
+    public long getFirstTime() {
+        return mBlocks > 0 ? mFirstTimes[0] : -1;
+    }
+
+    /**
+     * @return  time of the last frame (uptime millis), or -1 if there are none
+     */
+    public long getLastTime() {
+        return mBlocks > 0 ? mLastTimes[mBlocks - 1] : -1;
+    }
+
+    /**
+     * @return  number of blocks read by the last query()
+     */
+    public long getBlocksRead() {
+        return mBlocksRead;
+    }
+
+    /**
+     * finds the frames received within a time range, optionally only for some IDs
+     * only blocks overlapping the range whose ID bitmap could match are read
+     *
+     * @param fromTime  first time to include (uptime millis)
+     * @param toTime  last time to include (uptime millis)
+     * @param ids  the IDs to include, null for all
+     * @param handler  receives the frames in order
+     * @return  number of frames passed to the handler
+     */
+    public long query(final long fromTime, final long toTime, final int[] ids, final FrameHandler handler) {
+        mBlocksRead = 0;
+
+        int[] sortedIds = null;
+        long[] wanted = null;
+        if (ids != null) {
+            sortedIds = ids.clone();
+            Arrays.sort(sortedIds);
+
+            wanted = new long[BITMAP_WORDS];
+            for (int id : sortedIds) {
+                final int bit = bitFor(id);
+                wanted[bit >>> 6] |= 1L << (bit & 63);
+            }
+        }
+
+        long found = 0;
+
+        //times only ever increase through a capture, so the first candidate block can be found with a binary search on the last times
+        int low = 0;
+        int high = mBlocks;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (mLastTimes[mid] < fromTime) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+
+        for (int block = low; block < mBlocks && mFirstTimes[block] <= toTime; block++) {
+            if (wanted != null && !intersects(block, wanted)) {
+                continue;
+            }
+
+            mBlocksRead++;
+
+            if (!mReader.seek(mOffsets[block])) {
+                break;
+            }
+
+            for (int f = 0; f < mFrames[block]; f++) {
+                final int type = mReader.next(mFrame);
+                if (type == BusCaptureReader.EMPTY) {
+                    break;
+                }
+
+                final long time = mReader.getTime();
+                if (time < fromTime) {
+                    continue;
+                }
+                if (time > toTime) {
+                    return found;
+                }
+                if (sortedIds != null && Arrays.binarySearch(sortedIds, mFrame.id) < 0) {
+                    continue;
+                }
+
+                found++;
+                if (!handler.onFrame(type, time, mFrame)) {
+                    return found;
+                }
+            }
+        }
+
+        return found;
+    }
+
+    private boolean intersects(final int block, final long[] wanted) {
+        final int base = block * BITMAP_WORDS;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            if ((mBitmaps[base + w] & wanted[w]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * appends entries to a sidecar index as BusCaptureWriter completes blocks
+     */
+    public static class Writer {
+        private final DataOutputStream mmOut;
+
+        public Writer(final File capture) throws IOException {
+            mmOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFileFor(capture)), ENTRY_SIZE * 16));
+
+            mmOut.writeInt(MAGIC);
+            mmOut.writeInt(VERSION);
+            mmOut.writeInt(BusCaptureWriter.SYNC_INTERVAL);
+            mmOut.writeInt(0);
+        }
+
+        public void add(final long offset, final long firstTime, final long lastTime, final int frames, final long[] bitmap) throws IOException {
+            mmOut.writeLong(offset);
+            mmOut.writeLong(firstTime);
+            mmOut.writeLong(lastTime);
+            mmOut.writeInt(frames);
+            mmOut.writeInt(0);
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                mmOut.writeLong(bitmap[w]);
+            }
+        }
+
+        public void close() throws IOException {
+            mmOut.close();
+        }
+    }
+}
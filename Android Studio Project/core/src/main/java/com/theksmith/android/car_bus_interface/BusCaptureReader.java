@@ -0,0 +1,232 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static com.theksmith.android.car_bus_interface.BusCaptureWriter.*;
+
+
+/**
+ * reads frames back from a capture file written by BusCaptureWriter (see there for the layout)
+ * the file is memory-mapped, reading does not allocate
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusCaptureReader {
+    public static final int EMPTY = -1;
+
+    private static final BusDataType[] TYPES = BusDataType.values();
+
+    private final MappedByteBuffer mBuffer;
+    private final long mStartWallTime;
+    private final long mStartTime;
+    private final int mBus;
+
+    private long mTime;
+    private boolean mTruncated;
+    private long mFrameIndex = -1; //index in the file of the last frame returned by next(), -1 if not known since a seek()
+    private long mSyncPosition = -1;
+
+
+    /**
+     * @param file  a capture file, it may still be being written
+     * @throws IOException  if the file can not be read or is not a capture file
+     */
+    public BusCaptureReader(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            //the mapping stays valid after the file is closed
+            raf.close();
+        }
+
+        if (mBuffer.limit() < HEADER_SIZE || mBuffer.getInt(0) != MAGIC) {
+            throw new IOException("not a capture file : " + file);
+        }
+
+        if (mBuffer.getInt(4) != VERSION) {
+            throw new IOException("unsupported capture file version " + mBuffer.getInt(4) + " : " + file);
+        }
+
+        mStartWallTime = mBuffer.getLong(8);
+        mStartTime = mBuffer.getLong(16);
+
+        final int bus = mBuffer.getInt(24);
+        mBus = bus > 0 ? bus : 1;
+
+        mTime = mStartTime;
+        mBuffer.position(HEADER_SIZE);
+    }
+
+    /**
+     * @return  wall clock time the file was started (System.currentTimeMillis())
+     */
+    public long getStartWallTime() {
+        return mStartWallTime;
+    }
+
+    /**
+     * @return  time of the first frame in the file (uptime millis), add getStartWallTime() - getStartTime() to any frame time for wall clock time
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return  the bus number the file's frames came from, 1 for the first
+     */
+    public int getBus() {
+        return mBus;
+    }
+
+    /**
+     * @return  size of the file in bytes (including any unused pre-extended tail)
+     */
+    public long size() {
+        return mBuffer.limit();
+    }
+
+    /**
+     * @return  offset of the next record
+     */
+    public long getPosition() {
+        return mBuffer.position();
+    }
+
+    /**
+     * moves to the first sync record at or after an offset, the next frame read starts a fresh time base
+     *
+     * @param offset  any byte offset in the file
+     * @return  false if there is no sync record after the offset (the reader is then at the end)
+     */
+    public boolean seek(final long offset) {
+        final int limit = mBuffer.limit() - SYNC_SIZE;
+        int position = (int) Math.max(HEADER_SIZE, Math.min(offset, mBuffer.limit()));
+
+        while (position <= limit) {
+            if (isSyncAt(position)) {
+                mBuffer.position(position);
+                mFrameIndex = -1;
+                mSyncPosition = -1;
+                return true;
+            }
+            position++;
+        }
+
+        mBuffer.position(mBuffer.limit());
+        return false;
+    }
+
+    private boolean isSyncAt(final int position) {
+        for (int b = 0; b < SYNC_MARKER.length; b++) {
+            if (mBuffer.get(position + b) != SYNC_MARKER[b]) {
+                return false;
+            }
+        }
+
+        //payload bytes could mimic the marker, a real one is always followed by a valid record kind
+        final int after = position + SYNC_SIZE;
+        if (after < mBuffer.limit()) {
+            final int kind = mBuffer.get(after) & 0xFF;
+            return kind == RECORD_END || kind == RECORD_SYNC || (kind & 0xF0) == RECORD_FRAME;
+        }
+
+        return true;
+    }
+
+    /**
+     * reads the next frame
+     *
+     * @param frame  receives the frame and the file's bus number (payloads longer than BusCaptureWriter.QUEUE_PAYLOAD were truncated, see wasTruncated())
+     * @return  the BusDataType ordinal of the frame, or EMPTY at the end of the data
+     */
+    public int next(final BusFrame frame) {
+        final ByteBuffer buffer = mBuffer;
+
+        while (buffer.hasRemaining()) {
+            final int kind = buffer.get(buffer.position()) & 0xFF;
+
+            if (kind == RECORD_SYNC) {
+                if (buffer.remaining() < SYNC_SIZE) {
+                    break;
+                }
+                mSyncPosition = buffer.position();
+                buffer.position(buffer.position() + SYNC_MARKER.length);
+                mTime = buffer.getLong();
+                mFrameIndex = buffer.getLong() - 1;
+                continue;
+            }
+
+            if ((kind & 0xF0) != RECORD_FRAME) {
+                //RECORD_END, or garbage in an unclean tail
+                break;
+            }
+
+            buffer.get();
+            mTime += readVarLong(buffer);
+
+            frame.clear();
+            frame.idDigits = buffer.get() & 0xFF;
+            frame.id = (int) readVarLong(buffer);
+            frame.length = buffer.get() & 0xFF;
+            frame.spaces = (kind & FLAG_NO_SPACES) == 0;
+            frame.bus = mBus;
+            buffer.get(frame.payload, 0, frame.length);
+
+            mTruncated = (kind & FLAG_TRUNCATED) != 0;
+            if (mFrameIndex >= 0) {
+                mFrameIndex++;
+            }
+
+            return TYPES[kind & FLAG_TYPE_MASK].ordinal();
+        }
+
+        return EMPTY;
+    }
+
+    /**
+     * @return  time of the frame returned by the last next() (uptime millis)
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return  true if the payload of the frame returned by the last next() was cut short when it was written
+     */
+    public boolean wasTruncated() {
+        return mTruncated;
+    }
+
+    /**
+     * @return  index in the file of the frame returned by the last next(), -1 until a sync record has been read since the last seek()
+     */
+    public long getFrameIndex() {
+        return mFrameIndex;
+    }
+
+    /**
+     * @return  offset of the last sync record read, the start of the block holding the frame returned by the last next() (see BusCaptureIndex)
+     */
+    public long getSyncPosition() {
+        return mSyncPosition;
+    }
+
+    private static long readVarLong(final ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,444 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * records received bus frames to compact append-only capture files (read them back with BusCaptureReader)
+ * a writer records a single bus, CBIServiceMain keeps one per bus
+ *
+ * the RX path only copies each frame into a preallocated single-producer/single-consumer queue of primitive arrays
+ * a thread of its own drains the queue into a memory-mapped file which is extended ahead of time in MAP_CHUNK steps, so there is no allocation and no syscall per frame
+ * files are rotated once they reach a maximum size or age
+ *
+ * file layout (big endian):
+ *      header (HEADER_SIZE bytes):
+ *          int     MAGIC
+ *          int     VERSION
+ *          long    wall clock time the file was started (System.currentTimeMillis())
+ *          long    time of the first frame (uptime millis), it was received at about the wall clock time above
+ *          int     bus number (0 in files written before it was recorded, those are all from the first bus)
+ *          bytes   reserved
+ *      records, each starting with a kind byte:
+ *          RECORD_END              nothing follows (the unused, zero filled tail of a file that was not closed cleanly)
+ *          RECORD_FRAME | flags    varint time delta from the previous record (millis), byte ID hex digits, varint ID, byte payload length, payload
+ *                                  flags are the BusDataType ordinal (bits 0-1), FLAG_NO_SPACES and FLAG_TRUNCATED
+ *          RECORD_SYNC             the rest of SYNC_MARKER, long absolute time (uptime millis), long number of frames before this one in the file
+ *      a sync record starts every file and is repeated every SYNC_INTERVAL frames, a reader can start at any offset by scanning for the next one
+ *
+ * each capture file gets a sidecar index with one entry per SYNC_INTERVAL block, see BusCaptureIndex
+ *
+ * failures happen on the writer thread, they are passed to an ErrorHandler (CBIServiceMain logs them)
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusCaptureWriter {
+    public static final int MAGIC = 0xCBCA0001;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 32;
+
+    public static final String FILE_PREFIX = "capture_";
+    public static final String FILE_EXTENSION = ".cbcap";
+
+    public static final int RECORD_END = 0x00;
+    public static final int RECORD_FRAME = 0x10;
+    public static final int RECORD_SYNC = 0xFF;
+
+    public static final int FLAG_TYPE_MASK = 0x03;
+    public static final int FLAG_NO_SPACES = 0x04;
+    public static final int FLAG_TRUNCATED = 0x08;
+
+    //the first byte doubles as RECORD_SYNC, no other record kind can start with it
+    public static final byte[] SYNC_MARKER = {(byte) RECORD_SYNC, 'C', 'B', 'S', 'Y', 'N', 'C', (byte) RECORD_SYNC};
+    public static final int SYNC_SIZE = 8 + 8 + 8;
+    public static final int SYNC_INTERVAL = 1024; //frames
+
+    public static final int QUEUE_SLOTS = 16384; //must be a power of 2
+    public static final int QUEUE_PAYLOAD = 64; //longer payloads are truncated and flagged
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 64L * 1024 * 1024;
+    public static final long DEFAULT_MAX_FILE_AGE = 60L * 60 * 1000; //milliseconds
+
+    private static final int MAP_CHUNK = 4 * 1024 * 1024;
+    private static final int MAX_FRAME_RECORD = 1 + 10 + 1 + 5 + 1 + QUEUE_PAYLOAD;
+
+    private static final long IDLE_PARK = 2000000; //nanoseconds the writer thread sleeps when the queue is empty
+
+    private final File mDirectory;
+    private final int mBus;
+    private final long mMaxFileBytes;
+    private final long mMaxFileAge;
+    private final ErrorHandler mErrorHandler;
+
+    //queue, slot N holds frame N % QUEUE_SLOTS
+    private final long[] mQueueTimes = new long[QUEUE_SLOTS];
+    private final int[] mQueueIds = new int[QUEUE_SLOTS];
+    private final byte[] mQueueFlags = new byte[QUEUE_SLOTS];
+    private final byte[] mQueueIdDigits = new byte[QUEUE_SLOTS];
+    private final byte[] mQueueLengths = new byte[QUEUE_SLOTS];
+    private final byte[] mQueuePayloads = new byte[QUEUE_SLOTS * QUEUE_PAYLOAD];
+    private final AtomicLong mQueueHead = new AtomicLong(); //next slot the writer thread reads, only it advances this
+    private final AtomicLong mQueueTail = new AtomicLong(); //next slot offer() fills, only it advances this
+
+    private volatile boolean mFailed;
+    private volatile long mDropped;
+    private volatile long mWritten;
+    private volatile File mCurrentFile;
+
+    private WriteThread mWriteThread;
+
+
+    /**
+     * told about failures on the writer thread
+     */
+    public interface ErrorHandler {
+        /**
+         * @param message  what failed
+         * @param fatal  true if capture stopped (every frame offered from now on is dropped), false if only an index or closing a file failed
+         * @param e  the cause
+         */
+        void onError(final String message, final boolean fatal, final IOException e);
+    }
+
+
+    /**
+     * a writer for the first bus, see BusCaptureWriter(File, int, long, long, ErrorHandler)
+     */
+    public BusCaptureWriter(final File directory, final long maxFileBytes, final long maxFileAge, final ErrorHandler errorHandler) {
+        this(directory, 1, maxFileBytes, maxFileAge, errorHandler);
+    }
+
+    /**
+     * @param directory  where capture files are created
+     * @param bus  the bus number this writer records, any other bus gets files named FILE_PREFIX + "bus" + number + "_..." so they sit apart from the first bus's
+     * @param maxFileBytes  start a new file once the current one reaches this size
+     * @param maxFileAge  start a new file once the current one spans this many milliseconds, 0 for no limit
+     * @param errorHandler  told about failures, may be null
+     */
+    public BusCaptureWriter(final File directory, final int bus, final long maxFileBytes, final long maxFileAge, final ErrorHandler errorHandler) {
+        if (maxFileBytes < HEADER_SIZE + SYNC_SIZE + MAX_FRAME_RECORD) {
+            throw new IllegalArgumentException("BusCaptureWriter() : maxFileBytes is too small");
+        }
+
+        if (bus < 1) {
+            throw new IllegalArgumentException("BusCaptureWriter() : bus must be >= 1");
+        }
+
+        mDirectory = directory;
+        mBus = bus;
+        mMaxFileBytes = maxFileBytes;
+        mMaxFileAge = maxFileAge;
+        mErrorHandler = errorHandler;
+    }
+
+    public synchronized void start() {
+        if (mWriteThread == null) {
+            mWriteThread = new WriteThread();
+            mWriteThread.start();
+        }
+    }
+
+    /**
+     * writes whatever is still queued, closes the current file and stops the writer thread
+     */
+    public synchronized void stop() {
+        if (mWriteThread != null) {
+            mWriteThread.cancel();
+            mWriteThread = null;
+        }
+    }
+
+    /**
+     * queues a frame for writing, must only ever be called from one thread at a time
+     *
+     * @param type  the type of bus data
+     * @param time  when it was received (uptime millis)
+     * @param frame  the parsed frame, from the bus this writer records (its bus field is not looked at)
+     * @return  false if the queue was full and the frame was dropped
+     */
+    public boolean offer(final BusDataType type, final long time, final BusFrame frame) {
+        final long tail = mQueueTail.get();
+
+        if (mFailed || tail - mQueueHead.get() >= QUEUE_SLOTS) {
+            mDropped++;
+            return false;
+        }
+
+        final int slot = (int) (tail & (QUEUE_SLOTS - 1));
+        final int length = Math.min(frame.length, QUEUE_PAYLOAD);
+
+        int flags = type.ordinal() & FLAG_TYPE_MASK;
+        if (!frame.spaces) flags |= FLAG_NO_SPACES;
+        if (frame.length > QUEUE_PAYLOAD) flags |= FLAG_TRUNCATED;
+
+        mQueueTimes[slot] = time;
+        mQueueIds[slot] = frame.id;
+        mQueueFlags[slot] = (byte) flags;
+        mQueueIdDigits[slot] = (byte) frame.idDigits;
+        mQueueLengths[slot] = (byte) length;
+        System.arraycopy(frame.payload, 0, mQueuePayloads, slot * QUEUE_PAYLOAD, length);
+
+        //ordered store, the writer thread sees the slot contents before it sees the new tail
+        mQueueTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * @return  number of frames dropped because the writer thread could not keep up (or failed)
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return  number of frames written to files so far
+     */
+    public long getWritten() {
+        return mWritten;
+    }
+
+    /**
+     * @return  the file currently being written, or null
+     */
+    public File getCurrentFile() {
+        return mCurrentFile;
+    }
+
+    private void error(final String message, final boolean fatal, final IOException e) {
+        if (mErrorHandler != null) {
+            mErrorHandler.onError(message, fatal, e);
+        }
+    }
+
+
+    private class WriteThread extends Thread {
+        private volatile boolean mmCancelling;
+
+        private RandomAccessFile mmFile;
+        private FileChannel mmChannel;
+        private MappedByteBuffer mmMap;
+        private long mmMapStart;
+
+        private long mmFileFirstTime;
+        private long mmLastTime;
+        private long mmFileFrames;
+
+        private BusCaptureIndex.Writer mmIndex;
+        private final long[] mmBlockBitmap = new long[BusCaptureIndex.BITMAP_WORDS];
+        private long mmBlockOffset;
+        private long mmBlockFirstTime;
+        private int mmBlockFrames;
+
+        public WriteThread() {
+            setName("BusCaptureWriter" + mBus);
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    //check before draining so everything queued before cancel() still gets written
+                    final boolean cancelling = mmCancelling;
+
+                    final long tail = mQueueTail.get();
+                    long head = mQueueHead.get();
+
+                    if (head == tail) {
+                        if (cancelling) {
+                            break;
+                        }
+
+                        LockSupport.parkNanos(IDLE_PARK);
+                        continue;
+                    }
+
+                    for (; head < tail; head++) {
+                        writeFrame((int) (head & (QUEUE_SLOTS - 1)));
+                    }
+
+                    mQueueHead.lazySet(head);
+                }
+            } catch (IOException e) {
+                error("WriteThread.run() : capture stopped", true, e);
+
+                //stop accepting frames, offer() will count them as dropped
+                mFailed = true;
+            } finally {
+                closeFile();
+            }
+        }
+
+        public void cancel() {
+            mmCancelling = true;
+            LockSupport.unpark(this);
+
+            try {
+                join();
+            } catch (InterruptedException ignored) {}
+        }
+
+        private void writeFrame(final int slot) throws IOException {
+            final long time = mQueueTimes[slot];
+
+            if (mmFile == null) {
+                openFile(time);
+            } else if (mmMapStart + mmMap.position() >= mMaxFileBytes || (mMaxFileAge > 0 && time - mmFileFirstTime >= mMaxFileAge)) {
+                closeFile();
+                openFile(time);
+            }
+
+            if (mmFileFrames % SYNC_INTERVAL == 0) {
+                indexBlock();
+
+                ensureSpace(SYNC_SIZE);
+                mmBlockOffset = mmMapStart + mmMap.position();
+                mmBlockFirstTime = time;
+                mmMap.put(SYNC_MARKER);
+                mmMap.putLong(time);
+                mmMap.putLong(mmFileFrames);
+                mmLastTime = time;
+            }
+
+            ensureSpace(MAX_FRAME_RECORD);
+
+            final int length = mQueueLengths[slot] & 0xFF;
+
+            mmMap.put((byte) (RECORD_FRAME | mQueueFlags[slot]));
+            putVarLong(Math.max(0, time - mmLastTime));
+            mmMap.put(mQueueIdDigits[slot]);
+            putVarLong(mQueueIds[slot] & 0xFFFFFFFFL);
+            mmMap.put((byte) length);
+            mmMap.put(mQueuePayloads, slot * QUEUE_PAYLOAD, length);
+
+            final int bit = BusCaptureIndex.bitFor(mQueueIds[slot]);
+            mmBlockBitmap[bit >>> 6] |= 1L << (bit & 63);
+            mmBlockFrames++;
+
+            mmLastTime = time;
+            mmFileFrames++;
+            mWritten++;
+        }
+
+        private void indexBlock() {
+            if (mmBlockFrames > 0 && mmIndex != null) {
+                try {
+                    mmIndex.add(mmBlockOffset, mmBlockFirstTime, mmLastTime, mmBlockFrames, mmBlockBitmap);
+                } catch (IOException e) {
+                    //the capture matters more, BusCaptureIndex.open() rebuilds whatever the sidecar is missing
+                    error("WriteThread.indexBlock() : index stopped", false, e);
+                    closeIndex();
+                }
+            }
+
+            Arrays.fill(mmBlockBitmap, 0);
+            mmBlockFrames = 0;
+        }
+
+        private void closeIndex() {
+            if (mmIndex != null) {
+                try {
+                    mmIndex.close();
+                } catch (IOException ignored) {}
+
+                mmIndex = null;
+            }
+        }
+
+        private void putVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mmMap.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            mmMap.put((byte) value);
+        }
+
+        private void ensureSpace(final int bytes) throws IOException {
+            if (mmMap.remaining() < bytes) {
+                map(mmMapStart + mmMap.position());
+            }
+        }
+
+        private void map(final long start) throws IOException {
+            //extend the file ahead of the writes, the unused tail stays zero (RECORD_END) and is cut off when the file is closed
+            mmFile.setLength(start + MAP_CHUNK);
+            mmMap = mmChannel.map(FileChannel.MapMode.READ_WRITE, start, MAP_CHUNK);
+            mmMapStart = start;
+        }
+
+        private void openFile(final long time) throws IOException {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+                throw new IOException("unable to create " + mDirectory);
+            }
+
+            final long now = System.currentTimeMillis();
+            final String name = FILE_PREFIX + (mBus == 1 ? "" : "bus" + mBus + "_") + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date(now));
+
+            //names sort in the order the files were written, a busy bus can fill one within the same millisecond
+            File file = new File(mDirectory, name + FILE_EXTENSION);
+            for (int n = 1; file.exists(); n++) {
+                file = new File(mDirectory, name + "_" + n + FILE_EXTENSION);
+            }
+
+            mmFile = new RandomAccessFile(file, "rw");
+            mmFile.setLength(0);
+            mmChannel = mmFile.getChannel();
+            map(0);
+
+            mmMap.putInt(MAGIC);
+            mmMap.putInt(VERSION);
+            mmMap.putLong(now);
+            mmMap.putLong(time);
+            mmMap.putInt(mBus);
+            mmMap.position(HEADER_SIZE);
+
+            mmFileFirstTime = time;
+            mmLastTime = time;
+            mmFileFrames = 0;
+            mmBlockFrames = 0;
+
+            try {
+                mmIndex = new BusCaptureIndex.Writer(file);
+            } catch (IOException e) {
+                error("WriteThread.openFile() : no index", false, e);
+                mmIndex = null;
+            }
+
+            mCurrentFile = file;
+        }
+
+        private void closeFile() {
+            if (mmFile == null) {
+                return;
+            }
+
+            indexBlock();
+            closeIndex();
+
+            try {
+                if (mmMap != null) {
+                    final long length = mmMapStart + mmMap.position();
+                    mmMap.force();
+                    mmMap = null;
+                    mmFile.setLength(length);
+                }
+                mmFile.close();
+            } catch (IOException e) {
+                error("WriteThread.closeFile()", false, e);
+            }
+
+            mmFile = null;
+            mmChannel = null;
+            mCurrentFile = null;
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * compact, versioned binary encoding of bus data (a line with its BusDataType, rxComplete flag, time and bus number) and batches of it
+ * used to send bus data across Binder to clients in other processes (see CBIServiceMain.BOUND_MSG_NOTIFY_BUS_DATA_BATCH), BusData is Parcelable through it
+ *
+ * batch layout (big endian):
+ *      byte    MAGIC
+ *      byte    VERSION
+ *      int     number of records
+ *      long    base time (uptime millis), the first record's time is a delta from this
+ *      records...
+ *
+ * record layout:
+ *      byte    flags (bits 0-1 BusDataType ordinal, FLAG_* bits)
+ *      if FLAG_BUS:
+ *          byte    bus number, records without it are from the first bus (as is everything in a version 1 batch)
+ *      varint  time delta from the previous record (zigzag encoded)
+ *      if FLAG_FRAME (the line was a hex bus message):
+ *          byte    number of hex digits in the ID
+ *          varint  ID
+ *          varint  payload length
+ *          bytes   payload
+ *      else:
+ *          varint  UTF-8 length
+ *          bytes   UTF-8 text
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusDataCodec {
+    public static final int MAGIC = 0xCB;
+    public static final int VERSION = 2;
+
+    //well under the 1MB Binder transaction buffer, which is shared by every transaction in flight for the process
+    public static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    //Bundle key for an encoded batch
+    public static final String KEY_BATCH = "bus_data_batch";
+
+    private static final int HEADER_SIZE = 14;
+    private static final int COUNT_OFFSET = 2;
+
+    private static final int TYPE_MASK = 0x03;
+    private static final int FLAG_RX_COMPLETE = 0x04;
+    private static final int FLAG_FRAME = 0x08;
+    private static final int FLAG_NO_SPACES = 0x10;
+    private static final int FLAG_BUS = 0x20;
+
+    private static final int FIRST_BUS = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final BusDataType[] TYPES = BusDataType.values();
+
+
+    /**
+     * builds a single batch, add() refuses data once the batch would go over the size limit so the caller can send it and reset()
+     */
+    public static class Encoder {
+        private final int mMaxBytes;
+        private final BusFrame mFrame = new BusFrame();
+
+        private byte[] mBuffer;
+        private int mPosition;
+        private int mCount;
+        private long mLastTime;
+
+        public Encoder(final int maxBytes) {
+            mMaxBytes = Math.max(maxBytes, HEADER_SIZE + 64);
+            mBuffer = new byte[Math.min(mMaxBytes, 4096)];
+            reset();
+        }
+
+        public void reset() {
+            mPosition = HEADER_SIZE;
+            mCount = 0;
+            mLastTime = 0;
+        }
+
+        public boolean isEmpty() {
+            return mCount == 0;
+        }
+
+        public int count() {
+            return mCount;
+        }
+
+        public int size() {
+            return mPosition;
+        }
+
+        /**
+         * adds data from the first bus, see add(int, String, BusDataType, boolean, long)
+         */
+        public boolean add(final String data, final BusDataType type, final boolean rxComplete, final long time) {
+            return add(FIRST_BUS, data, type, rxComplete, time);
+        }
+
+        /**
+         * @param bus  the bus number it was sent on or received from (1 to 255)
+         * @param data  the line sent or received
+         * @param type  its type
+         * @param rxComplete  true if it completed an RX response
+         * @param time  uptime millis it was sent or received
+         * @return  false if the batch is full and the data was not added (a single record is always added to an empty batch)
+         */
+        public boolean add(final int bus, final String data, final BusDataType type, final boolean rxComplete, final long time) {
+            if (bus < 1 || bus > 255) {
+                throw new IllegalArgumentException("BusDataCodec.Encoder.add() : bus must be 1 to 255");
+            }
+
+            final boolean isFrame = mFrame.parse(data);
+
+            byte[] text = null;
+            int worstCase;
+            if (isFrame) {
+                worstCase = 1 + 1 + 10 + 1 + 5 + 5 + mFrame.length;
+            } else {
+                text = data == null ? new byte[0] : data.getBytes(UTF8);
+                worstCase = 1 + 1 + 10 + 5 + text.length;
+            }
+
+            if (mCount > 0 && mPosition + worstCase > mMaxBytes) {
+                return false;
+            }
+
+            ensureCapacity(mPosition + worstCase);
+
+            if (mCount == 0) {
+                mLastTime = time;
+                writeLong(HEADER_SIZE - 8, time);
+            }
+
+            int flags = type.ordinal() & TYPE_MASK;
+            if (rxComplete) flags |= FLAG_RX_COMPLETE;
+            if (isFrame) flags |= FLAG_FRAME;
+            if (isFrame && !mFrame.spaces) flags |= FLAG_NO_SPACES;
+            if (bus != FIRST_BUS) flags |= FLAG_BUS;
+
+            mBuffer[mPosition++] = (byte) flags;
+            if (bus != FIRST_BUS) {
+                mBuffer[mPosition++] = (byte) bus;
+            }
+            writeVarLong(zigZag(time - mLastTime));
+            mLastTime = time;
+
+            if (isFrame) {
+                mBuffer[mPosition++] = (byte) mFrame.idDigits;
+                writeVarLong(mFrame.id & 0xFFFFFFFFL);
+                writeVarLong(mFrame.length);
+                System.arraycopy(mFrame.payload, 0, mBuffer, mPosition, mFrame.length);
+                mPosition += mFrame.length;
+            } else {
+                writeVarLong(text.length);
+                System.arraycopy(text, 0, mBuffer, mPosition, text.length);
+                mPosition += text.length;
+            }
+
+            mCount++;
+            return true;
+        }
+
+        /**
+         * @return  a copy of the finished batch
+         */
+        public byte[] toByteArray() {
+            mBuffer[0] = (byte) MAGIC;
+            mBuffer[1] = (byte) VERSION;
+            mBuffer[COUNT_OFFSET] = (byte) (mCount >>> 24);
+            mBuffer[COUNT_OFFSET + 1] = (byte) (mCount >>> 16);
+            mBuffer[COUNT_OFFSET + 2] = (byte) (mCount >>> 8);
+            mBuffer[COUNT_OFFSET + 3] = (byte) mCount;
+
+            final byte[] batch = new byte[mPosition];
+            System.arraycopy(mBuffer, 0, batch, 0, mPosition);
+            return batch;
+        }
+
+        private void ensureCapacity(final int needed) {
+            if (needed > mBuffer.length) {
+                final byte[] grown = new byte[Math.max(needed, mBuffer.length * 2)];
+                System.arraycopy(mBuffer, 0, grown, 0, mPosition);
+                mBuffer = grown;
+            }
+        }
+
+        private void writeLong(final int offset, final long value) {
+            for (int b = 0; b < 8; b++) {
+                mBuffer[offset + b] = (byte) (value >>> (56 - b * 8));
+            }
+        }
+
+        private void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                mBuffer[mPosition++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            mBuffer[mPosition++] = (byte) value;
+        }
+    }
+
+
+    /**
+     * reads the records of a single batch in order, next() moves to each one and the getters return it
+     */
+    public static class Decoder {
+        private final byte[] mBuffer;
+        private final int mCount;
+        private final BusFrame mFrame = new BusFrame();
+
+        private int mPosition;
+        private int mRead;
+        private long mLastTime;
+
+        //the record next() moved to
+        private String mData;
+        private BusDataType mType;
+        private boolean mRxComplete;
+        private int mBus;
+
+        public Decoder(final byte[] batch) throws IllegalArgumentException {
+            if (batch == null || batch.length < HEADER_SIZE || (batch[0] & 0xFF) != MAGIC) {
+                throw new IllegalArgumentException("BusDataCodec.Decoder() : not an encoded batch");
+            }
+
+            if (batch[1] != VERSION && batch[1] != 1) {
+                throw new IllegalArgumentException("BusDataCodec.Decoder() : unsupported version " + batch[1]);
+            }
+
+            mBuffer = batch;
+            mCount = ((batch[COUNT_OFFSET] & 0xFF) << 24) | ((batch[COUNT_OFFSET + 1] & 0xFF) << 16) | ((batch[COUNT_OFFSET + 2] & 0xFF) << 8) | (batch[COUNT_OFFSET + 3] & 0xFF);
+
+            long base = 0;
+            for (int b = 0; b < 8; b++) {
+                base = (base << 8) | (batch[HEADER_SIZE - 8 + b] & 0xFF);
+            }
+            mLastTime = base;
+
+            mPosition = HEADER_SIZE;
+        }
+
+        public int count() {
+            return mCount;
+        }
+
+        public boolean hasNext() {
+            return mRead < mCount && mPosition < mBuffer.length;
+        }
+
+        /**
+         * moves to the next record, call only while hasNext()
+         */
+        public void next() {
+            final int flags = mBuffer[mPosition++] & 0xFF;
+            final int bus = (flags & FLAG_BUS) != 0 ? mBuffer[mPosition++] & 0xFF : FIRST_BUS;
+            final long time = mLastTime + unZigZag(readVarLong());
+            mLastTime = time;
+
+            final String data;
+            if ((flags & FLAG_FRAME) != 0) {
+                mFrame.clear();
+                mFrame.idDigits = mBuffer[mPosition++] & 0xFF;
+                mFrame.id = (int) readVarLong();
+                mFrame.length = (int) readVarLong();
+                mFrame.spaces = (flags & FLAG_NO_SPACES) == 0;
+                System.arraycopy(mBuffer, mPosition, mFrame.payload, 0, mFrame.length);
+                mPosition += mFrame.length;
+                data = mFrame.format();
+            } else {
+                final int length = (int) readVarLong();
+                data = new String(mBuffer, mPosition, length, UTF8);
+                mPosition += length;
+            }
+
+            mRead++;
+            mData = data;
+            mType = TYPES[flags & TYPE_MASK];
+            mRxComplete = (flags & FLAG_RX_COMPLETE) != 0;
+            mBus = bus;
+        }
+
+        public String getData() {
+            return mData;
+        }
+
+        public BusDataType getType() {
+            return mType;
+        }
+
+        public boolean isRxComplete() {
+            return mRxComplete;
+        }
+
+        /**
+         * @return  the bus number the record was sent on or received from, 1 for the first
+         */
+        public int getBus() {
+            return mBus;
+        }
+
+        /**
+         * @return  uptime millis the record was sent or received
+         */
+        public long getTime() {
+            return mLastTime;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = mBuffer[mPosition++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+
+    private static long zigZag(final long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(final long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
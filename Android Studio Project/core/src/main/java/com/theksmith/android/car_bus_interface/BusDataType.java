@@ -0,0 +1,12 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * what a line of bus data is
+ * the ordinal is stored in 2 bits by the binary formats (BusDataCodec, BusFrameRing, capture files), so the order must not change
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public enum BusDataType {
+    ERROR, TX, RX, RX_MONITORED
+}
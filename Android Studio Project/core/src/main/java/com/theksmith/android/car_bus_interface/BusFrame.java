@@ -0,0 +1,212 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * a reusable, allocation free holder for the binary form of a single bus message line as printed by the ELM327
+ * call parse() with a line (example: "7E8 03 41 0C 1A") to fill in the ID and payload bytes, then format() to get the line back
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusFrame {
+    public static final int MAX_PAYLOAD = 255;
+
+    public static final int NO_ID = -1;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    public int id = 0;
+    public int idDigits = 0;
+    public boolean spaces = true;
+    public final byte[] payload = new byte[MAX_PAYLOAD];
+    public int length = 0;
+
+    //the bus it was seen on (CBIServiceMain's bus number, 1 for the first), left alone by clear() and parse()
+    public int bus = 1;
+
+
+    /**
+     * parses a line into this frame, see parseId() for how the ID is determined
+     *
+     * @param line  a single message line with CR/LF already removed
+     * @return  true if the line was a hex bus message, false if it was anything else (this frame is then left cleared)
+     */
+    public boolean parse(final String line) {
+        clear();
+
+        if (line == null) {
+            return false;
+        }
+
+        final String trimmed = line.trim();
+
+        if (trimmed.indexOf(' ') < 0) {
+            return parseNoSpaces(trimmed);
+        }
+
+        final int end = trimmed.length();
+
+        int digits = 0;
+        int high = -1;
+        boolean inId = true;
+
+        for (int i = 0; i < end; i++) {
+            final char c = trimmed.charAt(i);
+
+            if (c == ' ') {
+                if (high >= 0) {
+                    //payload tokens are always whole bytes
+                    clear();
+                    return false;
+                }
+                inId = false;
+                continue;
+            }
+
+            final int value = Character.digit(c, 16);
+            if (value < 0) {
+                clear();
+                return false;
+            }
+
+            if (inId) {
+                if (digits >= 8) {
+                    clear();
+                    return false;
+                }
+                id = (id << 4) | value;
+                digits++;
+            } else if (high < 0) {
+                high = value;
+            } else {
+                if (length >= MAX_PAYLOAD) {
+                    clear();
+                    return false;
+                }
+                payload[length++] = (byte) ((high << 4) | value);
+                high = -1;
+            }
+        }
+
+        if (high >= 0) {
+            clear();
+            return false;
+        }
+
+        idDigits = digits;
+        return true;
+    }
+
+    private boolean parseNoSpaces(final String line) {
+        //no spaces (ATS0), the first 3 digits are an 11bit CAN ID and the rest is payload
+        final int end = line.length();
+
+        if (end < 3 || (end - 3) % 2 != 0 || (end - 3) / 2 > MAX_PAYLOAD) {
+            return false;
+        }
+
+        for (int i = 0; i < end; i++) {
+            final int value = Character.digit(line.charAt(i), 16);
+            if (value < 0) {
+                clear();
+                return false;
+            }
+
+            if (i < 3) {
+                id = (id << 4) | value;
+            } else if ((i - 3) % 2 == 0) {
+                payload[length] = (byte) (value << 4);
+            } else {
+                payload[length++] |= (byte) value;
+            }
+        }
+
+        idDigits = 3;
+        spaces = false;
+        return true;
+    }
+
+    public void clear() {
+        id = 0;
+        idDigits = 0;
+        spaces = true;
+        length = 0;
+    }
+
+    /**
+     * formats this frame back into the same text the ELM327 would have printed
+     *
+     * @return  the line
+     */
+    public String format() {
+        final char[] chars = new char[idDigits + length * 3];
+        int c = 0;
+
+        for (int d = idDigits - 1; d >= 0; d--) {
+            chars[c++] = HEX_DIGITS[(id >>> (d * 4)) & 0xF];
+        }
+
+        for (int b = 0; b < length; b++) {
+            if (spaces) {
+                chars[c++] = ' ';
+            }
+            chars[c++] = HEX_DIGITS[(payload[b] >> 4) & 0xF];
+            chars[c++] = HEX_DIGITS[payload[b] & 0xF];
+        }
+
+        return new String(chars, 0, c);
+    }
+
+    /**
+     * parses the header/arbitration ID from the start of a bus message as printed by the ELM327
+     * with spaces on (ATS1) the ID is the first hex token (example: "7E8 03 41 0C 1A" or "3D 11 00 80 C8")
+     * with spaces off (ATS0) the ID is assumed to be an 11bit CAN ID in the first 3 hex digits (example: "7E803410C1A")
+     *
+     * @param line  a single message line with CR/LF already removed
+     * @return  the ID or NO_ID if the line is not made up only of hex digits and spaces
+     */
+    public static int parseId(final String line) {
+        if (line == null) {
+            return NO_ID;
+        }
+
+        final int length = line.length();
+
+        int id = 0;
+        int digits = 0;
+        boolean inFirstToken = true;
+
+        for (int i = 0; i < length; i++) {
+            final char c = line.charAt(i);
+
+            if (c == ' ') {
+                if (digits > 0) {
+                    inFirstToken = false;
+                }
+                continue;
+            }
+
+            final int value = Character.digit(c, 16);
+            if (value < 0) {
+                return NO_ID;
+            }
+
+            if (inFirstToken) {
+                if (digits < 8) {
+                    id = (id << 4) | value;
+                }
+                digits++;
+            }
+        }
+
+        if (digits == 0) {
+            return NO_ID;
+        }
+
+        if (inFirstToken && digits > 3) {
+            //no spaces, take the 11bit ID from the first 3 digits
+            id = Integer.parseInt(line.trim().substring(0, 3), 16);
+        }
+
+        return id;
+    }
+}
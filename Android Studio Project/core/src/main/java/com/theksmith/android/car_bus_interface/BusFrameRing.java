@@ -0,0 +1,331 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * a single-writer, multi-reader ring of bus frames laid out in a shared memory region
+ * CBIServiceMain publishes every received bus message into a memory-mapped file and hands read-only descriptors to bound clients (see BOUND_MSG_GET_FRAME_RING)
+ * any number of readers can then follow the traffic at their own pace without any IPC per frame, a reader that falls too far behind is lapped and told how many frames it lost
+ *
+ * region layout (big endian):
+ *      header (HEADER_SIZE bytes):
+ *          int     MAGIC
+ *          int     VERSION
+ *          int     number of slots
+ *          int     slot size
+ *          long    sequence number of the latest published frame (0 when empty)
+ *      slots (SLOT_SIZE bytes each, frame N is stored in slot N % slots):
+ *          long    sequence number of the frame in the slot, negative while the writer is changing it
+ *          long    time (uptime millis)
+ *          int     ID
+ *          byte    BusDataType ordinal
+ *          byte    number of hex digits in the ID, high bit set if the ELM327 printed without spaces
+ *          byte    payload length (as received, may be more than SLOT_PAYLOAD if truncated)
+ *          byte    bus number (1 for the first)
+ *          bytes   payload (SLOT_PAYLOAD bytes)
+ *
+ * the slot sequence number is a seqlock, the writer makes it negative, fills the slot, then sets it to the frame's sequence number
+ * and a reader copies the slot between two reads of it, keeping the copy only if both were the sequence number it wanted
+ * readers are usually in other processes, so there is no happens-before to lean on, each side orders its own accesses with fullFence()
+ * (which rests on how the runtimes compile volatile accesses, not on anything the Java memory model promises, see there)
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusFrameRing {
+    public static final int MAGIC = 0xCB1F0001;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 64;
+    public static final int SLOT_SIZE = 48;
+    public static final int SLOT_PAYLOAD = 24;
+
+    public static final int DEFAULT_SLOTS = 8192;
+
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SLOTS = 8;
+    private static final int HEADER_SLOT_SIZE = 12;
+    private static final int HEADER_WRITE_SEQUENCE = 16;
+
+    private static final int SLOT_SEQUENCE = 0;
+    private static final int SLOT_TIME = 8;
+    private static final int SLOT_ID = 16;
+    private static final int SLOT_TYPE = 20;
+    private static final int SLOT_ID_DIGITS = 21;
+    private static final int SLOT_LENGTH = 22;
+    private static final int SLOT_BUS = 23;
+    private static final int SLOT_DATA = 24;
+
+    private static final int NO_SPACES_BIT = 0x80;
+
+    private static final long READER_WAIT_SLEEP = 2; //milliseconds
+
+    //only used by fullFence(), what it holds does not matter
+    private static volatile long sFence;
+
+    private final ByteBuffer mBuffer;
+    private final int mSlots;
+
+    private long mWriteSequence;
+
+
+    private BusFrameRing(final ByteBuffer buffer, final int slots) {
+        mBuffer = buffer;
+        mSlots = slots;
+    }
+
+    /**
+     * plain ByteBuffer accesses have no ordering guarantees, this is meant to keep every access before it ahead of every access after it (loads and stores both ways)
+     *
+     * the Java memory model does not promise that: it only orders accesses for threads that read the same volatile field, and says nothing at all about another process
+     * what is relied on is how HotSpot and ART (as of this writing) compile a volatile store followed by a volatile load, with barrier instructions
+     * (a locked instruction or mfence on x86, dmb or stlr/ldar on ARM) that the JIT does not move buffer accesses across and that the CPU then honours for every observer of the memory
+     * a runtime that compiled it differently could let a reader see a torn or stale slot, nothing detects that (Java 9's VarHandle.fullFence() would at least be
+     * specified for threads, but is not available on Android)
+     */
+    private static long fullFence() {
+        sFence = 0;
+        return sFence;
+    }
+
+    /**
+     * creates the backing file and maps it for writing
+     * an existing file is deleted rather than truncated, readers may still have it mapped and would crash (SIGBUS) reading past its new end,
+     * instead they keep the old ring, which gets no more frames, until they open the new one
+     *
+     * @param file  the file to share, for example in getCacheDir()
+     * @param slots  the number of frames the ring holds before readers get lapped
+     * @return  the writer
+     * @throws IOException  if the file can not be created or mapped
+     */
+    public static BusFrameRing createWriter(final File file, final int slots) throws IOException {
+        final int size = HEADER_SIZE + slots * SLOT_SIZE;
+
+        if (file.exists() && !file.delete()) {
+            throw new IOException("BusFrameRing.createWriter() : can not replace " + file);
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+
+            final ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(HEADER_MAGIC, MAGIC);
+            buffer.putInt(HEADER_VERSION, VERSION);
+            buffer.putInt(HEADER_SLOTS, slots);
+            buffer.putInt(HEADER_SLOT_SIZE, SLOT_SIZE);
+            buffer.putLong(HEADER_WRITE_SEQUENCE, 0);
+
+            return new BusFrameRing(buffer, slots);
+        } finally {
+            //the mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    /**
+     * maps an existing ring read-only, for example from the ParcelFileDescriptor sent with BOUND_MSG_FRAME_RING
+     *
+     * @param fd  a readable descriptor for the ring file
+     * @return  a new reader positioned at the latest frame
+     * @throws IOException  if the descriptor can not be mapped or is not a ring
+     */
+    public static Reader openReader(final FileDescriptor fd) throws IOException {
+        final FileInputStream stream = new FileInputStream(fd);
+        final FileChannel channel = stream.getChannel();
+        return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * @return  a reader for this ring in the same process
+     */
+    public Reader newReader() {
+        return new Reader(mBuffer.duplicate());
+    }
+
+    /**
+     * publishes a frame, must only ever be called from one thread at a time
+     *
+     * @param type  the type of bus data
+     * @param time  when it was received (uptime millis)
+     * @param frame  the parsed frame, with the bus it came from
+     */
+    public void publish(final BusDataType type, final long time, final BusFrame frame) {
+        final long sequence = mWriteSequence + 1;
+        final int slot = HEADER_SIZE + (int) (sequence % mSlots) * SLOT_SIZE;
+
+        mBuffer.putLong(slot + SLOT_SEQUENCE, -sequence);
+        //the negative sequence number must be visible before any of the slot changes
+        fullFence();
+
+        mBuffer.putLong(slot + SLOT_TIME, time);
+        mBuffer.putInt(slot + SLOT_ID, frame.id);
+        mBuffer.put(slot + SLOT_TYPE, (byte) type.ordinal());
+        mBuffer.put(slot + SLOT_ID_DIGITS, (byte) (frame.idDigits | (frame.spaces ? 0 : NO_SPACES_BIT)));
+        mBuffer.put(slot + SLOT_LENGTH, (byte) Math.min(frame.length, 255));
+        mBuffer.put(slot + SLOT_BUS, (byte) frame.bus);
+
+        final int copy = Math.min(frame.length, SLOT_PAYLOAD);
+        for (int b = 0; b < copy; b++) {
+            mBuffer.put(slot + SLOT_DATA + b, frame.payload[b]);
+        }
+
+        //and the whole slot before the new sequence number
+        fullFence();
+        mBuffer.putLong(slot + SLOT_SEQUENCE, sequence);
+        fullFence();
+        mBuffer.putLong(HEADER_WRITE_SEQUENCE, sequence);
+
+        mWriteSequence = sequence;
+    }
+
+
+    /**
+     * follows the ring from a position of its own, readers are cheap and independent of each other
+     */
+    public static class Reader {
+        public static final int EMPTY = -1;
+
+        private static final BusDataType[] TYPES = BusDataType.values();
+
+        private final ByteBuffer mmBuffer;
+        private final int mmSlots;
+
+        private long mmNextSequence;
+        private long mmLost;
+        private long mmTime;
+        private boolean mmTruncated;
+
+        private Reader(final ByteBuffer buffer) throws IllegalArgumentException {
+            if (buffer.getInt(HEADER_MAGIC) != MAGIC || buffer.getInt(HEADER_VERSION) != VERSION || buffer.getInt(HEADER_SLOT_SIZE) != SLOT_SIZE) {
+                throw new IllegalArgumentException("BusFrameRing.Reader() : not a supported ring");
+            }
+
+            mmBuffer = buffer;
+            mmSlots = buffer.getInt(HEADER_SLOTS);
+            mmNextSequence = writeSequence() + 1;
+        }
+
+        private long writeSequence() {
+            final long written = mmBuffer.getLong(HEADER_WRITE_SEQUENCE);
+            //the slots are read after the header that says they are there
+            fullFence();
+            return written;
+        }
+
+        /**
+         * moves the position back so the next poll() returns the oldest frame still in the ring
+         */
+        public void rewind() {
+            mmNextSequence = Math.max(1, writeSequence() - mmSlots + 2);
+        }
+
+        /**
+         * reads the next frame if there is one
+         *
+         * @param frame  receives the frame (the payload is cut off at SLOT_PAYLOAD bytes, see wasTruncated())
+         * @return  the BusDataType ordinal of the frame, or EMPTY if the reader is caught up
+         */
+        public int poll(final BusFrame frame) {
+            while (true) {
+                final long written = writeSequence();
+
+                if (mmNextSequence > written) {
+                    return EMPTY;
+                }
+
+                if (written - mmNextSequence >= mmSlots - 1) {
+                    //lapped, skip ahead to the oldest frame that can't be overwritten while we read it
+                    final long oldest = written - mmSlots + 2;
+                    mmLost += oldest - mmNextSequence;
+                    mmNextSequence = oldest;
+                }
+
+                final int slot = HEADER_SIZE + (int) (mmNextSequence % mmSlots) * SLOT_SIZE;
+
+                final long before = mmBuffer.getLong(slot + SLOT_SEQUENCE);
+                if (before != mmNextSequence) {
+                    //the writer got to this slot first, re-check how far behind we are
+                    continue;
+                }
+
+                //the copy is read after the sequence number it goes with
+                fullFence();
+
+                frame.clear();
+                mmTime = mmBuffer.getLong(slot + SLOT_TIME);
+                frame.id = mmBuffer.getInt(slot + SLOT_ID);
+                final int type = mmBuffer.get(slot + SLOT_TYPE);
+                final int digits = mmBuffer.get(slot + SLOT_ID_DIGITS) & 0xFF;
+                frame.idDigits = digits & ~NO_SPACES_BIT;
+                frame.spaces = (digits & NO_SPACES_BIT) == 0;
+                final int length = mmBuffer.get(slot + SLOT_LENGTH) & 0xFF;
+                frame.length = Math.min(length, SLOT_PAYLOAD);
+                frame.bus = mmBuffer.get(slot + SLOT_BUS) & 0xFF;
+                mmTruncated = length > SLOT_PAYLOAD;
+                for (int b = 0; b < frame.length; b++) {
+                    frame.payload[b] = mmBuffer.get(slot + SLOT_DATA + b);
+                }
+
+                //and before checking the writer did not start on the slot meanwhile
+                fullFence();
+                final long after = mmBuffer.getLong(slot + SLOT_SEQUENCE);
+                if (after != before) {
+                    //overwritten while reading
+                    continue;
+                }
+
+                mmNextSequence++;
+                return type >= 0 && type < TYPES.length ? type : 0;
+            }
+        }
+
+        /**
+         * waits until there is a frame to poll() or the time runs out
+         *
+         * @param timeout  milliseconds, 0 to only check
+         * @return  true if a frame is available
+         * @throws InterruptedException  if the waiting thread is interrupted
+         */
+        public boolean await(final long timeout) throws InterruptedException {
+            final long deadline = System.nanoTime() + timeout * 1000000L;
+
+            while (mmNextSequence > writeSequence()) {
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+                Thread.sleep(READER_WAIT_SLEEP);
+            }
+
+            return true;
+        }
+
+        /**
+         * @return  time of the frame returned by the last poll() (uptime millis)
+         */
+        public long getTime() {
+            return mmTime;
+        }
+
+        /**
+         * @return  true if the payload of the frame returned by the last poll() did not fit in a slot
+         */
+        public boolean wasTruncated() {
+            return mmTruncated;
+        }
+
+        /**
+         * @return  total number of frames this reader missed because it was lapped by the writer
+         */
+        public long getLost() {
+            return mmLost;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * the on-disk copy of CBIServiceMain's bus log (everything sent to or received from the bus), so bound clients can still catch up after the service was killed
+ *
+ * an append-only file of BusDataCodec batches, written by a thread of its own so the caller only hands over the encoded batch
+ * once the file reaches a maximum size it replaces the previous file and a new one is started, so at most two files (about twice the maximum size) are kept
+ *
+ * file layout (big endian), a sequence of records:
+ *      int     batch length
+ *      long    wall clock time minus uptime when the batch was written (System.currentTimeMillis() - uptime millis), see read()
+ *      bytes   the BusDataCodec batch
+ * a record cut short when the process died is ignored by read(), and cut off before anything more is appended
+ *
+ * failures happen on the writer thread, they are passed to an ErrorHandler (CBIServiceMain logs them)
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusLogFile {
+    public static final String FILE_NAME = "bus_log.cblog";
+    public static final String PREVIOUS_FILE_NAME = "bus_log_previous.cblog";
+
+    public static final long DEFAULT_MAX_FILE_BYTES = 2L * 1024 * 1024;
+
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+    private static final int MAX_BATCH_BYTES = 16 * 1024 * 1024; //anything longer is a corrupt length, not a batch
+
+    private final File mFile;
+    private final File mPreviousFile;
+    private final long mMaxFileBytes;
+    private final ErrorHandler mErrorHandler;
+
+    private WriteThread mWriteThread;
+
+
+    /**
+     * told about failures on the writer thread
+     */
+    public interface ErrorHandler {
+        /**
+         * @param message  what failed
+         * @param e  the cause, the batch being written is lost but later ones are tried again
+         */
+        void onError(final String message, final IOException e);
+    }
+
+    /**
+     * given the batches read back by read(), oldest first
+     */
+    public interface BatchHandler {
+        /**
+         * @param batch  a BusDataCodec batch
+         * @param timeShift  add this to the batch's times to put them on the current uptime base (0 if written since the last boot)
+         */
+        void onBatch(final byte[] batch, final long timeShift);
+    }
+
+
+    /**
+     * @param directory  where the log files are kept
+     * @param maxFileBytes  start a new file once the current one reaches this size
+     * @param errorHandler  told about failures, may be null
+     */
+    public BusLogFile(final File directory, final long maxFileBytes, final ErrorHandler errorHandler) {
+        if (maxFileBytes <= 0) {
+            throw new IllegalArgumentException("BusLogFile() : maxFileBytes must be > 0");
+        }
+
+        mFile = new File(directory, FILE_NAME);
+        mPreviousFile = new File(directory, PREVIOUS_FILE_NAME);
+        mMaxFileBytes = maxFileBytes;
+        mErrorHandler = errorHandler;
+    }
+
+    /**
+     * reads back every batch in the log files of a directory, oldest first
+     *
+     * uptime starts over at each boot, so each batch's times are shifted by how much the wall clock minus uptime has moved since it was written,
+     * data from an earlier boot comes out with times before this boot (negative uptime) but still the right wall clock time and spacing
+     *
+     * @param directory  where the log files are kept
+     * @param clockOffset  the current wall clock time minus uptime (System.currentTimeMillis() - SystemClock.uptimeMillis())
+     * @param handler  given each batch
+     * @throws IOException  if a file exists but can not be read
+     */
+    public static void read(final File directory, final long clockOffset, final BatchHandler handler) throws IOException {
+        readFile(new File(directory, PREVIOUS_FILE_NAME), clockOffset, handler);
+        readFile(new File(directory, FILE_NAME), clockOffset, handler);
+    }
+
+    private static void readFile(final File file, final long clockOffset, final BatchHandler handler) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                final int length;
+                final long offset;
+                final byte[] batch;
+
+                try {
+                    length = in.readInt();
+                    if (length <= 0 || length > MAX_BATCH_BYTES) {
+                        return;
+                    }
+
+                    offset = in.readLong();
+                    batch = new byte[length];
+                    in.readFully(batch);
+                } catch (EOFException e) {
+                    //the end, or a record cut short
+                    return;
+                }
+
+                //a wall clock that was set while the service ran moves the offset by a little, only a reboot moves it by much
+                handler.onBatch(batch, offset - clockOffset);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public synchronized void start() {
+        if (mWriteThread == null) {
+            mWriteThread = new WriteThread();
+            mWriteThread.start();
+        }
+    }
+
+    /**
+     * writes whatever is still queued and stops the writer thread
+     */
+    public synchronized void stop() {
+        if (mWriteThread != null) {
+            mWriteThread.cancel();
+            mWriteThread = null;
+        }
+    }
+
+    /**
+     * queues a batch for writing, does nothing unless started
+     *
+     * @param batch  a BusDataCodec batch (see BusDataCodec.Encoder.toByteArray())
+     * @param clockOffset  the wall clock time minus uptime now, see read()
+     */
+    public synchronized void append(final byte[] batch, final long clockOffset) {
+        if (mWriteThread == null || batch.length == 0) {
+            return;
+        }
+
+        final byte[] record = new byte[RECORD_HEADER_SIZE + batch.length];
+        putInt(record, 0, batch.length);
+        putLong(record, 4, clockOffset);
+        System.arraycopy(batch, 0, record, RECORD_HEADER_SIZE, batch.length);
+
+        mWriteThread.mmQueue.add(record);
+    }
+
+    /**
+     * @return  the length of the whole records at the start of the file, the file is cut to that length
+     */
+    private static long truncateToRecords(final File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final long length = raf.length();
+            long good = 0;
+
+            while (good + RECORD_HEADER_SIZE <= length) {
+                raf.seek(good);
+                final int batch = raf.readInt();
+                if (batch <= 0 || batch > MAX_BATCH_BYTES || good + RECORD_HEADER_SIZE + batch > length) {
+                    break;
+                }
+                good += RECORD_HEADER_SIZE + batch;
+            }
+
+            if (good < length) {
+                raf.setLength(good);
+            }
+
+            return good;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void putInt(final byte[] buffer, final int offset, final int value) {
+        for (int b = 0; b < 4; b++) {
+            buffer[offset + b] = (byte) (value >>> (24 - b * 8));
+        }
+    }
+
+    private static void putLong(final byte[] buffer, final int offset, final long value) {
+        for (int b = 0; b < 8; b++) {
+            buffer[offset + b] = (byte) (value >>> (56 - b * 8));
+        }
+    }
+
+    private void error(final String message, final IOException e) {
+        if (mErrorHandler != null) {
+            mErrorHandler.onError(message, e);
+        }
+    }
+
+
+    private class WriteThread extends Thread {
+        //a record of length 0 wakes the thread to stop
+        private final byte[] mmStop = new byte[0];
+        private final BlockingQueue<byte[]> mmQueue = new LinkedBlockingQueue<byte[]>();
+
+        private FileOutputStream mmOut;
+        private long mmLength;
+
+        public WriteThread() {
+            setName("BusLogFile");
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    final byte[] record = mmQueue.take();
+                    if (record == mmStop) {
+                        break;
+                    }
+
+                    try {
+                        write(record);
+                    } catch (IOException e) {
+                        error("WriteThread.run() : batch lost", e);
+
+                        //opened again for the next batch, cutting off whatever part of this one got written
+                        closeFile();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                closeFile();
+            }
+        }
+
+        public void cancel() {
+            //everything queued before this is written first
+            mmQueue.add(mmStop);
+
+            try {
+                join();
+            } catch (InterruptedException ignored) {}
+        }
+
+        private void write(final byte[] record) throws IOException {
+            if (mmOut != null && mmLength >= mMaxFileBytes) {
+                closeFile();
+
+                if (mPreviousFile.exists() && !mPreviousFile.delete()) {
+                    throw new IOException("unable to delete " + mPreviousFile);
+                }
+                if (!mFile.renameTo(mPreviousFile)) {
+                    throw new IOException("unable to rename " + mFile);
+                }
+            }
+
+            if (mmOut == null) {
+                final File directory = mFile.getParentFile();
+                if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("unable to create " + directory);
+                }
+
+                //a process that died mid-write leaves a record cut short, appending after it would hide everything that follows from read()
+                mmLength = truncateToRecords(mFile);
+                mmOut = new FileOutputStream(mFile, true);
+            }
+
+            //one write per record, so a kill can only cut the last one short
+            mmOut.write(record);
+            mmLength += record.length;
+        }
+
+        private void closeFile() {
+            if (mmOut != null) {
+                try {
+                    mmOut.close();
+                } catch (IOException e) {
+                    error("WriteThread.closeFile()", e);
+                }
+
+                mmOut = null;
+            }
+        }
+    }
+}
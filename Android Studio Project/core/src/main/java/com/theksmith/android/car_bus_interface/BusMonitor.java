@@ -0,0 +1,69 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * the settings of one bus msg monitor (see BusMessageProcessor for what the values mean)
+ * stored as a single preference string: "msg|silenceErrors|bounceTime|shortTime|longTime|longWatchTime|shortAction|longAction|bus"
+ * bus is optional, the number of the interface device (see CBIServiceMain's adapter sessions) whose traffic is watched, 1 if missing
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusMonitor {
+    private static final String SETTING_SEPARATOR_REGEX = "\\|";
+
+    public static final int DEFAULT_BUS = 1;
+
+    public final String message;
+    public final boolean silenceErrors;
+    public final long bounceTime;
+    public final long shortTime;
+    public final long longTime;
+    public final long longWatchTime;
+    public final String shortAction;
+    public final String longAction;
+    public final int bus;
+
+
+    public BusMonitor(final String message, final boolean silenceErrors, final long bounceTime, final long shortTime, final long longTime, final long longWatchTime, final String shortAction, final String longAction) {
+        this(message, silenceErrors, bounceTime, shortTime, longTime, longWatchTime, shortAction, longAction, DEFAULT_BUS);
+    }
+
+    public BusMonitor(final String message, final boolean silenceErrors, final long bounceTime, final long shortTime, final long longTime, final long longWatchTime, final String shortAction, final String longAction, final int bus) {
+        if (bus < 1) {
+            throw new IllegalArgumentException("BusMonitor() : bus must be 1 or more");
+        }
+
+        this.message = message;
+        this.silenceErrors = silenceErrors;
+        this.bounceTime = bounceTime;
+        this.shortTime = shortTime;
+        this.longTime = longTime;
+        this.longWatchTime = longWatchTime;
+        this.shortAction = shortAction;
+        this.longAction = longAction;
+        this.bus = bus;
+    }
+
+    /**
+     * @param setting  the preference string
+     * @return  the monitor
+     * @throws IllegalArgumentException  if the string does not have the first 8 values or a time or bus is not a number
+     */
+    public static BusMonitor parse(final String setting) throws IllegalArgumentException {
+        final String[] args = setting.split(SETTING_SEPARATOR_REGEX);
+        if (args.length < 8) {
+            throw new IllegalArgumentException("BusMonitor.parse() : expected 8 values separated by | but found " + args.length);
+        }
+
+        return new BusMonitor(
+                args[0].trim(),
+                Boolean.parseBoolean(args[1].trim()),
+                Long.parseLong(args[2].trim(), 10),
+                Long.parseLong(args[3].trim(), 10),
+                Long.parseLong(args[4].trim(), 10),
+                Long.parseLong(args[5].trim(), 10),
+                args[6].trim(),
+                args[7].trim(),
+                args.length > 8 && !args[8].trim().equals("") ? Integer.parseInt(args[8].trim(), 10) : DEFAULT_BUS);
+    }
+}
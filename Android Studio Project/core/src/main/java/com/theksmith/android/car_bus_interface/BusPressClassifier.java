@@ -0,0 +1,190 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.ArrayList;
+
+
+/**
+ * the timing logic of BusMessageProcessor, tells apart bounces and short versus long groups of repeats of one bus msg
+ * it never reads a clock itself, every call is given the time, so it can be driven by a ManualClock as fast as the CPU allows
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusPressClassifier {
+    public static enum EventType {
+        UNKNOWN, IGNORED, SHORT, LONG
+    }
+
+    private static class MessageEvent {
+        public long time = 0;
+        public EventType type = EventType.UNKNOWN;
+        public boolean shouldActOn = false;
+        public boolean didActOn = false;
+    }
+
+    private final ArrayList<MessageEvent> mEvents = new ArrayList<MessageEvent>();
+
+    private final long mTimeToIgnoreAfterAction;
+    private final long mMinTimeToGroupAsShort;
+    private final long mMinTimeToGroupAsLong;
+    private final long mMaxTimeToWatchForLong;
+
+    private final boolean mRespondToEveryEvent;
+
+
+    /**
+     * see BusMessageProcessor for the meaning of the times, all are in milliseconds
+     */
+    public BusPressClassifier(final long timeToIgnoreRepeatsAfterAction, final long minTimeToGroupRepeatsAsShort, final long minTimeToGroupRepeatsAsLong, final long maxTimeToWatchForLong) {
+        mTimeToIgnoreAfterAction = timeToIgnoreRepeatsAfterAction;
+        mMinTimeToGroupAsShort = minTimeToGroupRepeatsAsShort;
+        mMinTimeToGroupAsLong = minTimeToGroupRepeatsAsLong;
+        mMaxTimeToWatchForLong = maxTimeToWatchForLong;
+
+        //special case of all time settings zero, then respond to every event with whatever action is defined for a SHORT
+        mRespondToEveryEvent = mTimeToIgnoreAfterAction <= 0 && mMinTimeToGroupAsShort <= 0 && mMinTimeToGroupAsLong <= 0;
+
+        //seed the log with an IGNORED event with time=0 and didActOn=true
+        //this way all the standard logic in analyzeLatestEvent() will just work
+        final MessageEvent first = new MessageEvent();
+        first.type = EventType.IGNORED;
+        first.didActOn = true;
+        mEvents.add(first);
+    }
+
+    public boolean respondsToEveryEvent() {
+        return mRespondToEveryEvent;
+    }
+
+    /**
+     * @param time  when the bus msg was seen (uptime millis)
+     */
+    public synchronized void logEvent(final long time) {
+        final MessageEvent event = new MessageEvent();
+        event.time = time;
+        mEvents.add(event);
+    }
+
+    /**
+     * analyzes the latest event as of a point in time, call this regularly (BusMessageProcessor does every PROCESSOR_TICK_TIME)
+     *
+     * @param now  the current time (uptime millis)
+     * @return  SHORT or LONG if an action is due now (it is then considered acted upon), otherwise null
+     */
+    public synchronized EventType process(final long now) {
+        final int latestIndex = analyzeLatestEvent(now);
+        final MessageEvent latestEvent = mEvents.get(latestIndex);
+
+        if (latestEvent.shouldActOn && !latestEvent.didActOn) {
+            //mark it as acted upon in the event log
+            latestEvent.didActOn = true;
+
+            mEvents.subList(0, latestIndex).clear();
+
+            return latestEvent.type;
+        }
+
+        return null;
+    }
+
+    /**
+     * @return  number of events held, stays small since the log is trimmed each time an action is due
+     */
+    public synchronized int size() {
+        return mEvents.size();
+    }
+
+    private int analyzeLatestEvent(final long now) {
+        final int latestIndex = mEvents.size() - 1;
+        final MessageEvent latestEvent = mEvents.get(latestIndex);
+
+        if (latestEvent.type != EventType.UNKNOWN) {
+            //already analyzed this event to a positive conclusion, just return it's index
+            return latestIndex;
+        }
+
+        if (mRespondToEveryEvent) {
+            //responding to every event, no need for logic, mark it a SHORT
+            latestEvent.type = EventType.SHORT;
+        } else {
+            //gather info needed for main analysis logic
+
+            long spanNowToLatestActedUpon = 0;
+            long spanNowToFirstUnknownSinceLatestActedUpon = 0;
+            int countUnknownsSinceLatestActedUpon = 0;
+            long spanMaxBetweenUnknownsSinceLatestActedUpon = 0;
+
+            MessageEvent latestUnknown = null;
+            for (int i = latestIndex; i >= 0; i--) {
+                final MessageEvent event = mEvents.get(i);
+
+                if (event.type == EventType.UNKNOWN) {
+                    countUnknownsSinceLatestActedUpon++;
+
+                    if (latestUnknown == null) {
+                        latestUnknown = event;
+                    }
+
+                    spanNowToFirstUnknownSinceLatestActedUpon = now - event.time;
+                    spanMaxBetweenUnknownsSinceLatestActedUpon = latestUnknown.time - event.time;
+                }
+
+                if (event.didActOn) {
+                    spanNowToLatestActedUpon = now - event.time;
+                    break;
+                }
+            }
+
+            //begin main analysis logic
+
+            if (mTimeToIgnoreAfterAction > 0 && spanNowToLatestActedUpon <= mTimeToIgnoreAfterAction) {
+                //this is an ignore period and we are still within that period, mark it to IGNORE
+                latestEvent.type = EventType.IGNORED;
+            } else if (mMinTimeToGroupAsLong > 0) {
+                //the possibility of an IGNORE has been eliminated
+
+                if (mMinTimeToGroupAsShort > 0) {
+                    //must be watching for a LONG or SHORT
+
+                    if (spanNowToFirstUnknownSinceLatestActedUpon >= mMaxTimeToWatchForLong) {
+                        //the LONG watch time was met so must be a LONG or SHORT
+
+                        if (countUnknownsSinceLatestActedUpon > 1 && spanMaxBetweenUnknownsSinceLatestActedUpon >= mMinTimeToGroupAsLong) {
+                            //there were multiple UNKNOWN and the distance between them meets the LONG requirement
+                            latestEvent.type = EventType.LONG;
+                        } else {
+                            //one or less UNKNOWN, or the distance between them did not meet the LONG requirement
+                            //due to timeout it has to be a SHORT (it may or may not have met the SHORT requirement though)
+                            latestEvent.type = EventType.SHORT;
+                        }
+                    }
+                    //else keep watching for the LONG or SHORT
+                } else {
+                    //the possibility of a SHORT has been eliminated, must be watching for a LONG
+
+                    if (spanNowToFirstUnknownSinceLatestActedUpon >= mMinTimeToGroupAsLong && countUnknownsSinceLatestActedUpon > 0) {
+                        //the LONG time was met and there was at least one UNKNOWN that could have been the LONG
+                        //we didn't need to wait till the max LONG watch time since we were only watching for LONG
+                        latestEvent.type = EventType.LONG;
+                    }
+                    //else keep watching for the LONG
+                }
+            } else {
+                //the possibility of an IGNORE or a LONG has been eliminated, must be watching for a SHORT
+
+                if (spanNowToFirstUnknownSinceLatestActedUpon >= mMinTimeToGroupAsShort && countUnknownsSinceLatestActedUpon > 0) {
+                    //the SHORT time was met and there was at least one UNKNOWN that could have been the SHORT
+                    //we didn't need to wait till the max SHORT watch time since we were only watching for SHORT
+                    latestEvent.type = EventType.SHORT;
+                }
+                //else keep watching for the SHORT
+            }
+        }
+
+        if (latestEvent.type != EventType.IGNORED && latestEvent.type != EventType.UNKNOWN) {
+            //we found an event type that should be acted upon
+            latestEvent.shouldActOn = true;
+        }
+
+        return latestIndex;
+    }
+}
@@ -0,0 +1,136 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+
+/**
+ * reads back a recording made by BusRxRecorder one chunk at a time (see there for the layout)
+ * pacing the chunks (1x, Nx or as fast as possible) is up to the caller, the recorded times are all here
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusRxPlayer {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream mIn;
+    private final long mStartWallTime;
+    private final long mStartTime;
+
+    private byte[] mChunk = new byte[1024];
+    private int mLength;
+    private long mTime;
+
+    private long mChunks;
+    private long mBytes;
+
+
+    /**
+     * @param file  a recording
+     * @throws IOException  if the file can not be read or is not a recording
+     */
+    public BusRxPlayer(final File file) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+
+        try {
+            if (mIn.readInt() != BusRxRecorder.MAGIC || mIn.readInt() != BusRxRecorder.VERSION) {
+                throw new IOException("not a supported rx recording : " + file);
+            }
+
+            mStartWallTime = mIn.readLong();
+            mStartTime = mIn.readLong();
+        } catch (IOException e) {
+            mIn.close();
+            throw e;
+        }
+
+        mTime = mStartTime;
+    }
+
+    /**
+     * @return  wall clock time the recording was started (System.currentTimeMillis())
+     */
+    public long getStartWallTime() {
+        return mStartWallTime;
+    }
+
+    /**
+     * @return  uptime millis when the recording was started
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * reads the next chunk, see getTime(), getChunk() and getLength()
+     *
+     * @return  false at the end of the recording (a partly written last chunk is ignored)
+     * @throws IOException  if reading fails
+     */
+    public boolean next() throws IOException {
+        try {
+            final long time = mIn.readLong();
+            final int length = mIn.readInt();
+
+            if (length < 0) {
+                throw new IOException("corrupt rx recording");
+            }
+
+            if (length > mChunk.length) {
+                mChunk = new byte[length];
+            }
+            mIn.readFully(mChunk, 0, length);
+
+            mTime = time;
+            mLength = length;
+        } catch (EOFException e) {
+            return false;
+        }
+
+        mChunks++;
+        mBytes += mLength;
+        return true;
+    }
+
+    /**
+     * @return  time the current chunk was read (uptime millis)
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    /**
+     * @return  buffer holding the current chunk, reused by the next call to next()
+     */
+    public byte[] getChunk() {
+        return mChunk;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return  number of chunks read so far
+     */
+    public long getChunks() {
+        return mChunks;
+    }
+
+    /**
+     * @return  number of bytes read so far
+     */
+    public long getBytes() {
+        return mBytes;
+    }
+
+    public void close() {
+        try {
+            mIn.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,90 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+
+/**
+ * records the raw bytes read from the interface device exactly as they arrived, chunk boundaries and read times included
+ * BusRxPlayer feeds a recording back through the normal RX path so field issues can be reproduced (and the recording used as a benchmark)
+ *
+ * file layout (big endian):
+ *      header (HEADER_SIZE bytes):
+ *          int     MAGIC
+ *          int     VERSION
+ *          long    wall clock time the recording was started (System.currentTimeMillis())
+ *          long    uptime millis at about the same moment
+ *      chunks, one per read:
+ *          long    time of the read (uptime millis)
+ *          int     length
+ *          bytes   the data read
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusRxRecorder {
+    public static final int MAGIC = 0xCBAA0001;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 24;
+
+    public static final String FILE_PREFIX = "rx_";
+    public static final String FILE_EXTENSION = ".cbrx";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final File mFile;
+    private DataOutputStream mOut;
+
+
+    /**
+     * creates the recording file and writes its header
+     *
+     * @param file  the file to record to, replaced if it exists
+     * @param time  now (uptime millis)
+     * @throws IOException  if the file can not be created
+     */
+    public BusRxRecorder(final File file, final long time) throws IOException {
+        mFile = file;
+        mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+
+        mOut.writeInt(MAGIC);
+        mOut.writeInt(VERSION);
+        mOut.writeLong(System.currentTimeMillis());
+        mOut.writeLong(time);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * appends one read, only copies into a buffer unless the buffer is full
+     *
+     * @param time  when the read returned (uptime millis)
+     * @param buffer  the data read
+     * @param length  number of bytes read
+     * @throws IOException  if writing fails, the recorder should then be closed
+     */
+    public synchronized void record(final long time, final byte[] buffer, final int length) throws IOException {
+        if (mOut == null || length <= 0) {
+            return;
+        }
+
+        mOut.writeLong(time);
+        mOut.writeInt(length);
+        mOut.write(buffer, 0, length);
+    }
+
+    public synchronized void close() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException ignored) {}
+
+            mOut = null;
+        }
+    }
+}
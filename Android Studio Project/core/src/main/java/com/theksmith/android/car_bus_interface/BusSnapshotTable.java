@@ -0,0 +1,226 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * remembers the latest message seen on the bus for each header/arbitration ID along with how often it repeats
+ * CBIServiceMain updates it from the RX path, bound clients (BOUND_MSG_QUERY_SNAPSHOT) and CBIProviderSnapshot read it
+ *
+ * there is a single writer and any number of readers, none of them lock:
+ * each entry has a sequence number the writer makes odd while changing the entry and even again when done (a seqlock)
+ * readers copy the entry and retry if the sequence was odd or changed while they were copying
+ * every field lives in atomic arrays so the copy is ordered against the sequence checks under the java memory model
+ *
+ * lookups are O(1), IDs are placed in an open addressing table which never shrinks (IDs seen on a given bus are a small fixed set)
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusSnapshotTable {
+    public static final int DEFAULT_CAPACITY = 2048; //must be a power of 2, at most half is used before new IDs are dropped
+
+    public static final int SNAPSHOT_PAYLOAD = 24;
+
+    private static final int EMPTY_KEY = -1;
+
+    private static final int FIELD_SEQUENCE = 0;
+    private static final int FIELD_TIME = 1;
+    private static final int FIELD_COUNT = 2;
+    private static final int FIELD_PERIOD = 3;
+    private static final int FIELD_META = 4;
+    private static final int FIELD_PAYLOAD = 5;
+    private static final int FIELDS = FIELD_PAYLOAD + SNAPSHOT_PAYLOAD / 8;
+
+    private static final int MAX_READ_RETRIES = 100;
+
+    private final int mCapacity;
+    private final int mMask;
+    private final AtomicIntegerArray mKeys;
+    private final AtomicLongArray mFields;
+
+    //only touched by the writer
+    private int mUsed;
+    private long mDropped;
+
+
+    public static class Entry {
+        public final BusFrame frame = new BusFrame();
+        public BusDataType type;
+        public long time;
+        public long count;
+        public long period;
+    }
+
+
+    public BusSnapshotTable(final int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("BusSnapshotTable() : capacity must be a power of 2");
+        }
+
+        mCapacity = capacity;
+        mMask = capacity - 1;
+
+        mKeys = new AtomicIntegerArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            mKeys.set(i, EMPTY_KEY);
+        }
+
+        mFields = new AtomicLongArray(capacity * FIELDS);
+    }
+
+    private int slotFor(final int id) {
+        return ((id * 0x9E3779B9) >>> 16) & mMask;
+    }
+
+    private int find(final int id) {
+        int slot = slotFor(id);
+
+        for (int probes = 0; probes < mCapacity; probes++) {
+            final int key = mKeys.get(slot);
+            if (key == id) {
+                return slot;
+            }
+            if (key == EMPTY_KEY) {
+                return -1;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        return -1;
+    }
+
+    /**
+     * records a received frame, must only ever be called from one thread at a time
+     *
+     * @param type  RX or RX_MONITORED
+     * @param time  when it was received (uptime millis)
+     * @param frame  the parsed frame
+     */
+    public void update(final BusDataType type, final long time, final BusFrame frame) {
+        int slot = find(frame.id);
+
+        if (slot < 0) {
+            if ((mUsed + 1) * 2 > mCapacity || frame.id == EMPTY_KEY) {
+                mDropped++;
+                return;
+            }
+
+            slot = slotFor(frame.id);
+            while (mKeys.get(slot) != EMPTY_KEY) {
+                slot = (slot + 1) & mMask;
+            }
+
+            //fields first, then publish the key so readers never see a half initialized entry
+            final int base = slot * FIELDS;
+            for (int f = 0; f < FIELDS; f++) {
+                mFields.set(base + f, 0);
+            }
+            mKeys.set(slot, frame.id);
+            mUsed++;
+        }
+
+        final int base = slot * FIELDS;
+
+        final long sequence = mFields.get(base + FIELD_SEQUENCE);
+        mFields.set(base + FIELD_SEQUENCE, sequence + 1);
+
+        final long count = mFields.get(base + FIELD_COUNT);
+        if (count > 0) {
+            mFields.set(base + FIELD_PERIOD, time - mFields.get(base + FIELD_TIME));
+        }
+        mFields.set(base + FIELD_TIME, time);
+        mFields.set(base + FIELD_COUNT, count + 1);
+
+        final int length = Math.min(frame.length, SNAPSHOT_PAYLOAD);
+        mFields.set(base + FIELD_META, (length & 0xFF) | ((frame.idDigits & 0xFF) << 8) | ((frame.spaces ? 1 : 0) << 16) | ((type.ordinal() & 0xFF) << 24));
+
+        for (int w = 0; w < SNAPSHOT_PAYLOAD / 8; w++) {
+            long word = 0;
+            for (int b = 0; b < 8; b++) {
+                final int index = w * 8 + b;
+                word = (word << 8) | (index < length ? (frame.payload[index] & 0xFF) : 0);
+            }
+            mFields.set(base + FIELD_PAYLOAD + w, word);
+        }
+
+        mFields.set(base + FIELD_SEQUENCE, sequence + 2);
+    }
+
+    /**
+     * copies the latest entry for an ID, safe to call from any thread
+     *
+     * @param id  the header/arbitration ID
+     * @param entry  receives the entry
+     * @return  false if the ID has not been seen
+     */
+    public boolean read(final int id, final Entry entry) {
+        final int slot = find(id);
+        if (slot < 0) {
+            return false;
+        }
+
+        final int base = slot * FIELDS;
+
+        for (int attempt = 0; attempt < MAX_READ_RETRIES; attempt++) {
+            final long before = mFields.get(base + FIELD_SEQUENCE);
+            if ((before & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+
+            entry.time = mFields.get(base + FIELD_TIME);
+            entry.count = mFields.get(base + FIELD_COUNT);
+            entry.period = mFields.get(base + FIELD_PERIOD);
+
+            final long meta = mFields.get(base + FIELD_META);
+            entry.frame.clear();
+            entry.frame.id = id;
+            entry.frame.length = (int) (meta & 0xFF);
+            entry.frame.idDigits = (int) ((meta >> 8) & 0xFF);
+            entry.frame.spaces = ((meta >> 16) & 1) != 0;
+            entry.type = BusDataType.values()[(int) ((meta >> 24) & 0xFF)];
+
+            for (int w = 0; w < SNAPSHOT_PAYLOAD / 8; w++) {
+                final long word = mFields.get(base + FIELD_PAYLOAD + w);
+                for (int b = 0; b < 8; b++) {
+                    entry.frame.payload[w * 8 + b] = (byte) (word >>> (56 - b * 8));
+                }
+            }
+
+            if (mFields.get(base + FIELD_SEQUENCE) == before && before > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * lists the IDs seen so far, safe to call from any thread
+     *
+     * @return  the IDs in table order
+     */
+    public int[] getIds() {
+        int count = 0;
+        final int[] ids = new int[mCapacity];
+
+        for (int slot = 0; slot < mCapacity; slot++) {
+            final int key = mKeys.get(slot);
+            if (key != EMPTY_KEY) {
+                ids[count++] = key;
+            }
+        }
+
+        final int[] result = new int[count];
+        System.arraycopy(ids, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return  number of frames with a new ID that were not recorded because the table was full (writer thread only)
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+}
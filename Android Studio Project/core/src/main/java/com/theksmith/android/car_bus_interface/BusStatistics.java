@@ -0,0 +1,242 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.Arrays;
+
+
+/**
+ * continuous, low overhead bus statistics computed in the RX path of CBIServiceMain
+ * overall frames/sec and estimated bus load, per ID frames/sec, period and jitter, plus counts of ELM327 overflow and error responses
+ *
+ * everything is kept in fixed size primitive arrays allocated up front, update() does no allocation
+ * per ID values are exponentially weighted moving averages (1/EWMA_WEIGHT of each new sample)
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusStatistics {
+    public static final int DEFAULT_CAPACITY = 512; //must be a power of 2, at most half is used before new IDs are dropped
+
+    private static final long RATE_WINDOW = 1000; //milliseconds
+    private static final double EWMA_WEIGHT = 8;
+
+    //nominal CAN frame overhead in bits (SOF, arbitration, control, CRC, ACK, EOF, IFS) for 11bit and 29bit IDs
+    private static final int FRAME_OVERHEAD_BITS_11 = 47;
+    private static final int FRAME_OVERHEAD_BITS_29 = 67;
+    //average bit stuffing adds roughly this much on real traffic
+    private static final double STUFFING_FACTOR = 1.1;
+
+    private static final int EMPTY_KEY = -1;
+
+    private final int mCapacity;
+    private final int mMask;
+
+    private final int[] mIds;
+    private final long[] mCounts;
+    private final long[] mLastTimes;
+    private final double[] mPeriods;
+    private final double[] mJitters;
+    private int mUsed;
+    private long mDroppedIds;
+
+    private int mBitrate;
+
+    private long mTotalFrames;
+    private long mWindowStart = -1;
+    private long mWindowFrames;
+    private long mWindowBits;
+    private double mFramesPerSecond;
+    private double mBusLoad;
+
+    private long mBufferFullCount;
+    private long mCanErrorCount;
+
+
+    /**
+     * a copy of the statistics at one point in time, see snapshot()
+     */
+    public static class Snapshot {
+        public long totalFrames;
+        public double framesPerSecond;
+        public double busLoadPercent;
+        public int bitrate;
+        public long bufferFullCount;
+        public long canErrorCount;
+        public long droppedIds;
+
+        public int idCount;
+        public int[] ids = new int[0];
+        public long[] counts = new long[0];
+        public double[] framesPerSecondById = new double[0];
+        public double[] periods = new double[0];
+        public double[] jitters = new double[0];
+    }
+
+
+    public BusStatistics(final int capacity, final int bitrate) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("BusStatistics() : capacity must be a power of 2");
+        }
+
+        mCapacity = capacity;
+        mMask = capacity - 1;
+
+        mIds = new int[capacity];
+        mCounts = new long[capacity];
+        mLastTimes = new long[capacity];
+        mPeriods = new double[capacity];
+        mJitters = new double[capacity];
+
+        mBitrate = bitrate;
+
+        reset();
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(mIds, EMPTY_KEY);
+        Arrays.fill(mCounts, 0);
+        Arrays.fill(mLastTimes, 0);
+        Arrays.fill(mPeriods, 0);
+        Arrays.fill(mJitters, 0);
+        mUsed = 0;
+        mDroppedIds = 0;
+
+        mTotalFrames = 0;
+        mWindowStart = -1;
+        mWindowFrames = 0;
+        mWindowBits = 0;
+        mFramesPerSecond = 0;
+        mBusLoad = 0;
+
+        mBufferFullCount = 0;
+        mCanErrorCount = 0;
+    }
+
+    /**
+     * @param bitrate  the configured bus bitrate in bits/sec, used for the bus load estimate
+     */
+    public synchronized void setBitrate(final int bitrate) {
+        mBitrate = bitrate;
+    }
+
+    /**
+     * records a received frame
+     *
+     * @param time  when it was received (uptime millis)
+     * @param frame  the parsed frame
+     */
+    public synchronized void update(final long time, final BusFrame frame) {
+        rollWindow(time);
+
+        mTotalFrames++;
+        mWindowFrames++;
+        mWindowBits += (long) ((((frame.idDigits > 3) ? FRAME_OVERHEAD_BITS_29 : FRAME_OVERHEAD_BITS_11) + frame.length * 8) * STUFFING_FACTOR);
+
+        final int slot = slotFor(frame.id);
+        if (slot < 0) {
+            mDroppedIds++;
+            return;
+        }
+
+        final long count = mCounts[slot];
+        if (count > 0) {
+            final double period = time - mLastTimes[slot];
+
+            if (count == 1) {
+                mPeriods[slot] = period;
+            } else {
+                mJitters[slot] += (Math.abs(period - mPeriods[slot]) - mJitters[slot]) / EWMA_WEIGHT;
+                mPeriods[slot] += (period - mPeriods[slot]) / EWMA_WEIGHT;
+            }
+        }
+
+        mCounts[slot] = count + 1;
+        mLastTimes[slot] = time;
+    }
+
+    public synchronized void countBufferFull() {
+        mBufferFullCount++;
+    }
+
+    public synchronized void countCanError() {
+        mCanErrorCount++;
+    }
+
+    /**
+     * copies the current statistics, reusing the arrays of the given snapshot when they are big enough
+     *
+     * @param time  now (uptime millis), so rates decay to zero when the bus goes quiet
+     * @param out  receives the statistics
+     */
+    public synchronized void snapshot(final long time, final Snapshot out) {
+        rollWindow(time);
+
+        out.totalFrames = mTotalFrames;
+        out.framesPerSecond = mFramesPerSecond;
+        out.busLoadPercent = mBusLoad;
+        out.bitrate = mBitrate;
+        out.bufferFullCount = mBufferFullCount;
+        out.canErrorCount = mCanErrorCount;
+        out.droppedIds = mDroppedIds;
+
+        if (out.ids.length < mUsed) {
+            out.ids = new int[mUsed];
+            out.counts = new long[mUsed];
+            out.framesPerSecondById = new double[mUsed];
+            out.periods = new double[mUsed];
+            out.jitters = new double[mUsed];
+        }
+
+        int i = 0;
+        for (int slot = 0; slot < mCapacity; slot++) {
+            if (mIds[slot] != EMPTY_KEY) {
+                out.ids[i] = mIds[slot];
+                out.counts[i] = mCounts[slot];
+                out.periods[i] = mPeriods[slot];
+                out.jitters[i] = mJitters[slot];
+                //an ID that stopped repeating decays towards zero instead of showing its old rate forever
+                final double period = Math.max(mPeriods[slot], time - mLastTimes[slot]);
+                out.framesPerSecondById[i] = period > 0 ? 1000.0 / period : 0;
+                i++;
+            }
+        }
+        out.idCount = i;
+    }
+
+    private void rollWindow(final long time) {
+        if (mWindowStart < 0) {
+            mWindowStart = time;
+            return;
+        }
+
+        final long elapsed = time - mWindowStart;
+        if (elapsed < RATE_WINDOW) {
+            return;
+        }
+
+        //a quiet bus stretches the window, which correctly averages the rates down
+        mFramesPerSecond = mWindowFrames * 1000.0 / elapsed;
+        mBusLoad = mBitrate > 0 ? mWindowBits * 100.0 * 1000.0 / ((double) mBitrate * elapsed) : 0;
+
+        mWindowStart = time;
+        mWindowFrames = 0;
+        mWindowBits = 0;
+    }
+
+    private int slotFor(final int id) {
+        int slot = ((id * 0x9E3779B9) >>> 16) & mMask;
+
+        while (mIds[slot] != EMPTY_KEY) {
+            if (mIds[slot] == id) {
+                return slot;
+            }
+            slot = (slot + 1) & mMask;
+        }
+
+        if ((mUsed + 1) * 2 > mCapacity || id == EMPTY_KEY) {
+            return -1;
+        }
+
+        mIds[slot] = id;
+        mUsed++;
+        return slot;
+    }
+}
@@ -0,0 +1,52 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.IOException;
+
+
+/**
+ * the link to an interface device, whatever it runs over
+ * CBIServiceMain only ever talks to the device through one of these (see BluetoothTransport and SimulatorTransport)
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public interface BusTransport {
+    /**
+     * sets up whatever the link needs locally (socket, channel), without talking to the device yet
+     * split from connect() so the two can be timed apart (see ConnectionTimings)
+     *
+     * @throws IOException  if the link can not be set up
+     */
+    void create() throws IOException;
+
+    /**
+     * opens the link, blocks until it is up, calls create() first if that hasn't been done
+     *
+     * @throws IOException  if the device can not be reached
+     */
+    void connect() throws IOException;
+
+    /**
+     * blocks until some data arrives
+     *
+     * @param buffer  receives the data
+     * @return  number of bytes read into the start of the buffer, or -1 if the link was closed
+     * @throws IOException  if the link failed
+     */
+    int read(final byte[] buffer) throws IOException;
+
+    /**
+     * @param data  sent as is
+     * @throws IOException  if the link failed
+     */
+    void write(final byte[] data) throws IOException;
+
+    /**
+     * closes the link, a read() blocked in another thread then returns -1 or throws
+     */
+    void close();
+
+    /**
+     * @return  name of the device, for display
+     */
+    String getName();
+}
@@ -0,0 +1,22 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * source of time (and waiting) for everything that makes decisions based on timing
+ * AndroidClock is the real thing, ManualClock only moves when told to so timing logic can be simulated faster than real time and reproduced exactly
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public interface Clock {
+    /**
+     * @return  milliseconds since some fixed point, never goes backwards (same base as SystemClock.uptimeMillis() for AndroidClock)
+     */
+    long uptimeMillis();
+
+    /**
+     * waits for a number of milliseconds of this clock's time
+     *
+     * @param millis  how long to wait
+     */
+    void sleep(long millis);
+}
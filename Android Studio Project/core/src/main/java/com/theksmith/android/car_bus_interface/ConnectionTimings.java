@@ -0,0 +1,128 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.Arrays;
+
+
+/**
+ * times each phase of getting the interface device from nothing (or a dropped link) to live monitors
+ * failed attempts within one cycle add to the same phases, so the phases always sum to the whole cycle
+ * like BusPressClassifier it never reads a clock itself, every call is given the time
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ConnectionTimings {
+    public static enum Phase {
+        WAIT,           //reconnect policy delay
+        SOCKET_CREATE,  //BusTransport.create()
+        CONNECT,        //BusTransport.connect()
+        FIRST_PROMPT,   //first complete response from the device
+        INIT_COMPLETE   //last startup command sent, monitors are live
+    }
+
+    public static final int PHASES = Phase.values().length;
+    public static final int HISTORY = 32; //recoveries kept for the median
+
+    private long mBegin = -1;
+    private long mLastMark;
+    private boolean mAfterDrop;
+    private final long[] mCurrent = new long[PHASES];
+    private final long[] mLast = new long[PHASES];
+    private boolean mHasLast;
+
+    private final long[] mRecoveries = new long[HISTORY];
+    private int mRecoveryCount;
+    private long mLastRecovery = -1;
+
+
+    /**
+     * starts a cycle, does nothing if one is already running (a failed attempt is still part of the same cycle)
+     *
+     * @param now  uptime millis
+     * @param afterDrop  true if a working link was lost, only these cycles count as recoveries
+     */
+    public synchronized void begin(final long now, final boolean afterDrop) {
+        if (mBegin >= 0) {
+            return;
+        }
+
+        mBegin = now;
+        mLastMark = now;
+        mAfterDrop = afterDrop;
+        Arrays.fill(mCurrent, 0);
+    }
+
+    /**
+     * @param phase  the phase that just ended
+     * @param now  uptime millis
+     */
+    public synchronized void mark(final Phase phase, final long now) {
+        if (mBegin < 0) {
+            return;
+        }
+
+        mCurrent[phase.ordinal()] += now - mLastMark;
+        mLastMark = now;
+
+        if (phase == Phase.INIT_COMPLETE) {
+            System.arraycopy(mCurrent, 0, mLast, 0, PHASES);
+            mHasLast = true;
+
+            if (mAfterDrop) {
+                mLastRecovery = now - mBegin;
+                mRecoveries[mRecoveryCount % HISTORY] = mLastRecovery;
+                mRecoveryCount++;
+            }
+
+            mBegin = -1;
+        }
+    }
+
+    /**
+     * abandons the current cycle (stopped by the user, bad settings, etc.)
+     */
+    public synchronized void cancel() {
+        mBegin = -1;
+    }
+
+    public synchronized boolean isActive() {
+        return mBegin >= 0;
+    }
+
+    /**
+     * @param out  receives the milliseconds spent in each Phase (by ordinal) during the last completed cycle
+     * @return  false if no cycle has completed yet
+     */
+    public synchronized boolean getLastPhaseTimes(final long[] out) {
+        System.arraycopy(mLast, 0, out, 0, PHASES);
+        return mHasLast;
+    }
+
+    /**
+     * @return  number of completed recoveries from a dropped link
+     */
+    public synchronized int getRecoveryCount() {
+        return mRecoveryCount;
+    }
+
+    /**
+     * @return  milliseconds from the last drop to live monitors, -1 if none yet
+     */
+    public synchronized long getLastRecoveryTime() {
+        return mLastRecovery;
+    }
+
+    /**
+     * @return  median milliseconds from a drop to live monitors over the last HISTORY recoveries, -1 if none yet
+     */
+    public synchronized long getMedianRecoveryTime() {
+        final int count = Math.min(mRecoveryCount, HISTORY);
+        if (count == 0) {
+            return -1;
+        }
+
+        final long[] sorted = Arrays.copyOf(mRecoveries, count);
+        Arrays.sort(sorted);
+
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+}
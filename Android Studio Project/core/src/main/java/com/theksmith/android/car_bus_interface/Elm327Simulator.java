@@ -0,0 +1,878 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.Random;
+
+
+/**
+ * an ELM327 in software, speaking the AT command subset this app uses and monitoring a synthetic bus
+ *
+ * commands: ATZ, ATWS, ATD, ATI, ATDP, ATRV, ATE, ATL, ATS, ATH, ATSP/ATTP, ATSH, ATCF, ATCM, ATCRA, ATAR, ATMA, ATMR, ATMT
+ * a few harmless setting commands (ATAL, ATST, ATAT, ATCAF...) just answer OK, anything else is "?", OBD requests get NO DATA
+ * an empty command repeats the last one, like the real thing
+ *
+ * while monitoring, frames of the synthetic traffic are formatted per the current settings and go into the adapter's own buffer,
+ * which drains to the host at Config.linkBytesPerSecond
+ * if the buffer overflows, monitoring ends with BUFFER FULL, any byte from the host ends it with STOPPED
+ *
+ * the bus is modelled per protocol (J1850 PWM/VPW and ISO lines with 3 byte headers, CAN 11/29 bit at 125/250/500 kbit)
+ * and loaded to Config.load of its bitrate, so 1.0 on ATSP6 is 500 kbit saturation
+ *
+ * all timing comes from the Clock, with a ManualClock the bus runs as fast as the host reads
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class Elm327Simulator {
+    public static final String NAME = "ELM327 Simulator";
+    public static final String VERSION_TEXT = "ELM327 v1.5";
+    public static final String VOLTAGE_TEXT = "12.6V";
+
+    public static final String PROMPT = ">";
+    public static final String OK = "OK";
+    public static final String UNKNOWN = "?";
+    public static final String NO_DATA = "NO DATA";
+    public static final String STOPPED = "STOPPED";
+    public static final String BUFFER_FULL = "BUFFER FULL";
+
+    //output not yet read by the host, the bus stops producing past this (the host side of a real link applies the same back pressure)
+    private static final int OUTPUT_LIMIT = 64 * 1024;
+
+    //catching up after a stall produces at most this much bus time at once
+    private static final long MAX_TICK_CATCHUP = 100;
+
+    private static final long MONITOR_TICK_TIME = 1;
+
+    //time between repeats of a press, and how many make a short and a long one
+    private static final long PRESS_REPEAT_TIME = 100;
+    private static final int PRESS_SHORT_REPEATS = 2;
+    private static final int PRESS_LONG_REPEATS = 12;
+
+    //setting commands with nothing to simulate
+    private static final String[] ACCEPTED_COMMANDS = { "AL", "NL", "AT0", "AT1", "AT2", "ST", "CAF", "CFC", "CEA", "V0", "V1", "R0", "R1", "D0", "D1", "M0", "M1", "PC", "IB", "JE", "JS", "KW", "SW", "WM", "FC", "BRD", "BRT" };
+
+    private static final int[] J1850_PRIORITIES = { 0x28, 0x48, 0x68, 0x88, 0xA8, 0xC8, 0xE8, 0x3D };
+    private static final int[] J1850_TARGETS = { 0x11, 0x1B, 0x29, 0x49, 0x6B, 0x80, 0x83, 0xFE, 0xFF };
+    private static final int[] J1850_SOURCES = { 0x10, 0x18, 0x28, 0x40, 0x58, 0x60, 0x80, 0xA0, 0xF1 };
+
+    private static final int[] PERIODS = { 10, 20, 20, 50, 50, 100, 100, 100, 200, 500, 1000 }; //nominal millis between repeats of an ID, scaled to reach the load
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+
+    /**
+     * what the simulated bus and link look like
+     */
+    public static class Config {
+        public double load = 0.3;               //share of the bus bitrate the synthetic traffic uses, 1.0 or more saturates it
+        public int ids = 40;                    //distinct IDs (or J1850 headers) in the traffic
+        public int linkBytesPerSecond = 11520;  //adapter to host rate, 11520 is a 115200 baud SPP link, 0 for unlimited
+        public int bufferBytes = 512;           //the adapter's own buffer
+        public String[] pressLines = null;      //lines (as the host will see them) sent as button presses, in turn, short and long alternately
+        public long pressInterval = 0;          //millis between presses, 0 for none
+        public long seed = 1;                   //the traffic is the same for the same seed and settings
+    }
+
+
+    private static class Stream {
+        int header;     //J1850: priority << 16 | target << 8 | source, CAN: the ID
+        int[] data;
+        long periodMicros;
+        long dueMicros;
+    }
+
+
+    private final Clock mClock;
+    private final Config mConfig;
+    private final Random mRandom;
+
+    //host-side output, a ring of pending bytes
+    private final Object mOutputLock = new Object();
+    private byte[] mOutput = new byte[4096];
+    private int mOutputStart;
+    private int mOutputCount;
+    private boolean mClosed = true;
+
+    //settings
+    private boolean mEcho;
+    private boolean mLinefeeds;
+    private boolean mSpaces;
+    private boolean mHeaders;
+    private char mProtocol;
+    private String mHeader;
+    private int mFilter;
+    private int mMask;
+    private boolean mFiltered;
+
+    //command input
+    private final StringBuilder mCommand = new StringBuilder();
+    private String mLastCommand = "";
+
+    //monitoring
+    private static final int MONITOR_ALL = 0;
+    private static final int MONITOR_RECEIVER = 1;
+    private static final int MONITOR_TRANSMITTER = 2;
+
+    private volatile boolean mMonitoring;
+    private int mMonitorMode;
+    private int mMonitorAddress;
+    private MonitorThread mMonitorThread;
+    private Stream[] mStreams;
+    private long mBusMicros;
+    private long mLastTick;
+    private byte[] mBuffer;
+    private int mBufferCount;
+    private double mLinkCredit;
+    private long mNextPress;
+    private int mPressIndex;
+    private String mPressLine;
+    private int mPressRepeatsLeft;
+    private long mNextPressRepeat;
+
+    private long mFramesSent;
+    private long mFramesFiltered;
+    private int mBufferFulls;
+
+
+    public Elm327Simulator(final Clock clock, final Config config) {
+        if (clock == null || config == null) {
+            throw new IllegalArgumentException("Elm327Simulator() : clock and config are required");
+        }
+
+        mClock = clock;
+        mConfig = config;
+        mRandom = new Random(config.seed);
+
+        resetSettings();
+    }
+
+    /**
+     * powers the device up, anything left from before is discarded
+     */
+    public void open() {
+        synchronized (this) {
+            stopMonitoring();
+            resetSettings();
+            mCommand.setLength(0);
+            mLastCommand = "";
+        }
+
+        synchronized (mOutputLock) {
+            mOutputStart = 0;
+            mOutputCount = 0;
+            mClosed = false;
+        }
+    }
+
+    /**
+     * powers the device down, a read() blocked in another thread returns -1
+     */
+    public void close() {
+        synchronized (this) {
+            stopMonitoring();
+        }
+
+        synchronized (mOutputLock) {
+            mClosed = true;
+            mOutputLock.notifyAll();
+        }
+    }
+
+    /**
+     * blocks until there is output for the host
+     *
+     * @param buffer  receives the output
+     * @return  number of bytes read into the start of the buffer, or -1 once closed
+     */
+    public int read(final byte[] buffer) {
+        synchronized (mOutputLock) {
+            while (mOutputCount == 0 && !mClosed) {
+                try {
+                    mOutputLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return -1;
+                }
+            }
+
+            if (mOutputCount == 0) {
+                return -1;
+            }
+
+            final int length = Math.min(buffer.length, mOutputCount);
+            final int first = Math.min(length, mOutput.length - mOutputStart);
+            System.arraycopy(mOutput, mOutputStart, buffer, 0, first);
+            System.arraycopy(mOutput, 0, buffer, first, length - first);
+
+            mOutputStart = (mOutputStart + length) % mOutput.length;
+            mOutputCount -= length;
+
+            mOutputLock.notifyAll();
+
+            return length;
+        }
+    }
+
+    /**
+     * input from the host, never blocks
+     *
+     * @param data  the input
+     * @param offset  start of the input in data
+     * @param length  bytes of input
+     */
+    public synchronized void write(final byte[] data, final int offset, final int length) {
+        if (isClosed()) {
+            return;
+        }
+
+        if (mMonitoring && length > 0) {
+            //any byte ends monitoring, the rest of the same write is lost while the device gets back to the prompt
+            stopMonitoring();
+            output("\r" + STOPPED + "\r\r" + PROMPT);
+            return;
+        }
+
+        for (int i = offset; i < offset + length; i++) {
+            final char c = (char) (data[i] & 0xFF);
+
+            if (mEcho && c != '\n') {
+                output(String.valueOf(c));
+            }
+
+            if (c == '\r') {
+                final String command = mCommand.toString();
+                mCommand.setLength(0);
+
+                runCommand(command.length() > 0 ? command : mLastCommand);
+
+                if (mMonitoring) {
+                    //the rest of this write would stop it again straight away, drop it as the real device does while it sets up
+                    return;
+                }
+            } else if (c > ' ') {
+                mCommand.append(Character.toUpperCase(c));
+            }
+        }
+    }
+
+    /**
+     * puts a line on the monitor output as if it had been received from the bus, whatever the filters
+     *
+     * @param line  the line as the host should see it
+     */
+    public synchronized void inject(final String line) {
+        if (mMonitoring) {
+            addToBuffer(line);
+        }
+    }
+
+    public boolean isMonitoring() {
+        return mMonitoring;
+    }
+
+    public synchronized long getFramesSent() {
+        return mFramesSent;
+    }
+
+    public synchronized long getFramesFiltered() {
+        return mFramesFiltered;
+    }
+
+    public synchronized int getBufferFulls() {
+        return mBufferFulls;
+    }
+
+    private boolean isClosed() {
+        synchronized (mOutputLock) {
+            return mClosed;
+        }
+    }
+
+    private void resetSettings() {
+        mEcho = true;
+        mLinefeeds = true;
+        mSpaces = true;
+        mHeaders = false;
+        mProtocol = '0';
+        mHeader = null;
+        mFiltered = false;
+        mFilter = 0;
+        mMask = 0;
+        mMonitorMode = MONITOR_ALL;
+    }
+
+    private void runCommand(final String command) {
+        mLastCommand = command;
+
+        final String reply = reply(command);
+        if (reply != null) {
+            output(reply + "\r\r" + PROMPT);
+        }
+    }
+
+    /**
+     * @return  the reply to a command without the prompt, null for none (monitoring)
+     */
+    private String reply(final String command) {
+        if (!command.startsWith("AT")) {
+            if (command.length() > 0 && isHex(command)) {
+                return NO_DATA;
+            }
+            return UNKNOWN;
+        }
+
+        final String at = command.substring(2);
+
+        if (at.equals("Z") || at.equals("WS")) {
+            resetSettings();
+            return "\r" + VERSION_TEXT;
+        }
+        if (at.equals("D")) {
+            resetSettings();
+            return OK;
+        }
+        if (at.equals("I")) {
+            return VERSION_TEXT;
+        }
+        if (at.equals("DP")) {
+            return protocolName();
+        }
+        if (at.equals("DPN")) {
+            return String.valueOf(mProtocol);
+        }
+        if (at.equals("RV")) {
+            return VOLTAGE_TEXT;
+        }
+
+        if (at.length() == 2 && (at.charAt(1) == '0' || at.charAt(1) == '1')) {
+            final boolean on = at.charAt(1) == '1';
+            switch (at.charAt(0)) {
+                case 'E':
+                    mEcho = on;
+                    return OK;
+                case 'L':
+                    mLinefeeds = on;
+                    return OK;
+                case 'S':
+                    mSpaces = on;
+                    return OK;
+                case 'H':
+                    mHeaders = on;
+                    return OK;
+            }
+        }
+
+        if ((at.startsWith("SP") || at.startsWith("TP")) && at.length() >= 3) {
+            //"SPA6" picks 6 with automatic fallback, the simulated bus never needs the fallback
+            final char protocol = at.charAt(at.length() - 1);
+            if (bitrate(protocol) == 0) {
+                return UNKNOWN;
+            }
+            mProtocol = protocol;
+            return OK;
+        }
+
+        if (at.startsWith("SH")) {
+            final String header = at.substring(2);
+            if (!isHex(header) || (header.length() != 3 && header.length() != 6 && header.length() != 8)) {
+                return UNKNOWN;
+            }
+            mHeader = header;
+            return OK;
+        }
+
+        if ((at.startsWith("CF") && !at.startsWith("CFC")) || at.startsWith("CM") || at.startsWith("CRA")) {
+            final String value = at.substring(at.startsWith("CRA") ? 3 : 2);
+            if (value.length() == 0 && at.startsWith("CRA")) {
+                mFiltered = false;
+                return OK;
+            }
+            if (!isHex(value) || (value.length() != 3 && value.length() != 8)) {
+                return UNKNOWN;
+            }
+
+            final int parsed = (int) Long.parseLong(value, 16);
+            final int width = value.length() == 3 ? 0x7FF : 0x1FFFFFFF;
+
+            if (at.startsWith("CM")) {
+                mMask = parsed;
+            } else {
+                mFilter = parsed;
+                if (at.startsWith("CRA") || !mFiltered) {
+                    mMask = width;
+                }
+            }
+            mFiltered = true;
+            return OK;
+        }
+
+        if (at.equals("AR")) {
+            mFiltered = false;
+            mMonitorMode = MONITOR_ALL;
+            return OK;
+        }
+
+        if (at.equals("MA")) {
+            mMonitorMode = MONITOR_ALL;
+            startMonitoring();
+            return null;
+        }
+
+        if ((at.startsWith("MR") || at.startsWith("MT")) && at.length() == 4 && isHex(at.substring(2))) {
+            mMonitorMode = at.charAt(1) == 'R' ? MONITOR_RECEIVER : MONITOR_TRANSMITTER;
+            mMonitorAddress = Integer.parseInt(at.substring(2), 16);
+            startMonitoring();
+            return null;
+        }
+
+        for (String accepted : ACCEPTED_COMMANDS) {
+            if (at.startsWith(accepted)) {
+                return OK;
+            }
+        }
+
+        return UNKNOWN;
+    }
+
+    private String protocolName() {
+        switch (mProtocol) {
+            case '1':
+                return "SAE J1850 PWM";
+            case '2':
+                return "SAE J1850 VPW";
+            case '3':
+                return "ISO 9141-2";
+            case '4':
+                return "ISO 14230-4 (KWP 5BAUD)";
+            case '5':
+                return "ISO 14230-4 (KWP FAST)";
+            case '7':
+                return "ISO 15765-4 (CAN 29/500)";
+            case '8':
+                return "ISO 15765-4 (CAN 11/250)";
+            case '9':
+                return "ISO 15765-4 (CAN 29/250)";
+            case 'A':
+                return "SAE J1939 (CAN 29/250)";
+            case 'B':
+            case 'C':
+                return "USER1 (CAN 11/125)";
+            case '0':
+                return "AUTO, ISO 15765-4 (CAN 11/500)";
+            default:
+                return "ISO 15765-4 (CAN 11/500)";
+        }
+    }
+
+    /**
+     * @return  bits per second of a protocol, 0 if it is not one
+     */
+    private static int bitrate(final char protocol) {
+        switch (protocol) {
+            case '1':
+                return 41600;
+            case '2':
+            case '3':
+            case '4':
+            case '5':
+                return 10400;
+            case '0':
+            case '6':
+            case '7':
+                return 500000;
+            case '8':
+            case '9':
+            case 'A':
+                return 250000;
+            case 'B':
+            case 'C':
+                return 125000;
+            default:
+                return 0;
+        }
+    }
+
+    private boolean isCan() {
+        return bitrate(mProtocol) >= 125000;
+    }
+
+    private boolean isCan29() {
+        return mProtocol == '7' || mProtocol == '9' || mProtocol == 'A';
+    }
+
+    private static boolean isHex(final String value) {
+        if (value.length() == 0) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void startMonitoring() {
+        mStreams = buildStreams();
+        mBusMicros = 0;
+        mLastTick = mClock.uptimeMillis();
+        mBuffer = new byte[Math.max(mConfig.bufferBytes, 64)];
+        mBufferCount = 0;
+        mLinkCredit = 0;
+        mNextPress = mLastTick + mConfig.pressInterval;
+        mPressLine = null;
+        mPressRepeatsLeft = 0;
+
+        mMonitoring = true;
+        mMonitorThread = new MonitorThread();
+        mMonitorThread.start();
+    }
+
+    private void stopMonitoring() {
+        mMonitoring = false;
+        mBufferCount = 0;
+        if (mMonitorThread != null) {
+            mMonitorThread.interrupt();
+            mMonitorThread = null;
+        }
+    }
+
+    private Stream[] buildStreams() {
+        final int count = Math.max(1, mConfig.ids);
+        final Stream[] streams = new Stream[count];
+        final boolean can = isCan();
+        final boolean can29 = isCan29();
+
+        double bitsPerSecond = 0;
+
+        for (int s = 0; s < count; s++) {
+            final Stream stream = new Stream();
+
+            if (!can) {
+                stream.header = J1850_PRIORITIES[mRandom.nextInt(J1850_PRIORITIES.length)] << 16 | J1850_TARGETS[mRandom.nextInt(J1850_TARGETS.length)] << 8 | J1850_SOURCES[mRandom.nextInt(J1850_SOURCES.length)];
+                stream.data = new int[1 + mRandom.nextInt(7)];
+            } else if (can29) {
+                //a mix of ISO 15765 physical addressing (18 DA tt ss) and J1939 style broadcasts (priority, PGN, source)
+                if (s % 2 == 0) {
+                    stream.header = 0x18DA0000 | J1850_TARGETS[mRandom.nextInt(J1850_TARGETS.length)] << 8 | J1850_SOURCES[mRandom.nextInt(J1850_SOURCES.length)];
+                } else {
+                    stream.header = 0x0C000000 | (0xF000 + mRandom.nextInt(0x1000)) << 8 | J1850_SOURCES[mRandom.nextInt(J1850_SOURCES.length)];
+                }
+                stream.data = new int[8];
+            } else {
+                stream.header = 0x100 + s * (0x6FF / count);
+                stream.data = new int[1 + mRandom.nextInt(8)];
+            }
+
+            for (int b = 0; b < stream.data.length; b++) {
+                stream.data[b] = mRandom.nextInt(256);
+            }
+
+            stream.periodMicros = PERIODS[mRandom.nextInt(PERIODS.length)] * 1000L;
+            bitsPerSecond += frameBits(stream) * 1000000.0 / stream.periodMicros;
+
+            streams[s] = stream;
+        }
+
+        //scale every period by the same factor so the mix reaches the load
+        final double target = bitrate(mProtocol) * Math.max(mConfig.load, 0.0001);
+        final double scale = bitsPerSecond / target;
+
+        for (Stream stream : streams) {
+            stream.periodMicros = Math.max(1, Math.round(stream.periodMicros * scale));
+            stream.dueMicros = (long) (mRandom.nextDouble() * stream.periodMicros);
+        }
+
+        return streams;
+    }
+
+    /**
+     * @return  bits a frame takes on the wire, including framing and (for CAN) typical stuffing
+     */
+    private int frameBits(final Stream stream) {
+        if (!isCan()) {
+            //SOF, header, data, CRC and EOF, VPW symbols average out to about a bit each
+            return 8 * (3 + stream.data.length + 1) + 16;
+        }
+
+        final int overhead = isCan29() ? 67 : 47;
+        return (int) ((overhead + 8 * stream.data.length) * 1.1);
+    }
+
+    private void tick() {
+        final long now = mClock.uptimeMillis();
+        long elapsed = now - mLastTick;
+        if (elapsed <= 0) {
+            return;
+        }
+        mLastTick = now;
+        elapsed = Math.min(elapsed, MAX_TICK_CATCHUP);
+
+        if (mConfig.linkBytesPerSecond > 0) {
+            mLinkCredit = Math.min(mLinkCredit + mConfig.linkBytesPerSecond * elapsed / 1000.0, mBuffer.length);
+        }
+
+        //the bus, in order of due time, with saturation the frames simply queue up behind each other
+        final long endMicros = mBusMicros + elapsed * 1000;
+        final double microsPerBit = 1000000.0 / bitrate(mProtocol);
+        long busFree = mBusMicros;
+
+        while (mMonitoring) {
+            Stream next = null;
+            for (Stream stream : mStreams) {
+                if (next == null || stream.dueMicros < next.dueMicros) {
+                    next = stream;
+                }
+            }
+
+            final long start = Math.max(next.dueMicros, busFree);
+            if (start >= endMicros) {
+                break;
+            }
+
+            busFree = start + (long) (frameBits(next) * microsPerBit);
+            next.dueMicros += next.periodMicros;
+            if (next.dueMicros < busFree - next.periodMicros) {
+                //the bus is saturated, a stream that fell a whole period behind skips ahead instead of bursting
+                next.dueMicros = busFree;
+            }
+
+            next.data[next.data.length - 1] = (next.data[next.data.length - 1] + 1) & 0xFF;
+
+            if (passes(next)) {
+                addToBuffer(format(next));
+            } else {
+                mFramesFiltered++;
+            }
+        }
+
+        mBusMicros = endMicros;
+
+        //button presses
+        if (mMonitoring && mConfig.pressInterval > 0 && mConfig.pressLines != null && mConfig.pressLines.length > 0) {
+            if (mPressRepeatsLeft == 0 && now >= mNextPress) {
+                mPressLine = mConfig.pressLines[mPressIndex % mConfig.pressLines.length];
+                mPressRepeatsLeft = (mPressIndex / mConfig.pressLines.length) % 2 == 0 ? PRESS_SHORT_REPEATS : PRESS_LONG_REPEATS;
+                mPressIndex++;
+                mNextPressRepeat = now;
+                mNextPress = now + mConfig.pressInterval;
+            }
+
+            while (mMonitoring && mPressRepeatsLeft > 0 && now >= mNextPressRepeat) {
+                addToBuffer(mPressLine);
+                mPressRepeatsLeft--;
+                mNextPressRepeat += PRESS_REPEAT_TIME;
+            }
+        }
+
+        if (mMonitoring) {
+            drainToLink();
+        }
+    }
+
+    /**
+     * sends as much of the buffer to the host as the link allows
+     */
+    private void drainToLink() {
+        int drain = mBufferCount;
+        if (mConfig.linkBytesPerSecond > 0) {
+            drain = Math.min(drain, (int) mLinkCredit);
+            mLinkCredit -= drain;
+        }
+        drainBuffer(drain);
+    }
+
+    private boolean passes(final Stream stream) {
+        final int header = stream.header;
+
+        if (mFiltered && isCan() && (header & mMask) != (mFilter & mMask)) {
+            return false;
+        }
+
+        switch (mMonitorMode) {
+            case MONITOR_RECEIVER:
+                if (!isCan()) {
+                    return ((header >> 8) & 0xFF) == mMonitorAddress;
+                }
+                return isCan29() ? ((header >> 8) & 0xFF) == mMonitorAddress : (header & 0xFF) == mMonitorAddress;
+            case MONITOR_TRANSMITTER:
+                return (header & 0xFF) == mMonitorAddress;
+            default:
+                return true;
+        }
+    }
+
+    private String format(final Stream stream) {
+        final StringBuilder line = new StringBuilder(64);
+
+        if (mHeaders) {
+            if (!isCan()) {
+                appendByte(line, stream.header >> 16);
+                appendByte(line, stream.header >> 8);
+                appendByte(line, stream.header);
+            } else if (isCan29()) {
+                appendByte(line, stream.header >> 24);
+                appendByte(line, stream.header >> 16);
+                appendByte(line, stream.header >> 8);
+                appendByte(line, stream.header);
+            } else {
+                line.append(HEX[(stream.header >> 8) & 0x7]).append(HEX[(stream.header >> 4) & 0xF]).append(HEX[stream.header & 0xF]);
+                if (mSpaces) {
+                    line.append(' ');
+                }
+            }
+        }
+
+        for (int b = 0; b < stream.data.length; b++) {
+            appendByte(line, stream.data[b]);
+        }
+
+        if (mHeaders && !isCan()) {
+            appendByte(line, j1850Crc(stream));
+        }
+
+        if (mSpaces && line.length() > 0) {
+            line.setLength(line.length() - 1);
+        }
+
+        return line.toString();
+    }
+
+    private void appendByte(final StringBuilder line, final int value) {
+        line.append(HEX[(value >> 4) & 0xF]).append(HEX[value & 0xF]);
+        if (mSpaces) {
+            line.append(' ');
+        }
+    }
+
+    private static int j1850Crc(final Stream stream) {
+        int crc = 0xFF;
+        crc = j1850CrcByte(crc, stream.header >> 16);
+        crc = j1850CrcByte(crc, stream.header >> 8);
+        crc = j1850CrcByte(crc, stream.header);
+        for (int b : stream.data) {
+            crc = j1850CrcByte(crc, b);
+        }
+        return ~crc & 0xFF;
+    }
+
+    private static int j1850CrcByte(int crc, final int value) {
+        crc ^= value & 0xFF;
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x1D) & 0xFF : (crc << 1) & 0xFF;
+        }
+        return crc;
+    }
+
+    private void addToBuffer(final String line) {
+        final int length = line.length() + (mLinefeeds ? 2 : 1);
+
+        if (mBufferCount + length > mBuffer.length) {
+            drainToLink();
+        }
+
+        if (mBufferCount + length > mBuffer.length) {
+            //the host is not keeping up, what made it out stays out and the device gives up
+            drainBuffer(mBufferCount);
+            stopMonitoring();
+            mBufferFulls++;
+            output("\r" + BUFFER_FULL + "\r\r" + PROMPT);
+            return;
+        }
+
+        for (int i = 0; i < line.length(); i++) {
+            mBuffer[mBufferCount++] = (byte) line.charAt(i);
+        }
+        mBuffer[mBufferCount++] = '\r';
+        if (mLinefeeds) {
+            mBuffer[mBufferCount++] = '\n';
+        }
+
+        mFramesSent++;
+    }
+
+    private void drainBuffer(final int length) {
+        if (length <= 0) {
+            return;
+        }
+
+        output(mBuffer, 0, length);
+        System.arraycopy(mBuffer, length, mBuffer, 0, mBufferCount - length);
+        mBufferCount -= length;
+    }
+
+    private void output(final String text) {
+        final byte[] bytes = new byte[text.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        output(bytes, 0, bytes.length);
+    }
+
+    private void output(final byte[] bytes, final int offset, final int length) {
+        synchronized (mOutputLock) {
+            if (mClosed) {
+                return;
+            }
+
+            if (mOutputCount + length > mOutput.length) {
+                int capacity = mOutput.length * 2;
+                while (capacity < mOutputCount + length) {
+                    capacity *= 2;
+                }
+
+                final byte[] grown = new byte[capacity];
+                final int first = Math.min(mOutputCount, mOutput.length - mOutputStart);
+                System.arraycopy(mOutput, mOutputStart, grown, 0, first);
+                System.arraycopy(mOutput, 0, grown, first, mOutputCount - first);
+                mOutput = grown;
+                mOutputStart = 0;
+            }
+
+            final int end = (mOutputStart + mOutputCount) % mOutput.length;
+            final int first = Math.min(length, mOutput.length - end);
+            System.arraycopy(bytes, offset, mOutput, end, first);
+            System.arraycopy(bytes, offset + first, mOutput, 0, length - first);
+            mOutputCount += length;
+
+            mOutputLock.notifyAll();
+        }
+    }
+
+    /**
+     * waits while the host has OUTPUT_LIMIT or more bytes to read, called without holding the simulator lock so commands still get through
+     */
+    private void awaitOutputRoom() throws InterruptedException {
+        synchronized (mOutputLock) {
+            while (mOutputCount >= OUTPUT_LIMIT && !mClosed) {
+                mOutputLock.wait();
+            }
+        }
+    }
+
+
+    private class MonitorThread extends Thread {
+        public MonitorThread() {
+            super("Elm327Simulator.MonitorThread");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    awaitOutputRoom();
+
+                    synchronized (Elm327Simulator.this) {
+                        if (!mMonitoring || mMonitorThread != this) {
+                            return;
+                        }
+                        tick();
+                    }
+
+                    mClock.sleep(MONITOR_TICK_TIME);
+                }
+            } catch (InterruptedException ignored) {
+                //stopped
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * asks the device who it is and which protocol it is on (ATI, ATDPN), the cheap check behind ElmAdapterState
+ * fed the commands as they are sent and every response line, it picks out the answers to its own commands
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmAdapterProbe {
+    public static final String[] COMMANDS = { "ATI", "ATDPN" };
+
+    private int mAnswering = -1; //index in COMMANDS of the command whose answer is arriving, -1 if none
+    private int mAnswered;
+    private final String[] mAnswers = new String[COMMANDS.length];
+    private boolean mSawEcho;
+
+
+    /**
+     * @param command  a command just written to the device
+     */
+    public void onSent(final String command) {
+        mAnswering = -1;
+
+        if (mAnswered < COMMANDS.length && ElmStartupCommands.normalize(command).equals(COMMANDS[mAnswered])) {
+            mAnswering = mAnswered;
+        }
+    }
+
+    /**
+     * @param response  a response line as framed by ElmResponseFramer
+     * @param completed  true if the prompt followed it
+     * @return  true if the line was part of an answer to a probe command
+     */
+    public boolean onResponse(final String response, final boolean completed) {
+        if (mAnswering < 0) {
+            return false;
+        }
+
+        if (response.equals(COMMANDS[mAnswering])) {
+            //the device echoed the command back
+            mSawEcho = true;
+        } else if (!response.equals("") && mAnswers[mAnswering] == null) {
+            mAnswers[mAnswering] = response;
+        }
+
+        if (completed) {
+            if (mAnswers[mAnswering] == null) {
+                mAnswers[mAnswering] = "";
+            }
+            mAnswered++;
+            mAnswering = -1;
+        }
+
+        return true;
+    }
+
+    public boolean isDone() {
+        return mAnswered == COMMANDS.length;
+    }
+
+    /**
+     * @return  the ATI answer, like "ELM327 v1.5"
+     */
+    public String getVersion() {
+        return mAnswers[0];
+    }
+
+    /**
+     * @return  the ATDPN answer, like "2" or "A6" (A for automatic)
+     */
+    public String getProtocol() {
+        return mAnswers[1];
+    }
+
+    /**
+     * @return  true if the device echoed a probe command, it has lost an ATE0
+     */
+    public boolean sawEcho() {
+        return mSawEcho;
+    }
+
+    /**
+     * @param commandsKey  see ElmStartupCommands.getKey()
+     * @return  the state found, or null if the probe is not done or got no usable answers
+     */
+    public ElmAdapterState toState(final String commandsKey) {
+        if (!isDone() || getVersion().equals("") || getProtocol().equals("") || getVersion().equals("?") || getProtocol().equals("?")) {
+            return null;
+        }
+
+        return new ElmAdapterState(getVersion(), getProtocol(), commandsKey);
+    }
+}
@@ -0,0 +1,105 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * what an interface device looked like once the startup commands had settled: its identity, protocol and the commands that got it there
+ * stored per device as a single string: "version|protocol|commands key" (see ElmStartupCommands.getKey())
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmAdapterState {
+    private static final String SETTING_SEPARATOR = "|";
+    private static final String SETTING_SEPARATOR_REGEX = "\\|";
+
+    //settings that only read from the device
+    private static final String[] READ_ONLY_COMMANDS = { "ATI", "AT@1", "AT@2", "ATDP", "ATDPN", "ATRV", "ATCS", "ATIGN", "ATPPS", "ATBD", "ATKW", "ATRD", "STI", "STDI", "STSN" };
+
+    //settings CBIServiceMain changes on its own after the startup, a device that kept its state is resumed with these unknown anyway
+    private static final String[] UNTRACKED_COMMANDS = { "ATSH", "ATST", "ATAT" };
+
+    public final String version;
+    public final String protocol;
+    public final String commandsKey;
+
+
+    public ElmAdapterState(final String version, final String protocol, final String commandsKey) {
+        this.version = version;
+        this.protocol = protocol;
+        this.commandsKey = commandsKey;
+    }
+
+    /**
+     * @param setting  as from serialize()
+     * @return  the state, or null if the string is not one
+     */
+    public static ElmAdapterState parse(final String setting) {
+        if (setting == null) {
+            return null;
+        }
+
+        final String[] args = setting.split(SETTING_SEPARATOR_REGEX, 3);
+        if (args.length < 3 || args[0].equals("") || args[1].equals("")) {
+            return null;
+        }
+
+        return new ElmAdapterState(args[0], args[1], args[2]);
+    }
+
+    public String serialize() {
+        return version + SETTING_SEPARATOR + protocol + SETTING_SEPARATOR + commandsKey;
+    }
+
+    /**
+     * @param commands  the startup commands about to be applied
+     * @return  true if a probe could tell whether the device kept this state, otherwise the full startup has to run
+     */
+    public boolean canVerify(final ElmStartupCommands commands) {
+        //echo coming back on is the only sign of a reset or power loss, without an ATE0 in the startup there is nothing to see
+        return commandsKey.equals(commands.getKey()) && commands.turnsEchoOff();
+    }
+
+    /**
+     * @param probe  a completed probe of the device as it is now
+     * @param commands  the startup commands about to be applied
+     * @return  true if the device kept everything since this state was taken, so only ElmStartupCommands.getResumeCommands() are needed
+     */
+    public boolean isStillValid(final ElmAdapterProbe probe, final ElmStartupCommands commands) {
+        return probe.isDone()
+                && canVerify(commands)
+                && version.equals(probe.getVersion())
+                && isSameProtocol(protocol, probe.getProtocol())
+                && !probe.sawEcho();
+    }
+
+    /**
+     * @param command  a command sent after the startup commands (a bound client's, say)
+     * @return  true if it may leave the device other than the startup commands did, so a stored state no longer describes it
+     */
+    public static boolean isChangedBy(final String command) {
+        final ElmStartupCommands.Kind kind = ElmStartupCommands.classify(command);
+        if (kind == ElmStartupCommands.Kind.RESET) {
+            return true;
+        }
+        if (kind != ElmStartupCommands.Kind.SETTING) {
+            return false;
+        }
+
+        final String normalized = ElmStartupCommands.normalize(command);
+        for (String readOnly : READ_ONLY_COMMANDS) {
+            if (normalized.equals(readOnly)) {
+                return false;
+            }
+        }
+        for (String untracked : UNTRACKED_COMMANDS) {
+            if (normalized.startsWith(untracked)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSameProtocol(final String cached, final String current) {
+        //"A" means the device is searching automatically, which protocol it settles on can differ from one connect to the next
+        return cached.equals(current) || (cached.startsWith("A") && current.startsWith("A"));
+    }
+}
@@ -0,0 +1,220 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * the commands waiting for the interface device, the most urgent class first and in order within a class
+ *
+ * each command carries the header it must go to (the sender puts an ATSH in front when the device is set to another),
+ * so a command that jumps ahead can never come between another and its ATSH
+ *
+ * a read-only request (see isReadOnly()) already waiting for the same header is not queued again, the one answer goes to everyone as all RX does,
+ * and it is moved up to the more urgent class of the two
+ * only while nothing but read-only commands were queued after it though, a setting in between (ATSH, ATCAF0 ...) can change the answer
+ * critical commands are never merged, dropped or refused, their order and number matter (the startup commands are counted as they go out)
+ *
+ * the backlog is bounded: once full the oldest background command gives way to a new one, if there are none a new non critical command is refused
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmCommandQueue {
+    public static final int DEFAULT_BACKLOG = 64;
+
+    public static enum Priority {
+        CRITICAL,       //startup and monitor commands, ISO-TP flow control, TesterPresent: late is as bad as not at all
+        INTERACTIVE,    //asked for by a client or a monitor's action, someone is waiting on the answer
+        BACKGROUND      //polling and discovery, repeated anyway
+    }
+
+    private static final int[] READ_ONLY_SERVICES = { 0x01, 0x02, 0x03, 0x05, 0x06, 0x07, 0x09, 0x0A, 0x19, 0x22, 0x3E };
+    private static final String[] READ_ONLY_SETTINGS = { "ATRV", "ATI", "AT@1", "AT@2", "ATDP", "ATDPN", "ATCS", "ATIGN" };
+
+    public static class Entry {
+        public final String command;
+        public final int header; //the ATSH value the command must go with, BusFrame.NO_ID if any will do
+        public final Priority priority;
+
+        private final String mNormalized;
+        private final boolean mReadOnly;
+        private final long mSequence; //order added, across all classes
+
+        private Entry(final String command, final int header, final Priority priority, final long sequence) {
+            this.command = command;
+            this.header = header;
+            this.priority = priority;
+
+            mNormalized = ElmStartupCommands.normalize(command);
+            mReadOnly = priority != Priority.CRITICAL && isReadOnly(mNormalized);
+            mSequence = sequence;
+        }
+    }
+
+    private final List<ArrayDeque<Entry>> mQueues;
+    private final int mBacklog;
+    private int mSize;
+
+    private long mSequence;
+    private long mLastChange = -1; //sequence of the last command added that is not read-only, nothing added before it may be merged with
+
+    private long mMerged;
+    private long mDropped;
+    private long mRefused;
+
+
+    public ElmCommandQueue() {
+        this(DEFAULT_BACKLOG);
+    }
+
+    /**
+     * @param backlog  commands that may wait at once, critical ones are let past it
+     */
+    public ElmCommandQueue(final int backlog) {
+        if (backlog < 1) {
+            throw new IllegalArgumentException("ElmCommandQueue() : backlog must be positive");
+        }
+
+        mBacklog = backlog;
+
+        mQueues = new ArrayList<ArrayDeque<Entry>>(Priority.values().length);
+        for (int p = 0; p < Priority.values().length; p++) {
+            mQueues.add(new ArrayDeque<Entry>());
+        }
+    }
+
+    /**
+     * @param command  normalized (see ElmStartupCommands.normalize())
+     * @return  true if sending it twice in a row gets the same answer and changes nothing (an OBD or UDS read, ATRV, etc.)
+     */
+    public static boolean isReadOnly(final String command) {
+        final ElmStartupCommands.Kind kind = ElmStartupCommands.classify(command);
+
+        if (kind == ElmStartupCommands.Kind.SETTING) {
+            for (String setting : READ_ONLY_SETTINGS) {
+                if (command.equals(setting)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (kind != ElmStartupCommands.Kind.REQUEST || command.length() < 2) {
+            return false;
+        }
+
+        final int service;
+        try {
+            service = Integer.parseInt(command.substring(0, 2), 16);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+
+        for (int s : READ_ONLY_SERVICES) {
+            if (s == service) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param command  the command
+     * @param header  the ATSH value it must go with (the low 24 bits of a 29bit ID), BusFrame.NO_ID if any will do
+     * @param priority  its class
+     * @return  false if it was refused (the backlog is full), true if queued or merged with one already waiting
+     */
+    public synchronized boolean add(final String command, final int header, final Priority priority) {
+        final Entry entry = new Entry(command, header, priority, mSequence++);
+
+        if (!entry.mReadOnly) {
+            mLastChange = entry.mSequence;
+        } else {
+            for (ArrayDeque<Entry> queue : mQueues) {
+                for (Entry waiting : queue) {
+                    if (waiting.mReadOnly && waiting.mSequence > mLastChange && waiting.header == header && waiting.mNormalized.equals(entry.mNormalized)) {
+                        mMerged++;
+
+                        if (waiting.priority.ordinal() > priority.ordinal()) {
+                            queue.remove(waiting);
+                            mQueues.get(priority.ordinal()).addLast(entry);
+                            notifyAll();
+                        }
+
+                        return true;
+                    }
+                }
+            }
+        }
+
+        if (priority != Priority.CRITICAL && mSize >= mBacklog) {
+            final ArrayDeque<Entry> background = mQueues.get(Priority.BACKGROUND.ordinal());
+            if (background.isEmpty()) {
+                mRefused++;
+                return false;
+            }
+
+            background.removeFirst();
+            mSize--;
+            mDropped++;
+        }
+
+        mQueues.get(priority.ordinal()).addLast(entry);
+        mSize++;
+        notifyAll();
+
+        return true;
+    }
+
+    /**
+     * waits for a command if there are none
+     *
+     * @return  the next command to send
+     * @throws InterruptedException  if the waiting thread is interrupted
+     */
+    public synchronized Entry take() throws InterruptedException {
+        while (mSize == 0) {
+            wait();
+        }
+
+        for (ArrayDeque<Entry> queue : mQueues) {
+            if (!queue.isEmpty()) {
+                mSize--;
+                return queue.removeFirst();
+            }
+        }
+
+        throw new IllegalStateException("ElmCommandQueue.take() : size out of step");
+    }
+
+    public synchronized boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return  read-only commands not queued as the same one was already waiting
+     */
+    public synchronized long getMerged() {
+        return mMerged;
+    }
+
+    /**
+     * @return  background commands dropped to make room
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * @return  commands refused as the backlog was full
+     */
+    public synchronized long getRefused() {
+        return mRefused;
+    }
+}
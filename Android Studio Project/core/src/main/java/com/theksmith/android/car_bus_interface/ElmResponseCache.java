@@ -0,0 +1,254 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * answers to requests that never change within a drive (VIN, calibration IDs, supported PIDs, etc.), so asking again does not go over the bus
+ * a client asking while the device monitors would otherwise end the monitoring (the break before a command) just for an answer already known
+ *
+ * each cacheable request has its own time to live (see getTtl()), the answers are kept per header (as set by ATSH) as different ECUs answer differently
+ * only complete answers are kept (without blank lines), one with NO DATA, an error, or nothing but the echo is asked again next time
+ * call clear() on connecting and when a command changes how the device answers (see invalidates())
+ *
+ * a fixed number of slots like IsoTpReassembler, the answer used least recently gives up its slot when all are in use
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmResponseCache {
+    public static final int DEFAULT_SLOTS = 16;
+    public static final int MAX_LINES = 32; //an answer longer than this is not kept
+
+    public static final long TTL_VEHICLE = 30 * 60 * 1000; //milliseconds, what identifies the vehicle and its ECUs
+    public static final long TTL_SUPPORT = 10 * 60 * 1000; //milliseconds, what the ECUs support, some only answer once the engine runs
+
+    //normalized request to its time to live
+    private static final String[] TTL_COMMANDS = {
+            "0900", "0902", "0904", "0906", "090A",     //mode 09 supported, VIN, calibration IDs, CVNs, ECU name
+            "22F187", "22F18C", "22F190",               //UDS part number, serial number, VIN
+            "0100", "0120", "0140", "0160", "0180", "01A0", "01C0", //mode 01 supported PIDs
+    };
+    private static final long[] TTL_VALUES = {
+            TTL_VEHICLE, TTL_VEHICLE, TTL_VEHICLE, TTL_VEHICLE, TTL_VEHICLE,
+            TTL_VEHICLE, TTL_VEHICLE, TTL_VEHICLE,
+            TTL_SUPPORT, TTL_SUPPORT, TTL_SUPPORT, TTL_SUPPORT, TTL_SUPPORT, TTL_SUPPORT, TTL_SUPPORT,
+    };
+
+    //settings followed some other way (the header is part of the key, see ElmTimeoutTuner for the rest), they don't change an answer kept here
+    private static final String[] KEEPING_SETTINGS = { "ATSH", "ATST", "ATAT" };
+
+    private static final String[] ERROR_RESPONSES = { "NO DATA", "ERROR", "?", "UNABLE", "STOPPED", "BUFFER FULL" };
+    private static final String SEARCHING = "SEARCHING"; //only the first time after ATSP0, left out of the kept answer
+
+    private final int[] mSlotHeaders;
+    private final String[] mSlotCommands;
+    private final String[][] mSlotLines;
+    private final long[] mSlotExpires;
+    private final long[] mSlotUsedAt;
+
+    private long mUseCount;
+    private long mHits;
+    private long mMisses;
+
+    //the answer being recorded, null command if none
+    private int mRecordingHeader;
+    private String mRecordingCommand;
+    private long mRecordingExpires;
+    private boolean mRecordingAnswered;
+    private final List<String> mRecordingLines = new ArrayList<String>(MAX_LINES);
+
+
+    public ElmResponseCache() {
+        this(DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param slots  answers that can be kept at once
+     */
+    public ElmResponseCache(final int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("ElmResponseCache() : slots must be positive");
+        }
+
+        mSlotHeaders = new int[slots];
+        mSlotCommands = new String[slots];
+        mSlotLines = new String[slots][];
+        mSlotExpires = new long[slots];
+        mSlotUsedAt = new long[slots];
+    }
+
+    /**
+     * @param command  normalized (see ElmStartupCommands.normalize())
+     * @return  milliseconds its answer may be kept, 0 if it is not cacheable
+     */
+    public static long getTtl(final String command) {
+        for (int c = 0; c < TTL_COMMANDS.length; c++) {
+            if (TTL_COMMANDS[c].equals(command)) {
+                return TTL_VALUES[c];
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * @param command  normalized, about to be sent
+     * @return  true if sending it makes every kept answer stale (a reset, or a setting like ATH1 or ATSP that changes what answers look like)
+     */
+    public static boolean invalidates(final String command) {
+        final ElmStartupCommands.Kind kind = ElmStartupCommands.classify(command);
+        if (kind == ElmStartupCommands.Kind.RESET) {
+            return true;
+        }
+        if (kind != ElmStartupCommands.Kind.SETTING) {
+            return false;
+        }
+
+        for (String keeping : KEEPING_SETTINGS) {
+            if (command.startsWith(keeping)) {
+                return false;
+            }
+        }
+
+        //reads like ATRV or ATI
+        return !ElmCommandQueue.isReadOnly(command);
+    }
+
+    /**
+     * @param header  the header the request would go to, BusFrame.NO_ID if the device's default
+     * @param command  normalized
+     * @param now  uptime millis
+     * @return  the lines of the kept answer in order, or null if there is none (or it expired)
+     */
+    public synchronized String[] get(final int header, final String command, final long now) {
+        if (getTtl(command) <= 0) {
+            return null;
+        }
+
+        final int slot = find(header, command);
+        if (slot < 0 || mSlotExpires[slot] <= now) {
+            mMisses++;
+            return null;
+        }
+
+        mHits++;
+        mSlotUsedAt[slot] = ++mUseCount;
+        return mSlotLines[slot];
+    }
+
+    /**
+     * starts recording the answer to a request just sent, any answer still being recorded is dropped
+     *
+     * @param header  the header it went to
+     * @param command  normalized
+     * @param now  uptime millis
+     */
+    public synchronized void onSent(final int header, final String command, final long now) {
+        mRecordingLines.clear();
+        mRecordingAnswered = false;
+
+        final long ttl = getTtl(command);
+        if (ttl <= 0) {
+            mRecordingCommand = null;
+            return;
+        }
+
+        mRecordingHeader = header;
+        mRecordingCommand = command;
+        mRecordingExpires = now + ttl;
+    }
+
+    /**
+     * @param line  a line of the answer to the request last sent
+     * @param completed  true if the prompt followed it, the answer is kept if it was a good one
+     */
+    public synchronized void onResponse(final String line, final boolean completed) {
+        if (mRecordingCommand == null) {
+            return;
+        }
+
+        for (String error : ERROR_RESPONSES) {
+            if (line.contains(error)) {
+                mRecordingCommand = null;
+                return;
+            }
+        }
+
+        if (mRecordingLines.size() >= MAX_LINES) {
+            mRecordingCommand = null;
+            return;
+        }
+
+        if (!line.trim().equals("") && !line.contains(SEARCHING)) {
+            mRecordingLines.add(line);
+            if (!ElmStartupCommands.normalize(line).equals(mRecordingCommand)) {
+                mRecordingAnswered = true;
+            }
+        }
+
+        if (!completed) {
+            return;
+        }
+
+        if (mRecordingAnswered) {
+            int slot = find(mRecordingHeader, mRecordingCommand);
+
+            if (slot < 0) {
+                slot = 0;
+                for (int s = 0; s < mSlotCommands.length; s++) {
+                    if (mSlotCommands[s] == null) {
+                        slot = s;
+                        break;
+                    } else if (mSlotUsedAt[s] < mSlotUsedAt[slot]) {
+                        slot = s;
+                    }
+                }
+            }
+
+            mSlotHeaders[slot] = mRecordingHeader;
+            mSlotCommands[slot] = mRecordingCommand;
+            mSlotLines[slot] = mRecordingLines.toArray(new String[mRecordingLines.size()]);
+            mSlotExpires[slot] = mRecordingExpires;
+            mSlotUsedAt[slot] = ++mUseCount;
+        }
+
+        mRecordingCommand = null;
+    }
+
+    private int find(final int header, final String command) {
+        for (int s = 0; s < mSlotCommands.length; s++) {
+            if (mSlotHeaders[s] == header && command.equals(mSlotCommands[s])) {
+                return s;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * forgets every answer, call when the device or what it is connected to may have changed
+     */
+    public synchronized void clear() {
+        for (int s = 0; s < mSlotCommands.length; s++) {
+            mSlotCommands[s] = null;
+            mSlotLines[s] = null;
+        }
+
+        mRecordingCommand = null;
+    }
+
+    /**
+     * @return  requests answered from the cache
+     */
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    /**
+     * @return  cacheable requests that had to go over the bus
+     */
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+}
@@ -0,0 +1,78 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * splits the text stream read from an ELM327 into individual responses
+ * a response ends at a line break (separator) or at the > prompt (terminator), which means the device is waiting for the next command
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmResponseFramer {
+    //this matches the termination of a MESSAGE (could be multiple within a response) or the entire RESPONSE
+    //explained: match "\r" or ">" at a minimum and also variations of " \r\n >" while also trying to trim out extra spaces, CRs, and LFs
+    public static final String RESPONSE_SEPARATOR_REGEX = " *\\r+\\n* *\\r*\\n* *| *\\r*\\n* *> *\\r*\\n* *|>";
+
+    //consider an entire RESPONSE complete when this string occurs
+    public static final String RESPONSE_TERMINATOR = ">";
+
+    private static final Pattern SEPARATOR = Pattern.compile(RESPONSE_SEPARATOR_REGEX);
+
+    private final StringBuilder mBuffer = new StringBuilder();
+
+
+    /**
+     * receives each response as it is framed
+     */
+    public interface ResponseHandler {
+        /**
+         * @param response  one line of the response with CR/LF and surrounding spaces removed (may be empty)
+         * @param completed  true if this line ended the whole response (the prompt followed it)
+         */
+        void onResponse(final String response, final boolean completed);
+    }
+
+
+    /**
+     * adds data as read from the device, any partial line is held until the rest of it arrives
+     *
+     * @param data  the data, in whatever size pieces it was read
+     * @param handler  receives every line completed by this data
+     * @return  true if the data ended cleanly on a terminator (no trailing data), the device is then idle
+     */
+    public boolean append(final String data, final ResponseHandler handler) {
+        final Matcher m = SEPARATOR.matcher(data);
+        final int end = data.length();
+        int start = 0;
+
+        while (start < end && m.find()) {
+            //the data contained a separator or terminator
+            mBuffer.append(data, start, m.start());
+            final boolean completed = m.group().contains(RESPONSE_TERMINATOR);
+
+            final String response = mBuffer.toString().replaceAll("[\\r\\n]", "").trim();
+            mBuffer.setLength(0);
+            handler.onResponse(response, completed);
+
+            start = m.end();
+
+            if (start == end) {
+                //a clean end to a response if it was a terminator with no trailing data
+                return completed;
+            }
+        }
+
+        //the response is not yet complete so keep appending data to the buffer
+        mBuffer.append(data, start, end);
+        return false;
+    }
+
+    /**
+     * drops any partial line
+     */
+    public void reset() {
+        mBuffer.setLength(0);
+    }
+}
@@ -0,0 +1,143 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * the startup command list from the elm_commands setting, sorted by what each command leaves behind in the device
+ *
+ * settings (ATE0, ATSP2, ATCF...), resets and requests stick until the device is reset or loses power,
+ * a monitor command (ATMA, ATMR, ATMT) ends with the break sent before every startup, so only those always need to go again
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmStartupCommands {
+    private static final String SETTING_SEPARATOR_REGEX = "; *";
+
+    public static enum Kind {
+        RESET,      //ATZ, ATWS, ATD
+        SETTING,    //any other AT (or STN ST) command
+        REQUEST,    //an OBD request, often used to trigger the protocol search
+        MONITOR     //ATMA, ATMR, ATMT, STM...
+    }
+
+    private final List<String> mCommands;
+    private final String mKey;
+
+
+    private ElmStartupCommands(final List<String> commands) {
+        mCommands = Collections.unmodifiableList(commands);
+
+        final StringBuilder key = new StringBuilder();
+        for (String command : commands) {
+            key.append(normalize(command)).append(';');
+        }
+        mKey = key.toString();
+    }
+
+    /**
+     * @param setting  the elm_commands preference string
+     * @return  the commands, empty ones left out
+     */
+    public static ElmStartupCommands parse(final String setting) {
+        final List<String> commands = new ArrayList<String>();
+
+        for (String command : setting.split(SETTING_SEPARATOR_REGEX)) {
+            command = command.trim();
+            if (!command.equals("")) {
+                commands.add(command);
+            }
+        }
+
+        return new ElmStartupCommands(commands);
+    }
+
+    /**
+     * @return  the command in upper case without spaces, as the device reads it
+     */
+    public static String normalize(final String command) {
+        return command.replace(" ", "").toUpperCase();
+    }
+
+    public static Kind classify(final String command) {
+        final String c = normalize(command);
+
+        if (c.equals("ATZ") || c.equals("ATWS") || c.equals("ATD")) {
+            return Kind.RESET;
+        }
+        if (c.startsWith("ATMA") || c.startsWith("ATMR") || c.startsWith("ATMT") || c.startsWith("STM")) {
+            return Kind.MONITOR;
+        }
+        if (c.startsWith("AT") || c.startsWith("ST")) {
+            return Kind.SETTING;
+        }
+        return Kind.REQUEST;
+    }
+
+    public boolean isEmpty() {
+        return mCommands.isEmpty();
+    }
+
+    public List<String> getCommands() {
+        return mCommands;
+    }
+
+    /**
+     * @return  true if the list turns echo off (ATE0), the one setting a reset or power loss visibly undoes (see ElmAdapterState)
+     */
+    public boolean turnsEchoOff() {
+        for (String command : mCommands) {
+            if (normalize(command).equals("ATE0")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return  identifies the list, two lists with the same key leave the device in the same state
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @param probe  commands to put just before the first monitor command (while the device still answers), null for none
+     * @return  every command, for a device in an unknown state
+     */
+    public List<String> getFullCommands(final String[] probe) {
+        final List<String> commands = new ArrayList<String>(mCommands.size() + (probe == null ? 0 : probe.length));
+        boolean probed = probe == null;
+
+        for (String command : mCommands) {
+            if (!probed && classify(command) == Kind.MONITOR) {
+                Collections.addAll(commands, probe);
+                probed = true;
+            }
+            commands.add(command);
+        }
+
+        if (!probed) {
+            Collections.addAll(commands, probe);
+        }
+
+        return commands;
+    }
+
+    /**
+     * @return  the commands a device that kept its state still needs, in order
+     */
+    public List<String> getResumeCommands() {
+        final List<String> commands = new ArrayList<String>();
+
+        for (String command : mCommands) {
+            if (classify(command) == Kind.MONITOR) {
+                commands.add(command);
+            }
+        }
+
+        return commands;
+    }
+}
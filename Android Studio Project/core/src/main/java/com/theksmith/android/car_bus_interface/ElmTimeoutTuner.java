@@ -0,0 +1,235 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.Locale;
+
+
+/**
+ * works out the shortest ELM327 response timeout (ATST) that still catches every answer, from how long answers actually take
+ *
+ * after a request the device waits ATST for a reply (and again after each reply for more) before giving up and printing the prompt,
+ * so when the ECU answers in 20ms the default of about 200ms is mostly spent waiting for replies that will never come
+ *
+ * latencies are kept per request kind, the header it goes to and its first byte (the service or mode), as different ECUs and services answer at very different speeds
+ * the timeout for a kind is its slowest recent latency with a margin, doubled for each time a NO DATA suggests it was cut too fine, and halved again after a run of answers
+ * a kind never answered is left at the fallback (the device's own setting), a silent ECU is not a reason to wait less for it
+ *
+ * ATST is in units of 4.096ms, every timeout here is in those units
+ * a fixed number of slots like IsoTpReassembler, the kind used least recently gives up its slot when all are in use
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmTimeoutTuner {
+    public static final int DEFAULT_SLOTS = 32;
+    public static final int SAMPLES = 16;
+
+    public static final int TIMEOUT_DEFAULT = 0x32; //the device's default, about 205ms
+    public static final int TIMEOUT_MIN = 0x05; //about 20ms, less risks cutting off a second ECU answering a functional request
+    public static final int TIMEOUT_MAX = 0xFF; //about 1045ms, the most ATST can be set to
+
+    public static final double MILLIS_PER_UNIT = 4.096;
+
+    private static final double MARGIN = 1.5;
+    private static final long SLACK = 12; //milliseconds added after the margin, for jitter on a fast ECU
+    private static final int BACKOFF_MAX = 8;
+    private static final int RECOVER_AFTER = 32; //answers in a row before a backoff is halved
+
+    private final long[] mSlotKeys;
+    private final long[][] mSlotLatencies;
+    private final int[] mSlotSampleCounts;
+    private final int[] mSlotNextSamples;
+    private final int[] mSlotBackoffs;
+    private final int[] mSlotStreaks;
+    private final long[] mSlotUsedAt;
+    private final boolean[] mSlotUsed;
+
+    private long mUseCount;
+    private long mNoData;
+    private long mBackoffs;
+
+
+    public ElmTimeoutTuner() {
+        this(DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param slots  request kinds that can be tracked at once
+     */
+    public ElmTimeoutTuner(final int slots) {
+        if (slots < 1) {
+            throw new IllegalArgumentException("ElmTimeoutTuner() : slots must be positive");
+        }
+
+        mSlotKeys = new long[slots];
+        mSlotLatencies = new long[slots][SAMPLES];
+        mSlotSampleCounts = new int[slots];
+        mSlotNextSamples = new int[slots];
+        mSlotBackoffs = new int[slots];
+        mSlotStreaks = new int[slots];
+        mSlotUsedAt = new long[slots];
+        mSlotUsed = new boolean[slots];
+    }
+
+    /**
+     * @param header  the header the request goes to (as set by ATSH), BusFrame.NO_ID if the device's default
+     * @param command  the request as sent, hex with or without spaces
+     * @return  the key for its kind, or BusFrame.NO_ID if the command does not start with a hex byte
+     */
+    public static long getKey(final int header, final String command) {
+        int value = 0;
+        int digits = 0;
+
+        for (int i = 0; i < command.length() && digits < 2; i++) {
+            final char c = command.charAt(i);
+            if (c == ' ') {
+                continue;
+            }
+
+            final int digit = Character.digit(c, 16);
+            if (digit < 0) {
+                return BusFrame.NO_ID;
+            }
+
+            value = (value << 4) | digit;
+            digits++;
+        }
+
+        if (digits < 2) {
+            return BusFrame.NO_ID;
+        }
+
+        //kept positive so a NO_ID header can't make the key itself NO_ID
+        return ((header & 0xFFFFFFFFL) << 8) | value;
+    }
+
+    /**
+     * @param key  from getKey()
+     * @param latency  milliseconds from writing the request to the first line of its answer
+     */
+    public synchronized void onResponse(final long key, final long latency) {
+        final int slot = use(key);
+
+        mSlotLatencies[slot][mSlotNextSamples[slot]] = latency;
+        mSlotNextSamples[slot] = (mSlotNextSamples[slot] + 1) % SAMPLES;
+        if (mSlotSampleCounts[slot] < SAMPLES) {
+            mSlotSampleCounts[slot]++;
+        }
+
+        if (++mSlotStreaks[slot] >= RECOVER_AFTER) {
+            mSlotStreaks[slot] = 0;
+            if (mSlotBackoffs[slot] > 1) {
+                mSlotBackoffs[slot] /= 2;
+            }
+        }
+    }
+
+    /**
+     * @param key  from getKey()
+     */
+    public synchronized void onNoData(final long key) {
+        mNoData++;
+
+        final int slot = find(key);
+        if (slot < 0 || mSlotSampleCounts[slot] == 0) {
+            //never answered, the timeout was never tightened so it can't be to blame
+            return;
+        }
+
+        mSlotStreaks[slot] = 0;
+        if (mSlotBackoffs[slot] < BACKOFF_MAX) {
+            mSlotBackoffs[slot] *= 2;
+            mBackoffs++;
+        }
+    }
+
+    /**
+     * @param key  from getKey()
+     * @param fallback  the timeout for a kind with no answers yet (the one the startup commands left the device with)
+     * @return  the timeout to send the request with
+     */
+    public synchronized int getTimeout(final long key, final int fallback) {
+        final int slot = find(key);
+        if (slot < 0 || mSlotSampleCounts[slot] == 0) {
+            return fallback;
+        }
+
+        long slowest = 0;
+        for (int i = 0; i < mSlotSampleCounts[slot]; i++) {
+            slowest = Math.max(slowest, mSlotLatencies[slot][i]);
+        }
+
+        final double millis = (slowest * MARGIN + SLACK) * mSlotBackoffs[slot];
+        final int units = (int) Math.ceil(millis / MILLIS_PER_UNIT);
+
+        return Math.max(TIMEOUT_MIN, Math.min(TIMEOUT_MAX, units));
+    }
+
+    private int find(final long key) {
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (mSlotUsed[s] && mSlotKeys[s] == key) {
+                return s;
+            }
+        }
+
+        return -1;
+    }
+
+    private int use(final long key) {
+        int slot = find(key);
+
+        if (slot < 0) {
+            int oldest = 0;
+            for (int s = 0; s < mSlotUsed.length && slot < 0; s++) {
+                if (!mSlotUsed[s]) {
+                    slot = s;
+                } else if (mSlotUsedAt[s] < mSlotUsedAt[oldest]) {
+                    oldest = s;
+                }
+            }
+
+            if (slot < 0) {
+                slot = oldest;
+            }
+
+            mSlotUsed[slot] = true;
+            mSlotKeys[slot] = key;
+            mSlotSampleCounts[slot] = 0;
+            mSlotNextSamples[slot] = 0;
+            mSlotBackoffs[slot] = 1;
+            mSlotStreaks[slot] = 0;
+        }
+
+        mSlotUsedAt[slot] = ++mUseCount;
+        return slot;
+    }
+
+    /**
+     * forgets every kind, call when the device or what it is connected to may have changed
+     */
+    public synchronized void reset() {
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            mSlotUsed[s] = false;
+        }
+    }
+
+    /**
+     * @return  NO DATA answers seen, tuned or not
+     */
+    public synchronized long getNoDataCount() {
+        return mNoData;
+    }
+
+    /**
+     * @return  times a timeout was doubled after a NO DATA
+     */
+    public synchronized long getBackoffCount() {
+        return mBackoffs;
+    }
+
+    /**
+     * @param units  a timeout
+     * @return  the command that sets it (example: "ATST32")
+     */
+    public static String getCommand(final int units) {
+        return String.format(Locale.US, "ATST%02X", units);
+    }
+}
@@ -0,0 +1,353 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * puts ISO 15765-2 (ISO-TP) multi-frame messages back together from the CAN frames they were split into
+ *
+ * the first payload byte of each frame says what it is (the PCI):
+ *      0x0L        single frame, L data bytes follow
+ *      0x1L LL     first frame, 12bit total length and the first 6 data bytes
+ *      0x2N        consecutive frame, sequence number N (1 to F then 0 again) and up to 7 more data bytes
+ *      0x3S BS ST  flow control, sent back by the receiver after a first frame
+ *
+ * a fixed number of slots, each with its buffer allocated up front, are keyed by the sending ID (its flow control ID makes the pair)
+ * when all are in use a new first frame takes the slot idle longest, so memory stays bounded however many ECUs are talking at once
+ * like BusPressClassifier it never reads a clock itself, every call is given the time
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class IsoTpReassembler {
+    public static final int DEFAULT_SLOTS = 8;
+    public static final int DEFAULT_MAX_LENGTH = 4095; //the most a 12bit first frame length can say
+    public static final long DEFAULT_TIMEOUT = 1000; //milliseconds, N_Cr from the standard
+
+    //continue to send, no block size limit, no minimum separation time
+    public static final String FLOW_CONTROL_CONTINUE = "30 00 00";
+
+    private static final int PCI_SINGLE = 0x0;
+    private static final int PCI_FIRST = 0x1;
+    private static final int PCI_CONSECUTIVE = 0x2;
+
+    private static final int CAN_FRAME_LENGTH = 8;
+    private static final int FIRST_FRAME_DATA = 6;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    public static enum Result {
+        NONE,           //not an ISO-TP frame this reassembler cares about (or a flow control)
+        SINGLE,         //a single frame, the message is ready
+        FIRST,          //a first frame started a message, a flow control is due unless the device sends it
+        CONSECUTIVE,    //a consecutive frame added to a message
+        COMPLETE,       //a consecutive frame finished a message, it is ready
+        ABORTED         //a message was given up on (out of sequence, or restarted by a new first frame)
+    }
+
+    private final long mTimeout;
+    private final int mMaxLength;
+
+    private final int[] mSlotIds;
+    private final int[] mSlotIdDigits;
+    private final boolean[] mSlotSpaces;
+    private final int[] mSlotExpected;
+    private final int[] mSlotReceived;
+    private final int[] mSlotNextSequence;
+    private final long[] mSlotTimes;
+    private final byte[][] mSlotData;
+    private final boolean[] mSlotUsed;
+
+    private final byte[] mSingleData = new byte[CAN_FRAME_LENGTH];
+
+    //the message last made ready by process()
+    private int mId = BusFrame.NO_ID;
+    private int mIdDigits;
+    private boolean mSpaces;
+    private byte[] mData;
+    private int mLength;
+
+    private long mCompleted;
+    private long mAborted;
+    private long mTimedOut;
+    private long mEvicted;
+    private long mTooLong;
+
+
+    public IsoTpReassembler() {
+        this(DEFAULT_SLOTS, DEFAULT_MAX_LENGTH, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param slots  messages that can be in progress at once
+     * @param maxLength  longest message kept, longer ones are ignored
+     * @param timeout  milliseconds a message in progress may wait for its next frame
+     */
+    public IsoTpReassembler(final int slots, final int maxLength, final long timeout) {
+        if (slots < 1 || maxLength < CAN_FRAME_LENGTH || maxLength > DEFAULT_MAX_LENGTH || timeout <= 0) {
+            throw new IllegalArgumentException("IsoTpReassembler() : slots must be positive, maxLength 8 to " + DEFAULT_MAX_LENGTH + " and timeout positive");
+        }
+
+        mTimeout = timeout;
+        mMaxLength = maxLength;
+
+        mSlotIds = new int[slots];
+        mSlotIdDigits = new int[slots];
+        mSlotSpaces = new boolean[slots];
+        mSlotExpected = new int[slots];
+        mSlotReceived = new int[slots];
+        mSlotNextSequence = new int[slots];
+        mSlotTimes = new long[slots];
+        mSlotData = new byte[slots][maxLength];
+        mSlotUsed = new boolean[slots];
+    }
+
+    /**
+     * @param now  uptime millis the frame arrived
+     * @param frame  a parsed CAN frame, with headers on (ATH1) so the ID is known
+     * @return  what the frame did, after SINGLE or COMPLETE the message is available from getId(), getData(), getLength() and format()
+     */
+    public Result process(final long now, final BusFrame frame) {
+        if (frame.length < 1 || frame.idDigits < 3) {
+            return Result.NONE;
+        }
+
+        final int pci = frame.payload[0] & 0xFF;
+
+        switch (pci >>> 4) {
+            case PCI_SINGLE:
+                return processSingle(frame, pci & 0x0F);
+            case PCI_FIRST:
+                return processFirst(now, frame, pci);
+            case PCI_CONSECUTIVE:
+                return processConsecutive(now, frame, pci & 0x0F);
+            default:
+                return Result.NONE;
+        }
+    }
+
+    private Result processSingle(final BusFrame frame, final int length) {
+        if (length == 0 || length > frame.length - 1) {
+            return Result.NONE;
+        }
+
+        System.arraycopy(frame.payload, 1, mSingleData, 0, length);
+
+        setMessage(frame.id, frame.idDigits, frame.spaces, mSingleData, length);
+        return Result.SINGLE;
+    }
+
+    private Result processFirst(final long now, final BusFrame frame, final int pci) {
+        final int expected = ((pci & 0x0F) << 8) | (frame.payload[1] & 0xFF);
+
+        //a first frame always fills the CAN frame and says there is more than a single frame could carry
+        if (frame.length != CAN_FRAME_LENGTH || expected < CAN_FRAME_LENGTH) {
+            return Result.NONE;
+        }
+
+        if (expected > mMaxLength) {
+            mTooLong++;
+            return Result.NONE;
+        }
+
+        int slot = find(frame.id);
+        final boolean restarted = slot >= 0;
+
+        if (slot < 0) {
+            slot = allocate(now);
+        }
+
+        mSlotUsed[slot] = true;
+        mSlotIds[slot] = frame.id;
+        mSlotIdDigits[slot] = frame.idDigits;
+        mSlotSpaces[slot] = frame.spaces;
+        mSlotExpected[slot] = expected;
+        mSlotNextSequence[slot] = 1;
+        mSlotTimes[slot] = now;
+
+        System.arraycopy(frame.payload, 2, mSlotData[slot], 0, FIRST_FRAME_DATA);
+        mSlotReceived[slot] = FIRST_FRAME_DATA;
+
+        if (restarted) {
+            //the sender gave up on the last one and started over
+            mAborted++;
+        }
+
+        return Result.FIRST;
+    }
+
+    private Result processConsecutive(final long now, final BusFrame frame, final int sequence) {
+        final int slot = find(frame.id);
+        if (slot < 0) {
+            //not one we saw the start of
+            return Result.NONE;
+        }
+
+        if (now - mSlotTimes[slot] > mTimeout) {
+            mSlotUsed[slot] = false;
+            mTimedOut++;
+            return Result.NONE;
+        }
+
+        if (sequence != mSlotNextSequence[slot]) {
+            mSlotUsed[slot] = false;
+            mAborted++;
+            return Result.ABORTED;
+        }
+
+        final int count = Math.min(frame.length - 1, mSlotExpected[slot] - mSlotReceived[slot]);
+        System.arraycopy(frame.payload, 1, mSlotData[slot], mSlotReceived[slot], count);
+        mSlotReceived[slot] += count;
+        mSlotNextSequence[slot] = (sequence + 1) & 0x0F;
+        mSlotTimes[slot] = now;
+
+        if (mSlotReceived[slot] < mSlotExpected[slot]) {
+            return Result.CONSECUTIVE;
+        }
+
+        //the slot is free again, but its buffer is not reused before the next first frame
+        mSlotUsed[slot] = false;
+        mCompleted++;
+
+        setMessage(mSlotIds[slot], mSlotIdDigits[slot], mSlotSpaces[slot], mSlotData[slot], mSlotExpected[slot]);
+        return Result.COMPLETE;
+    }
+
+    private int find(final int id) {
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (mSlotUsed[s] && mSlotIds[s] == id) {
+                return s;
+            }
+        }
+
+        return -1;
+    }
+
+    private int allocate(final long now) {
+        int oldest = 0;
+
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (mSlotUsed[s] && now - mSlotTimes[s] > mTimeout) {
+                mSlotUsed[s] = false;
+                mTimedOut++;
+            }
+
+            if (!mSlotUsed[s]) {
+                return s;
+            }
+
+            if (mSlotTimes[s] < mSlotTimes[oldest]) {
+                oldest = s;
+            }
+        }
+
+        mEvicted++;
+        return oldest;
+    }
+
+    private void setMessage(final int id, final int idDigits, final boolean spaces, final byte[] data, final int length) {
+        mId = id;
+        mIdDigits = idDigits;
+        mSpaces = spaces;
+        mData = data;
+        mLength = length;
+    }
+
+    /**
+     * drops every message in progress
+     */
+    public void reset() {
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            mSlotUsed[s] = false;
+        }
+
+        mId = BusFrame.NO_ID;
+        mData = null;
+        mLength = 0;
+    }
+
+    /**
+     * @return  the sending ID of the last ready message
+     */
+    public int getId() {
+        return mId;
+    }
+
+    /**
+     * @return  the data bytes of the last ready message (without the PCI bytes) from index 0 to getLength(), only valid until the next call to process()
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return  the last ready message as the ELM327 would print a frame of it: the ID then the data bytes (example: "7E8 49 02 01 31 44 34 ...")
+     */
+    public String format() {
+        if (mData == null) {
+            return "";
+        }
+
+        final char[] chars = new char[mIdDigits + mLength * 3];
+        int c = 0;
+
+        for (int d = mIdDigits - 1; d >= 0; d--) {
+            chars[c++] = HEX_DIGITS[(mId >>> (d * 4)) & 0xF];
+        }
+
+        for (int b = 0; b < mLength; b++) {
+            if (mSpaces) {
+                chars[c++] = ' ';
+            }
+            chars[c++] = HEX_DIGITS[(mData[b] >> 4) & 0xF];
+            chars[c++] = HEX_DIGITS[mData[b] & 0xF];
+        }
+
+        return new String(chars, 0, c);
+    }
+
+    /**
+     * @param id  the ID a first frame came from
+     * @return  the ID its flow control goes to, or BusFrame.NO_ID if that can't be worked out from the ID alone
+     */
+    public static int getFlowControlId(final int id) {
+        if (id >= 0x7E8 && id <= 0x7EF) {
+            //11bit OBD/UDS, ECU n answers on 7E8+n and listens on 7E0+n
+            return id - 8;
+        }
+
+        if ((id & 0xFFFF0000) == 0x18DA0000) {
+            //29bit normal fixed addressing 18DA[target][source], swap target and source
+            return 0x18DA0000 | ((id & 0xFF) << 8) | ((id >>> 8) & 0xFF);
+        }
+
+        return BusFrame.NO_ID;
+    }
+
+    public long getCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * @return  messages given up on because a frame was out of sequence or a new first frame restarted them
+     */
+    public long getAborted() {
+        return mAborted;
+    }
+
+    public long getTimedOut() {
+        return mTimedOut;
+    }
+
+    /**
+     * @return  messages dropped to make room when every slot was in use
+     */
+    public long getEvicted() {
+        return mEvicted;
+    }
+
+    public long getTooLong() {
+        return mTooLong;
+    }
+}
@@ -0,0 +1,52 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * a Clock that only moves when set() or advance() is called (or something sleeps on it)
+ * used for replays, simulations and benchmarks where timing decisions must be fast and exactly repeatable
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ManualClock implements Clock {
+    private volatile long mTime;
+
+
+    public ManualClock(final long time) {
+        mTime = time;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mTime;
+    }
+
+    /**
+     * returns at once after moving the time forward, so code that waits runs at full speed in a simulation
+     *
+     * @param millis  how long to wait
+     */
+    @Override
+    public synchronized void sleep(final long millis) {
+        if (millis > 0) {
+            mTime += millis;
+        }
+    }
+
+    /**
+     * @param time  the new time, earlier values are ignored since a Clock never goes backwards
+     */
+    public synchronized void set(final long time) {
+        if (time > mTime) {
+            mTime = time;
+        }
+    }
+
+    /**
+     * @param millis  how far to move the time forward
+     */
+    public synchronized void advance(final long millis) {
+        if (millis > 0) {
+            mTime += millis;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.Locale;
+
+
+/**
+ * which mode 01 PIDs a vehicle supports, from the bitmaps it answers PIDs 00, 20, 40... with
+ *      "41 00 BE 1F A8 13" - bit 7 of the first byte is PID 01 and bit 0 of the last is PID 20, which also says whether to ask 0120 next
+ *
+ * fed every line of each answer, it picks the bitmap out wherever it is in the line so headers (ATH1), CAN PCI bytes and ATS0 are all fine
+ * answers from several ECUs are OR'd together
+ *
+ * stored as a single string, the bitmaps of the ranges asked in hex: "BE1FA813|80000001|..."
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ObdPidSupport {
+    private static final String SETTING_SEPARATOR = "|";
+    private static final String SETTING_SEPARATOR_REGEX = "\\|";
+
+    public static final int PIDS_PER_RANGE = 0x20;
+    public static final int RANGES = 7; //PIDs 01 to E0, the last range (asked with 01C0) says nothing about any past it worth asking for
+
+    private static final int MODE_01_RESPONSE = 0x41;
+
+    private final int[] mBitmaps = new int[RANGES];
+    private int mRanges; //ranges answered so far
+    private boolean mDone;
+    private boolean mAnswered; //the range being asked got an answer
+
+    private final int[] mLineBytes = new int[BusFrame.MAX_PAYLOAD];
+
+
+    /**
+     * @return  the next command to send ("0100", "0120", etc.), or null if discovery is done
+     */
+    public String getNextCommand() {
+        if (mDone) {
+            return null;
+        }
+
+        return String.format(Locale.US, "01%02X", mRanges * PIDS_PER_RANGE);
+    }
+
+    /**
+     * @param line  a line of the answer to getNextCommand()
+     */
+    public void onLine(final String line) {
+        if (mDone) {
+            return;
+        }
+
+        final int length = readBytes(line, mLineBytes);
+        final int pid = mRanges * PIDS_PER_RANGE;
+
+        for (int i = 0; i + 5 < length; i++) {
+            if (mLineBytes[i] == MODE_01_RESPONSE && mLineBytes[i + 1] == pid) {
+                mBitmaps[mRanges] |= (mLineBytes[i + 2] << 24) | (mLineBytes[i + 3] << 16) | (mLineBytes[i + 4] << 8) | mLineBytes[i + 5];
+                mAnswered = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * call once the answer to getNextCommand() is complete (the prompt came)
+     */
+    public void onComplete() {
+        if (mDone) {
+            return;
+        }
+
+        if (!mAnswered) {
+            //NO DATA, no ECU has the range
+            mDone = true;
+            return;
+        }
+
+        mAnswered = false;
+        mRanges++;
+
+        if (mRanges >= RANGES || (mBitmaps[mRanges - 1] & 1) == 0) {
+            mDone = true;
+        }
+    }
+
+    public boolean isDone() {
+        return mDone;
+    }
+
+    /**
+     * @return  true if any ECU answered, otherwise (mode 01 not supported, or the vehicle is off) every PID reads as unsupported
+     */
+    public boolean hasAnswers() {
+        return mRanges > 0;
+    }
+
+    /**
+     * @param pid  01 to E0 (the range PIDs 00, 20, etc. count as supported if their range was answered)
+     */
+    public boolean isSupported(final int pid) {
+        if (pid < 0 || pid > RANGES * PIDS_PER_RANGE) {
+            return false;
+        }
+
+        if (pid % PIDS_PER_RANGE == 0) {
+            return pid / PIDS_PER_RANGE < mRanges;
+        }
+
+        final int range = (pid - 1) / PIDS_PER_RANGE;
+        if (range >= mRanges) {
+            return false;
+        }
+
+        return (mBitmaps[range] & (1 << (31 - (pid - 1) % PIDS_PER_RANGE))) != 0;
+    }
+
+    /**
+     * @param setting  as from serialize()
+     * @return  the finished discovery, or null if the string is not one
+     */
+    public static ObdPidSupport parse(final String setting) {
+        if (setting == null || setting.trim().equals("")) {
+            return null;
+        }
+
+        final String[] args = setting.split(SETTING_SEPARATOR_REGEX);
+        if (args.length > RANGES) {
+            return null;
+        }
+
+        final ObdPidSupport support = new ObdPidSupport();
+
+        try {
+            for (String arg : args) {
+                support.mBitmaps[support.mRanges++] = (int) Long.parseLong(arg.trim(), 16);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+
+        support.mDone = true;
+        return support;
+    }
+
+    public String serialize() {
+        final StringBuilder setting = new StringBuilder();
+
+        for (int r = 0; r < mRanges; r++) {
+            if (r > 0) {
+                setting.append(SETTING_SEPARATOR);
+            }
+            setting.append(String.format(Locale.US, "%08X", mBitmaps[r]));
+        }
+
+        return setting.toString();
+    }
+
+    /**
+     * picks out the bytes of a response line, anything that is not a 2 digit hex token (a CAN ID, a "0:" line number, etc.) is skipped
+     *
+     * @param line  the line
+     * @param bytes  filled with the byte values
+     * @return  bytes found
+     */
+    static int readBytes(final String line, final int[] bytes) {
+        final String trimmed = line.trim();
+        final int end = trimmed.length();
+
+        int count = 0;
+        int start = 0;
+
+        if (trimmed.indexOf(' ') < 0) {
+            //no spaces (ATS0), an odd number of digits means a 3 digit 11bit CAN ID in front
+            start = end % 2 == 0 ? 0 : 3;
+            for (int i = start; i + 1 < end && count < bytes.length; i += 2) {
+                final int high = Character.digit(trimmed.charAt(i), 16);
+                final int low = Character.digit(trimmed.charAt(i + 1), 16);
+                if (high < 0 || low < 0) {
+                    return 0;
+                }
+                bytes[count++] = (high << 4) | low;
+            }
+            return count;
+        }
+
+        while (start < end && count < bytes.length) {
+            int stop = trimmed.indexOf(' ', start);
+            if (stop < 0) {
+                stop = end;
+            }
+
+            if (stop - start == 2) {
+                final int high = Character.digit(trimmed.charAt(start), 16);
+                final int low = Character.digit(trimmed.charAt(start + 1), 16);
+                if (high >= 0 && low >= 0) {
+                    bytes[count++] = (high << 4) | low;
+                }
+            }
+
+            start = stop + 1;
+        }
+
+        return count;
+    }
+}
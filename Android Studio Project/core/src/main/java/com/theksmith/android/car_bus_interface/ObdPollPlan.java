@@ -0,0 +1,225 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * the mode 01 requests to poll and how often, built from the obd_poll setting and what the vehicle supports (see ObdPidSupport)
+ * stored as a single preference string of "PID:interval" entries (hex PID, milliseconds) separated by semicolons, example: "0C:100; 0D:100; 05:2000"
+ *
+ * unsupported PIDs are left out so no bus time goes on requests that can only ever get NO DATA
+ * PIDs polled at the same interval share a request, up to 6 to a request on CAN, the older protocols take only one
+ * next() hands out the most overdue request, one that fell behind waits its full interval again rather than going twice to catch up
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ObdPollPlan {
+    private static final String SETTING_SEPARATOR_REGEX = "; *";
+    private static final String ENTRY_SEPARATOR = ":";
+
+    public static final int MAX_PIDS_CAN = 6;
+    public static final long MIN_INTERVAL = 10; //milliseconds
+
+    private final String[] mCommands;
+    private final long[] mIntervals;
+    private final long[] mDue;
+    private final int mDropped;
+
+
+    private ObdPollPlan(final List<String> commands, final List<Long> intervals, final int dropped, final long now) {
+        mCommands = commands.toArray(new String[commands.size()]);
+        mIntervals = new long[mCommands.length];
+        mDue = new long[mCommands.length];
+        mDropped = dropped;
+
+        for (int c = 0; c < mCommands.length; c++) {
+            mIntervals[c] = intervals.get(c);
+            mDue[c] = now;
+        }
+    }
+
+    /**
+     * @param setting  the obd_poll preference string
+     * @param support  what the vehicle supports, null if not known (every PID is kept)
+     * @param maxPidsPerRequest  see getMaxPidsPerRequest()
+     * @param now  uptime millis, every request is due straight away
+     * @return  the plan, or null if the setting is empty (no polling)
+     * @throws IllegalArgumentException  if an entry is not a valid PID and interval
+     */
+    public static ObdPollPlan build(final String setting, final ObdPidSupport support, final int maxPidsPerRequest, final long now) throws IllegalArgumentException {
+        if (setting == null || setting.trim().equals("")) {
+            return null;
+        }
+
+        //PID to the shortest interval asked for it
+        final TreeMap<Integer, Long> pids = new TreeMap<Integer, Long>();
+
+        for (String entry : setting.trim().split(SETTING_SEPARATOR_REGEX)) {
+            entry = entry.trim();
+            if (entry.equals("")) {
+                continue;
+            }
+
+            final String[] args = entry.split(ENTRY_SEPARATOR);
+            if (args.length != 2) {
+                throw new IllegalArgumentException("ObdPollPlan.build() : expected PID:interval but found " + entry);
+            }
+
+            final int pid = Integer.parseInt(args[0].trim(), 16);
+            final long interval = Long.parseLong(args[1].trim(), 10);
+            if (pid < 1 || pid > 0xFF || interval < MIN_INTERVAL) {
+                throw new IllegalArgumentException("ObdPollPlan.build() : PID must be 01 to FF and interval at least " + MIN_INTERVAL + " in " + entry);
+            }
+
+            final Long previous = pids.get(pid);
+            pids.put(pid, previous == null ? interval : Math.min(previous, interval));
+        }
+
+        //interval to its PIDs, in order
+        final TreeMap<Long, List<Integer>> groups = new TreeMap<Long, List<Integer>>();
+        int dropped = 0;
+
+        for (Map.Entry<Integer, Long> pid : pids.entrySet()) {
+            if (support != null && !support.isSupported(pid.getKey())) {
+                dropped++;
+                continue;
+            }
+
+            List<Integer> group = groups.get(pid.getValue());
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(pid.getValue(), group);
+            }
+            group.add(pid.getKey());
+        }
+
+        final List<String> commands = new ArrayList<String>();
+        final List<Long> intervals = new ArrayList<Long>();
+
+        for (Map.Entry<Long, List<Integer>> group : groups.entrySet()) {
+            final List<Integer> members = group.getValue();
+
+            for (int start = 0; start < members.size(); start += maxPidsPerRequest) {
+                final StringBuilder command = new StringBuilder("01");
+                for (int m = start; m < members.size() && m < start + maxPidsPerRequest; m++) {
+                    command.append(String.format(Locale.US, " %02X", members.get(m)));
+                }
+
+                commands.add(command.toString());
+                intervals.add(group.getKey());
+            }
+        }
+
+        return new ObdPollPlan(commands, intervals, dropped, now);
+    }
+
+    /**
+     * @param protocol  the ATDPN answer, like "6" or "A6" (see ElmAdapterProbe), null if not known
+     * @return  PIDs a single mode 01 request may ask for
+     */
+    public static int getMaxPidsPerRequest(final String protocol) {
+        if (protocol == null || protocol.equals("")) {
+            return 1;
+        }
+
+        //protocols 6 to C are CAN
+        final char number = Character.toUpperCase(protocol.charAt(protocol.length() - 1));
+        return (number >= '6' && number <= '9') || (number >= 'A' && number <= 'C') ? MAX_PIDS_CAN : 1;
+    }
+
+    /**
+     * @param protocol  the ATDPN answer, like "6" or "A6" (see ElmAdapterProbe), null if not known
+     * @return  the header an OBD request is broadcast with on that protocol (the device's own default for it), BusFrame.NO_ID if not known
+     */
+    public static int getFunctionalHeader(final String protocol) {
+        if (protocol == null || protocol.equals("")) {
+            return BusFrame.NO_ID;
+        }
+
+        switch (Character.toUpperCase(protocol.charAt(protocol.length() - 1))) {
+            case '1':
+                return 0x616AF1; //J1850 PWM
+            case '2':
+            case '3':
+                return 0x686AF1; //J1850 VPW, ISO 9141-2
+            case '4':
+            case '5':
+                return 0xC133F1; //ISO 14230-4 (KWP2000)
+            case '6':
+            case '8':
+                return 0x7DF; //11bit CAN
+            case '7':
+            case '9':
+                return 0x18DB33F1; //29bit CAN
+            default:
+                //automatic, or a user defined CAN protocol
+                return BusFrame.NO_ID;
+        }
+    }
+
+    /**
+     * @param now  uptime millis
+     * @return  the request most overdue, or null if none is due yet
+     */
+    public String next(final long now) {
+        int next = -1;
+
+        for (int c = 0; c < mCommands.length; c++) {
+            if (mDue[c] <= now && (next < 0 || mDue[c] < mDue[next])) {
+                next = c;
+            }
+        }
+
+        if (next < 0) {
+            return null;
+        }
+
+        //on schedule it keeps its phase, but one already a whole interval behind starts over from now instead of being due again straight away
+        long due = mDue[next] + mIntervals[next];
+        if (due <= now) {
+            due = now + mIntervals[next];
+        }
+        mDue[next] = due;
+
+        return mCommands[next];
+    }
+
+    /**
+     * @return  uptime millis the next request is due, Long.MAX_VALUE if the plan is empty
+     */
+    public long getNextDue() {
+        long due = Long.MAX_VALUE;
+
+        for (long d : mDue) {
+            due = Math.min(due, d);
+        }
+
+        return due;
+    }
+
+    public int size() {
+        return mCommands.length;
+    }
+
+    /**
+     * @return  PIDs left out as not supported
+     */
+    public int getDropped() {
+        return mDropped;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder text = new StringBuilder();
+
+        for (int c = 0; c < mCommands.length; c++) {
+            text.append(c > 0 ? "; " : "").append(mCommands[c]).append(ENTRY_SEPARATOR).append(mIntervals[c]);
+        }
+
+        return text.toString();
+    }
+}
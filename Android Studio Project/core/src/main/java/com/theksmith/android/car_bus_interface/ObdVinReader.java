@@ -0,0 +1,90 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * picks the vehicle identification number out of the answer to mode 09 PID 02, the key ObdPidSupport is cached under
+ *
+ * the answer is split over several lines however the device prints it:
+ *      CAN, with or without headers, is one ISO-TP message, after its "49 02 01" every byte that is a VIN character is kept until there are 17
+ *          (a VIN never has I, O or Q, so the CAN PCI bytes 20 to 2F are never taken for one)
+ *      J1850 and ISO are 5 messages "49 02 0n" with 4 data bytes each (the first padded with 00), only those 4 are taken
+ *          with headers on (ATH1) each line also has 3 header bytes in front and a checksum after, either of which can look like a VIN character
+ * the line holding "49 02 01" tells which it is, a CAN first frame has only 3 bytes left after it
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ObdVinReader {
+    public static final String COMMAND = "0902";
+
+    public static final int VIN_LENGTH = 17;
+
+    private static final int RESPONSE_MODE = 0x49;
+    private static final int RESPONSE_PID = 0x02;
+    private static final int MESSAGE_BYTES = 4; //data bytes in each J1850/ISO message
+
+    private final StringBuilder mVin = new StringBuilder(VIN_LENGTH);
+    private boolean mStarted; //seen "49 02 01"
+    private boolean mMessages; //J1850/ISO, one "49 02 0n" message per line
+
+    private final int[] mLineBytes = new int[BusFrame.MAX_PAYLOAD];
+
+
+    /**
+     * @param line  a line of the answer to COMMAND
+     */
+    public void onLine(final String line) {
+        final int length = ObdPidSupport.readBytes(line, mLineBytes);
+
+        if (mStarted && !mMessages) {
+            //a CAN consecutive frame
+            append(0, length);
+            return;
+        }
+
+        final int data = findMessage(length);
+        if (data < 0) {
+            return;
+        }
+
+        if (!mStarted) {
+            if (mLineBytes[data - 1] != 0x01) {
+                return;
+            }
+            mStarted = true;
+            mMessages = length - data >= MESSAGE_BYTES;
+        }
+
+        append(data, mMessages ? data + MESSAGE_BYTES : length);
+    }
+
+    /**
+     * @return  index of the first data byte after "49 02 0n" in the line, or -1 if the line has none
+     */
+    private int findMessage(final int length) {
+        for (int i = 0; i + 2 < length; i++) {
+            if (mLineBytes[i] == RESPONSE_MODE && mLineBytes[i + 1] == RESPONSE_PID && mLineBytes[i + 2] > 0) {
+                return i + 3;
+            }
+        }
+        return -1;
+    }
+
+    private void append(final int from, final int to) {
+        for (int i = from; i < to && mVin.length() < VIN_LENGTH; i++) {
+            if (isVinCharacter(mLineBytes[i])) {
+                mVin.append((char) mLineBytes[i]);
+            }
+        }
+    }
+
+    private static boolean isVinCharacter(final int value) {
+        return (value >= '0' && value <= '9') || (value >= 'A' && value <= 'Z' && value != 'I' && value != 'O' && value != 'Q');
+    }
+
+    /**
+     * @return  the VIN, or null if the answer did not hold a whole one
+     */
+    public String getVin() {
+        return mVin.length() == VIN_LENGTH ? mVin.toString() : null;
+    }
+}
@@ -0,0 +1,79 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.util.Random;
+
+
+/**
+ * how long to wait before each connection attempt
+ * the first attempt after a reset() goes immediately, so a momentary drop costs only the reconnect itself,
+ * after that the wait grows exponentially up to a cap, with random jitter so a flapping device isn't hit in lock step
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ReconnectPolicy {
+    public static final long DEFAULT_INITIAL_DELAY = 250; //milliseconds
+    public static final long DEFAULT_MAX_DELAY = 30000; //milliseconds
+    public static final double DEFAULT_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.5;
+
+    private final long mInitialDelay;
+    private final long mMaxDelay;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final Random mRandom;
+
+    private int mAttempts;
+
+
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY, DEFAULT_MAX_DELAY, DEFAULT_MULTIPLIER, DEFAULT_JITTER, new Random());
+    }
+
+    /**
+     * @param initialDelay  wait before the second attempt (milliseconds)
+     * @param maxDelay  the cap (milliseconds)
+     * @param multiplier  growth of the wait per attempt
+     * @param jitter  share of each wait that is random, 0 for none, 1 for anywhere from zero to the full wait
+     * @param random  source of the jitter
+     */
+    public ReconnectPolicy(final long initialDelay, final long maxDelay, final double multiplier, final double jitter, final Random random) {
+        if (initialDelay < 0 || maxDelay < initialDelay || multiplier < 1 || jitter < 0 || jitter > 1 || random == null) {
+            throw new IllegalArgumentException("ReconnectPolicy() : invalid settings");
+        }
+
+        mInitialDelay = initialDelay;
+        mMaxDelay = maxDelay;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mRandom = random;
+    }
+
+    /**
+     * @return  milliseconds to wait before the next attempt, each call counts as an attempt
+     */
+    public synchronized long nextDelay() {
+        final int attempt = mAttempts++;
+
+        if (attempt == 0) {
+            return 0;
+        }
+
+        final double base = Math.min(mMaxDelay, mInitialDelay * Math.pow(mMultiplier, attempt - 1));
+
+        return Math.round(base * (1 - mJitter * mRandom.nextDouble()));
+    }
+
+    /**
+     * call once a connection is fully up, the next attempt is then immediate again
+     */
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+
+    /**
+     * @return  attempts since the last reset()
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+}
@@ -0,0 +1,216 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * notices a connected interface device that has gone quiet while it should be monitoring, and says how hard to kick it
+ * each stage is tried in turn, waiting its own timeout for data to come back before moving on:
+ *      REISSUE_MONITOR     re-send the monitor command (ATMA etc.), enough after a BUFFER FULL or a stray character ended monitoring
+ *      WARM_RESET          ATWS and the full startup commands again, for a device that answers but has lost its settings
+ *      RECONNECT           drop and re-open the link, for a device (or socket) that is hung
+ *
+ * only for startup commands that monitor, a device that is only polled goes quiet between requests by design
+ * paused while something other than the watchdog has ended monitoring on purpose (a bound client's command), until a monitor command goes out again
+ *
+ * stored as a single preference string: "silenceTimeout|frameTimeout|resetTimeout|reconnectTimeout" (milliseconds)
+ * like BusPressClassifier it never reads a clock itself, every call is given the time
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class RxWatchdog {
+    private static final String SETTING_SEPARATOR_REGEX = "\\|";
+
+    public static enum Stage {
+        NONE, REISSUE_MONITOR, WARM_RESET, RECONNECT
+    }
+
+    public static final int STAGES = Stage.values().length;
+
+    private final long mSilenceTimeout;
+    private final long mFrameTimeout;
+    private final long mResetTimeout;
+    private final long mReconnectTimeout;
+
+    private boolean mArmed;
+    private boolean mPaused;
+    private Stage mStage = Stage.NONE;
+    private long mStageTime;
+    private long mLastData;
+    private long mLastFrame;
+
+    private final int[] mActions = new int[STAGES];
+    private final int[] mRecoveries = new int[STAGES];
+
+
+    /**
+     * @param silenceTimeout  no data at all for this long starts the first stage
+     * @param frameTimeout  no valid bus frame for this long also starts it (for a device that sends only errors), 0 to not watch frames
+     * @param resetTimeout  still quiet this long after the first stage starts the second
+     * @param reconnectTimeout  still quiet this long after the second stage starts the last
+     */
+    public RxWatchdog(final long silenceTimeout, final long frameTimeout, final long resetTimeout, final long reconnectTimeout) {
+        if (silenceTimeout <= 0 || frameTimeout < 0 || resetTimeout <= 0 || reconnectTimeout <= 0) {
+            throw new IllegalArgumentException("RxWatchdog() : timeouts must be positive (frameTimeout may be 0)");
+        }
+
+        mSilenceTimeout = silenceTimeout;
+        mFrameTimeout = frameTimeout;
+        mResetTimeout = resetTimeout;
+        mReconnectTimeout = reconnectTimeout;
+    }
+
+    /**
+     * @param setting  the preference string
+     * @return  the watchdog, or null if the setting is empty (no watchdog)
+     * @throws IllegalArgumentException  if the string does not have all 4 values or a value is not a valid time
+     */
+    public static RxWatchdog parse(final String setting) throws IllegalArgumentException {
+        if (setting == null || setting.trim().equals("")) {
+            return null;
+        }
+
+        final String[] args = setting.split(SETTING_SEPARATOR_REGEX);
+        if (args.length < 4) {
+            throw new IllegalArgumentException("RxWatchdog.parse() : expected 4 values separated by | but found " + args.length);
+        }
+
+        return new RxWatchdog(
+                Long.parseLong(args[0].trim(), 10),
+                Long.parseLong(args[1].trim(), 10),
+                Long.parseLong(args[2].trim(), 10),
+                Long.parseLong(args[3].trim(), 10));
+    }
+
+    /**
+     * starts watching, call once the device is monitoring, does nothing if already watching (a recovery in progress carries on)
+     *
+     * @param now  uptime millis
+     */
+    public synchronized void arm(final long now) {
+        if (mArmed) {
+            return;
+        }
+
+        mArmed = true;
+        mPaused = false;
+        mStage = Stage.NONE;
+        mLastData = now;
+        mLastFrame = now;
+    }
+
+    public synchronized void disarm() {
+        mArmed = false;
+        mPaused = false;
+        mStage = Stage.NONE;
+    }
+
+    public synchronized boolean isArmed() {
+        return mArmed;
+    }
+
+    /**
+     * stops the clock, call when a command that is not the watchdog's own ends monitoring
+     */
+    public synchronized void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * starts the clock again, call when a monitor command goes out, the quiet time while paused does not count
+     *
+     * @param now  uptime millis
+     */
+    public synchronized void resume(final long now) {
+        if (!mPaused) {
+            return;
+        }
+
+        mPaused = false;
+        mLastData = now;
+        mLastFrame = now;
+        mStageTime = now;
+    }
+
+    public synchronized boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * @param now  uptime millis data arrived from the device while it was monitoring
+     */
+    public synchronized void onData(final long now) {
+        mLastData = now;
+    }
+
+    /**
+     * @param now  uptime millis a valid bus frame arrived
+     */
+    public synchronized void onFrame(final long now) {
+        mLastData = now;
+        mLastFrame = now;
+    }
+
+    /**
+     * call periodically
+     *
+     * @param now  uptime millis
+     * @return  the stage whose action is due now (returned once each time a stage starts), otherwise NONE
+     */
+    public synchronized Stage check(final long now) {
+        if (!mArmed || mPaused) {
+            return Stage.NONE;
+        }
+
+        if (mStage != Stage.NONE && mLastData > mStageTime && (mFrameTimeout == 0 || mLastFrame > mStageTime)) {
+            //the last action worked
+            mRecoveries[mStage.ordinal()]++;
+            mStage = Stage.NONE;
+        }
+
+        final boolean due;
+        switch (mStage) {
+            case NONE:
+                due = now - mLastData >= mSilenceTimeout || (mFrameTimeout > 0 && now - mLastFrame >= mFrameTimeout);
+                break;
+            case REISSUE_MONITOR:
+                due = now - mStageTime >= mResetTimeout;
+                break;
+            case WARM_RESET:
+                due = now - mStageTime >= mReconnectTimeout;
+                break;
+            default:
+                due = false;
+                break;
+        }
+
+        if (!due) {
+            return Stage.NONE;
+        }
+
+        mStage = Stage.values()[mStage.ordinal() + 1];
+        mStageTime = now;
+        mActions[mStage.ordinal()]++;
+
+        if (mStage == Stage.RECONNECT) {
+            //the link goes down, watching starts over once the device is monitoring again
+            mArmed = false;
+            mStage = Stage.NONE;
+            return Stage.RECONNECT;
+        }
+
+        return mStage;
+    }
+
+    /**
+     * @return  times each Stage (by ordinal) was started
+     */
+    public synchronized int[] getActionCounts() {
+        return mActions.clone();
+    }
+
+    /**
+     * @return  times data came back after each Stage (by ordinal), RECONNECT recoveries are not seen here (see ConnectionTimings)
+     */
+    public synchronized int[] getRecoveryCounts() {
+        return mRecoveries.clone();
+    }
+}
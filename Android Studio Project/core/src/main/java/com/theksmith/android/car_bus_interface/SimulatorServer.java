@@ -0,0 +1,164 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * serves an Elm327Simulator over TCP like a Wi-Fi ELM327 adapter, one client at a time
+ * lets the app (through TcpTransport) or anything else run against a stand-in on a desktop box
+ *
+ * usage: java SimulatorServer [-v] [port] [load] [link bytes/sec]
+ * -v prints each client connecting and disconnecting, otherwise it runs silently
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class SimulatorServer {
+    private static final int BUFFER_SIZE = 8192;
+
+    private final int mPort;
+    private final Elm327Simulator.Config mConfig;
+    private final PrintStream mLog;
+
+
+    /**
+     * @param port  TCP port to listen on
+     * @param config  the simulated bus and link, shared by every client
+     * @param log  where to report listening and clients coming and going, null for nowhere
+     */
+    public SimulatorServer(final int port, final Elm327Simulator.Config config, final PrintStream log) {
+        mPort = port;
+        mConfig = config;
+        mLog = log;
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Elm327Simulator.Config config = new Elm327Simulator.Config();
+        int port = TcpTransport.DEFAULT_PORT;
+
+        final boolean verbose = args.length > 0 && args[0].equals("-v");
+        final int first = verbose ? 1 : 0;
+
+        if (args.length > first) {
+            port = Integer.parseInt(args[first]);
+        }
+        if (args.length > first + 1) {
+            config.load = Double.parseDouble(args[first + 1]);
+        }
+        if (args.length > first + 2) {
+            config.linkBytesPerSecond = Integer.parseInt(args[first + 2]);
+        }
+
+        new SimulatorServer(port, config, verbose ? System.out : null).run();
+    }
+
+    /**
+     * accepts and serves clients until the process ends
+     */
+    public void run() throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(mPort));
+
+        log("listening on port " + mPort);
+
+        while (true) {
+            final SocketChannel client = server.accept();
+            client.socket().setTcpNoDelay(true);
+
+            log("client connected : " + client.socket().getRemoteSocketAddress());
+
+            serve(client);
+
+            log("client disconnected");
+        }
+    }
+
+    private void log(final String message) {
+        if (mLog != null) {
+            mLog.println(message);
+        }
+    }
+
+    private void serve(final SocketChannel client) {
+        final Elm327Simulator simulator = new Elm327Simulator(new NanoClock(), mConfig);
+        simulator.open();
+
+        //device to client
+        final Thread output = new Thread("SimulatorServer.output") {
+            @Override
+            public void run() {
+                final byte[] bytes = new byte[BUFFER_SIZE];
+                final ByteBuffer out = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                int length;
+
+                try {
+                    while ((length = simulator.read(bytes)) >= 0) {
+                        out.clear();
+                        out.put(bytes, 0, length);
+                        out.flip();
+                        while (out.hasRemaining()) {
+                            client.write(out);
+                        }
+                    }
+                } catch (IOException ignored) {
+                    //client went away
+                }
+            }
+        };
+        output.setDaemon(true);
+        output.start();
+
+        //client to device
+        final ByteBuffer in = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        final byte[] bytes = new byte[BUFFER_SIZE];
+
+        try {
+            while (client.read(in) >= 0) {
+                in.flip();
+                final int length = in.remaining();
+                in.get(bytes, 0, length);
+                in.clear();
+
+                simulator.write(bytes, 0, length);
+            }
+        } catch (IOException ignored) {
+            //client went away
+        }
+
+        simulator.close();
+
+        try {
+            client.close();
+            output.join();
+        } catch (Exception ignored) {
+            //done with it either way
+        }
+    }
+
+
+    /**
+     * a Clock on System.nanoTime(), there is no SystemClock.uptimeMillis() off Android
+     */
+    private static class NanoClock implements Clock {
+        private final long mStart = System.nanoTime();
+
+        @Override
+        public long uptimeMillis() {
+            return (System.nanoTime() - mStart) / 1000000;
+        }
+
+        @Override
+        public void sleep(final long millis) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.IOException;
+
+
+/**
+ * a BusTransport to an Elm327Simulator in the same process
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class SimulatorTransport implements BusTransport {
+    private final Elm327Simulator mSimulator;
+
+
+    public SimulatorTransport(final Elm327Simulator simulator) {
+        mSimulator = simulator;
+    }
+
+    public Elm327Simulator getSimulator() {
+        return mSimulator;
+    }
+
+    @Override
+    public void create() throws IOException {
+        //nothing to set up
+    }
+
+    @Override
+    public void connect() throws IOException {
+        mSimulator.open();
+    }
+
+    @Override
+    public int read(final byte[] buffer) throws IOException {
+        return mSimulator.read(buffer);
+    }
+
+    @Override
+    public void write(final byte[] data) throws IOException {
+        mSimulator.write(data, 0, data.length);
+    }
+
+    @Override
+    public void close() {
+        mSimulator.close();
+    }
+
+    @Override
+    public String getName() {
+        return Elm327Simulator.NAME;
+    }
+}
@@ -0,0 +1,173 @@
+package com.theksmith.android.car_bus_interface;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+/**
+ * a BusTransport over TCP, for Wi-Fi ELM327 adapters (or anything serving the same protocol, see SimulatorServer)
+ * uses a blocking NIO channel with direct buffers, and TCP_NODELAY since every command is a few bytes waiting on a reply
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class TcpTransport implements BusTransport {
+    public static final int DEFAULT_PORT = 35000; //what most Wi-Fi ELM327 adapters listen on
+
+    private static final int CONNECT_TIMEOUT = 10000; //milliseconds
+    private static final int BUFFER_SIZE = 8192;
+
+    private final String mHost;
+    private final int mPort;
+
+    private volatile SocketChannel mChannel;
+
+    //each is only used by one thread at a time (reads by the IO thread, writes by whoever holds the service lock)
+    private final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final ByteBuffer mWriteBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+
+    /**
+     * @param address  "host:port", or just "host" for DEFAULT_PORT
+     */
+    public TcpTransport(final String address) {
+        if (address == null || address.trim().length() == 0) {
+            throw new IllegalArgumentException("TcpTransport() : address is required");
+        }
+
+        final String trimmed = address.trim();
+        final int colon = trimmed.lastIndexOf(':');
+
+        if (colon < 0) {
+            mHost = trimmed;
+            mPort = DEFAULT_PORT;
+        } else {
+            mHost = trimmed.substring(0, colon);
+            try {
+                mPort = Integer.parseInt(trimmed.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("TcpTransport() : invalid port : " + address);
+            }
+        }
+
+        if (mHost.length() == 0 || mPort <= 0 || mPort > 0xFFFF) {
+            throw new IllegalArgumentException("TcpTransport() : invalid address : " + address);
+        }
+
+        mReadBuffer.limit(0);
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    @Override
+    public void create() throws IOException {
+        if (mChannel != null) {
+            return;
+        }
+
+        final SocketChannel channel = SocketChannel.open();
+        mChannel = channel;
+
+        try {
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void connect() throws IOException {
+        create();
+
+        final SocketChannel channel = mChannel;
+        if (channel == null) {
+            throw new IOException("closed");
+        }
+
+        try {
+            channel.socket().connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+
+        mReadBuffer.clear().limit(0);
+    }
+
+    @Override
+    public int read(final byte[] buffer) throws IOException {
+        final SocketChannel channel = mChannel;
+        if (channel == null || !channel.isConnected()) {
+            //created but not yet connected, the channel itself would throw an unchecked NotYetConnectedException
+            throw new IOException("not connected");
+        }
+
+        final ByteBuffer in = mReadBuffer;
+
+        if (!in.hasRemaining()) {
+            in.clear();
+            if (channel.read(in) < 0) {
+                return -1;
+            }
+            in.flip();
+        }
+
+        final int length = Math.min(buffer.length, in.remaining());
+        in.get(buffer, 0, length);
+
+        return length;
+    }
+
+    @Override
+    public void write(final byte[] data) throws IOException {
+        final SocketChannel channel = mChannel;
+        if (channel == null || !channel.isConnected()) {
+            throw new IOException("not connected");
+        }
+
+        synchronized (mWriteBuffer) {
+            final ByteBuffer out = mWriteBuffer;
+            int offset = 0;
+
+            while (offset < data.length) {
+                out.clear();
+                final int length = Math.min(out.capacity(), data.length - offset);
+                out.put(data, offset, length);
+                out.flip();
+
+                while (out.hasRemaining()) {
+                    channel.write(out);
+                }
+
+                offset += length;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        final SocketChannel channel = mChannel;
+        mChannel = null;
+
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                //nothing more to do with it
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mHost + ":" + mPort;
+    }
+}
@@ -0,0 +1,393 @@
+package com.theksmith.android.car_bus_interface;
+
+
+/**
+ * keeps track of the UDS (ISO 14229) diagnostic session each ECU is in and matches up its responses to the requests sent to it
+ *
+ * ECUs are known by the ID they listen on (7E0, 18DA10F1, etc.), their responses come from the matching ID (7E8, 18DAF110, see IsoTpReassembler.getFlowControlId())
+ *      a positive response is the service ID + 0x40, a negative one is 7F, the service ID and a negative response code (NRC)
+ *      NRC 78 (response pending) means the answer is still coming, the wait is stretched to P2* instead of being counted as the answer
+ *      an ECU in any session but the default drops back to it after S3 (5 seconds) without a request, TesterPresent (3E 80) keeps it there
+ *
+ * a fixed number of slots like IsoTpReassembler, the ECU idle longest gives up its slot when all are in use
+ * like BusPressClassifier it never reads a clock itself, every call is given the time
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class UdsSessionManager {
+    public static final int DEFAULT_SLOTS = 8;
+    public static final long DEFAULT_TESTER_PRESENT_INTERVAL = 2000; //milliseconds, well inside S3 even if the queue is busy for a while
+    public static final long DEFAULT_RESPONSE_TIMEOUT = 1000; //milliseconds, P2 is 50 but the interface device and its link add a lot more
+    public static final long DEFAULT_PENDING_TIMEOUT = 5000; //milliseconds, P2* from the standard
+    public static final long S3_TIMEOUT = 5000; //milliseconds
+
+    public static final int FUNCTIONAL_ID = 0x7DF; //every 11bit ECU listens here as well as on its own ID
+
+    //TesterPresent with the positive response suppressed, no answer means no wait for one on the bus
+    public static final String TESTER_PRESENT = "3E 80";
+
+    public static final int SESSION_DEFAULT = 0x01;
+
+    private static final int SID_SESSION_CONTROL = 0x10;
+    private static final int SID_ECU_RESET = 0x11;
+    private static final int SID_TESTER_PRESENT = 0x3E;
+    private static final int SID_NEGATIVE_RESPONSE = 0x7F;
+    private static final int POSITIVE_RESPONSE_OFFSET = 0x40;
+    private static final int SUPPRESS_POSITIVE_RESPONSE = 0x80;
+    private static final int NRC_RESPONSE_PENDING = 0x78;
+
+    private static final int NONE = -1;
+
+    public static enum Result {
+        NONE,       //not from an ECU being tracked, or not a UDS response
+        POSITIVE,   //a positive response
+        NEGATIVE,   //a negative response, see getLastNrc()
+        PENDING     //NRC 78, the ECU needs longer, the real answer is still to come
+    }
+
+    //indexes into getCounts()
+    public static final int COUNT_REQUESTS = 0;
+    public static final int COUNT_POSITIVE = 1;
+    public static final int COUNT_NEGATIVE = 2;
+    public static final int COUNT_TIMEOUTS = 3;
+    public static final int COUNTS = 4;
+
+    private final long mTesterPresentInterval;
+    private final long mResponseTimeout;
+
+    private final int[] mSlotIds;
+    private final int[] mSlotSessions;
+    private final long[] mSlotLastSent;
+    private final int[] mSlotPendingServices;
+    private final long[] mSlotPendingSent;
+    private final long[] mSlotPendingDeadlines;
+    private final boolean[] mSlotUsed;
+
+    //the response last given to onResponse()
+    private int mLastEcu = BusFrame.NO_ID;
+    private int mLastService = NONE;
+    private int mLastNrc = NONE;
+    private long mLastLatency = -1;
+
+    private long mLatencyTotal;
+    private int mLatencyCount;
+    private final int[] mCounts = new int[COUNTS];
+
+
+    public UdsSessionManager() {
+        this(DEFAULT_SLOTS, DEFAULT_TESTER_PRESENT_INTERVAL, DEFAULT_RESPONSE_TIMEOUT);
+    }
+
+    /**
+     * @param slots  ECUs that can be tracked at once
+     * @param testerPresentInterval  milliseconds without a request before an ECU outside the default session is due a TesterPresent, must be under S3_TIMEOUT
+     * @param responseTimeout  milliseconds to wait for a response before giving up on it
+     */
+    public UdsSessionManager(final int slots, final long testerPresentInterval, final long responseTimeout) {
+        if (slots < 1 || testerPresentInterval <= 0 || testerPresentInterval >= S3_TIMEOUT || responseTimeout <= 0) {
+            throw new IllegalArgumentException("UdsSessionManager() : slots must be positive, testerPresentInterval positive and under " + S3_TIMEOUT + " and responseTimeout positive");
+        }
+
+        mTesterPresentInterval = testerPresentInterval;
+        mResponseTimeout = responseTimeout;
+
+        mSlotIds = new int[slots];
+        mSlotSessions = new int[slots];
+        mSlotLastSent = new long[slots];
+        mSlotPendingServices = new int[slots];
+        mSlotPendingSent = new long[slots];
+        mSlotPendingDeadlines = new long[slots];
+        mSlotUsed = new boolean[slots];
+    }
+
+    /**
+     * @param now  uptime millis the request was written to the interface device
+     * @param request  the ID it went to and its data bytes (without the PCI byte, the device adds that)
+     */
+    public synchronized void onRequest(final long now, final BusFrame request) {
+        if (request.length < 1) {
+            return;
+        }
+
+        if (request.id == FUNCTIONAL_ID) {
+            //heard by every 11bit ECU, which may all answer, so nothing to match a response to but it does keep their sessions alive
+            for (int s = 0; s < mSlotUsed.length; s++) {
+                if (mSlotUsed[s] && isFunctionallyAddressed(mSlotIds[s])) {
+                    mSlotLastSent[s] = now;
+                }
+            }
+            return;
+        }
+
+        int slot = find(request.id);
+        if (slot < 0) {
+            slot = allocate(request.id);
+        }
+
+        mSlotLastSent[slot] = now;
+
+        final int service = request.payload[0] & 0xFF;
+        if (service == SID_TESTER_PRESENT && request.length > 1 && (request.payload[1] & SUPPRESS_POSITIVE_RESPONSE) != 0) {
+            return;
+        }
+
+        mSlotPendingServices[slot] = service;
+        mSlotPendingSent[slot] = now;
+        mSlotPendingDeadlines[slot] = now + mResponseTimeout;
+        mCounts[COUNT_REQUESTS]++;
+    }
+
+    /**
+     * @param now  uptime millis the response arrived
+     * @param id  the ID it came from
+     * @param data  its data bytes (without the PCI bytes) from index 0 to length, as from IsoTpReassembler.getData()
+     * @param length  bytes in data
+     * @return  what it was, after POSITIVE or NEGATIVE see getLastEcu(), getLastService(), getLastNrc() and getLastLatency()
+     */
+    public synchronized Result onResponse(final long now, final int id, final byte[] data, final int length) {
+        if (length < 1) {
+            return Result.NONE;
+        }
+
+        final int slot = find(IsoTpReassembler.getFlowControlId(id));
+        if (slot < 0) {
+            return Result.NONE;
+        }
+
+        final int first = data[0] & 0xFF;
+        final int service;
+        final Result result;
+
+        if (first == SID_NEGATIVE_RESPONSE) {
+            if (length < 3) {
+                return Result.NONE;
+            }
+
+            service = data[1] & 0xFF;
+
+            if ((data[2] & 0xFF) == NRC_RESPONSE_PENDING) {
+                if (mSlotPendingServices[slot] == service) {
+                    mSlotPendingDeadlines[slot] = now + DEFAULT_PENDING_TIMEOUT;
+                }
+                return Result.PENDING;
+            }
+
+            mLastNrc = data[2] & 0xFF;
+            mCounts[COUNT_NEGATIVE]++;
+            result = Result.NEGATIVE;
+        } else if (first >= POSITIVE_RESPONSE_OFFSET) {
+            service = first - POSITIVE_RESPONSE_OFFSET;
+
+            if (service == SID_SESSION_CONTROL && length > 1) {
+                mSlotSessions[slot] = data[1] & 0x7F;
+            } else if (service == SID_ECU_RESET) {
+                mSlotSessions[slot] = SESSION_DEFAULT;
+            }
+
+            mLastNrc = NONE;
+            mCounts[COUNT_POSITIVE]++;
+            result = Result.POSITIVE;
+        } else {
+            return Result.NONE;
+        }
+
+        mLastEcu = mSlotIds[slot];
+        mLastService = service;
+        mLastLatency = -1;
+
+        if (mSlotPendingServices[slot] == service) {
+            mLastLatency = now - mSlotPendingSent[slot];
+            mLatencyTotal += mLastLatency;
+            mLatencyCount++;
+            mSlotPendingServices[slot] = NONE;
+        }
+
+        return result;
+    }
+
+    /**
+     * call periodically, gives up on requests that have gone unanswered too long and forgets sessions that have lapsed
+     *
+     * @param now  uptime millis
+     * @return  requests given up on by this call
+     */
+    public synchronized int checkTimeouts(final long now) {
+        int timedOut = 0;
+
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (!mSlotUsed[s]) {
+                continue;
+            }
+
+            if (mSlotPendingServices[s] != NONE && now > mSlotPendingDeadlines[s]) {
+                mSlotPendingServices[s] = NONE;
+                timedOut++;
+            }
+
+            if (mSlotSessions[s] != SESSION_DEFAULT && now - mSlotLastSent[s] > S3_TIMEOUT) {
+                //nothing went to it in time (the link was busy monitoring, etc.), the ECU will have dropped back on its own
+                mSlotSessions[s] = SESSION_DEFAULT;
+            }
+        }
+
+        mCounts[COUNT_TIMEOUTS] += timedOut;
+        return timedOut;
+    }
+
+    /**
+     * works out which TesterPresent messages are due and counts them as sent
+     * every 11bit ECU that needs one shares a single functional message (to FUNCTIONAL_ID) when there is more than one of them
+     *
+     * @param now  uptime millis
+     * @param busy  true if other commands are waiting to go, only ECUs that can't wait any longer are returned so the keepalive doesn't add to the queue
+     * @param ids  filled with the IDs to send TESTER_PRESENT to, at least as long as the slots
+     * @return  entries filled in ids
+     */
+    public synchronized int getTesterPresentDue(final long now, final boolean busy, final int[] ids) {
+        final long interval = busy ? (S3_TIMEOUT + mTesterPresentInterval) / 2 : mTesterPresentInterval;
+
+        int count = 0;
+        int functional = 0;
+
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (!mSlotUsed[s] || mSlotSessions[s] == SESSION_DEFAULT || now - mSlotLastSent[s] < interval) {
+                continue;
+            }
+
+            if (isFunctionallyAddressed(mSlotIds[s])) {
+                functional++;
+            }
+
+            ids[count++] = mSlotIds[s];
+        }
+
+        if (functional > 1) {
+            //the one functional message goes first, then any ECUs it doesn't reach
+            int kept = 1;
+            for (int i = 0; i < count; i++) {
+                if (!isFunctionallyAddressed(ids[i])) {
+                    ids[kept++] = ids[i];
+                }
+            }
+            ids[0] = FUNCTIONAL_ID;
+            count = kept;
+        }
+
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (mSlotUsed[s] && mSlotSessions[s] != SESSION_DEFAULT && (now - mSlotLastSent[s] >= interval || (functional > 1 && isFunctionallyAddressed(mSlotIds[s])))) {
+                mSlotLastSent[s] = now;
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean isFunctionallyAddressed(final int id) {
+        return id >= 0x7E0 && id <= 0x7E7;
+    }
+
+    private int find(final int id) {
+        if (id == BusFrame.NO_ID) {
+            return -1;
+        }
+
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (mSlotUsed[s] && mSlotIds[s] == id) {
+                return s;
+            }
+        }
+
+        return -1;
+    }
+
+    private int allocate(final int id) {
+        int oldest = 0;
+        int slot = -1;
+
+        for (int s = 0; s < mSlotUsed.length && slot < 0; s++) {
+            if (!mSlotUsed[s]) {
+                slot = s;
+            } else if (mSlotLastSent[s] < mSlotLastSent[oldest]) {
+                oldest = s;
+            }
+        }
+
+        if (slot < 0) {
+            slot = oldest;
+        }
+
+        mSlotUsed[slot] = true;
+        mSlotIds[slot] = id;
+        mSlotSessions[slot] = SESSION_DEFAULT;
+        mSlotPendingServices[slot] = NONE;
+
+        return slot;
+    }
+
+    /**
+     * forgets every ECU, call when the link to the interface device is new (sessions will have lapsed while it was down)
+     */
+    public synchronized void reset() {
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            mSlotUsed[s] = false;
+        }
+    }
+
+    /**
+     * @param id  the ID the ECU listens on
+     * @return  its diagnostic session (1 default, 2 programming, 3 extended, etc.), SESSION_DEFAULT if not tracked
+     */
+    public synchronized int getSession(final int id) {
+        final int slot = find(id);
+        return slot < 0 ? SESSION_DEFAULT : mSlotSessions[slot];
+    }
+
+    /**
+     * @return  true if any ECU is outside the default session or owes a response
+     */
+    public synchronized boolean isActive() {
+        for (int s = 0; s < mSlotUsed.length; s++) {
+            if (mSlotUsed[s] && (mSlotSessions[s] != SESSION_DEFAULT || mSlotPendingServices[s] != NONE)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public synchronized int getLastEcu() {
+        return mLastEcu;
+    }
+
+    public synchronized int getLastService() {
+        return mLastService;
+    }
+
+    /**
+     * @return  the negative response code of the last response, -1 if it was positive
+     */
+    public synchronized int getLastNrc() {
+        return mLastNrc;
+    }
+
+    /**
+     * @return  milliseconds from the request to the last response, -1 if it didn't answer one being waited on
+     */
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    /**
+     * @return  average milliseconds from a request to its response, -1 if none yet
+     */
+    public synchronized long getAverageLatency() {
+        return mLatencyCount == 0 ? -1 : mLatencyTotal / mLatencyCount;
+    }
+
+    /**
+     * @return  counts by the COUNT_* indexes
+     */
+    public synchronized int[] getCounts() {
+        return mCounts.clone();
+    }
+}
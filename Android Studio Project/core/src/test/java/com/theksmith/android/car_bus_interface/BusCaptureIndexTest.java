@@ -0,0 +1,131 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusCaptureIndexTest {
+    private static final int FRAMES = BusCaptureWriter.SYNC_INTERVAL * 50 + 123;
+    private static final int[] IDS = { 0x7E0, 0x7E8, 0x3D1, 0x120, 0x4F2, 0x18DAF110 };
+
+    private File mDirectory;
+    private File mCapture;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("capture", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+
+        final BusCaptureWriter writer = new BusCaptureWriter(mDirectory, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES, 0, null);
+        final BusFrame frame = new BusFrame();
+        final Random random = new Random(34);
+
+        writer.start();
+        for (int f = 0; f < FRAMES; f++) {
+            frame.clear();
+            //the last ID only shows up in the second half, so the block bitmaps have something to skip
+            frame.id = IDS[random.nextInt(f < FRAMES / 2 ? IDS.length - 1 : IDS.length)];
+            frame.idDigits = frame.id > 0x7FF ? 8 : 3;
+            frame.length = 1 + random.nextInt(8);
+
+            while (!writer.offer(BusDataType.RX, 1000 + f / 3, frame)) {
+                Thread.yield();
+            }
+        }
+        writer.stop();
+
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(BusCaptureWriter.FILE_EXTENSION)) {
+                mCapture = file;
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void queriesMatchAScan() throws IOException {
+        final BusCaptureIndex index = BusCaptureIndex.open(mCapture);
+        assertEquals(FRAMES, index.getFrameCount());
+        assertEquals(1000, index.getFirstTime());
+        assertEquals(1000 + (FRAMES - 1) / 3, index.getLastTime());
+
+        final Random random = new Random(7);
+        for (int q = 0; q < 200; q++) {
+            final long from = 1000 + random.nextInt(FRAMES / 3);
+            final long to = from + random.nextInt(FRAMES / 6);
+            final int[] ids = random.nextBoolean() ? null : new int[] { IDS[random.nextInt(IDS.length)] };
+
+            assertEquals("query " + q, scan(from, to, ids), index.query(from, to, ids, new BusCaptureIndex.FrameHandler() {
+                @Override
+                public boolean onFrame(final int type, final long time, final BusFrame frame) {
+                    return true;
+                }
+            }));
+        }
+    }
+
+    @Test
+    public void bitmapsSkipBlocks() throws IOException {
+        final BusCaptureIndex index = BusCaptureIndex.open(mCapture);
+
+        index.query(index.getFirstTime(), index.getLastTime(), new int[] { IDS[IDS.length - 1] }, new BusCaptureIndex.FrameHandler() {
+            @Override
+            public boolean onFrame(final int type, final long time, final BusFrame frame) {
+                return true;
+            }
+        });
+
+        assertTrue(index.getBlocksRead() < index.getBlockCount());
+    }
+
+    @Test
+    public void rebuiltWithoutSidecar() throws IOException {
+        final BusCaptureIndex written = BusCaptureIndex.open(mCapture);
+
+        assertTrue(BusCaptureIndex.indexFileFor(mCapture).delete());
+        final BusCaptureIndex rebuilt = BusCaptureIndex.open(mCapture);
+
+        assertEquals(written.getBlockCount(), rebuilt.getBlockCount());
+        assertEquals(written.getFrameCount(), rebuilt.getFrameCount());
+        assertEquals(written.getLastTime(), rebuilt.getLastTime());
+    }
+
+    /**
+     * @return  number of frames a query should find, by reading the whole capture
+     */
+    private long scan(final long from, final long to, final int[] ids) throws IOException {
+        final BusCaptureReader reader = new BusCaptureReader(mCapture);
+        final BusFrame frame = new BusFrame();
+        long found = 0;
+
+        while (reader.next(frame) != BusCaptureReader.EMPTY) {
+            final long time = reader.getTime();
+            if (time >= from && time <= to && (ids == null || Arrays.binarySearch(ids, frame.id) >= 0)) {
+                found++;
+            }
+        }
+
+        return found;
+    }
+}
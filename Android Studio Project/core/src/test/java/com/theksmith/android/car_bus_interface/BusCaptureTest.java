@@ -0,0 +1,270 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusCaptureTest {
+    private static final int ROUNDS = 20;
+    private static final int FRAMES_PER_ROUND = 1000000; //20M frames in all, written and verified a round at a time to keep the disk use down
+    private static final long ROUND_FILE_BYTES = 4L * 1024 * 1024;
+
+    private static final BusDataType[] TYPES = { BusDataType.RX, BusDataType.RX_MONITORED };
+
+    private File mDirectory;
+
+
+    /**
+     * a repeatable sequence of frames, a second source with the same seed gives what the first one wrote
+     */
+    private static class FrameSource {
+        private final Random mmRandom;
+        private long mmTime;
+
+        BusDataType type;
+        long time;
+
+        FrameSource(final long seed) {
+            mmRandom = new Random(seed);
+            mmTime = 1000000L + mmRandom.nextInt(1000000);
+        }
+
+        void next(final BusFrame frame) {
+            final Random random = mmRandom;
+
+            //mostly a few millis apart, now and then a long gap so time deltas need more varint bytes
+            mmTime += random.nextInt(20) == 0 ? random.nextInt(1 << 24) : random.nextInt(4);
+            time = mmTime;
+            type = TYPES[random.nextInt(TYPES.length)];
+
+            frame.clear();
+            switch (random.nextInt(4)) {
+                case 0:
+                    frame.id = BusFrame.NO_ID;
+                    frame.idDigits = 0;
+                    break;
+                case 1:
+                    frame.id = random.nextInt(1 << 29);
+                    frame.idDigits = 8;
+                    break;
+                default:
+                    frame.id = random.nextInt(1 << 11);
+                    frame.idDigits = 3;
+                    break;
+            }
+
+            frame.spaces = random.nextBoolean();
+            frame.length = random.nextInt(100) == 0 ? random.nextInt(BusCaptureWriter.QUEUE_PAYLOAD + 1) : random.nextInt(9);
+            for (int b = 0; b < frame.length; b++) {
+                frame.payload[b] = (byte) random.nextInt(256);
+            }
+        }
+    }
+
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("capture", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        deleteFiles();
+        mDirectory.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final BusFrame frame = new BusFrame();
+        final BusFrame expected = new BusFrame();
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final long written = write(new FrameSource(round), FRAMES_PER_ROUND, ROUND_FILE_BYTES);
+            assertEquals(FRAMES_PER_ROUND, written);
+
+            final List<File> files = captureFiles();
+            assertTrue("round " + round + " did not rotate", files.size() > 1);
+
+            final FrameSource source = new FrameSource(round);
+            int read = 0;
+
+            for (File file : files) {
+                final BusCaptureReader reader = new BusCaptureReader(file);
+                int type;
+
+                while ((type = reader.next(frame)) != BusCaptureReader.EMPTY) {
+                    source.next(expected);
+
+                    final String at = "round " + round + " frame " + read;
+                    assertEquals(at, source.type.ordinal(), type);
+                    assertEquals(at, source.time, reader.getTime());
+                    assertEquals(at, expected.id, frame.id);
+                    assertEquals(at, expected.idDigits, frame.idDigits);
+                    assertEquals(at, expected.spaces, frame.spaces);
+                    assertEquals(at, expected.length, frame.length);
+                    for (int b = 0; b < frame.length; b++) {
+                        assertEquals(at, expected.payload[b], frame.payload[b]);
+                    }
+                    assertFalse(at, reader.wasTruncated());
+
+                    read++;
+                }
+            }
+
+            assertEquals(FRAMES_PER_ROUND, read);
+            deleteFiles();
+        }
+    }
+
+    @Test
+    public void longPayloadIsTruncated() throws IOException {
+        final BusCaptureWriter writer = new BusCaptureWriter(mDirectory, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES, 0, null);
+        final BusFrame frame = new BusFrame();
+
+        frame.id = 0x7E8;
+        frame.idDigits = 3;
+        frame.length = BusCaptureWriter.QUEUE_PAYLOAD + 8;
+        frame.payload[BusCaptureWriter.QUEUE_PAYLOAD - 1] = 0x55;
+
+        writer.start();
+        assertTrue(writer.offer(BusDataType.RX, 100, frame));
+        writer.stop();
+
+        final BusCaptureReader reader = new BusCaptureReader(captureFiles().get(0));
+        assertEquals(BusDataType.RX.ordinal(), reader.next(frame));
+        assertEquals(BusCaptureWriter.QUEUE_PAYLOAD, frame.length);
+        assertEquals(0x55, frame.payload[BusCaptureWriter.QUEUE_PAYLOAD - 1]);
+        assertTrue(reader.wasTruncated());
+        assertEquals(BusCaptureReader.EMPTY, reader.next(frame));
+    }
+
+    @Test
+    public void busNumberIsRecorded() throws IOException {
+        final BusCaptureWriter first = new BusCaptureWriter(mDirectory, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES, 0, null);
+        final BusCaptureWriter second = new BusCaptureWriter(mDirectory, 2, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES, 0, null);
+        final BusFrame frame = new BusFrame();
+        frame.parse("7E8 03 41 0C 1A");
+
+        first.start();
+        second.start();
+        assertTrue(first.offer(BusDataType.RX, 100, frame));
+        assertTrue(second.offer(BusDataType.RX, 100, frame));
+        first.stop();
+        second.stop();
+
+        final List<File> files = captureFiles();
+        assertEquals(2, files.size());
+
+        for (File file : files) {
+            final int bus = file.getName().startsWith(BusCaptureWriter.FILE_PREFIX + "bus2_") ? 2 : 1;
+            final BusCaptureReader reader = new BusCaptureReader(file);
+            assertEquals(bus, reader.getBus());
+
+            frame.bus = 0;
+            assertEquals(BusDataType.RX.ordinal(), reader.next(frame));
+            assertEquals(bus, frame.bus);
+        }
+
+        assertTrue(files.get(0).getName().contains("bus2_") != files.get(1).getName().contains("bus2_"));
+    }
+
+    @Test
+    public void seekStartsAtTheNextBlock() throws IOException {
+        final int frames = BusCaptureWriter.SYNC_INTERVAL * 10;
+        write(new FrameSource(7), frames, BusCaptureWriter.DEFAULT_MAX_FILE_BYTES);
+
+        final BusCaptureReader reader = new BusCaptureReader(captureFiles().get(0));
+        final BusFrame frame = new BusFrame();
+        final BusFrame expected = new BusFrame();
+
+        assertTrue(reader.seek(reader.size() / 2));
+        reader.next(frame);
+
+        //the frame read must be the first of a block, and the same one the writer was given at that index
+        final long index = reader.getFrameIndex();
+        assertTrue(index > 0);
+        assertEquals(0, index % BusCaptureWriter.SYNC_INTERVAL);
+
+        final FrameSource source = new FrameSource(7);
+        for (long f = 0; f <= index; f++) {
+            source.next(expected);
+        }
+        assertEquals(source.time, reader.getTime());
+        assertEquals(expected.format(), frame.format());
+    }
+
+    private long write(final FrameSource source, final int frames, final long maxFileBytes) {
+        final BusCaptureWriter writer = new BusCaptureWriter(mDirectory, maxFileBytes, 0, null);
+        final BusFrame frame = new BusFrame();
+
+        writer.start();
+        for (int f = 0; f < frames; f++) {
+            source.next(frame);
+
+            //the RX path drops when the queue is full, here every frame has to get through
+            while (!writer.offer(source.type, source.time, frame)) {
+                Thread.yield();
+            }
+        }
+        writer.stop();
+
+        return writer.getWritten();
+    }
+
+    private List<File> captureFiles() throws IOException {
+        final List<File> captures = new ArrayList<File>();
+        final Map<File, Long> startTimes = new HashMap<File, Long>();
+
+        for (File file : mDirectory.listFiles()) {
+            if (file.getName().endsWith(BusCaptureWriter.FILE_EXTENSION)) {
+                captures.add(file);
+                startTimes.put(file, new BusCaptureReader(file).getStartTime());
+            }
+        }
+
+        //frame times only go up, files started within the same millisecond are told apart by their "_n" suffix
+        Collections.sort(captures, new Comparator<File>() {
+            @Override
+            public int compare(final File a, final File b) {
+                final int byTime = startTimes.get(a).compareTo(startTimes.get(b));
+                if (byTime != 0) {
+                    return byTime;
+                }
+
+                final int byLength = a.getName().length() - b.getName().length();
+                return byLength != 0 ? byLength : a.getName().compareTo(b.getName());
+            }
+        });
+
+        return captures;
+    }
+
+    private void deleteFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusDataCodecTest {
+
+    @Test
+    public void roundTrip() {
+        final String[] lines = { "7E8 03 41 0C 1A", "7E803410C1A", "18DAF110 03 41 0C 1A", "3D 11 00 80 C8", "NO DATA", "ATMA", "", "\u00DCn\u00EFcode" };
+        final BusDataType[] types = { BusDataType.RX, BusDataType.RX_MONITORED, BusDataType.RX, BusDataType.RX_MONITORED, BusDataType.RX, BusDataType.TX, BusDataType.RX, BusDataType.ERROR };
+
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+        for (int l = 0; l < lines.length; l++) {
+            //times go backwards too, deltas are signed
+            assertTrue(encoder.add(lines[l], types[l], l % 2 == 0, 5000 + (l % 3) * 1000 - l));
+        }
+
+        final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(encoder.toByteArray());
+        assertEquals(lines.length, decoder.count());
+
+        for (int l = 0; l < lines.length; l++) {
+            assertTrue(decoder.hasNext());
+            decoder.next();
+            assertEquals(lines[l], decoder.getData());
+            assertEquals(types[l], decoder.getType());
+            assertEquals(l % 2 == 0, decoder.isRxComplete());
+            assertEquals(5000 + (l % 3) * 1000 - l, decoder.getTime());
+        }
+
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void batchesStayUnderTheLimit() {
+        final int max = 1024;
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(max);
+        final Random random = new Random(27);
+
+        int added = 0;
+        while (encoder.add(String.format(Locale.US, "7E8 %02X %02X %02X", random.nextInt(256), random.nextInt(256), random.nextInt(256)), BusDataType.RX, false, added)) {
+            added++;
+        }
+
+        assertTrue(added > 0);
+        assertEquals(added, encoder.count());
+        assertTrue(encoder.toByteArray().length <= max);
+
+        //a full batch still takes one record once reset
+        encoder.reset();
+        assertTrue(encoder.isEmpty());
+        assertTrue(encoder.add("7E8 01", BusDataType.RX, false, 0));
+    }
+
+    @Test
+    public void busNumbersRoundTrip() {
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+        encoder.add(1, "7E8 03 41 0C 1A", BusDataType.RX, true, 100);
+        encoder.add(2, "7E8 03 41 0C 1A", BusDataType.RX, true, 101);
+        encoder.add(2, "NO DATA", BusDataType.RX, true, 102);
+        encoder.add("OK", BusDataType.RX, true, 103);
+
+        final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(encoder.toByteArray());
+        final int[] buses = { 1, 2, 2, 1 };
+        for (int bus : buses) {
+            assertTrue(decoder.hasNext());
+            decoder.next();
+            assertEquals(bus, decoder.getBus());
+        }
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void readsVersion1Batches() {
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+        encoder.add("7E8 03 41 0C 1A", BusDataType.RX, true, 100);
+
+        //a first bus record is laid out the same in both versions
+        final byte[] batch = encoder.toByteArray();
+        batch[1] = 1;
+
+        final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(batch);
+        decoder.next();
+        assertEquals("7E8 03 41 0C 1A", decoder.getData());
+        assertEquals(1, decoder.getBus());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBusZero() {
+        new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES).add(0, "OK", BusDataType.RX, true, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherData() {
+        new BusDataCodec.Decoder(new byte[] { 1, 2, 3 });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOtherVersions() {
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+        encoder.add("OK", BusDataType.RX, true, 0);
+
+        final byte[] batch = encoder.toByteArray();
+        batch[1] = BusDataCodec.VERSION + 1;
+        new BusDataCodec.Decoder(batch);
+    }
+}
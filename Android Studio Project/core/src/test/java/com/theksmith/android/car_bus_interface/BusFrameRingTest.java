@@ -0,0 +1,224 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusFrameRingTest {
+    private File mFile;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("ring", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void publishedFramesReadBack() throws IOException {
+        final BusFrameRing ring = BusFrameRing.createWriter(mFile, 16);
+        final BusFrameRing.Reader reader = ring.newReader();
+        final BusFrame frame = new BusFrame();
+
+        assertEquals(BusFrameRing.Reader.EMPTY, reader.poll(frame));
+
+        frame.parse("7E8 03 41 0C 1A");
+        ring.publish(BusDataType.RX_MONITORED, 1234, frame);
+        frame.parse("7E80341");
+        ring.publish(BusDataType.RX, 1235, frame);
+
+        assertEquals(BusDataType.RX_MONITORED.ordinal(), reader.poll(frame));
+        assertEquals("7E8 03 41 0C 1A", frame.format());
+        assertEquals(1234, reader.getTime());
+        assertFalse(reader.wasTruncated());
+
+        assertEquals(BusDataType.RX.ordinal(), reader.poll(frame));
+        assertEquals("7E80341", frame.format());
+
+        assertEquals(BusFrameRing.Reader.EMPTY, reader.poll(frame));
+    }
+
+    @Test
+    public void busNumberReadsBack() throws IOException {
+        final BusFrameRing ring = BusFrameRing.createWriter(mFile, 16);
+        final BusFrameRing.Reader reader = ring.newReader();
+        final BusFrame frame = new BusFrame();
+
+        frame.parse("7E8 03 41 0C 1A");
+        frame.bus = 2;
+        ring.publish(BusDataType.RX, 0, frame);
+        frame.bus = 1;
+        ring.publish(BusDataType.RX, 1, frame);
+
+        reader.poll(frame);
+        assertEquals(2, frame.bus);
+        reader.poll(frame);
+        assertEquals(1, frame.bus);
+    }
+
+    @Test
+    public void longPayloadIsTruncated() throws IOException {
+        final BusFrameRing ring = BusFrameRing.createWriter(mFile, 16);
+        final BusFrameRing.Reader reader = ring.newReader();
+        final BusFrame frame = new BusFrame();
+
+        frame.id = 0x7E8;
+        frame.idDigits = 3;
+        frame.length = BusFrameRing.SLOT_PAYLOAD + 8;
+        ring.publish(BusDataType.RX, 0, frame);
+
+        reader.poll(frame);
+        assertEquals(BusFrameRing.SLOT_PAYLOAD, frame.length);
+        assertTrue(reader.wasTruncated());
+    }
+
+    @Test
+    public void lappedReaderCountsLost() throws IOException {
+        final BusFrameRing ring = BusFrameRing.createWriter(mFile, 8);
+        final BusFrameRing.Reader reader = ring.newReader();
+        final BusFrame frame = new BusFrame();
+
+        for (int t = 1; t <= 20; t++) {
+            frame.parse("123 01");
+            ring.publish(BusDataType.RX, t, frame);
+        }
+
+        int read = 0;
+        while (reader.poll(frame) != BusFrameRing.Reader.EMPTY) {
+            read++;
+        }
+
+        assertEquals(20, read + reader.getLost());
+        assertEquals(20, reader.getTime());
+    }
+
+    @Test
+    public void rewindToOldest() throws IOException {
+        final BusFrameRing ring = BusFrameRing.createWriter(mFile, 8);
+        final BusFrame frame = new BusFrame();
+
+        for (int t = 1; t <= 20; t++) {
+            frame.parse("123 01");
+            ring.publish(BusDataType.RX, t, frame);
+        }
+
+        final BusFrameRing.Reader reader = ring.newReader();
+        assertEquals(BusFrameRing.Reader.EMPTY, reader.poll(frame));
+
+        reader.rewind();
+        reader.poll(frame);
+        assertEquals(14, reader.getTime());
+    }
+
+    @Test
+    public void readerOfAnotherMappingNeverSeesTornFrames() throws IOException, InterruptedException {
+        final BusFrameRing ring = BusFrameRing.createWriter(mFile, 64);
+        final AtomicBoolean running = new AtomicBoolean(true);
+
+        //every payload byte is the low byte of the frame's time, so a frame mixing two publishes shows
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                final BusFrame frame = new BusFrame();
+                frame.id = 0x7E8;
+                frame.idDigits = 3;
+
+                for (long time = 1; running.get(); time++) {
+                    frame.length = 1 + (int) (time % BusFrameRing.SLOT_PAYLOAD);
+                    for (int b = 0; b < frame.length; b++) {
+                        frame.payload[b] = (byte) time;
+                    }
+                    ring.publish(BusDataType.RX, time, frame);
+                }
+            }
+        };
+
+        final FileInputStream stream = new FileInputStream(mFile);
+        try {
+            //a separate read-only mapping, as a client in another process has
+            final BusFrameRing.Reader reader = BusFrameRing.openReader(stream.getFD());
+            final BusFrame frame = new BusFrame();
+
+            writer.start();
+
+            long read = 0;
+            long last = 0;
+            final long deadline = System.currentTimeMillis() + 1000;
+
+            while (System.currentTimeMillis() < deadline) {
+                if (reader.poll(frame) == BusFrameRing.Reader.EMPTY) {
+                    continue;
+                }
+
+                final long time = reader.getTime();
+                assertTrue("time went from " + last + " to " + time, time > last);
+                assertEquals(1 + (int) (time % BusFrameRing.SLOT_PAYLOAD), frame.length);
+                for (int b = 0; b < frame.length; b++) {
+                    assertEquals("byte " + b + " of frame " + time, (byte) time, frame.payload[b]);
+                }
+
+                last = time;
+                read++;
+            }
+
+            assertTrue(read > 0);
+        } finally {
+            running.set(false);
+            writer.join();
+            stream.close();
+        }
+    }
+
+    @Test
+    public void replacingKeepsOldMappingsReadable() throws IOException {
+        final BusFrameRing first = BusFrameRing.createWriter(mFile, 8);
+        final BusFrame frame = new BusFrame();
+
+        frame.parse("123 01");
+        first.publish(BusDataType.RX, 1, frame);
+
+        final FileInputStream stream = new FileInputStream(mFile);
+        try {
+            final BusFrameRing.Reader reader = BusFrameRing.openReader(stream.getFD());
+            reader.rewind();
+
+            //the service starting again, the old file must not shrink under the reader
+            final BusFrameRing second = BusFrameRing.createWriter(mFile, 8);
+            frame.parse("456 02");
+            second.publish(BusDataType.RX, 2, frame);
+
+            assertEquals(BusDataType.RX.ordinal(), reader.poll(frame));
+            assertEquals("123 01", frame.format());
+            assertEquals(BusFrameRing.Reader.EMPTY, reader.poll(frame));
+        } finally {
+            stream.close();
+        }
+
+        final FileInputStream replaced = new FileInputStream(mFile);
+        try {
+            final BusFrameRing.Reader reader = BusFrameRing.openReader(replaced.getFD());
+            reader.rewind();
+            reader.poll(frame);
+            assertEquals("456 02", frame.format());
+        } finally {
+            replaced.close();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusLogFileTest {
+    private File mDirectory;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mDirectory = File.createTempFile("buslog", "");
+        assertTrue(mDirectory.delete());
+        assertTrue(mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : mDirectory.listFiles()) {
+            file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        final BusLogFile log = new BusLogFile(mDirectory, BusLogFile.DEFAULT_MAX_FILE_BYTES, null);
+        log.start();
+        log.append(batch(0, 3), 5000);
+        log.append(batch(3, 2), 5000);
+        log.stop();
+
+        final List<String> lines = new ArrayList<String>();
+        final List<Long> times = new ArrayList<Long>();
+        read(5000, lines, times);
+
+        assertEquals(5, lines.size());
+        for (int l = 0; l < 5; l++) {
+            assertEquals(line(l), lines.get(l));
+            assertEquals(100 + l, (long) times.get(l));
+        }
+    }
+
+    @Test
+    public void timesMovedOntoTheNewBoot() throws IOException {
+        final BusLogFile log = new BusLogFile(mDirectory, BusLogFile.DEFAULT_MAX_FILE_BYTES, null);
+        log.start();
+        log.append(batch(0, 1), 5000);
+        log.stop();
+
+        //rebooted, the same wall clock time is now 1000000 millis further from uptime 0
+        final List<Long> times = new ArrayList<Long>();
+        read(1005000, new ArrayList<String>(), times);
+
+        assertEquals(100 - 1000000, (long) times.get(0));
+    }
+
+    @Test
+    public void rotationKeepsTwoFiles() throws IOException {
+        final BusLogFile log = new BusLogFile(mDirectory, 200, null);
+        log.start();
+        for (int b = 0; b < 50; b++) {
+            log.append(batch(b * 4, 4), 0);
+        }
+        log.stop();
+
+        assertEquals(2, mDirectory.listFiles().length);
+
+        final List<String> lines = new ArrayList<String>();
+        read(0, lines, new ArrayList<Long>());
+
+        //whole batches from somewhere in the middle up to the last, in order
+        assertTrue(lines.size() < 200);
+        assertEquals(0, lines.size() % 4);
+        for (int l = 0; l < lines.size(); l++) {
+            assertEquals(line(200 - lines.size() + l), lines.get(l));
+        }
+    }
+
+    @Test
+    public void recordCutShortIsDropped() throws IOException {
+        final BusLogFile log = new BusLogFile(mDirectory, BusLogFile.DEFAULT_MAX_FILE_BYTES, null);
+        log.start();
+        log.append(batch(0, 2), 0);
+        log.stop();
+
+        //the process died while writing the next record
+        final FileOutputStream out = new FileOutputStream(new File(mDirectory, BusLogFile.FILE_NAME), true);
+        out.write(new byte[] { 0, 0, 1, 0, 0, 0, 0 });
+        out.close();
+
+        final List<String> lines = new ArrayList<String>();
+        read(0, lines, new ArrayList<Long>());
+        assertEquals(2, lines.size());
+
+        //and appending again does not leave it in the way
+        log.start();
+        log.append(batch(2, 2), 0);
+        log.stop();
+
+        lines.clear();
+        read(0, lines, new ArrayList<Long>());
+        assertEquals(4, lines.size());
+        assertEquals(line(3), lines.get(3));
+    }
+
+    private static String line(final int n) {
+        return String.format("7E8 03 41 0C %02X", n & 0xFF);
+    }
+
+    private static byte[] batch(final int first, final int count) {
+        final BusDataCodec.Encoder encoder = new BusDataCodec.Encoder(BusDataCodec.MAX_BATCH_BYTES);
+        for (int l = first; l < first + count; l++) {
+            encoder.add(line(l), BusDataType.RX, false, 100 + l);
+        }
+        return encoder.toByteArray();
+    }
+
+    private void read(final long clockOffset, final List<String> lines, final List<Long> times) throws IOException {
+        BusLogFile.read(mDirectory, clockOffset, new BusLogFile.BatchHandler() {
+            @Override
+            public void onBatch(final byte[] batch, final long timeShift) {
+                final BusDataCodec.Decoder decoder = new BusDataCodec.Decoder(batch);
+                while (decoder.hasNext()) {
+                    decoder.next();
+                    lines.add(decoder.getData());
+                    times.add(decoder.getTime() + timeShift);
+                }
+            }
+        });
+    }
+}
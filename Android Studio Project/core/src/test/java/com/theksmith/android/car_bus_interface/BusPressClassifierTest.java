@@ -0,0 +1,120 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusPressClassifierTest {
+    private static final long TICK = 50; //milliseconds, as BusMessageProcessor's PROCESSOR_TICK_TIME
+
+    private static final long IGNORE = 1000;
+    private static final long SHORT = 100;
+    private static final long LONG = 500;
+    private static final long WATCH = 1000;
+
+
+    @Test
+    public void bounceIsAShortPress() {
+        final BusPressClassifier classifier = new BusPressClassifier(IGNORE, SHORT, LONG, WATCH);
+        final ManualClock clock = new ManualClock(2000);
+
+        classifier.logEvent(2000);
+        classifier.logEvent(2050);
+
+        //nothing until the watch for a long press is over, counted from the first repeat
+        assertEquals(BusPressClassifier.EventType.SHORT, tickUntilAction(classifier, clock));
+        assertEquals(2000 + WATCH, clock.uptimeMillis());
+
+        //the log is trimmed to the event acted upon
+        assertEquals(1, classifier.size());
+    }
+
+    @Test
+    public void heldRepeatsAreALongPress() {
+        final BusPressClassifier classifier = new BusPressClassifier(IGNORE, SHORT, LONG, WATCH);
+        final ManualClock clock = new ManualClock(2000);
+
+        for (long time = 2000; time <= 2600; time += TICK) {
+            classifier.logEvent(time);
+        }
+
+        assertEquals(BusPressClassifier.EventType.LONG, tickUntilAction(classifier, clock));
+        assertEquals(2000 + WATCH, clock.uptimeMillis());
+    }
+
+    @Test
+    public void repeatsJustAfterAnActionAreIgnored() {
+        final BusPressClassifier classifier = new BusPressClassifier(IGNORE, SHORT, LONG, WATCH);
+        final ManualClock clock = new ManualClock(2000);
+
+        classifier.logEvent(2000);
+        assertEquals(BusPressClassifier.EventType.SHORT, tickUntilAction(classifier, clock));
+
+        //within IGNORE of the event acted upon
+        classifier.logEvent(2900);
+        assertNull(classifier.process(2900));
+
+        //past it, a new press starts its own watch
+        classifier.logEvent(3100);
+        clock.set(3100);
+        assertEquals(BusPressClassifier.EventType.SHORT, tickUntilAction(classifier, clock));
+        assertEquals(3100 + WATCH, clock.uptimeMillis());
+    }
+
+    @Test
+    public void onlyWatchingForLong() {
+        final BusPressClassifier classifier = new BusPressClassifier(0, 0, LONG, WATCH);
+
+        classifier.logEvent(2000);
+        assertNull(classifier.process(2000 + LONG - 1));
+        assertEquals(BusPressClassifier.EventType.LONG, classifier.process(2000 + LONG));
+        assertNull(classifier.process(2000 + LONG + 1));
+    }
+
+    @Test
+    public void onlyWatchingForShort() {
+        final BusPressClassifier classifier = new BusPressClassifier(0, SHORT, 0, 0);
+
+        classifier.logEvent(2000);
+        assertNull(classifier.process(2000 + SHORT - 1));
+        assertEquals(BusPressClassifier.EventType.SHORT, classifier.process(2000 + SHORT));
+    }
+
+    @Test
+    public void allZeroRespondsToEveryEvent() {
+        final BusPressClassifier classifier = new BusPressClassifier(0, 0, 0, 0);
+        assertTrue(classifier.respondsToEveryEvent());
+        assertFalse(new BusPressClassifier(IGNORE, SHORT, LONG, WATCH).respondsToEveryEvent());
+
+        for (long time = 2000; time < 2100; time += 10) {
+            classifier.logEvent(time);
+            assertEquals(BusPressClassifier.EventType.SHORT, classifier.process(time));
+            assertNull(classifier.process(time));
+        }
+
+        assertEquals(1, classifier.size());
+    }
+
+    /**
+     * @return  the first action due, ticking the clock forward until there is one
+     */
+    private static BusPressClassifier.EventType tickUntilAction(final BusPressClassifier classifier, final ManualClock clock) {
+        for (int t = 0; t < 1000; t++) {
+            final BusPressClassifier.EventType type = classifier.process(clock.uptimeMillis());
+            if (type != null) {
+                return type;
+            }
+
+            clock.sleep(TICK);
+        }
+
+        return null;
+    }
+}
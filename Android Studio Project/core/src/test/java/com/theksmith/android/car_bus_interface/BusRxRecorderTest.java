@@ -0,0 +1,127 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * BusRxRecorder and BusRxPlayer together
+ *
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusRxRecorderTest {
+    private File mFile;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("rx_", BusRxRecorder.FILE_EXTENSION);
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void chunksComeBackAsRead() throws IOException {
+        final byte[][] chunks = {
+                "7E8 03 41 0C".getBytes("US-ASCII"),
+                " 1A F8\r".getBytes("US-ASCII"),
+                "\r>".getBytes("US-ASCII"),
+        };
+
+        final BusRxRecorder recorder = new BusRxRecorder(mFile, 1000);
+        final byte[] buffer = new byte[64];
+        for (int c = 0; c < chunks.length; c++) {
+            //the rest of the buffer is left over from earlier reads and must not be recorded
+            Arrays.fill(buffer, (byte) 'x');
+            System.arraycopy(chunks[c], 0, buffer, 0, chunks[c].length);
+            recorder.record(1000 + c * 7, buffer, chunks[c].length);
+        }
+        recorder.record(2000, buffer, 0);
+        recorder.close();
+
+        final BusRxPlayer player = new BusRxPlayer(mFile);
+        assertEquals(1000, player.getStartTime());
+        assertTrue(Math.abs(System.currentTimeMillis() - player.getStartWallTime()) < 60000);
+
+        for (int c = 0; c < chunks.length; c++) {
+            assertTrue(player.next());
+            assertEquals(1000 + c * 7, player.getTime());
+            assertArrayEquals(chunks[c], Arrays.copyOf(player.getChunk(), player.getLength()));
+        }
+        assertFalse(player.next());
+
+        assertEquals(chunks.length, player.getChunks());
+        assertEquals(chunks[0].length + chunks[1].length + chunks[2].length, player.getBytes());
+        player.close();
+    }
+
+    @Test
+    public void chunkLargerThanTheBuffer() throws IOException {
+        final byte[] chunk = new byte[5000];
+        for (int b = 0; b < chunk.length; b++) {
+            chunk[b] = (byte) b;
+        }
+
+        final BusRxRecorder recorder = new BusRxRecorder(mFile, 0);
+        recorder.record(1, chunk, chunk.length);
+        recorder.close();
+
+        final BusRxPlayer player = new BusRxPlayer(mFile);
+        assertTrue(player.next());
+        assertArrayEquals(chunk, Arrays.copyOf(player.getChunk(), player.getLength()));
+        player.close();
+    }
+
+    @Test
+    public void lastChunkCutShortIsIgnored() throws IOException {
+        final byte[] chunk = "41 0C 1A F8\r".getBytes("US-ASCII");
+
+        final BusRxRecorder recorder = new BusRxRecorder(mFile, 0);
+        recorder.record(1, chunk, chunk.length);
+        recorder.record(2, chunk, chunk.length);
+        recorder.close();
+
+        final RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        final BusRxPlayer player = new BusRxPlayer(mFile);
+        assertTrue(player.next());
+        assertFalse(player.next());
+        assertEquals(1, player.getChunks());
+        player.close();
+    }
+
+    @Test
+    public void recordAfterCloseDoesNothing() throws IOException {
+        final BusRxRecorder recorder = new BusRxRecorder(mFile, 0);
+        recorder.close();
+        recorder.record(1, new byte[] { 1 }, 1);
+
+        assertEquals(BusRxRecorder.HEADER_SIZE, mFile.length());
+    }
+
+    @Test(expected = IOException.class)
+    public void notARecording() throws IOException {
+        final FileOutputStream out = new FileOutputStream(mFile);
+        out.write(new byte[BusRxRecorder.HEADER_SIZE]);
+        out.close();
+
+        new BusRxPlayer(mFile);
+    }
+}
@@ -0,0 +1,118 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusSnapshotTableTest {
+
+    @Test
+    public void keepsLatestWithPeriod() {
+        final BusSnapshotTable table = new BusSnapshotTable(16);
+        final BusFrame frame = new BusFrame();
+        final BusSnapshotTable.Entry entry = new BusSnapshotTable.Entry();
+
+        frame.parse("3E9 01 02 03");
+        table.update(BusDataType.RX, 100, frame);
+        frame.parse("3E9 04 05");
+        table.update(BusDataType.RX_MONITORED, 120, frame);
+
+        assertTrue(table.read(0x3E9, entry));
+        assertEquals("3E9 04 05", entry.frame.format());
+        assertEquals(BusDataType.RX_MONITORED, entry.type);
+        assertEquals(120, entry.time);
+        assertEquals(2, entry.count);
+        assertEquals(20, entry.period);
+
+        assertFalse(table.read(0x3EA, entry));
+        assertArrayEquals(new int[] { 0x3E9 }, table.getIds());
+    }
+
+    @Test
+    public void payloadCutToSnapshotSize() {
+        final BusSnapshotTable table = new BusSnapshotTable(16);
+        final BusFrame frame = new BusFrame();
+        final BusSnapshotTable.Entry entry = new BusSnapshotTable.Entry();
+
+        final StringBuilder line = new StringBuilder("7E8");
+        for (int b = 0; b < 30; b++) {
+            line.append(" 5A");
+        }
+        frame.parse(line.toString());
+        table.update(BusDataType.RX, 0, frame);
+
+        table.read(0x7E8, entry);
+        assertEquals(BusSnapshotTable.SNAPSHOT_PAYLOAD, entry.frame.length);
+    }
+
+    @Test
+    public void dropsNewIdsPastHalfFull() {
+        final BusSnapshotTable table = new BusSnapshotTable(8);
+        final BusFrame frame = new BusFrame();
+
+        for (int id = 0; id < 6; id++) {
+            frame.parse(String.format(Locale.US, "%03X 00", id));
+            table.update(BusDataType.RX, 0, frame);
+        }
+
+        assertEquals(4, table.getIds().length);
+        assertEquals(2, table.getDropped());
+    }
+
+    @Test
+    public void readersNeverSeeTornEntries() throws InterruptedException {
+        final BusSnapshotTable table = new BusSnapshotTable(16);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicReference<String> torn = new AtomicReference<String>();
+
+        //every byte of a frame is the low byte of its time, so a mix of two updates shows
+        final Thread writer = new Thread() {
+            @Override
+            public void run() {
+                final BusFrame frame = new BusFrame();
+                frame.id = 0x123;
+                frame.idDigits = 3;
+                frame.length = BusSnapshotTable.SNAPSHOT_PAYLOAD;
+
+                for (long time = 1; running.get(); time++) {
+                    for (int b = 0; b < frame.length; b++) {
+                        frame.payload[b] = (byte) time;
+                    }
+                    table.update(BusDataType.RX, time, frame);
+                }
+            }
+        };
+        writer.start();
+
+        final BusSnapshotTable.Entry entry = new BusSnapshotTable.Entry();
+        final long deadline = System.currentTimeMillis() + 500;
+
+        while (System.currentTimeMillis() < deadline && torn.get() == null) {
+            if (!table.read(0x123, entry)) {
+                continue;
+            }
+            for (int b = 0; b < entry.frame.length; b++) {
+                if (entry.frame.payload[b] != (byte) entry.time) {
+                    torn.set("time " + entry.time + " byte " + b + " was " + entry.frame.payload[b]);
+                }
+            }
+        }
+
+        running.set(false);
+        writer.join();
+
+        assertNull(torn.get());
+    }
+}
@@ -0,0 +1,141 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class BusStatisticsTest {
+
+    @Test
+    public void ratesAndBusLoad() {
+        final BusStatistics statistics = new BusStatistics(16, 500000);
+        final BusFrame frame = new BusFrame();
+        frame.parse("7E8 01 02 03 04 05 06 07 08");
+
+        for (long time = 0; time < 1000; time += 10) {
+            statistics.update(time, frame);
+        }
+
+        final BusStatistics.Snapshot snapshot = new BusStatistics.Snapshot();
+        statistics.snapshot(1000, snapshot);
+
+        assertEquals(100, snapshot.totalFrames);
+        assertEquals(100, snapshot.framesPerSecond, 0.001);
+        //(47 bits of overhead + 64 of data) * 1.1 for stuffing, 100 times a second at 500k
+        assertEquals(122 * 100 * 100.0 / 500000, snapshot.busLoadPercent, 0.001);
+        assertEquals(500000, snapshot.bitrate);
+
+        assertEquals(1, snapshot.idCount);
+        assertEquals(0x7E8, snapshot.ids[0]);
+        assertEquals(100, snapshot.counts[0]);
+        assertEquals(10, snapshot.periods[0], 0.001);
+        assertEquals(0, snapshot.jitters[0], 0.001);
+        assertEquals(100, snapshot.framesPerSecondById[0], 0.001);
+    }
+
+    @Test
+    public void bitrateDecidesTheLoad() {
+        final BusFrame frame = new BusFrame();
+        frame.parse("18DAF110 01 02");
+
+        final BusStatistics fast = new BusStatistics(16, 500000);
+        final BusStatistics slow = new BusStatistics(16, 125000);
+        for (long time = 0; time < 1000; time += 5) {
+            fast.update(time, frame);
+            slow.update(time, frame);
+        }
+
+        final BusStatistics.Snapshot snapshot = new BusStatistics.Snapshot();
+        fast.snapshot(1000, snapshot);
+        final double fastLoad = snapshot.busLoadPercent;
+        slow.snapshot(1000, snapshot);
+
+        assertEquals(fastLoad * 4, snapshot.busLoadPercent, 0.001);
+    }
+
+    @Test
+    public void jitterFollowsUnevenPeriods() {
+        final BusStatistics statistics = new BusStatistics(16, 500000);
+        final BusFrame frame = new BusFrame();
+        frame.parse("3E9 00");
+
+        //alternately 8 and 12 millis apart
+        long time = 0;
+        for (int f = 0; f < 200; f++) {
+            statistics.update(time, frame);
+            time += (f & 1) == 0 ? 8 : 12;
+        }
+
+        final BusStatistics.Snapshot snapshot = new BusStatistics.Snapshot();
+        statistics.snapshot(time, snapshot);
+
+        assertEquals(10, snapshot.periods[0], 0.5);
+        assertEquals(2, snapshot.jitters[0], 0.5);
+    }
+
+    @Test
+    public void quietIdDecays() {
+        final BusStatistics statistics = new BusStatistics(16, 500000);
+        final BusFrame frame = new BusFrame();
+        frame.parse("3E9 00");
+
+        for (long time = 0; time < 1000; time += 10) {
+            statistics.update(time, frame);
+        }
+
+        final BusStatistics.Snapshot snapshot = new BusStatistics.Snapshot();
+        statistics.snapshot(5990, snapshot);
+
+        assertEquals(0.2, snapshot.framesPerSecondById[0], 0.001);
+        assertEquals(10, snapshot.periods[0], 0.001);
+        //the window stretched over the quiet time
+        assertEquals(100 * 1000.0 / 5990, snapshot.framesPerSecond, 0.001);
+    }
+
+    @Test
+    public void idsBeyondHalfTheCapacityAreDropped() {
+        final BusStatistics statistics = new BusStatistics(4, 500000);
+        final BusFrame frame = new BusFrame();
+
+        for (int id = 0x100; id < 0x105; id++) {
+            frame.parse(Integer.toHexString(id) + " 00");
+            statistics.update(0, frame);
+        }
+
+        final BusStatistics.Snapshot snapshot = new BusStatistics.Snapshot();
+        statistics.snapshot(0, snapshot);
+
+        assertEquals(5, snapshot.totalFrames);
+        assertEquals(2, snapshot.idCount);
+        assertEquals(3, snapshot.droppedIds);
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        final BusStatistics statistics = new BusStatistics(16, 500000);
+        final BusFrame frame = new BusFrame();
+        frame.parse("3E9 00");
+
+        statistics.update(0, frame);
+        statistics.countBufferFull();
+        statistics.countCanError();
+        statistics.reset();
+
+        final BusStatistics.Snapshot snapshot = new BusStatistics.Snapshot();
+        statistics.snapshot(0, snapshot);
+
+        assertEquals(0, snapshot.totalFrames);
+        assertEquals(0, snapshot.idCount);
+        assertEquals(0, snapshot.bufferFullCount);
+        assertEquals(0, snapshot.canErrorCount);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOfTwo() {
+        new BusStatistics(100, 500000);
+    }
+}
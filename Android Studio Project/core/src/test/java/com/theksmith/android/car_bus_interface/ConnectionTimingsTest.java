@@ -0,0 +1,122 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ConnectionTimingsTest {
+
+    @Test
+    public void phasesOfOneCycle() {
+        final ConnectionTimings timings = new ConnectionTimings();
+        final long[] phases = new long[ConnectionTimings.PHASES];
+        assertFalse(timings.getLastPhaseTimes(phases));
+
+        connect(timings, 1000, false);
+
+        assertFalse(timings.isActive());
+        assertTrue(timings.getLastPhaseTimes(phases));
+        assertArrayEquals(new long[] { 10, 20, 30, 40, 50 }, phases);
+
+        //the first connection is not a recovery
+        assertEquals(0, timings.getRecoveryCount());
+        assertEquals(-1, timings.getLastRecoveryTime());
+        assertEquals(-1, timings.getMedianRecoveryTime());
+    }
+
+    @Test
+    public void failedAttemptsAddToTheSameCycle() {
+        final ConnectionTimings timings = new ConnectionTimings();
+
+        timings.begin(1000, true);
+        timings.mark(ConnectionTimings.Phase.WAIT, 1000);
+        timings.mark(ConnectionTimings.Phase.SOCKET_CREATE, 1010);
+        //the connect failed, the next attempt waits and tries again without a new begin() counting
+        timings.begin(1500, true);
+        timings.mark(ConnectionTimings.Phase.WAIT, 1500);
+        timings.mark(ConnectionTimings.Phase.SOCKET_CREATE, 1510);
+        timings.mark(ConnectionTimings.Phase.CONNECT, 1600);
+        timings.mark(ConnectionTimings.Phase.FIRST_PROMPT, 1700);
+        timings.mark(ConnectionTimings.Phase.INIT_COMPLETE, 1800);
+
+        final long[] phases = new long[ConnectionTimings.PHASES];
+        timings.getLastPhaseTimes(phases);
+
+        assertArrayEquals(new long[] { 490, 20, 90, 100, 100 }, phases);
+        assertEquals(800, phases[0] + phases[1] + phases[2] + phases[3] + phases[4]);
+        assertEquals(800, timings.getLastRecoveryTime());
+    }
+
+    @Test
+    public void medianOfRecoveries() {
+        final ConnectionTimings timings = new ConnectionTimings();
+
+        //recoveries of 150, 300, 450 and 600 millis
+        for (int r = 1; r <= 4; r++) {
+            connect(timings, r * 10000, true, r);
+        }
+
+        assertEquals(4, timings.getRecoveryCount());
+        assertEquals(600, timings.getLastRecoveryTime());
+        assertEquals((300 + 450) / 2, timings.getMedianRecoveryTime());
+
+        connect(timings, 50000, true, 5);
+        assertEquals(450, timings.getMedianRecoveryTime());
+    }
+
+    @Test
+    public void medianOnlyOfTheLatestHistory() {
+        final ConnectionTimings timings = new ConnectionTimings();
+
+        //slow recoveries that have aged out, then fast ones
+        for (int r = 0; r < ConnectionTimings.HISTORY; r++) {
+            connect(timings, r * 10000, true, 20);
+        }
+        for (int r = 0; r < ConnectionTimings.HISTORY; r++) {
+            connect(timings, (ConnectionTimings.HISTORY + r) * 10000, true, 1);
+        }
+
+        assertEquals(ConnectionTimings.HISTORY * 2, timings.getRecoveryCount());
+        assertEquals(150, timings.getMedianRecoveryTime());
+    }
+
+    @Test
+    public void cancelledCycleLeavesNoTrace() {
+        final ConnectionTimings timings = new ConnectionTimings();
+
+        timings.begin(1000, true);
+        timings.mark(ConnectionTimings.Phase.WAIT, 1100);
+        timings.cancel();
+        assertFalse(timings.isActive());
+
+        //marks outside a cycle are ignored
+        timings.mark(ConnectionTimings.Phase.INIT_COMPLETE, 2000);
+
+        assertFalse(timings.getLastPhaseTimes(new long[ConnectionTimings.PHASES]));
+        assertEquals(0, timings.getRecoveryCount());
+    }
+
+    private static void connect(final ConnectionTimings timings, final long start, final boolean afterDrop) {
+        connect(timings, start, afterDrop, 1);
+    }
+
+    /**
+     * one cycle, each phase scale times 10, 20, 30, 40 and 50 millis long
+     */
+    private static void connect(final ConnectionTimings timings, final long start, final boolean afterDrop, final int scale) {
+        long now = start;
+        timings.begin(now, afterDrop);
+
+        for (ConnectionTimings.Phase phase : ConnectionTimings.Phase.values()) {
+            now += (phase.ordinal() + 1) * 10 * scale;
+            timings.mark(phase, now);
+        }
+    }
+}
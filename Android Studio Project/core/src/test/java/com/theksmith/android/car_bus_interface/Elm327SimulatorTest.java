@@ -0,0 +1,203 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class Elm327SimulatorTest {
+    private Elm327Simulator mSimulator;
+
+
+    @After
+    public void tearDown() {
+        if (mSimulator != null) {
+            mSimulator.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void commandReplies() {
+        open(fastLink());
+
+        assertEquals("ATZ\r\r" + Elm327Simulator.VERSION_TEXT + "\r\r", command("ATZ"));
+        assertEquals("ATE0\rOK\r\r", command("ATE0"));
+
+        //echo is off from here on
+        assertEquals(Elm327Simulator.VERSION_TEXT + "\r\r", command("ATI"));
+        assertEquals(Elm327Simulator.VOLTAGE_TEXT + "\r\r", command("at rv"));
+        assertEquals("OK\r\r", command("ATSP6"));
+        assertEquals("6\r\r", command("ATDPN"));
+        assertEquals("?\r\r", command("ATSPX"));
+        assertEquals("OK\r\r", command("ATCAF0"));
+        assertEquals("?\r\r", command("ATXYZ"));
+        assertEquals(Elm327Simulator.NO_DATA + "\r\r", command("010C"));
+
+        //an empty command repeats the last one
+        assertEquals(Elm327Simulator.NO_DATA + "\r\r", command(""));
+    }
+
+    @Test(timeout = 10000)
+    public void monitorFormatsFramesPerSettings() {
+        open(fastLink());
+        setup("ATE0", "ATL0", "ATS0", "ATH1", "ATSP6");
+
+        write("ATMA\r");
+        final String[] lines = readLines(50);
+        for (String line : lines) {
+            //3 digit ID and 1 to 8 data bytes, no spaces
+            assertTrue(line, line.matches("[0-7][0-9A-F]{2}([0-9A-F]{2}){1,8}"));
+        }
+        assertTrue(mSimulator.isMonitoring());
+
+        //any byte stops it
+        write("\r");
+        assertTrue(readUntilPrompt().endsWith(Elm327Simulator.STOPPED + "\r\r"));
+        assertFalse(mSimulator.isMonitoring());
+    }
+
+    @Test(timeout = 10000)
+    public void filterPassesOneId() {
+        open(fastLink());
+        setup("ATE0", "ATL0", "ATH1", "ATSP6");
+
+        //pick an ID that is on the bus, then only ask for that one
+        write("ATMA\r");
+        final String id = readLines(1)[0].substring(0, 3);
+        write("\r");
+        readUntilPrompt();
+
+        setup("ATCRA" + id);
+        write("ATMA\r");
+        for (String line : readLines(20)) {
+            assertTrue(line, line.startsWith(id + " "));
+        }
+        assertTrue(mSimulator.getFramesFiltered() > 0);
+    }
+
+    @Test(timeout = 10000)
+    public void slowLinkEndsInBufferFull() {
+        final Elm327Simulator.Config config = new Elm327Simulator.Config();
+        config.load = 1.0;
+        config.linkBytesPerSecond = 100;
+        config.bufferBytes = 64;
+        open(config);
+        setup("ATE0", "ATSP6");
+
+        write("ATMA\r");
+        assertTrue(readUntilPrompt().endsWith(Elm327Simulator.BUFFER_FULL + "\r\r"));
+        assertFalse(mSimulator.isMonitoring());
+        assertEquals(1, mSimulator.getBufferFulls());
+    }
+
+    @Test(timeout = 10000)
+    public void sameSeedSameTraffic() {
+        open(fastLink());
+        setup("ATE0", "ATL0", "ATH1", "ATSP6");
+        write("ATMA\r");
+        final String[] first = readLines(30);
+        mSimulator.close();
+
+        open(fastLink());
+        setup("ATE0", "ATL0", "ATH1", "ATSP6");
+        write("ATMA\r");
+        final String[] second = readLines(30);
+
+        for (int l = 0; l < first.length; l++) {
+            assertEquals(first[l], second[l]);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void closeEndsABlockedRead() throws InterruptedException {
+        open(fastLink());
+
+        final int[] result = { 0 };
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                result[0] = mSimulator.read(new byte[16]);
+            }
+        };
+        reader.start();
+
+        Thread.sleep(50);
+        mSimulator.close();
+        reader.join();
+
+        assertEquals(-1, result[0]);
+    }
+
+    /**
+     * the default link is slower than the default load on a CAN bus, this one keeps up
+     */
+    private static Elm327Simulator.Config fastLink() {
+        final Elm327Simulator.Config config = new Elm327Simulator.Config();
+        config.linkBytesPerSecond = 0;
+        return config;
+    }
+
+    private void open(final Elm327Simulator.Config config) {
+        mSimulator = new Elm327Simulator(new ManualClock(0), config);
+        mSimulator.open();
+    }
+
+    private void write(final String text) {
+        final byte[] bytes = text.getBytes();
+        mSimulator.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @return  the reply without the prompt
+     */
+    private String command(final String command) {
+        write(command + "\r");
+        return readUntilPrompt();
+    }
+
+    private void setup(final String... commands) {
+        for (String command : commands) {
+            command(command);
+        }
+    }
+
+    private String readUntilPrompt() {
+        final StringBuilder output = new StringBuilder();
+        final byte[] buffer = new byte[256];
+
+        while (output.length() == 0 || output.charAt(output.length() - 1) != '>') {
+            final int length = mSimulator.read(buffer);
+            if (length < 0) {
+                break;
+            }
+            output.append(new String(buffer, 0, length));
+        }
+
+        return output.substring(0, output.length() - 1);
+    }
+
+    /**
+     * @return  the first count whole lines of monitor output
+     */
+    private String[] readLines(final int count) {
+        final StringBuilder output = new StringBuilder();
+        final byte[] buffer = new byte[1];
+
+        while (output.toString().split("\r", -1).length <= count) {
+            if (mSimulator.read(buffer) < 0) {
+                break;
+            }
+            output.append((char) buffer[0]);
+        }
+
+        final String[] lines = new String[count];
+        System.arraycopy(output.toString().split("\r", -1), 0, lines, 0, count);
+        return lines;
+    }
+}
@@ -0,0 +1,95 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmAdapterProbeTest {
+
+    @Test
+    public void answersPickedOut() {
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+
+        //lines for other commands are not the probe's
+        probe.onSent("ATE0");
+        assertFalse(probe.onResponse("OK", true));
+
+        probe.onSent("ATI");
+        assertTrue(probe.onResponse("ELM327 v1.5", true));
+        assertFalse(probe.isDone());
+
+        probe.onSent("AT DPN");
+        assertTrue(probe.onResponse("A6", true));
+
+        assertTrue(probe.isDone());
+        assertFalse(probe.sawEcho());
+        assertEquals("ELM327 v1.5", probe.getVersion());
+        assertEquals("A6", probe.getProtocol());
+
+        final ElmAdapterState state = probe.toState("ATZ;ATE0;ATMA;");
+        assertEquals("ELM327 v1.5", state.version);
+        assertEquals("A6", state.protocol);
+        assertEquals("ATZ;ATE0;ATMA;", state.commandsKey);
+    }
+
+    @Test
+    public void echoIsNoticedAndSkipped() {
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+
+        probe.onSent("ATI");
+        assertTrue(probe.onResponse("ATI", false));
+        assertTrue(probe.onResponse("ELM327 v2.1", true));
+        probe.onSent("ATDPN");
+        assertTrue(probe.onResponse("ATDPN", false));
+        assertTrue(probe.onResponse("2", true));
+
+        assertTrue(probe.sawEcho());
+        assertEquals("ELM327 v2.1", probe.getVersion());
+        assertEquals("2", probe.getProtocol());
+    }
+
+    @Test
+    public void answerSpreadOverLines() {
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+
+        //the first non empty line is the answer
+        probe.onSent("ATI");
+        assertTrue(probe.onResponse("", false));
+        assertTrue(probe.onResponse("ELM327 v1.5", false));
+        assertTrue(probe.onResponse("", true));
+
+        assertEquals("ELM327 v1.5", probe.getVersion());
+    }
+
+    @Test
+    public void onlyInOrder() {
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+
+        //ATDPN before ATI is not taken as an answer
+        probe.onSent("ATDPN");
+        assertFalse(probe.onResponse("6", true));
+        assertFalse(probe.isDone());
+    }
+
+    @Test
+    public void noUsableStateFromUnknownAnswers() {
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+
+        probe.onSent("ATI");
+        probe.onResponse("?", true);
+        probe.onSent("ATDPN");
+        probe.onResponse("", true);
+
+        assertTrue(probe.isDone());
+        assertEquals("", probe.getProtocol());
+        assertNull(probe.toState("ATMA;"));
+        assertNull(new ElmAdapterProbe().toState("ATMA;"));
+    }
+}
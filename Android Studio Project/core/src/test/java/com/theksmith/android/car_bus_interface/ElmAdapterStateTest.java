@@ -0,0 +1,118 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmAdapterStateTest {
+    private static final ElmStartupCommands COMMANDS = ElmStartupCommands.parse("ATZ;ATE0;ATH1;ATSP2;ATMA");
+
+
+    @Test
+    public void serializeRoundTrip() {
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "2", COMMANDS.getKey());
+        final ElmAdapterState parsed = ElmAdapterState.parse(state.serialize());
+
+        assertEquals(state.version, parsed.version);
+        assertEquals(state.protocol, parsed.protocol);
+        assertEquals(state.commandsKey, parsed.commandsKey);
+    }
+
+    @Test
+    public void parseRejectsOtherStrings() {
+        assertNull(ElmAdapterState.parse(null));
+        assertNull(ElmAdapterState.parse(""));
+        assertNull(ElmAdapterState.parse("ELM327 v1.5|2"));
+        assertNull(ElmAdapterState.parse("|2|ATMA;"));
+    }
+
+    @Test
+    public void validWhenTheDeviceKeptEverything() {
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "2", COMMANDS.getKey());
+
+        assertTrue(state.canVerify(COMMANDS));
+        assertTrue(state.isStillValid(probe("ELM327 v1.5", "2", false), COMMANDS));
+    }
+
+    @Test
+    public void echoMeansItWasReset() {
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "2", COMMANDS.getKey());
+
+        assertFalse(state.isStillValid(probe("ELM327 v1.5", "2", true), COMMANDS));
+    }
+
+    @Test
+    public void anyDifferenceInvalidates() {
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "2", COMMANDS.getKey());
+
+        //another device at the same address
+        assertFalse(state.isStillValid(probe("ELM327 v2.1", "2", false), COMMANDS));
+        //another protocol
+        assertFalse(state.isStillValid(probe("ELM327 v1.5", "6", false), COMMANDS));
+        //the startup commands were edited
+        final ElmStartupCommands edited = ElmStartupCommands.parse("ATZ;ATE0;ATH0;ATSP2;ATMA");
+        assertFalse(state.canVerify(edited));
+        assertFalse(state.isStillValid(probe("ELM327 v1.5", "2", false), edited));
+    }
+
+    @Test
+    public void automaticProtocolMayDiffer() {
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "A6", COMMANDS.getKey());
+
+        assertTrue(state.isStillValid(probe("ELM327 v1.5", "A7", false), COMMANDS));
+        assertFalse(state.isStillValid(probe("ELM327 v1.5", "6", false), COMMANDS));
+    }
+
+    @Test
+    public void unfinishedProbeIsNotEnough() {
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "2", COMMANDS.getKey());
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+        probe.onSent("ATI");
+        probe.onResponse("ELM327 v1.5", true);
+
+        assertFalse(state.isStillValid(probe, COMMANDS));
+    }
+
+    @Test
+    public void withoutEchoOffAResetCanNotBeSeen() {
+        final ElmStartupCommands commands = ElmStartupCommands.parse("ATZ;ATH1;ATSP2;ATMA");
+        final ElmAdapterState state = new ElmAdapterState("ELM327 v1.5", "2", commands.getKey());
+
+        assertFalse(state.canVerify(commands));
+        assertFalse(state.isStillValid(probe("ELM327 v1.5", "2", true), commands));
+    }
+
+    @Test
+    public void changedBy() {
+        for (String command : new String[] { "ATZ", "ATWS", "ATD", "ATH0", "AT CRA 7E8", "ATCAF0", "ATSP6", "ATE1", "ATCP18", "ATKW0" }) {
+            assertTrue(command, ElmAdapterState.isChangedBy(command));
+        }
+
+        //reads, and settings a resume sends again whenever they matter
+        for (String command : new String[] { "ATI", "ATDPN", "ATRV", "AT@1", "ATKW", "ATSH7E0", "ATST32", "ATAT1", "ATMA", "0100", "STI" }) {
+            assertFalse(command, ElmAdapterState.isChangedBy(command));
+        }
+    }
+
+    private static ElmAdapterProbe probe(final String version, final String protocol, final boolean echo) {
+        final ElmAdapterProbe probe = new ElmAdapterProbe();
+
+        probe.onSent(ElmAdapterProbe.COMMANDS[0]);
+        if (echo) {
+            probe.onResponse(ElmAdapterProbe.COMMANDS[0], false);
+        }
+        probe.onResponse(version, true);
+
+        probe.onSent(ElmAdapterProbe.COMMANDS[1]);
+        probe.onResponse(protocol, true);
+
+        return probe;
+    }
+}
@@ -0,0 +1,127 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmCommandQueueTest {
+
+    private static String takeAll(final ElmCommandQueue queue) throws InterruptedException {
+        final StringBuilder taken = new StringBuilder();
+
+        while (!queue.isEmpty()) {
+            final ElmCommandQueue.Entry entry = queue.take();
+            taken.append(taken.length() > 0 ? ", " : "").append(entry.command);
+        }
+
+        return taken.toString();
+    }
+
+    @Test
+    public void mostUrgentClassFirst() throws InterruptedException {
+        final ElmCommandQueue queue = new ElmCommandQueue();
+
+        queue.add("010C", BusFrame.NO_ID, ElmCommandQueue.Priority.BACKGROUND);
+        queue.add("22F190", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("30 00 00", 0x7E0, ElmCommandQueue.Priority.CRITICAL);
+        queue.add("010D", BusFrame.NO_ID, ElmCommandQueue.Priority.BACKGROUND);
+
+        assertEquals("30 00 00, 22F190, 010C, 010D", takeAll(queue));
+    }
+
+    @Test
+    public void mergesWaitingRead() throws InterruptedException {
+        final ElmCommandQueue queue = new ElmCommandQueue();
+
+        queue.add("01 0C", 0x7E0, ElmCommandQueue.Priority.BACKGROUND);
+        queue.add("010D", 0x7E0, ElmCommandQueue.Priority.BACKGROUND);
+        assertTrue(queue.add("010C", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE));
+
+        assertEquals(1, queue.getMerged());
+        assertEquals(2, queue.size());
+
+        //moved up to the more urgent class
+        assertEquals("010C, 010D", takeAll(queue));
+    }
+
+    @Test
+    public void notMergedAcrossASetting() throws InterruptedException {
+        final ElmCommandQueue queue = new ElmCommandQueue();
+
+        //a client switching headers itself, each 0902 is for another ECU
+        queue.add("ATSH 7E0", BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("0902", BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("ATSH 7E1", BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("0902", BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+
+        assertEquals(0, queue.getMerged());
+        assertEquals("ATSH 7E0, 0902, ATSH 7E1, 0902", takeAll(queue));
+
+        //reads queued after the last setting still merge
+        queue.add("0902", BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("0902", BusFrame.NO_ID, ElmCommandQueue.Priority.INTERACTIVE);
+        assertEquals(1, queue.getMerged());
+    }
+
+    @Test
+    public void differentHeadersAreNotMerged() throws InterruptedException {
+        final ElmCommandQueue queue = new ElmCommandQueue();
+
+        queue.add("0902", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("0902", 0x7E1, ElmCommandQueue.Priority.INTERACTIVE);
+
+        assertEquals(0, queue.getMerged());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    public void criticalAndWritesAreNeverMerged() {
+        final ElmCommandQueue queue = new ElmCommandQueue();
+
+        queue.add("ATMA", BusFrame.NO_ID, ElmCommandQueue.Priority.CRITICAL);
+        queue.add("ATMA", BusFrame.NO_ID, ElmCommandQueue.Priority.CRITICAL);
+        queue.add("2E F1 90 41", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE);
+        queue.add("2E F1 90 41", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE);
+
+        assertEquals(0, queue.getMerged());
+        assertEquals(4, queue.size());
+    }
+
+    @Test
+    public void boundedBacklog() throws InterruptedException {
+        final ElmCommandQueue queue = new ElmCommandQueue(2);
+
+        queue.add("0105", BusFrame.NO_ID, ElmCommandQueue.Priority.BACKGROUND);
+        queue.add("22F190", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE);
+
+        //the background command gives way
+        assertTrue(queue.add("22F18C", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE));
+        assertEquals(1, queue.getDropped());
+
+        //nothing left to give way
+        assertFalse(queue.add("22F187", 0x7E0, ElmCommandQueue.Priority.INTERACTIVE));
+        assertEquals(1, queue.getRefused());
+
+        //critical commands are let past the backlog
+        assertTrue(queue.add("30 00 00", 0x7E0, ElmCommandQueue.Priority.CRITICAL));
+
+        assertEquals("30 00 00, 22F190, 22F18C", takeAll(queue));
+    }
+
+    @Test
+    public void readOnly() {
+        assertTrue(ElmCommandQueue.isReadOnly("010C"));
+        assertTrue(ElmCommandQueue.isReadOnly("22F190"));
+        assertTrue(ElmCommandQueue.isReadOnly("ATRV"));
+        assertFalse(ElmCommandQueue.isReadOnly("ATIB10"));
+        assertFalse(ElmCommandQueue.isReadOnly("ATSH7E0"));
+        assertFalse(ElmCommandQueue.isReadOnly("1003"));
+        assertFalse(ElmCommandQueue.isReadOnly("2EF19041"));
+    }
+}
@@ -0,0 +1,108 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmResponseCacheTest {
+    private static final int HEADER = 0x7E0;
+
+    private ElmResponseCache mCache;
+
+
+    @Before
+    public void setUp() {
+        mCache = new ElmResponseCache();
+    }
+
+    private void answer(final int header, final String command, final long now, final String... lines) {
+        mCache.onSent(header, command, now);
+        for (int l = 0; l < lines.length; l++) {
+            mCache.onResponse(lines[l], l == lines.length - 1);
+        }
+    }
+
+    @Test
+    public void keepsCompleteAnswer() {
+        answer(HEADER, "0902", 0, "0902", "SEARCHING...", "7E8 10 14 49 02 01 31 44 34", "", "7E8 21 47 50 30 30 52 35 35");
+
+        assertArrayEquals(new String[] { "0902", "7E8 10 14 49 02 01 31 44 34", "7E8 21 47 50 30 30 52 35 35" }, mCache.get(HEADER, "0902", 1));
+        assertEquals(1, mCache.getHits());
+    }
+
+    @Test
+    public void keptPerHeader() {
+        answer(HEADER, "0902", 0, "7E8 02 49 02");
+        assertNull(mCache.get(0x7E1, "0902", 1));
+        assertEquals(1, mCache.getMisses());
+    }
+
+    @Test
+    public void expires() {
+        answer(HEADER, "0100", 0, "41 00 BE 1F A8 13");
+        assertTrue(mCache.get(HEADER, "0100", ElmResponseCache.TTL_SUPPORT - 1) != null);
+        assertNull(mCache.get(HEADER, "0100", ElmResponseCache.TTL_SUPPORT));
+    }
+
+    @Test
+    public void errorsAndEchoOnlyAreNotKept() {
+        answer(HEADER, "0902", 0, "0902", "NO DATA");
+        assertNull(mCache.get(HEADER, "0902", 1));
+
+        answer(HEADER, "0902", 0, "0902", "");
+        assertNull(mCache.get(HEADER, "0902", 1));
+    }
+
+    @Test
+    public void notCacheable() {
+        answer(HEADER, "010C", 0, "41 0C 1A F8");
+        assertNull(mCache.get(HEADER, "010C", 1));
+        assertEquals(0, mCache.getMisses());
+    }
+
+    @Test
+    public void leastRecentlyUsedGivesWay() {
+        final ElmResponseCache small = new ElmResponseCache(2);
+
+        small.onSent(HEADER, "0900", 0);
+        small.onResponse("49 00 55 40 00 00", true);
+        small.onSent(HEADER, "0902", 0);
+        small.onResponse("49 02 01 31", true);
+        small.get(HEADER, "0900", 1);
+        small.onSent(HEADER, "0904", 0);
+        small.onResponse("49 04 01 41", true);
+
+        assertTrue(small.get(HEADER, "0900", 2) != null);
+        assertNull(small.get(HEADER, "0902", 2));
+        assertTrue(small.get(HEADER, "0904", 2) != null);
+    }
+
+    @Test
+    public void invalidates() {
+        assertTrue(ElmResponseCache.invalidates("ATZ"));
+        assertTrue(ElmResponseCache.invalidates("ATH1"));
+        assertTrue(ElmResponseCache.invalidates("ATSP6"));
+        assertTrue(ElmResponseCache.invalidates("ATIB10"));
+        assertFalse(ElmResponseCache.invalidates("ATSH7E0"));
+        assertFalse(ElmResponseCache.invalidates("ATST19"));
+        assertFalse(ElmResponseCache.invalidates("ATRV"));
+        assertFalse(ElmResponseCache.invalidates("ATI"));
+        assertFalse(ElmResponseCache.invalidates("0902"));
+    }
+
+    @Test
+    public void clearForgetsEverything() {
+        answer(HEADER, "0902", 0, "49 02 01 31");
+        mCache.clear();
+        assertNull(mCache.get(HEADER, "0902", 1));
+    }
+}
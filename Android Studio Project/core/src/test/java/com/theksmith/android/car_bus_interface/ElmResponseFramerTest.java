@@ -0,0 +1,140 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmResponseFramerTest {
+    private static final int STREAMS = 200000;
+
+    private static final String[] PIECES = {
+            "41 0C 1A F8", "7E8 03 41 0D 32", "010C", "ATH1", "OK", "SEARCHING...", "NO DATA", "?", "ELM327 v1.5",
+            "\r", "\r", "\r\n", "\n", " ", "  ", ">", "\r\r>", " \r\n> ",
+    };
+
+
+    /**
+     * collects what the framer hands out
+     */
+    private static class Lines implements ElmResponseFramer.ResponseHandler {
+        final List<String> lines = new ArrayList<String>();
+
+        @Override
+        public void onResponse(final String response, final boolean completed) {
+            lines.add(response + (completed ? "|>" : "|"));
+        }
+    }
+
+    /**
+     * the framing as CBIServiceMain.elmBufferData() did it before ElmResponseFramer, kept as the reference
+     */
+    private static class RecursiveFramer {
+        private final Pattern mmPattern = Pattern.compile(ElmResponseFramer.RESPONSE_SEPARATOR_REGEX);
+        private String mmBuffer = "";
+        private boolean mmIdle;
+
+        final List<String> lines = new ArrayList<String>();
+
+        boolean append(final String data) {
+            mmIdle = false;
+            bufferData(data);
+            return mmIdle;
+        }
+
+        private void bufferData(final String data) {
+            final Matcher m = mmPattern.matcher(data);
+
+            if (m.find()) {
+                mmBuffer += data.substring(0, m.start());
+                final boolean completed = m.group().contains(ElmResponseFramer.RESPONSE_TERMINATOR);
+                lines.add(mmBuffer.replaceAll("[\\r\\n]", "").trim() + (completed ? "|>" : "|"));
+                mmBuffer = "";
+
+                final String rest = data.substring(m.end());
+
+                if (completed && rest.equals("")) {
+                    mmIdle = true;
+                } else if (!rest.equals("")) {
+                    bufferData(rest);
+                }
+            } else {
+                mmBuffer += data;
+            }
+        }
+    }
+
+
+    @Test
+    public void splitsLinesAndPrompt() {
+        final ElmResponseFramer framer = new ElmResponseFramer();
+        final Lines lines = new Lines();
+
+        assertFalse(framer.append("010C\r41 0C", lines));
+        assertTrue(framer.append(" 1A F8\r\r>", lines));
+
+        //the prompt ends the response on a line of its own
+        assertEquals(3, lines.lines.size());
+        assertEquals("010C|", lines.lines.get(0));
+        assertEquals("41 0C 1A F8|", lines.lines.get(1));
+        assertEquals("|>", lines.lines.get(2));
+    }
+
+    @Test
+    public void trailingDataIsNotIdle() {
+        final ElmResponseFramer framer = new ElmResponseFramer();
+        final Lines lines = new Lines();
+
+        assertFalse(framer.append("OK\r\r>41 0C", lines));
+        assertEquals(2, lines.lines.size());
+
+        framer.reset();
+        framer.append("\r", lines);
+        assertEquals("|", lines.lines.get(2));
+    }
+
+    @Test
+    public void sameAsRecursiveFramingOnRandomChunks() {
+        final Random random = new Random(37);
+
+        for (int stream = 0; stream < STREAMS; stream++) {
+            final StringBuilder text = new StringBuilder();
+            final int pieces = 1 + random.nextInt(12);
+            for (int p = 0; p < pieces; p++) {
+                text.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+
+            final ElmResponseFramer framer = new ElmResponseFramer();
+            final Lines lines = new Lines();
+            final RecursiveFramer reference = new RecursiveFramer();
+
+            int start = 0;
+            while (start < text.length()) {
+                final int end = Math.min(text.length(), start + 1 + random.nextInt(8));
+                final String chunk = text.substring(start, end);
+
+                final boolean idle = framer.append(chunk, lines);
+                assertEquals("idle after chunk of stream " + stream + ": " + escape(text), reference.append(chunk), idle);
+
+                start = end;
+            }
+
+            assertEquals("lines of stream " + stream + ": " + escape(text), reference.lines, lines.lines);
+        }
+    }
+
+    private static String escape(final CharSequence text) {
+        return text.toString().replace("\r", "\\r").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,82 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmStartupCommandsTest {
+    private static final String[] PROBE = { "ATI", "ATDPN" };
+
+
+    @Test
+    public void parseDropsEmptyCommands() {
+        final ElmStartupCommands commands = ElmStartupCommands.parse(" ATZ;ATE0;  ; ATSP2 ;ATMA;");
+
+        assertEquals(Arrays.asList("ATZ", "ATE0", "ATSP2", "ATMA"), commands.getCommands());
+        assertFalse(commands.isEmpty());
+        assertTrue(ElmStartupCommands.parse(" ; ;").isEmpty());
+    }
+
+    @Test
+    public void classify() {
+        assertEquals(ElmStartupCommands.Kind.RESET, ElmStartupCommands.classify("atz"));
+        assertEquals(ElmStartupCommands.Kind.RESET, ElmStartupCommands.classify("AT WS"));
+        assertEquals(ElmStartupCommands.Kind.RESET, ElmStartupCommands.classify("ATD"));
+        assertEquals(ElmStartupCommands.Kind.SETTING, ElmStartupCommands.classify("ATDPN"));
+        assertEquals(ElmStartupCommands.Kind.SETTING, ElmStartupCommands.classify("AT SH 7E0"));
+        assertEquals(ElmStartupCommands.Kind.SETTING, ElmStartupCommands.classify("STPBR 115200"));
+        assertEquals(ElmStartupCommands.Kind.MONITOR, ElmStartupCommands.classify("ATMA"));
+        assertEquals(ElmStartupCommands.Kind.MONITOR, ElmStartupCommands.classify("at mr 11"));
+        assertEquals(ElmStartupCommands.Kind.MONITOR, ElmStartupCommands.classify("ATMT6B"));
+        assertEquals(ElmStartupCommands.Kind.MONITOR, ElmStartupCommands.classify("STMA"));
+        assertEquals(ElmStartupCommands.Kind.REQUEST, ElmStartupCommands.classify("01 00"));
+    }
+
+    @Test
+    public void keyIgnoresSpacingAndCase() {
+        final ElmStartupCommands a = ElmStartupCommands.parse("ATZ;ATE0;AT SP 2;ATMA");
+        final ElmStartupCommands b = ElmStartupCommands.parse("atz; ate0 ;atsp2;ATMA");
+        final ElmStartupCommands c = ElmStartupCommands.parse("ATZ;ATE0;ATSP6;ATMA");
+
+        assertEquals(a.getKey(), b.getKey());
+        assertNotEquals(a.getKey(), c.getKey());
+    }
+
+    @Test
+    public void probeGoesBeforeTheFirstMonitor() {
+        final ElmStartupCommands commands = ElmStartupCommands.parse("ATZ;ATE0;ATMR11;ATMA");
+
+        assertEquals(Arrays.asList("ATZ", "ATE0", "ATI", "ATDPN", "ATMR11", "ATMA"), commands.getFullCommands(PROBE));
+        assertEquals(commands.getCommands(), commands.getFullCommands(null));
+    }
+
+    @Test
+    public void probeGoesLastWithoutAMonitor() {
+        final ElmStartupCommands commands = ElmStartupCommands.parse("ATZ;ATE0;0100");
+
+        assertEquals(Arrays.asList("ATZ", "ATE0", "0100", "ATI", "ATDPN"), commands.getFullCommands(PROBE));
+    }
+
+    @Test
+    public void resumeIsOnlyTheMonitors() {
+        assertEquals(Arrays.asList("ATMR11", "ATMA"), ElmStartupCommands.parse("ATZ;ATE0;ATSP2;ATMR11;0100;ATMA").getResumeCommands());
+        assertEquals(Collections.<String>emptyList(), ElmStartupCommands.parse("ATZ;ATE0;ATSP6").getResumeCommands());
+    }
+
+    @Test
+    public void turnsEchoOff() {
+        assertTrue(ElmStartupCommands.parse("ATZ;at e0;ATMA").turnsEchoOff());
+        assertFalse(ElmStartupCommands.parse("ATZ;ATE1;ATMA").turnsEchoOff());
+        assertFalse(ElmStartupCommands.parse("ATZ;ATSP2;ATMA").turnsEchoOff());
+    }
+}
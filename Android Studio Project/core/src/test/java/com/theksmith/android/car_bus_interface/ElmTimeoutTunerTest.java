@@ -0,0 +1,108 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ElmTimeoutTunerTest {
+    private static final int FALLBACK = ElmTimeoutTuner.TIMEOUT_DEFAULT;
+
+    private ElmTimeoutTuner mTuner;
+    private long mKey;
+
+
+    @Before
+    public void setUp() {
+        mTuner = new ElmTimeoutTuner();
+        mKey = ElmTimeoutTuner.getKey(0x7E0, "01 0C");
+    }
+
+    @Test
+    public void keys() {
+        assertEquals(mKey, ElmTimeoutTuner.getKey(0x7E0, "010D"));
+        assertNotEquals(mKey, ElmTimeoutTuner.getKey(0x7E1, "010C"));
+        assertNotEquals(mKey, ElmTimeoutTuner.getKey(0x7E0, "220C"));
+        assertNotEquals(BusFrame.NO_ID, ElmTimeoutTuner.getKey(BusFrame.NO_ID, "010C"));
+        assertEquals(BusFrame.NO_ID, ElmTimeoutTuner.getKey(0x7E0, "ATRV"));
+    }
+
+    @Test
+    public void fallbackUntilAnswered() {
+        assertEquals(FALLBACK, mTuner.getTimeout(mKey, FALLBACK));
+
+        //a silent ECU is not a reason to wait less for it
+        mTuner.onNoData(mKey);
+        assertEquals(FALLBACK, mTuner.getTimeout(mKey, FALLBACK));
+        assertEquals(0, mTuner.getBackoffCount());
+    }
+
+    @Test
+    public void tightensToSlowestWithMargin() {
+        mTuner.onResponse(mKey, 20);
+        mTuner.onResponse(mKey, 40);
+        mTuner.onResponse(mKey, 30);
+
+        //(40 * 1.5 + 12) / 4.096 = 17.6
+        assertEquals(18, mTuner.getTimeout(mKey, FALLBACK));
+    }
+
+    @Test
+    public void neverBelowMinimum() {
+        mTuner.onResponse(mKey, 1);
+        assertEquals(ElmTimeoutTuner.TIMEOUT_MIN, mTuner.getTimeout(mKey, FALLBACK));
+    }
+
+    @Test
+    public void backsOffAndRecovers() {
+        mTuner.onResponse(mKey, 40);
+        mTuner.onNoData(mKey);
+        assertEquals(36, mTuner.getTimeout(mKey, FALLBACK));
+
+        mTuner.onNoData(mKey);
+        assertEquals(71, mTuner.getTimeout(mKey, FALLBACK));
+
+        for (int r = 0; r < 32; r++) {
+            mTuner.onResponse(mKey, 40);
+        }
+        assertEquals(36, mTuner.getTimeout(mKey, FALLBACK));
+    }
+
+    @Test
+    public void neverAboveMaximum() {
+        mTuner.onResponse(mKey, 900);
+        mTuner.onNoData(mKey);
+        assertEquals(ElmTimeoutTuner.TIMEOUT_MAX, mTuner.getTimeout(mKey, FALLBACK));
+    }
+
+    @Test
+    public void oldestSamplesAgeOut() {
+        mTuner.onResponse(mKey, 200);
+        for (int s = 0; s < ElmTimeoutTuner.SAMPLES; s++) {
+            mTuner.onResponse(mKey, 40);
+        }
+        assertEquals(18, mTuner.getTimeout(mKey, FALLBACK));
+    }
+
+    @Test
+    public void leastRecentlyUsedGivesWay() {
+        final ElmTimeoutTuner small = new ElmTimeoutTuner(1);
+        final long other = ElmTimeoutTuner.getKey(0x7E1, "010C");
+
+        small.onResponse(mKey, 40);
+        small.onResponse(other, 40);
+        assertEquals(FALLBACK, small.getTimeout(mKey, FALLBACK));
+        assertEquals(18, small.getTimeout(other, FALLBACK));
+    }
+
+    @Test
+    public void commands() {
+        assertEquals("ATST32", ElmTimeoutTuner.getCommand(ElmTimeoutTuner.TIMEOUT_DEFAULT));
+        assertEquals("ATST05", ElmTimeoutTuner.getCommand(ElmTimeoutTuner.TIMEOUT_MIN));
+    }
+}
@@ -0,0 +1,111 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class IsoTpReassemblerTest {
+    private IsoTpReassembler mReassembler;
+    private final BusFrame mFrame = new BusFrame();
+
+
+    @Before
+    public void setUp() {
+        mReassembler = new IsoTpReassembler();
+    }
+
+    private IsoTpReassembler.Result process(final long now, final String line) {
+        mFrame.parse(line);
+        return mReassembler.process(now, mFrame);
+    }
+
+    @Test
+    public void singleFrame() {
+        assertEquals(IsoTpReassembler.Result.SINGLE, process(0, "7E8 03 41 0C 1A"));
+        assertEquals(0x7E8, mReassembler.getId());
+        assertEquals(3, mReassembler.getLength());
+        assertEquals("7E8 41 0C 1A", mReassembler.format());
+    }
+
+    @Test
+    public void multiFrameVin() {
+        assertEquals(IsoTpReassembler.Result.FIRST, process(0, "7E8 10 14 49 02 01 31 44 34"));
+        assertEquals(IsoTpReassembler.Result.CONSECUTIVE, process(10, "7E8 21 47 50 30 30 52 35 35"));
+        assertEquals(IsoTpReassembler.Result.COMPLETE, process(20, "7E8 22 42 31 32 33 34 35 36"));
+
+        assertEquals(20, mReassembler.getLength());
+        assertEquals("7E8 49 02 01 31 44 34 47 50 30 30 52 35 35 42 31 32 33 34 35 36", mReassembler.format());
+        assertEquals(1, mReassembler.getCompleted());
+    }
+
+    @Test
+    public void noSpaces() {
+        assertEquals(IsoTpReassembler.Result.FIRST, process(0, "7E8100A490201314434"));
+        assertEquals(IsoTpReassembler.Result.COMPLETE, process(0, "7E82147505555555555"));
+        assertEquals("7E849020131443447505555", mReassembler.format());
+    }
+
+    @Test
+    public void outOfSequenceAborts() {
+        process(0, "7E8 10 14 49 02 01 31 44 34");
+        assertEquals(IsoTpReassembler.Result.ABORTED, process(10, "7E8 22 47 50 30 30 52 35 35"));
+        assertEquals(1, mReassembler.getAborted());
+
+        //the message is gone, the rest of it is ignored
+        assertEquals(IsoTpReassembler.Result.NONE, process(20, "7E8 21 42 31 32 33 34 35 36"));
+    }
+
+    @Test
+    public void restartedByFirstFrame() {
+        process(0, "7E8 10 14 49 02 01 31 44 34");
+        assertEquals(IsoTpReassembler.Result.FIRST, process(10, "7E8 10 14 49 02 01 31 44 34"));
+        assertEquals(1, mReassembler.getAborted());
+    }
+
+    @Test
+    public void timesOut() {
+        process(0, "7E8 10 14 49 02 01 31 44 34");
+        assertEquals(IsoTpReassembler.Result.NONE, process(IsoTpReassembler.DEFAULT_TIMEOUT + 1, "7E8 21 47 50 30 30 52 35 35"));
+        assertEquals(1, mReassembler.getTimedOut());
+    }
+
+    @Test
+    public void interleavedSenders() {
+        process(0, "7E8 10 0A 49 02 01 31 44 34");
+        process(1, "7E9 10 0A 49 02 01 41 42 43");
+        assertEquals(IsoTpReassembler.Result.COMPLETE, process(2, "7E9 21 44 45 00 00 00 00 00"));
+        assertEquals("7E9 49 02 01 41 42 43 44 45 00 00", mReassembler.format());
+        assertEquals(IsoTpReassembler.Result.COMPLETE, process(3, "7E8 21 47 50 00 00 00 00 00"));
+        assertEquals("7E8 49 02 01 31 44 34 47 50 00 00", mReassembler.format());
+    }
+
+    @Test
+    public void evictsIdleLongest() {
+        final IsoTpReassembler small = new IsoTpReassembler(2, IsoTpReassembler.DEFAULT_MAX_LENGTH, IsoTpReassembler.DEFAULT_TIMEOUT);
+        final String[] firsts = { "7E8 10 0A 49 02 01 31 44 34", "7E9 10 0A 49 02 01 31 44 34", "7EA 10 0A 49 02 01 31 44 34" };
+
+        for (int f = 0; f < firsts.length; f++) {
+            mFrame.parse(firsts[f]);
+            small.process(f, mFrame);
+        }
+
+        assertEquals(1, small.getEvicted());
+
+        mFrame.parse("7E8 21 47 50 00 00 00 00 00");
+        assertEquals(IsoTpReassembler.Result.NONE, small.process(3, mFrame));
+        mFrame.parse("7E9 21 47 50 00 00 00 00 00");
+        assertEquals(IsoTpReassembler.Result.COMPLETE, small.process(3, mFrame));
+    }
+
+    @Test
+    public void flowControlIds() {
+        assertEquals(0x7E0, IsoTpReassembler.getFlowControlId(0x7E8));
+        assertEquals(0x18DA10F1, IsoTpReassembler.getFlowControlId(0x18DAF110));
+        assertEquals(BusFrame.NO_ID, IsoTpReassembler.getFlowControlId(0x123));
+    }
+}
@@ -0,0 +1,46 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ManualClockTest {
+
+    @Test
+    public void onlyMovesWhenTold() {
+        final ManualClock clock = new ManualClock(1000);
+        assertEquals(1000, clock.uptimeMillis());
+
+        clock.advance(250);
+        assertEquals(1250, clock.uptimeMillis());
+
+        clock.set(5000);
+        assertEquals(5000, clock.uptimeMillis());
+    }
+
+    @Test
+    public void sleepReturnsAtOnceWithTheTimeMoved() {
+        final ManualClock clock = new ManualClock(0);
+
+        final long started = System.nanoTime();
+        clock.sleep(60 * 60 * 1000);
+
+        assertEquals(60 * 60 * 1000, clock.uptimeMillis());
+        assertEquals(0, (System.nanoTime() - started) / 1000000000L);
+    }
+
+    @Test
+    public void neverGoesBackwards() {
+        final ManualClock clock = new ManualClock(1000);
+
+        clock.set(500);
+        clock.advance(-100);
+        clock.sleep(-100);
+
+        assertEquals(1000, clock.uptimeMillis());
+    }
+}
@@ -0,0 +1,98 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ObdPidSupportTest {
+
+    private static void answer(final ObdPidSupport support, final String... lines) {
+        for (String line : lines) {
+            support.onLine(line);
+        }
+        support.onComplete();
+    }
+
+    @Test
+    public void walksTheRanges() {
+        final ObdPidSupport support = new ObdPidSupport();
+
+        assertEquals("0100", support.getNextCommand());
+        answer(support, "0100", "41 00 BE 1F A8 13");
+        assertEquals("0120", support.getNextCommand());
+        answer(support, "0120", "41 20 80 00 00 00");
+
+        //bit 0 of the last bitmap was clear, nothing past 0x40 to ask for
+        assertTrue(support.isDone());
+        assertNull(support.getNextCommand());
+
+        assertTrue(support.isSupported(0x01));
+        assertFalse(support.isSupported(0x02));
+        assertTrue(support.isSupported(0x0C));
+        assertTrue(support.isSupported(0x0D));
+        assertTrue(support.isSupported(0x20));
+        assertTrue(support.isSupported(0x21));
+        assertFalse(support.isSupported(0x22));
+        assertFalse(support.isSupported(0x41));
+        assertFalse(support.isSupported(0x40));
+    }
+
+    @Test
+    public void headersPciAndNoSpaces() {
+        final ObdPidSupport support = new ObdPidSupport();
+
+        answer(support, "7E8 06 41 00 BE 1F A8 13");
+        answer(support, "7E806412080000000", "7E906412000000000");
+
+        assertTrue(support.isDone());
+        assertTrue(support.isSupported(0x0C));
+        assertTrue(support.isSupported(0x21));
+    }
+
+    @Test
+    public void answersAreCombined() {
+        final ObdPidSupport support = new ObdPidSupport();
+
+        answer(support, "7E8 06 41 00 80 00 00 00", "7E9 06 41 00 40 00 00 00");
+
+        assertTrue(support.isSupported(0x01));
+        assertTrue(support.isSupported(0x02));
+        assertFalse(support.isSupported(0x03));
+    }
+
+    @Test
+    public void noDataEndsDiscovery() {
+        final ObdPidSupport support = new ObdPidSupport();
+
+        answer(support, "0100", "NO DATA");
+
+        assertTrue(support.isDone());
+        assertFalse(support.hasAnswers());
+        assertFalse(support.isSupported(0x0C));
+    }
+
+    @Test
+    public void serializesAndParses() {
+        final ObdPidSupport support = new ObdPidSupport();
+        answer(support, "41 00 BE 1F A8 13");
+        answer(support, "41 20 80 00 00 00");
+
+        assertEquals("BE1FA813|80000000", support.serialize());
+
+        final ObdPidSupport parsed = ObdPidSupport.parse(support.serialize());
+        assertTrue(parsed.isDone());
+        assertTrue(parsed.isSupported(0x0C));
+        assertTrue(parsed.isSupported(0x21));
+        assertFalse(parsed.isSupported(0x02));
+
+        assertNull(ObdPidSupport.parse(""));
+        assertNull(ObdPidSupport.parse("XYZ"));
+    }
+}
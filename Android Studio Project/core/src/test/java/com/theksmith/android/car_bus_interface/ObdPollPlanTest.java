@@ -0,0 +1,104 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ObdPollPlanTest {
+
+    @Test
+    public void groupsByInterval() {
+        final ObdPollPlan plan = ObdPollPlan.build("0C:100; 0D:100; 05:2000; 0C:50", null, ObdPollPlan.MAX_PIDS_CAN, 0);
+
+        assertEquals("01 0C:50; 01 0D:100; 01 05:2000", plan.toString());
+    }
+
+    @Test
+    public void sharesRequestsUpToTheLimit() {
+        final ObdPollPlan can = ObdPollPlan.build("04:100; 05:100; 0B:100; 0C:100; 0D:100; 0F:100; 10:100", null, ObdPollPlan.MAX_PIDS_CAN, 0);
+        assertEquals("01 04 05 0B 0C 0D 0F:100; 01 10:100", can.toString());
+
+        final ObdPollPlan j1850 = ObdPollPlan.build("0C:100; 0D:100", null, 1, 0);
+        assertEquals(2, j1850.size());
+    }
+
+    @Test
+    public void dropsUnsupported() {
+        final ObdPidSupport support = ObdPidSupport.parse("00180000");
+        final ObdPollPlan plan = ObdPollPlan.build("0C:100; 0D:100; 05:2000", support, ObdPollPlan.MAX_PIDS_CAN, 0);
+
+        assertEquals("01 0C 0D:100", plan.toString());
+        assertEquals(1, plan.getDropped());
+    }
+
+    @Test
+    public void emptyAndInvalid() {
+        assertNull(ObdPollPlan.build(" ", null, 1, 0));
+
+        try {
+            ObdPollPlan.build("0C:5", null, 1, 0);
+            throw new AssertionError("an interval under the minimum was accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+
+        try {
+            ObdPollPlan.build("0C", null, 1, 0);
+            throw new AssertionError("an entry without an interval was accepted");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void mostOverdueFirst() {
+        final ObdPollPlan plan = ObdPollPlan.build("0C:100; 05:1000", null, 1, 0);
+
+        assertEquals("01 0C", plan.next(0));
+        assertEquals("01 05", plan.next(0));
+        assertNull(plan.next(0));
+        assertEquals(100, plan.getNextDue());
+
+        assertEquals("01 0C", plan.next(100));
+        assertNull(plan.next(150));
+    }
+
+    @Test
+    public void lateRequestWaitsItsInterval() {
+        final ObdPollPlan plan = ObdPollPlan.build("0C:100", null, 1, 0);
+
+        assertEquals("01 0C", plan.next(0));
+
+        //a little late keeps the schedule
+        assertEquals("01 0C", plan.next(130));
+        assertEquals(200, plan.getNextDue());
+
+        //more than a whole interval late is not due again until an interval from now
+        assertEquals("01 0C", plan.next(500));
+        assertNull(plan.next(500));
+        assertEquals(600, plan.getNextDue());
+    }
+
+    @Test
+    public void protocolLimits() {
+        assertEquals(ObdPollPlan.MAX_PIDS_CAN, ObdPollPlan.getMaxPidsPerRequest("6"));
+        assertEquals(ObdPollPlan.MAX_PIDS_CAN, ObdPollPlan.getMaxPidsPerRequest("A6"));
+        assertEquals(ObdPollPlan.MAX_PIDS_CAN, ObdPollPlan.getMaxPidsPerRequest("C"));
+        assertEquals(1, ObdPollPlan.getMaxPidsPerRequest("2"));
+        assertEquals(1, ObdPollPlan.getMaxPidsPerRequest(null));
+    }
+
+    @Test
+    public void functionalHeaders() {
+        assertEquals(0x7DF, ObdPollPlan.getFunctionalHeader("A6"));
+        assertEquals(0x18DB33F1, ObdPollPlan.getFunctionalHeader("7"));
+        assertEquals(0x686AF1, ObdPollPlan.getFunctionalHeader("A2"));
+        assertEquals(BusFrame.NO_ID, ObdPollPlan.getFunctionalHeader("A"));
+        assertEquals(BusFrame.NO_ID, ObdPollPlan.getFunctionalHeader(null));
+    }
+}
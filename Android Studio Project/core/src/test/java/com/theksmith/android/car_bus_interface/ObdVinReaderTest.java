@@ -0,0 +1,55 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ObdVinReaderTest {
+    private static final String VIN = "1D4GP00R55B123456";
+
+    private static String read(final String... lines) {
+        final ObdVinReader reader = new ObdVinReader();
+        for (String line : lines) {
+            reader.onLine(line);
+        }
+        return reader.getVin();
+    }
+
+    @Test
+    public void canWithoutHeaders() {
+        assertEquals(VIN, read("0902", "014", "0: 49 02 01 31 44 34", "1: 47 50 30 30 52 35 35", "2: 42 31 32 33 34 35 36"));
+    }
+
+    @Test
+    public void canWithHeaders() {
+        assertEquals(VIN, read("7E8 10 14 49 02 01 31 44 34", "7E8 21 47 50 30 30 52 35 35", "7E8 22 42 31 32 33 34 35 36"));
+    }
+
+    @Test
+    public void canWithoutSpaces() {
+        assertEquals(VIN, read("7E81014490201314434", "7E82147503030523535", "7E82242313233343536"));
+    }
+
+    @Test
+    public void j1850WithoutHeaders() {
+        assertEquals(VIN, read("49 02 01 00 00 00 31", "49 02 02 44 34 47 50", "49 02 03 30 30 52 35", "49 02 04 35 42 31 32", "49 02 05 33 34 35 36"));
+    }
+
+    @Test
+    public void j1850WithHeaders() {
+        //the 48 ('H') of each header and checksums such as 35 ('5') and 41 ('A') must not end up in the VIN
+        assertEquals(VIN, read("48 6B 10 49 02 01 00 00 00 31 35", "48 6B 10 49 02 02 44 34 47 50 41", "48 6B 10 49 02 03 30 30 52 35 42",
+                "48 6B 10 49 02 04 35 42 31 32 43", "48 6B 10 49 02 05 33 34 35 36 44"));
+    }
+
+    @Test
+    public void incomplete() {
+        assertNull(read("NO DATA"));
+        assertNull(read("7E8 10 14 49 02 01 31 44 34"));
+    }
+}
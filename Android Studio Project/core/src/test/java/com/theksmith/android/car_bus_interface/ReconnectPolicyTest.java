@@ -0,0 +1,81 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class ReconnectPolicyTest {
+
+    @Test
+    public void firstAttemptIsImmediateThenGrowsToTheCap() {
+        final ReconnectPolicy policy = new ReconnectPolicy(250, 3000, 2, 0, new Random(1));
+
+        final long[] expected = { 0, 250, 500, 1000, 2000, 3000, 3000 };
+        for (long delay : expected) {
+            assertEquals(delay, policy.nextDelay());
+        }
+        assertEquals(expected.length, policy.getAttempts());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        final ReconnectPolicy policy = new ReconnectPolicy(250, 3000, 2, 0, new Random(1));
+
+        policy.nextDelay();
+        policy.nextDelay();
+        policy.nextDelay();
+        policy.reset();
+
+        assertEquals(0, policy.getAttempts());
+        assertEquals(0, policy.nextDelay());
+        assertEquals(250, policy.nextDelay());
+    }
+
+    @Test
+    public void jitterOnlyShortensTheWait() {
+        final ReconnectPolicy policy = new ReconnectPolicy(1000, 1000, 2, 0.5, new Random(1));
+        policy.nextDelay();
+
+        long smallest = Long.MAX_VALUE;
+        long largest = 0;
+        for (int a = 0; a < 1000; a++) {
+            final long delay = policy.nextDelay();
+            assertTrue(String.valueOf(delay), delay >= 500 && delay <= 1000);
+
+            smallest = Math.min(smallest, delay);
+            largest = Math.max(largest, delay);
+        }
+
+        //spread over the range, not stuck in one spot
+        assertTrue(smallest < 550);
+        assertTrue(largest > 950);
+    }
+
+    @Test
+    public void manyAttemptsStayAtTheCap() {
+        final ReconnectPolicy policy = new ReconnectPolicy(250, 30000, 2, 0, new Random(1));
+
+        for (int a = 0; a < 5000; a++) {
+            policy.nextDelay();
+        }
+
+        assertEquals(30000, policy.nextDelay());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capBelowTheInitialDelay() {
+        new ReconnectPolicy(1000, 500, 2, 0, new Random(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jitterAboveOne() {
+        new ReconnectPolicy(250, 30000, 2, 1.5, new Random(1));
+    }
+}
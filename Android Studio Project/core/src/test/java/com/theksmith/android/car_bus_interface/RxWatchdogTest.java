@@ -0,0 +1,198 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class RxWatchdogTest {
+    private static final long TICK = 500; //milliseconds, as CBIServiceMain's RX_WATCHDOG_TICK_TIME
+
+    private static final long SILENCE = 2000;
+    private static final long FRAME = 5000;
+    private static final long RESET = 3000;
+    private static final long RECONNECT = 4000;
+
+
+    @Test
+    public void quietDeviceGoesThroughEveryStage() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE - 1));
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(SILENCE));
+        //each stage is returned once
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE + 1));
+
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE + RESET - 1));
+        assertEquals(RxWatchdog.Stage.WARM_RESET, watchdog.check(SILENCE + RESET));
+
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE + RESET + RECONNECT - 1));
+        assertEquals(RxWatchdog.Stage.RECONNECT, watchdog.check(SILENCE + RESET + RECONNECT));
+
+        //the link goes down, nothing more until armed again
+        assertFalse(watchdog.isArmed());
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE * 100));
+
+        assertArrayEquals(new int[] { 0, 1, 1, 1 }, watchdog.getActionCounts());
+        assertArrayEquals(new int[] { 0, 0, 0, 0 }, watchdog.getRecoveryCounts());
+    }
+
+    @Test
+    public void dataKeepsItQuiet() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        for (long now = 0; now < 60000; now += TICK) {
+            watchdog.onData(now);
+            assertEquals(RxWatchdog.Stage.NONE, watchdog.check(now));
+        }
+    }
+
+    @Test
+    public void dataAfterAStageCountsAsARecovery() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(SILENCE));
+        watchdog.onData(SILENCE + 100);
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE + 200));
+
+        //back to watching for silence from the last data
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(SILENCE + 100 + SILENCE));
+        watchdog.onData(SILENCE * 3);
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE * 3));
+
+        assertArrayEquals(new int[] { 0, 2, 0, 0 }, watchdog.getActionCounts());
+        assertArrayEquals(new int[] { 0, 2, 0, 0 }, watchdog.getRecoveryCounts());
+    }
+
+    @Test
+    public void recoveryAfterWarmReset() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        watchdog.check(SILENCE);
+        assertEquals(RxWatchdog.Stage.WARM_RESET, watchdog.check(SILENCE + RESET));
+
+        //the startup commands run again and arm() with a recovery underway carries on
+        watchdog.arm(SILENCE + RESET + 500);
+        watchdog.onData(SILENCE + RESET + 600);
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE + RESET + 700));
+
+        assertArrayEquals(new int[] { 0, 0, 1, 0 }, watchdog.getRecoveryCounts());
+    }
+
+    @Test
+    public void errorsWithoutFramesAreNotEnough() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, FRAME, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        //a device that sends only CAN ERROR lines
+        long now = 0;
+        for (; now < FRAME; now += TICK) {
+            watchdog.onData(now);
+            assertEquals(RxWatchdog.Stage.NONE, watchdog.check(now));
+        }
+        watchdog.onData(now);
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(now));
+
+        //more errors are not a recovery, a frame is
+        watchdog.onData(now + 100);
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(now + 200));
+        watchdog.onFrame(now + 300);
+        watchdog.check(now + 400);
+
+        assertArrayEquals(new int[] { 0, 1, 0, 0 }, watchdog.getRecoveryCounts());
+    }
+
+    @Test
+    public void pausedWhileMonitoringIsOffOnPurpose() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        //a client's command ends monitoring for as long as it likes
+        watchdog.pause();
+        assertTrue(watchdog.isPaused());
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE * 100));
+
+        //it monitors again, the silence is counted from then
+        watchdog.resume(SILENCE * 100);
+        assertFalse(watchdog.isPaused());
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE * 101 - 1));
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(SILENCE * 101));
+
+        assertArrayEquals(new int[] { 0, 1, 0, 0 }, watchdog.getActionCounts());
+    }
+
+    @Test
+    public void pausedMidRecoveryGetsTheStageTimeoutAgain() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(SILENCE));
+        watchdog.pause();
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(SILENCE + RESET * 10));
+
+        watchdog.resume(20000);
+        assertEquals(RxWatchdog.Stage.NONE, watchdog.check(20000 + RESET - 1));
+        assertEquals(RxWatchdog.Stage.WARM_RESET, watchdog.check(20000 + RESET));
+    }
+
+    @Test
+    public void resumeWithoutPauseChangesNothing() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+        watchdog.arm(0);
+
+        //a reissued monitor is the watchdog's own, it must not restart the clock
+        watchdog.resume(SILENCE - 1);
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(SILENCE));
+    }
+
+    @Test
+    public void armAndDisarmClearThePause() {
+        final RxWatchdog watchdog = new RxWatchdog(SILENCE, 0, RESET, RECONNECT);
+
+        watchdog.arm(0);
+        watchdog.pause();
+        watchdog.disarm();
+        assertFalse(watchdog.isPaused());
+
+        watchdog.pause();
+        watchdog.arm(1000);
+        assertFalse(watchdog.isPaused());
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(1000 + SILENCE));
+    }
+
+    @Test
+    public void parse() {
+        assertNull(RxWatchdog.parse(null));
+        assertNull(RxWatchdog.parse(" "));
+
+        final RxWatchdog watchdog = RxWatchdog.parse("2000 | 0 | 3000 | 4000");
+        watchdog.arm(0);
+        assertEquals(RxWatchdog.Stage.REISSUE_MONITOR, watchdog.check(2000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseNeedsFourValues() {
+        RxWatchdog.parse("2000|0|3000");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parseRejectsNonNumbers() {
+        RxWatchdog.parse("2000|0|3000|soon");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void silenceTimeoutMustBePositive() {
+        new RxWatchdog(0, 0, RESET, RECONNECT);
+    }
+}
@@ -0,0 +1,178 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class TcpTransportTest {
+    private ServerSocket mServer;
+    private TcpTransport mTransport;
+
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mTransport != null) {
+            mTransport.close();
+        }
+        mServer.close();
+    }
+
+    @Test
+    public void addressParsing() {
+        final TcpTransport plain = new TcpTransport(" 192.168.0.10 ");
+        assertEquals("192.168.0.10", plain.getHost());
+        assertEquals(TcpTransport.DEFAULT_PORT, plain.getPort());
+
+        final TcpTransport port = new TcpTransport("elm.local:23");
+        assertEquals("elm.local", port.getHost());
+        assertEquals(23, port.getPort());
+        assertEquals("elm.local:23", port.getName());
+
+        for (String bad : new String[] { null, "", " ", ":35000", "host:", "host:x", "host:0", "host:70000" }) {
+            try {
+                new TcpTransport(bad);
+                fail("accepted " + bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void bytesBothWays() throws IOException {
+        mTransport = new TcpTransport("127.0.0.1:" + mServer.getLocalPort());
+        mTransport.connect();
+
+        final Socket device = mServer.accept();
+        final InputStream fromHost = device.getInputStream();
+        final OutputStream toHost = device.getOutputStream();
+
+        //more than the transport's buffer, in one write
+        final byte[] command = new byte[20000];
+        for (int b = 0; b < command.length; b++) {
+            command[b] = (byte) b;
+        }
+        mTransport.write(command);
+
+        final byte[] received = new byte[command.length];
+        int offset = 0;
+        while (offset < received.length) {
+            offset += fromHost.read(received, offset, received.length - offset);
+        }
+        assertArrayEquals(command, received);
+
+        //a reply read through a buffer smaller than it
+        final byte[] reply = "41 0C 1A F8\r\r>".getBytes("US-ASCII");
+        toHost.write(reply);
+        toHost.flush();
+
+        final byte[] read = new byte[reply.length];
+        final byte[] buffer = new byte[4];
+        offset = 0;
+        while (offset < read.length) {
+            final int length = mTransport.read(buffer);
+            assertTrue(length > 0 && length <= buffer.length);
+            System.arraycopy(buffer, 0, read, offset, length);
+            offset += length;
+        }
+        assertArrayEquals(reply, read);
+
+        //the device hangs up
+        device.close();
+        assertEquals(-1, mTransport.read(buffer));
+    }
+
+    @Test(timeout = 10000)
+    public void closeEndsABlockedRead() throws Exception {
+        mTransport = new TcpTransport("127.0.0.1:" + mServer.getLocalPort());
+        mTransport.connect();
+        final Socket device = mServer.accept();
+
+        final Object[] result = { null };
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = mTransport.read(new byte[16]);
+                } catch (IOException e) {
+                    result[0] = e;
+                }
+            }
+        };
+        reader.start();
+
+        Thread.sleep(50);
+        mTransport.close();
+        reader.join();
+        device.close();
+
+        assertTrue(String.valueOf(result[0]), result[0] instanceof IOException || Integer.valueOf(-1).equals(result[0]));
+    }
+
+    @Test
+    public void unusableUntilConnected() throws IOException {
+        mTransport = new TcpTransport("127.0.0.1:" + mServer.getLocalPort());
+        mTransport.create();
+
+        try {
+            mTransport.write(new byte[] { '\r' });
+            fail("wrote before connect()");
+        } catch (IOException expected) {
+        }
+
+        try {
+            mTransport.read(new byte[1]);
+            fail("read before connect()");
+        } catch (IOException expected) {
+        }
+
+        mTransport.close();
+
+        try {
+            mTransport.read(new byte[1]);
+            fail("read after close()");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void refusedConnectLeavesItClosed() throws IOException {
+        final int port = mServer.getLocalPort();
+        mServer.close();
+
+        mTransport = new TcpTransport("127.0.0.1:" + port);
+        try {
+            mTransport.connect();
+            fail("connected to a closed port");
+        } catch (IOException expected) {
+        }
+
+        try {
+            mTransport.write(new byte[] { '\r' });
+            fail("wrote after a failed connect()");
+        } catch (IOException expected) {
+        }
+
+        mServer = new ServerSocket(0);
+    }
+}
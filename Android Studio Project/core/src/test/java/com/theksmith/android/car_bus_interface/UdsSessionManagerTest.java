@@ -0,0 +1,145 @@
+package com.theksmith.android.car_bus_interface;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * @author Kristoffer Smith <kristoffer@theksmith.com>
+ */
+public class UdsSessionManagerTest {
+    private UdsSessionManager mManager;
+    private final BusFrame mRequest = new BusFrame();
+
+
+    @Before
+    public void setUp() {
+        mManager = new UdsSessionManager();
+    }
+
+    private void request(final long now, final int id, final int... data) {
+        mRequest.clear();
+        mRequest.id = id;
+        for (int value : data) {
+            mRequest.payload[mRequest.length++] = (byte) value;
+        }
+        mManager.onRequest(now, mRequest);
+    }
+
+    private UdsSessionManager.Result response(final long now, final int id, final int... data) {
+        final byte[] bytes = new byte[data.length];
+        for (int b = 0; b < data.length; b++) {
+            bytes[b] = (byte) data[b];
+        }
+        return mManager.onResponse(now, id, bytes, bytes.length);
+    }
+
+    @Test
+    public void sessionFromPositiveResponse() {
+        request(0, 0x7E0, 0x10, 0x03);
+        assertEquals(UdsSessionManager.Result.POSITIVE, response(40, 0x7E8, 0x50, 0x03, 0x00, 0x32, 0x01, 0xF4));
+
+        assertEquals(0x03, mManager.getSession(0x7E0));
+        assertEquals(40, mManager.getLastLatency());
+        assertEquals(0x10, mManager.getLastService());
+        assertTrue(mManager.isActive());
+    }
+
+    @Test
+    public void negativeResponse() {
+        request(0, 0x7E0, 0x27, 0x01);
+        assertEquals(UdsSessionManager.Result.NEGATIVE, response(10, 0x7E8, 0x7F, 0x27, 0x33));
+        assertEquals(0x33, mManager.getLastNrc());
+        assertEquals(1, mManager.getCounts()[UdsSessionManager.COUNT_NEGATIVE]);
+    }
+
+    @Test
+    public void pendingStretchesTheWait() {
+        request(0, 0x7E0, 0x31, 0x01, 0xFF, 0x00);
+        assertEquals(UdsSessionManager.Result.PENDING, response(50, 0x7E8, 0x7F, 0x31, 0x78));
+
+        //past P2 but inside P2*, nothing times out
+        assertEquals(0, mManager.checkTimeouts(50 + UdsSessionManager.DEFAULT_RESPONSE_TIMEOUT + 1));
+        assertEquals(UdsSessionManager.Result.POSITIVE, response(3000, 0x7E8, 0x71, 0x01, 0xFF, 0x00));
+        assertEquals(3000, mManager.getLastLatency());
+    }
+
+    @Test
+    public void unansweredRequestTimesOut() {
+        request(0, 0x7E0, 0x22, 0xF1, 0x90);
+        assertEquals(0, mManager.checkTimeouts(UdsSessionManager.DEFAULT_RESPONSE_TIMEOUT));
+        assertEquals(1, mManager.checkTimeouts(UdsSessionManager.DEFAULT_RESPONSE_TIMEOUT + 1));
+        assertFalse(mManager.isActive());
+    }
+
+    @Test
+    public void sessionLapsesAfterS3() {
+        request(0, 0x7E0, 0x10, 0x03);
+        response(10, 0x7E8, 0x50, 0x03);
+
+        mManager.checkTimeouts(UdsSessionManager.S3_TIMEOUT + 1);
+        assertEquals(UdsSessionManager.SESSION_DEFAULT, mManager.getSession(0x7E0));
+    }
+
+    @Test
+    public void ecuResetEndsSession() {
+        request(0, 0x7E0, 0x10, 0x02);
+        response(10, 0x7E8, 0x50, 0x02);
+        request(20, 0x7E0, 0x11, 0x01);
+        response(30, 0x7E8, 0x51, 0x01);
+        assertEquals(UdsSessionManager.SESSION_DEFAULT, mManager.getSession(0x7E0));
+    }
+
+    @Test
+    public void testerPresentDue() {
+        final int[] ids = new int[UdsSessionManager.DEFAULT_SLOTS];
+
+        request(0, 0x7E0, 0x10, 0x03);
+        response(10, 0x7E8, 0x50, 0x03);
+
+        assertEquals(0, mManager.getTesterPresentDue(1000, false, ids));
+        assertEquals(1, mManager.getTesterPresentDue(UdsSessionManager.DEFAULT_TESTER_PRESENT_INTERVAL, false, ids));
+        assertEquals(0x7E0, ids[0]);
+
+        //counted as sent, not due again straight away
+        assertEquals(0, mManager.getTesterPresentDue(UdsSessionManager.DEFAULT_TESTER_PRESENT_INTERVAL + 1, false, ids));
+    }
+
+    @Test
+    public void testerPresentWaitsLongerWhenBusy() {
+        final int[] ids = new int[UdsSessionManager.DEFAULT_SLOTS];
+
+        request(0, 0x7E0, 0x10, 0x03);
+        response(10, 0x7E8, 0x50, 0x03);
+
+        assertEquals(0, mManager.getTesterPresentDue(UdsSessionManager.DEFAULT_TESTER_PRESENT_INTERVAL, true, ids));
+        assertEquals(1, mManager.getTesterPresentDue((UdsSessionManager.S3_TIMEOUT + UdsSessionManager.DEFAULT_TESTER_PRESENT_INTERVAL) / 2, true, ids));
+    }
+
+    @Test
+    public void testerPresentSharedFunctionally() {
+        final int[] ids = new int[UdsSessionManager.DEFAULT_SLOTS];
+
+        request(0, 0x7E0, 0x10, 0x03);
+        response(10, 0x7E8, 0x50, 0x03);
+        request(0, 0x7E1, 0x10, 0x03);
+        response(10, 0x7E9, 0x50, 0x03);
+        request(0, 0x18DA10F1, 0x10, 0x03);
+        response(10, 0x18DAF110, 0x50, 0x03);
+
+        assertEquals(2, mManager.getTesterPresentDue(UdsSessionManager.DEFAULT_TESTER_PRESENT_INTERVAL, false, ids));
+        assertEquals(UdsSessionManager.FUNCTIONAL_ID, ids[0]);
+        assertEquals(0x18DA10F1, ids[1]);
+    }
+
+    @Test
+    public void suppressedTesterPresentExpectsNoAnswer() {
+        request(0, 0x7E0, 0x3E, 0x80);
+        assertFalse(mManager.isActive());
+        assertEquals(0, mManager.getCounts()[UdsSessionManager.COUNT_REQUESTS]);
+    }
+}